@@ -17,18 +17,27 @@
 
 package org.thialfihar.android.apg;
 
+import android.app.ActivityManager;
 import android.app.Application;
 import android.os.Environment;
 
 import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.thialfihar.android.apg.helper.Preferences;
+import org.thialfihar.android.apg.pgp.HkpKeyServer;
+import org.thialfihar.android.apg.pgp.KeyServerCache;
+import org.thialfihar.android.apg.provider.CertificationVerifier;
+import org.thialfihar.android.apg.service.KeyMaterialPool;
+import org.thialfihar.android.apg.service.KeyRefresher;
 import org.thialfihar.android.apg.util.Log;
 import org.thialfihar.android.apg.util.PRNGFixes;
 
 import java.io.File;
 import java.security.Provider;
 import java.security.Security;
+import java.util.List;
 
 public class ApgApplication extends Application {
+    private static final long KEY_SERVER_CACHE_SIZE = 4 * 1024 * 1024;
 
     /**
      * Called when the application is starting, before any activity, service, or receiver objects
@@ -70,5 +79,41 @@ public class ApgApplication extends Application {
                 // that the directory doesn't exist at this point
             }
         }
+
+        // pre-generate key pairs for fast key creation while the device is charging or idle,
+        // only in the main process, the remote api and passphrase cache don't create keys
+        if (isMainProcess()) {
+            KeyMaterialPool keyMaterialPool = KeyMaterialPool.getInstance(this);
+            keyMaterialPool.registerReceivers();
+            keyMaterialPool.fillAsync();
+
+            // finish verification of certifications interrupted by the last shutdown
+            CertificationVerifier.verifyPendingAsync(this);
+
+            // keyserver responses are cached for repeated searches and downloads, the cache
+            // files are only used by this process
+            HkpKeyServer.setCache(new KeyServerCache(new File(getCacheDir(), "keyserver"),
+                    KEY_SERVER_CACHE_SIZE,
+                    Preferences.getPreferences(this).getKeyServerCacheTtl() * 1000));
+
+            // alarms don't survive a reboot, so it is set again on every start
+            KeyRefresher.schedule(this);
+        }
+    }
+
+    private boolean isMainProcess() {
+        ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        List<ActivityManager.RunningAppProcessInfo> processes =
+                activityManager.getRunningAppProcesses();
+        if (processes == null) {
+            return false;
+        }
+        int pid = android.os.Process.myPid();
+        for (ActivityManager.RunningAppProcessInfo process : processes) {
+            if (process.pid == pid) {
+                return getPackageName().equals(process.processName);
+            }
+        }
+        return false;
     }
 }
@@ -56,6 +56,8 @@ public final class Constants {
         public static final String LANGUAGE = "language";
         public static final String FORCE_V3_SIGNATURES = "forceV3Signatures";
         public static final String KEY_SERVERS = "keyServers";
+        public static final String KEY_SERVER_CACHE_TTL = "keyServerCacheTtl";
+        public static final String REFRESH_KEYS = "refreshKeys";
     }
 
     public static final class Defaults {
@@ -127,6 +127,8 @@ public final class Id {
             public static final int dsa = 0x21070001;
             public static final int elgamal = 0x21070002;
             public static final int rsa = 0x21070003;
+            public static final int ecdsa = 0x21070004;
+            public static final int ecdh = 0x21070005;
         }
 
         public static final class compression {
@@ -155,6 +157,7 @@ public final class Id {
         public static final int error = -1;
         public static final int no_master_key = -2;
         public static final int updated = 1;
+        public static final int unchanged = 2;
         public static final int bad = -3;
     }
 
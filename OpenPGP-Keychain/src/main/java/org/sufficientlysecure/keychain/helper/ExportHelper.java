@@ -140,7 +140,7 @@ public class ExportHelper {
                 ProgressDialog.STYLE_HORIZONTAL, true, new DialogInterface.OnCancelListener() {
             @Override
             public void onCancel(DialogInterface dialogInterface) {
-                mActivity.stopService(intent);
+                ApgIntentService.cancel(mActivity, intent);
             }
         }) {
             public void handleMessage(Message message) {
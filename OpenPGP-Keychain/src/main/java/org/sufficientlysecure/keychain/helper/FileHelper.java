@@ -24,6 +24,7 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Environment;
+import android.provider.OpenableColumns;
 import android.support.v4.app.Fragment;
 import android.widget.Toast;
 
@@ -133,4 +134,60 @@ public class FileHelper {
 
         return null;
     }
+
+    /**
+     * Name of the content behind uri to show to the user, its file path if it has one.
+     *
+     * @return path, display name or the last path segment of uri
+     */
+    public static String getDisplayName(Context context, Uri uri) {
+        String path = getPath(context, uri);
+        if (path != null) {
+            return path;
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(uri,
+                    new String[]{ OpenableColumns.DISPLAY_NAME }, null, null, null);
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getString(0);
+            }
+        } catch (Exception e) {
+            // not every provider supports OpenableColumns
+            Log.d(Constants.TAG, "name of " + uri + " unknown", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        String name = uri.getLastPathSegment();
+        return name != null ? name : uri.toString();
+    }
+
+    /**
+     * Size of the content behind uri as reported by its provider.
+     *
+     * @return size in bytes, 0 if the provider doesn't know it
+     */
+    public static long getSize(Context context, Uri uri) {
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(uri,
+                    new String[]{ OpenableColumns.SIZE }, null, null, null);
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+        } catch (Exception e) {
+            // not every provider supports OpenableColumns
+            Log.d(Constants.TAG, "size of " + uri + " unknown", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return 0;
+    }
 }
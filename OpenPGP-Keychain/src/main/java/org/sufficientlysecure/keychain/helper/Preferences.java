@@ -76,6 +76,19 @@ public class Preferences {
         editor.commit();
     }
 
+    /**
+     * @return seconds a keyserver response is used without asking the keyserver again
+     */
+    public long getKeyServerCacheTtl() {
+        return (long) mSharedPreferences.getInt(Constants.Pref.KEY_SERVER_CACHE_TTL, 600);
+    }
+
+    public void setKeyServerCacheTtl(int value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putInt(Constants.Pref.KEY_SERVER_CACHE_TTL, value);
+        editor.commit();
+    }
+
     public int getDefaultEncryptionAlgorithm() {
         return mSharedPreferences.getInt(Constants.Pref.DEFAULT_ENCRYPTION_ALGORITHM,
                 PGPEncryptedData.AES_256);
@@ -140,6 +153,17 @@ public class Preferences {
         editor.commit();
     }
 
+    public boolean getRefreshKeys() {
+        // off by default, every lookup tells the keyserver which keys we have
+        return mSharedPreferences.getBoolean(Constants.Pref.REFRESH_KEYS, false);
+    }
+
+    public void setRefreshKeys(boolean value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Constants.Pref.REFRESH_KEYS, value);
+        editor.commit();
+    }
+
     public String[] getKeyServers() {
         String rawData = mSharedPreferences.getString(Constants.Pref.KEY_SERVERS,
                 Constants.Defaults.KEY_SERVERS);
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2010-2014 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers how fast the addresses of keyserver pools answered and which of them failed, so
+ * that the next query tries the fastest healthy address first.
+ */
+public class EndpointHealth {
+    private static final int MAX_ENDPOINTS = 256;
+    private static final long MIN_BACKOFF = 60 * 1000;
+    private static final long MAX_BACKOFF = 30 * 60 * 1000;
+
+    private static class Endpoint {
+        long mLatency = -1;
+        int mFailures = 0;
+        long mLastFailure = 0;
+
+        boolean isBackingOff(long now) {
+            if (mFailures == 0) {
+                return false;
+            }
+            long backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(mFailures - 1, 16));
+            return now - mLastFailure < backoff;
+        }
+    }
+
+    private final LinkedHashMap<String, Endpoint> mEndpoints =
+            new LinkedHashMap<String, Endpoint>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Endpoint> eldest) {
+                    return size() > MAX_ENDPOINTS;
+                }
+            };
+
+    private static String getName(InetAddress address, int port) {
+        return address.getHostAddress() + ":" + port;
+    }
+
+    public synchronized void reportSuccess(InetAddress address, int port, long latency) {
+        String name = getName(address, port);
+        Endpoint endpoint = mEndpoints.get(name);
+        if (endpoint == null) {
+            endpoint = new Endpoint();
+            mEndpoints.put(name, endpoint);
+        }
+        // smooth out single slow answers
+        endpoint.mLatency = endpoint.mLatency < 0 ? latency
+                : (endpoint.mLatency * 7 + latency * 3) / 10;
+        endpoint.mFailures = 0;
+    }
+
+    public synchronized void reportFailure(InetAddress address, int port) {
+        String name = getName(address, port);
+        Endpoint endpoint = mEndpoints.get(name);
+        if (endpoint == null) {
+            endpoint = new Endpoint();
+            mEndpoints.put(name, endpoint);
+        }
+        ++endpoint.mFailures;
+        endpoint.mLastFailure = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the addresses ordered by known latency, followed by the unknown ones in their
+     *         original order and then the ones that failed recently
+     */
+    public synchronized List<InetAddress> sort(InetAddress[] addresses, final int port) {
+        final long now = System.currentTimeMillis();
+        final List<InetAddress> original = Arrays.asList(addresses);
+        List<InetAddress> sorted = new ArrayList<InetAddress>(original);
+        Collections.sort(sorted, new Comparator<InetAddress>() {
+            @Override
+            public int compare(InetAddress lhs, InetAddress rhs) {
+                int result = rank(lhs) - rank(rhs);
+                if (result != 0) {
+                    return result;
+                }
+                Endpoint left = mEndpoints.get(getName(lhs, port));
+                Endpoint right = mEndpoints.get(getName(rhs, port));
+                if (left != null && right != null && left.mLatency >= 0
+                        && right.mLatency >= 0 && left.mLatency != right.mLatency) {
+                    return left.mLatency < right.mLatency ? -1 : 1;
+                }
+                return original.indexOf(lhs) - original.indexOf(rhs);
+            }
+
+            private int rank(InetAddress address) {
+                Endpoint endpoint = mEndpoints.get(getName(address, port));
+                if (endpoint == null) {
+                    return 1;
+                }
+                if (endpoint.isBackingOff(now)) {
+                    return 2;
+                }
+                return endpoint.mLatency >= 0 ? 0 : 1;
+            }
+        });
+        return sorted;
+    }
+}
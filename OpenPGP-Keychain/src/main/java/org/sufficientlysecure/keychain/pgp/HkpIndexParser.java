@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2010-2014 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.thialfihar.android.apg.ui.adapter.ImportKeysListEntry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Reads a machine readable index line by line and returns one entry at a time, so large
+ * responses never have to be kept in memory as a whole.
+ * <p/>
+ * Keys are described by
+ * <pre>
+ * pub:%keyid%:%algo%:%keylen%:%creationdate%:%expirationdate%:%flags%
+ * uid:%escaped uid string%:%creationdate%:%expirationdate%:%flags%
+ * ...
+ * </pre>
+ * <ul>
+ * <li>%<b>keyid</b>% = either the fingerprint or the 16-digit or 8-digit key ID of the key.</li>
+ * <li>%<b>algo</b>% = the algorithm number, (i.e. 1==RSA, 17==DSA, etc).
+ * See <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a></li>
+ * <li>%<b>keylen</b>% = the key length (i.e. 1024, 2048, 4096, etc.)</li>
+ * <li>%<b>creationdate</b>%, %<b>expirationdate</b>% = seconds since 1/1/1970 UTC time, the
+ * expiration date may be empty</li>
+ * <li>%<b>escaped uid string</b>% = the user ID string, with HTTP %-escaping for anything that
+ * isn't 7-bit safe as well as for the ":" character.</li>
+ * <li>%<b>flags</b>% = any of r == revoked, d == disabled, e == expired</li>
+ * </ul>
+ * Keys without a valid user id and lines that aren't understood, like the "info" line, are
+ * skipped.
+ *
+ * @see <a href="http://tools.ietf.org/html/draft-shaw-openpgp-hkp-00#section-5.2">
+ * 5.2. Machine Readable Indexes</a>
+ * in Internet-Draft OpenPGP HTTP Keyserver Protocol Document
+ */
+public class HkpIndexParser {
+    private final BufferedReader mReader;
+    private final int mMaxResults;
+
+    private String mPendingLine = null;
+    private int mCount = 0;
+    private boolean mTruncated = false;
+
+    /**
+     * @param maxResults the parser stops after this many entries, 0 for no limit
+     */
+    public HkpIndexParser(Reader reader, int maxResults) {
+        mReader = reader instanceof BufferedReader ? (BufferedReader) reader
+                : new BufferedReader(reader);
+        mMaxResults = maxResults;
+    }
+
+    /**
+     * @return the next key of the index, null at the end or once the maximum was reached
+     */
+    public ImportKeysListEntry next() throws IOException {
+        if (mMaxResults > 0 && mCount >= mMaxResults) {
+            // only look as far as the next key
+            mTruncated = mTruncated || readEntry() != null;
+            return null;
+        }
+
+        ImportKeysListEntry entry = readEntry();
+        if (entry != null) {
+            ++mCount;
+        }
+        return entry;
+    }
+
+    private ImportKeysListEntry readEntry() throws IOException {
+        while (true) {
+            String line = nextLine();
+            if (line == null) {
+                return null;
+            }
+            ImportKeysListEntry entry = parsePubLine(line);
+            if (entry == null) {
+                continue;
+            }
+
+            ArrayList<String> userIds = new ArrayList<String>();
+            while ((line = nextLine()) != null) {
+                if (!startsWith(line, "uid:")) {
+                    // belongs to the next key
+                    mPendingLine = line;
+                    break;
+                }
+                String userId = parseUidLine(line);
+                if (userId != null) {
+                    userIds.add(userId);
+                }
+            }
+            if (userIds.isEmpty()) {
+                continue;
+            }
+            entry.setUserIds(userIds);
+            return entry;
+        }
+    }
+
+    /**
+     * Reads all remaining entries.
+     */
+    public ArrayList<ImportKeysListEntry> readAll() throws IOException {
+        ArrayList<ImportKeysListEntry> entries = new ArrayList<ImportKeysListEntry>();
+        ImportKeysListEntry entry;
+        while ((entry = next()) != null) {
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * @return true if there were more keys than the maximum, only known once next() has
+     *         returned null
+     */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    private String nextLine() throws IOException {
+        if (mPendingLine != null) {
+            String line = mPendingLine;
+            mPendingLine = null;
+            return line;
+        }
+        String line;
+        do {
+            line = mReader.readLine();
+            if (line == null) {
+                return null;
+            }
+            line = line.trim();
+        } while (line.length() == 0);
+        return line;
+    }
+
+    /**
+     * @return a new entry without user ids, null if this isn't a valid pub line
+     */
+    private static ImportKeysListEntry parsePubLine(String line) {
+        if (!startsWith(line, "pub:")) {
+            return null;
+        }
+        String[] fields = split(line, 7);
+        if (fields == null || !isHex(fields[1]) || !isDigits(fields[2])
+                || !isDigits(fields[3]) || !isDigits(fields[4]) || !isFlags(fields[6])) {
+            return null;
+        }
+
+        ImportKeysListEntry entry = new ImportKeysListEntry();
+        try {
+            entry.setAlgorithm(ImportKeysListEntry.getAlgorithmFromId(
+                    Integer.parseInt(fields[2])));
+            entry.setBitStrength(Integer.parseInt(fields[3]));
+            entry.setDate(new Date(Long.parseLong(fields[4]) * 1000));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        // the full fingerprint (v4) or the long key id if available
+        // see http://bit.ly/1d4bxbk and http://bit.ly/1gD1wwr
+        String fingerprintOrKeyId = fields[1];
+        if (fingerprintOrKeyId.length() > 16) {
+            entry.setFingerPrintHex(fingerprintOrKeyId.toLowerCase(Locale.US));
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(fingerprintOrKeyId.length()
+                    - 16));
+        } else {
+            // set key id only
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId);
+        }
+
+        entry.setRevoked(fields[6].indexOf('r') >= 0 || fields[6].indexOf('R') >= 0);
+        return entry;
+    }
+
+    /**
+     * @return the decoded user id, null if this isn't a valid uid line
+     */
+    private static String parseUidLine(String line) {
+        // not every keyserver escapes ":" in the user id, so the fields are taken from the end
+        int flagsStart = line.lastIndexOf(':');
+        int expirationStart = line.lastIndexOf(':', flagsStart - 1);
+        int creationStart = line.lastIndexOf(':', expirationStart - 1);
+        if (creationStart <= 3) {
+            return null;
+        }
+        if (!isDigits(line.substring(creationStart + 1, expirationStart))
+                || !isDigits(line.substring(expirationStart + 1, flagsStart))
+                || !isFlags(line.substring(flagsStart + 1))) {
+            return null;
+        }
+
+        String userId = line.substring(4, creationStart).trim();
+        if (userId.indexOf('%') >= 0) {
+            try {
+                // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
+                userId = URLDecoder.decode(userId, "UTF8");
+            } catch (UnsupportedEncodingException ignored) {
+                // will never happen, because "UTF8" is supported
+            } catch (IllegalArgumentException e) {
+                // broken escaping, keep it as it is
+            }
+        }
+        return userId;
+    }
+
+    /**
+     * @return the first count fields, null if the line has fewer
+     */
+    private static String[] split(String line, int count) {
+        String[] fields = new String[count];
+        int start = 0;
+        for (int i = 0; i < count; ++i) {
+            int end = line.indexOf(':', start);
+            if (end < 0) {
+                if (i < count - 1) {
+                    return null;
+                }
+                end = line.length();
+            }
+            fields[i] = line.substring(start, end);
+            start = end + 1;
+        }
+        return fields;
+    }
+
+    private static boolean startsWith(String line, String prefix) {
+        return line.regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+
+    private static boolean isHex(String field) {
+        if (field.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < field.length(); ++i) {
+            char c = field.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Digits only, may be empty
+     */
+    private static boolean isDigits(String field) {
+        for (int i = 0; i < field.length(); ++i) {
+            char c = field.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isFlags(String field) {
+        for (int i = 0; i < field.length(); ++i) {
+            if ("rdeRDE".indexOf(field.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -18,40 +18,69 @@
 
 package org.thialfihar.android.apg.pgp;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 
+import org.spongycastle.bcpg.ArmoredOutputStream;
+import org.spongycastle.openpgp.PGPUtil;
+
 import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.ui.adapter.ImportKeysListEntry;
 import org.thialfihar.android.apg.util.Log;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
+import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.Locale;
-import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 public class HkpKeyServer extends KeyServer {
     private static class HttpError extends Exception {
@@ -74,72 +103,54 @@ public class HkpKeyServer extends KeyServer {
         }
     }
 
-    private String mHost;
-    private short mPort;
-
     /**
-     * pub:%keyid%:%algo%:%keylen%:%creationdate%:%expirationdate%:%flags%
-     * <ul>
-     * <li>%<b>keyid</b>% = this is either the fingerprint or the key ID of the key.
-     * Either the 16-digit or 8-digit key IDs are acceptable, but obviously the fingerprint is best.
-     * </li>
-     * <li>%<b>algo</b>% = the algorithm number, (i.e. 1==RSA, 17==DSA, etc).
-     * See <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a></li>
-     * <li>%<b>keylen</b>% = the key length (i.e. 1024, 2048, 4096, etc.)</li>
-     * <li>%<b>creationdate</b>% = creation date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
-     * seconds since 1/1/1970 UTC time)</li>
-     * <li>%<b>expirationdate</b>% = expiration date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
-     * seconds since 1/1/1970 UTC time)</li>
-     * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any
-     * order. The meaning of "disabled" is implementation-specific. Note that individual flags may
-     * be unimplemented, so the absence of a given flag does not necessarily mean the absence of the
-     * detail.
-     * <ul>
-     * <li>r == revoked</li>
-     * <li>d == disabled</li>
-     * <li>e == expired</li>
-     * </ul>
-     * </li>
-     * </ul>
-     *
-     * @see <a href="http://tools.ietf.org/html/draft-shaw-openpgp-hkp-00#section-5.2">
-     * 5.2. Machine Readable Indexes</a>
-     * in Internet-Draft OpenPGP HTTP Keyserver Protocol Document
+     * Decompresses a response sent with "Content-Encoding: gzip".
      */
-    public static final Pattern PUB_KEY_LINE = Pattern
-            .compile("pub:([0-9a-fA-F]+):([0-9]+):([0-9]+):([0-9]+):([0-9]*):([rde]*)[ \n\r]*" // pub line
-                    + "(uid:(.*):([0-9]+):([0-9]*):([rde]*))+", // one or more uid lines
-                    Pattern.CASE_INSENSITIVE);
+    private static class GzipEntity extends HttpEntityWrapper {
+        public GzipEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new GZIPInputStream(wrappedEntity.getContent());
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+    }
+
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int READ_TIMEOUT = 25000;
+    private static final int MAX_CONNECTIONS = 16;
+    private static final int MAX_CONNECTIONS_PER_HOST = 4;
+    // delay before the next address of a keyserver pool is tried in parallel
+    private static final long ATTEMPT_DELAY = 250;
+    private static final int DEFAULT_MAX_RESULTS = 1000;
+    // entries of an index passed to a search listener at once
+    private static final int PARTIAL_RESULT_SIZE = 50;
+    // larger search results are parsed but not cached
+    private static final int MAX_CACHED_INDEX_SIZE = 256 * 1024;
+    // limits of a key block with several key rings, keyservers refuse too large uploads
+    private static final int MAX_KEYS_PER_ADD = 50;
+    private static final int MAX_KEY_BLOCK_SIZE = 1024 * 1024;
 
     /**
-     * uid:%escaped uid string%:%creationdate%:%expirationdate%:%flags%
-     * <ul>
-     * <li>%<b>escaped uid string</b>% = the user ID string, with HTTP %-escaping for anything that
-     * isn't 7-bit safe as well as for the ":" character.  Any other characters may be escaped, as
-     * desired.</li>
-     * <li>%<b>creationdate</b>% = creation date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
-     * seconds since 1/1/1970 UTC time)</li>
-     * <li>%<b>expirationdate</b>% = expiration date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
-     * seconds since 1/1/1970 UTC time)</li>
-     * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any
-     * order. The meaning of "disabled" is implementation-specific. Note that individual flags may
-     * be unimplemented, so the absence of a given flag does not necessarily mean the absence of
-     * the detail.
-     * <ul>
-     * <li>r == revoked</li>
-     * <li>d == disabled</li>
-     * <li>e == expired</li>
-     * </ul>
-     * </li>
-     * </ul>
+     * Shared by all keyservers, so that connections are kept alive between requests, e.g. when
+     * downloading a list of keys
      */
-    public static final Pattern UID_LINE = Pattern
-            .compile("uid:(.*):([0-9]+):([0-9]*):([rde]*)",
-                    Pattern.CASE_INSENSITIVE);
+    private static HttpClient sHttpClient;
+
+    private static volatile KeyServerCache sCache;
+
+    private static final EndpointHealth sHealth = new EndpointHealth();
+    private static final ExecutorService sExecutor = Executors.newCachedThreadPool();
+
+    private String mHost;
+    private short mPort;
+    private int mMaxResults = DEFAULT_MAX_RESULTS;
 
     private static final short PORT_DEFAULT = 11371;
 
@@ -169,6 +180,25 @@ public class HkpKeyServer extends KeyServer {
         mPort = port;
     }
 
+    /**
+     * @param cache used by all keyservers for search results and keys, null to disable caching
+     */
+    public static void setCache(KeyServerCache cache) {
+        sCache = cache;
+    }
+
+    public static KeyServerCache getCache() {
+        return sCache;
+    }
+
+    /**
+     * @param maxResults search stops reading the keyserver's answer after this many keys, 0 for
+     *                   no limit
+     */
+    public void setMaxResults(int maxResults) {
+        mMaxResults = maxResults;
+    }
+
     private static String readAll(InputStream in, String encoding) throws IOException {
         ByteArrayOutputStream raw = new ByteArrayOutputStream();
 
@@ -184,33 +214,383 @@ public class HkpKeyServer extends KeyServer {
         return raw.toString(encoding);
     }
 
-    private String query(String request) throws QueryException, HttpError {
+    static synchronized HttpClient getHttpClient() {
+        if (sHttpClient != null) {
+            return sHttpClient;
+        }
+
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, "utf8");
+        HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST));
+        // time to wait for a free connection of the pool
+        ConnManagerParams.setTimeout(params, READ_TIMEOUT);
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+
+        DefaultHttpClient client = new DefaultHttpClient(
+                new ThreadSafeClientConnManager(params, registry), params);
+        client.addRequestInterceptor(new HttpRequestInterceptor() {
+            @Override
+            public void process(HttpRequest request, HttpContext context)
+                    throws HttpException, IOException {
+                if (!request.containsHeader("Accept-Encoding")) {
+                    request.addHeader("Accept-Encoding", "gzip");
+                }
+            }
+        });
+        client.addResponseInterceptor(new HttpResponseInterceptor() {
+            @Override
+            public void process(HttpResponse response, HttpContext context)
+                    throws HttpException, IOException {
+                HttpEntity entity = response.getEntity();
+                if (entity == null) {
+                    return;
+                }
+                Header encoding = entity.getContentEncoding();
+                if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue())) {
+                    response.setEntity(new GzipEntity(entity));
+                }
+            }
+        });
+
+        sHttpClient = client;
+        return sHttpClient;
+    }
+
+    /**
+     * Reads the response body and releases the connection back to the pool.
+     */
+    private static String readResponse(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return "";
+        }
+        try {
+            return readAll(entity.getContent(), EntityUtils.getContentCharSet(entity));
+        } finally {
+            entity.consumeContent();
+        }
+    }
+
+    /**
+     * Keeps a copy of what was read, as long as it stays small enough.
+     */
+    private static class RecordingInputStream extends FilterInputStream {
+        private final int mMaxSize;
+        private ByteArrayOutputStream mRecorded = new ByteArrayOutputStream();
+
+        public RecordingInputStream(InputStream in, int maxSize) {
+            super(in);
+            mMaxSize = maxSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1 && mRecorded != null) {
+                mRecorded.write(b);
+                checkSize();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n > 0 && mRecorded != null) {
+                mRecorded.write(buffer, offset, n);
+                checkSize();
+            }
+            return n;
+        }
+
+        private void checkSize() {
+            if (mRecorded.size() > mMaxSize) {
+                mRecorded = null;
+            }
+        }
+
+        /**
+         * @return everything read so far, null if it was too large
+         */
+        public String getRecorded(String encoding) throws UnsupportedEncodingException {
+            return mRecorded == null ? null : mRecorded.toString(encoding);
+        }
+    }
+
+    /**
+     * A request to one address of the keyserver, run on {@link #sExecutor}.
+     */
+    private class Attempt implements Callable<Attempt> {
+        private final InetAddress mAddress;
+        private final HttpGet mGet;
+        private final boolean mIndex;
+        private final SearchListener mListener;
+        private final AtomicReference<Attempt> mReporter;
+        private volatile boolean mAborted = false;
+        private int mCode;
+        // null for parsed indexes that were too large to be cached
+        private String mData;
+        private ArrayList<ImportKeysListEntry> mEntries;
+        private String mETag;
+        private String mLastModified;
+
+        /**
+         * @param index    if the answer is a machine readable index, it is parsed while it
+         *                 arrives
+         * @param listener gets the entries of the index as they are parsed, null if not needed
+         * @param reporter shared by the attempts of a query, only the first attempt that
+         *                 parses entries passes them to listener
+         */
+        public Attempt(InetAddress address, String request, KeyServerCache.Response cached,
+                       boolean index, SearchListener listener,
+                       AtomicReference<Attempt> reporter) {
+            mAddress = address;
+            mIndex = index;
+            mListener = listener;
+            mReporter = reporter;
+            String host = address.getHostAddress();
+            if (address instanceof Inet6Address) {
+                host = "[" + host + "]";
+            }
+            mGet = new HttpGet("http://" + host + ":" + mPort + request);
+            // the url names the address, virtual hosts still have to see the keyserver's name
+            mGet.addHeader("Host", mPort == 80 ? mHost : mHost + ":" + mPort);
+            if (cached != null && cached.getETag() != null) {
+                mGet.addHeader("If-None-Match", cached.getETag());
+            }
+            if (cached != null && cached.getLastModified() != null) {
+                mGet.addHeader("If-Modified-Since", cached.getLastModified());
+            }
+        }
+
+        @Override
+        public Attempt call() throws IOException {
+            Log.d(Constants.TAG, "hkp keyserver query: " + mGet.getURI());
+            long start = System.currentTimeMillis();
+            try {
+                HttpResponse response = getHttpClient().execute(mGet);
+                mCode = response.getStatusLine().getStatusCode();
+                mETag = getHeader(response, "ETag");
+                mLastModified = getHeader(response, "Last-Modified");
+                if (mIndex && mCode >= 200 && mCode < 300) {
+                    readIndex(response);
+                } else {
+                    mData = readResponse(response);
+                }
+            } catch (IOException e) {
+                if (!mAborted) {
+                    sHealth.reportFailure(mAddress, mPort);
+                }
+                throw e;
+            }
+            sHealth.reportSuccess(mAddress, mPort, System.currentTimeMillis() - start);
+            return this;
+        }
+
+        public void abort() {
+            mAborted = true;
+            mGet.abort();
+        }
+
+        private void readIndex(HttpResponse response) throws IOException {
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                mData = "";
+                mEntries = new ArrayList<ImportKeysListEntry>();
+                return;
+            }
+            String encoding = EntityUtils.getContentCharSet(entity);
+            if (encoding == null) {
+                encoding = "utf8";
+            }
+
+            boolean done = false;
+            try {
+                RecordingInputStream in = new RecordingInputStream(entity.getContent(),
+                        MAX_CACHED_INDEX_SIZE);
+                HkpIndexParser parser = new HkpIndexParser(
+                        new InputStreamReader(in, encoding), mMaxResults);
+                mEntries = new ArrayList<ImportKeysListEntry>();
+                int reported = 0;
+                ImportKeysListEntry entry;
+                while ((entry = parser.next()) != null) {
+                    mEntries.add(entry);
+                    if (mEntries.size() - reported >= PARTIAL_RESULT_SIZE) {
+                        report(reported);
+                        reported = mEntries.size();
+                    }
+                }
+                if (!parser.isTruncated()) {
+                    entity.consumeContent();
+                    mData = in.getRecorded(encoding);
+                    done = true;
+                }
+            } finally {
+                if (!done) {
+                    // don't download the rest just to reuse the connection
+                    mGet.abort();
+                }
+            }
+        }
+
+        /**
+         * Passes the entries parsed since index from to the listener, if this attempt is the
+         * one that reports.
+         */
+        private void report(int from) {
+            if (mListener == null || mAborted
+                    || !(mReporter.get() == this || mReporter.compareAndSet(null, this))) {
+                return;
+            }
+            mListener.onEntries(new ArrayList<ImportKeysListEntry>(
+                    mEntries.subList(from, mEntries.size())));
+        }
+    }
+
+    private static String getHeader(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    /**
+     * Answers the request from the cache if possible, otherwise asks the keyserver and caches
+     * its answer.
+     */
+    private String cachedQuery(String op, String search, String request)
+            throws QueryException, HttpError {
+        KeyServerCache cache = sCache;
+        String keyServer = mHost + ":" + mPort;
+        KeyServerCache.Response cached = null;
+        if (cache != null) {
+            cached = cache.get(keyServer, op, search);
+            if (cached != null && cache.isFresh(cached)) {
+                return cached.getData();
+            }
+        }
+
+        Attempt answer = query(request, cached, false, null);
+        if (answer.mCode == HttpStatus.SC_NOT_MODIFIED) {
+            cache.revalidated(cached);
+            return cached.getData();
+        }
+        if (cache != null) {
+            cache.put(keyServer, op, search, answer.mETag, answer.mLastModified, answer.mData);
+        }
+        return answer.mData;
+    }
+
+    /**
+     * Like {@link #cachedQuery}, but the index is parsed while it is downloaded.
+     *
+     * @param listener gets the entries while they are parsed, null if not needed
+     */
+    private ArrayList<ImportKeysListEntry> cachedIndexQuery(String search, String request,
+                                                            SearchListener listener)
+            throws QueryException, HttpError {
+        KeyServerCache cache = sCache;
+        String keyServer = mHost + ":" + mPort;
+        KeyServerCache.Response cached = null;
+        if (cache != null) {
+            cached = cache.get(keyServer, KeyServerCache.OP_INDEX, search);
+            if (cached != null && cache.isFresh(cached)) {
+                return parseIndex(cached.getData());
+            }
+        }
+
+        Attempt answer = query(request, cached, true, listener);
+        if (answer.mCode == HttpStatus.SC_NOT_MODIFIED) {
+            cache.revalidated(cached);
+            return parseIndex(cached.getData());
+        }
+        if (cache != null) {
+            cache.put(keyServer, KeyServerCache.OP_INDEX, search, answer.mETag,
+                    answer.mLastModified, answer.mData);
+        }
+        return answer.mEntries;
+    }
+
+    private ArrayList<ImportKeysListEntry> parseIndex(String data) throws QueryException {
+        try {
+            return new HkpIndexParser(new StringReader(data), mMaxResults).readAll();
+        } catch (IOException e) {
+            throw new QueryException(e.toString());
+        }
+    }
+
+    /**
+     * Sends the request to the addresses of the keyserver, fastest known first. If an address
+     * doesn't answer within {@link #ATTEMPT_DELAY} the next one is tried in parallel, the first
+     * answer wins and the other requests are aborted.
+     *
+     * @param cached   if not null the keyserver is asked whether it is still valid
+     * @param index    if the answer is a machine readable index to be parsed
+     * @param listener gets the entries of the index while the first address that answers is
+     *                 read, null if not needed
+     * @return the successful answer, "304 Not Modified" only if cached was given
+     */
+    private Attempt query(String request, KeyServerCache.Response cached, boolean index,
+                          SearchListener listener) throws QueryException, HttpError {
         InetAddress ips[];
         try {
             ips = InetAddress.getAllByName(mHost);
         } catch (UnknownHostException e) {
             throw new QueryException(e.toString());
         }
-        for (int i = 0; i < ips.length; ++i) {
-            try {
-                String url = "http://" + ips[i].getHostAddress() + ":" + mPort + request;
-                Log.d(Constants.TAG, "hkp keyserver query: " + url);
-                URL realUrl = new URL(url);
-                HttpURLConnection conn = (HttpURLConnection) realUrl.openConnection();
-                conn.setConnectTimeout(5000);
-                conn.setReadTimeout(25000);
-                conn.connect();
-                int response = conn.getResponseCode();
-                if (response >= 200 && response < 300) {
-                    return readAll(conn.getInputStream(), conn.getContentEncoding());
-                } else {
-                    String data = readAll(conn.getErrorStream(), conn.getContentEncoding());
-                    throw new HttpError(response, data);
+
+        List<InetAddress> addresses = sHealth.sort(ips, mPort);
+        CompletionService<Attempt> completionService =
+                new ExecutorCompletionService<Attempt>(sExecutor);
+        List<Attempt> attempts = new ArrayList<Attempt>();
+        AtomicReference<Attempt> reporter = new AtomicReference<Attempt>();
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT + READ_TIMEOUT;
+        int next = 0;
+        int pending = 0;
+        try {
+            while (pending > 0 || next < addresses.size()) {
+                if (next < addresses.size()) {
+                    Attempt attempt = new Attempt(addresses.get(next++), request, cached,
+                            index, listener, reporter);
+                    attempts.add(attempt);
+                    completionService.submit(attempt);
+                    ++pending;
                 }
-            } catch (MalformedURLException e) {
-                // nothing to do, try next IP
-            } catch (IOException e) {
-                // nothing to do, try next IP
+
+                long timeLeft = deadline - System.currentTimeMillis();
+                if (timeLeft <= 0) {
+                    break;
+                }
+                long wait = next < addresses.size() ? Math.min(ATTEMPT_DELAY, timeLeft) : timeLeft;
+                Future<Attempt> done = completionService.poll(wait, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    continue;
+                }
+
+                --pending;
+                try {
+                    Attempt attempt = done.get();
+                    if ((attempt.mCode >= 200 && attempt.mCode < 300)
+                            || (attempt.mCode == HttpStatus.SC_NOT_MODIFIED && cached != null)) {
+                        return attempt;
+                    } else {
+                        throw new HttpError(attempt.mCode, attempt.mData);
+                    }
+                } catch (ExecutionException e) {
+                    // nothing to do, try next IP
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Attempt attempt : attempts) {
+                attempt.abort();
             }
         }
 
@@ -220,6 +600,16 @@ public class HkpKeyServer extends KeyServer {
     @Override
     public ArrayList<ImportKeysListEntry> search(String query) throws QueryException, TooManyResponses,
             InsufficientQuery {
+        return search(query, null);
+    }
+
+    /**
+     * Searches like {@link #search(String)}, listener gets the entries while the keyserver's
+     * answer is read.
+     */
+    @Override
+    public ArrayList<ImportKeysListEntry> search(String query, SearchListener listener)
+            throws QueryException, TooManyResponses, InsufficientQuery {
         ArrayList<ImportKeysListEntry> results = new ArrayList<ImportKeysListEntry>();
 
         if (query.length() < 3) {
@@ -234,9 +624,8 @@ public class HkpKeyServer extends KeyServer {
         }
         String request = "/pks/lookup?op=index&options=mr&search=" + encodedQuery;
 
-        String data;
         try {
-            data = query(request);
+            return cachedIndexQuery(query, request, listener);
         } catch (HttpError e) {
             if (e.getCode() == 404) {
                 return results;
@@ -251,81 +640,25 @@ public class HkpKeyServer extends KeyServer {
             }
             throw new QueryException("querying server(s) for '" + mHost + "' failed");
         }
-
-        final Matcher matcher = PUB_KEY_LINE.matcher(data);
-        while (matcher.find()) {
-            final ImportKeysListEntry entry = new ImportKeysListEntry();
-
-            entry.setBitStrength(Integer.parseInt(matcher.group(3)));
-
-            final int algorithmId = Integer.decode(matcher.group(2));
-            entry.setAlgorithm(ImportKeysListEntry.getAlgorithmFromId(algorithmId));
-
-            // group 1 contains the full fingerprint (v4) or the long key id if available
-            // see http://bit.ly/1d4bxbk and http://bit.ly/1gD1wwr
-            String fingerprintOrKeyId = matcher.group(1);
-            if (fingerprintOrKeyId.length() > 16) {
-                entry.setFingerPrintHex(fingerprintOrKeyId.toLowerCase(Locale.US));
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(fingerprintOrKeyId.length()
-                        - 16, fingerprintOrKeyId.length()));
-            } else {
-                // set key id only
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId);
-            }
-
-            final long creationDate = Long.parseLong(matcher.group(4));
-            final GregorianCalendar tmpGreg = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
-            tmpGreg.setTimeInMillis(creationDate * 1000);
-            entry.setDate(tmpGreg.getTime());
-
-            entry.setRevoked(matcher.group(6).contains("r"));
-
-            ArrayList<String> userIds = new ArrayList<String>();
-            final String uidLines = matcher.group(7);
-            final Matcher uidMatcher = UID_LINE.matcher(uidLines);
-            while (uidMatcher.find()) {
-                String tmp = uidMatcher.group(1).trim();
-                if (tmp.contains("%")) {
-                    try {
-                        // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
-                        tmp = (URLDecoder.decode(tmp, "UTF8"));
-                    } catch (UnsupportedEncodingException ignored) {
-                        // will never happen, because "UTF8" is supported
-                    }
-                }
-                userIds.add(tmp);
-            }
-            entry.setUserIds(userIds);
-
-            results.add(entry);
-        }
-        return results;
     }
 
     @Override
     public String get(String keyIdHex) throws QueryException {
-        HttpClient client = new DefaultHttpClient();
+        String request = "/pks/lookup?op=get&options=mr&search=" + keyIdHex;
+        Log.d(Constants.TAG, "hkp keyserver get: " + mHost + ":" + mPort + request);
+        String data;
         try {
-            String query = "http://" + mHost + ":" + mPort +
-                    "/pks/lookup?op=get&options=mr&search=" + keyIdHex;
-            Log.d(Constants.TAG, "hkp keyserver get: " + query);
-            HttpGet get = new HttpGet(query);
-            HttpResponse response = client.execute(get);
-            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
-                throw new QueryException("not found");
+            data = cachedQuery(KeyServerCache.OP_GET, keyIdHex, request);
+        } catch (HttpError e) {
+            if (e.getCode() == HttpStatus.SC_NOT_FOUND) {
+                throw new KeyNotFoundException("not found");
             }
+            throw new QueryException("keyserver '" + mHost + "' answered " + e.getCode());
+        }
 
-            HttpEntity entity = response.getEntity();
-            InputStream is = entity.getContent();
-            String data = readAll(is, EntityUtils.getContentCharSet(entity));
-            Matcher matcher = PgpHelper.PGP_PUBLIC_KEY.matcher(data);
-            if (matcher.find()) {
-                return matcher.group(1);
-            }
-        } catch (IOException e) {
-            // nothing to do, better luck on the next keyserver
-        } finally {
-            client.getConnectionManager().shutdown();
+        Matcher matcher = PgpHelper.PGP_PUBLIC_KEY.matcher(data);
+        if (matcher.find()) {
+            return matcher.group(1);
         }
 
         return null;
@@ -333,7 +666,7 @@ public class HkpKeyServer extends KeyServer {
 
     @Override
     public void add(String armoredKey) throws AddKeyException {
-        HttpClient client = new DefaultHttpClient();
+        HttpClient client = getHttpClient();
         try {
             String query = "http://" + mHost + ":" + mPort + "/pks/add";
             HttpPost post = new HttpPost(query);
@@ -343,13 +676,85 @@ public class HkpKeyServer extends KeyServer {
             post.setEntity(new UrlEncodedFormEntity(nameValuePairs));
 
             HttpResponse response = client.execute(post);
+            readResponse(response);
             if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
                 throw new AddKeyException();
             }
         } catch (IOException e) {
-            // nothing to do, better luck on the next keyserver
-        } finally {
-            client.getConnectionManager().shutdown();
+            Log.e(Constants.TAG, "hkp keyserver add failed", e);
+            throw new AddKeyException();
+        }
+    }
+
+    /**
+     * Sends the key rings concatenated in one key block, like gpg does, in as few requests as
+     * the limits allow. If the keyserver refuses a key block, its key rings are sent one at a
+     * time over the kept-alive connections of the pool to find out which of them it takes.
+     */
+    @Override
+    public boolean[] add(List<String> armoredKeys) {
+        boolean[] added = new boolean[armoredKeys.size()];
+        int next = 0;
+        while (next < armoredKeys.size()) {
+            ByteArrayOutputStream keyBlock = new ByteArrayOutputStream();
+            ArrayList<Integer> batch = new ArrayList<Integer>();
+            while (next < armoredKeys.size() && batch.size() < MAX_KEYS_PER_ADD
+                    && keyBlock.size() < MAX_KEY_BLOCK_SIZE) {
+                int i = next++;
+                try {
+                    keyBlock.write(dearmor(armoredKeys.get(i)));
+                    batch.add(i);
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "not an armored key block", e);
+                }
+            }
+
+            if (batch.size() > 1) {
+                try {
+                    add(armor(keyBlock.toByteArray()));
+                    for (int i : batch) {
+                        added[i] = true;
+                    }
+                    continue;
+                } catch (AddKeyException e) {
+                    Log.d(Constants.TAG, "hkp keyserver refused " + batch.size()
+                            + " keys at once, sending them one by one");
+                }
+            }
+            for (int i : batch) {
+                try {
+                    add(armoredKeys.get(i));
+                    added[i] = true;
+                } catch (AddKeyException e) {
+                    // reported as not added
+                }
+            }
+        }
+        return added;
+    }
+
+    private static byte[] dearmor(String armoredKey) throws IOException {
+        InputStream in = PGPUtil.getDecoderStream(
+                new ByteArrayInputStream(armoredKey.getBytes("ascii")));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 12];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static String armor(byte[] keyBlock) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArmoredOutputStream armorOut = new ArmoredOutputStream(out);
+        try {
+            armorOut.write(keyBlock);
+            armorOut.close();
+            return out.toString("ascii");
+        } catch (IOException e) {
+            // not thrown by a ByteArrayOutputStream
+            throw new RuntimeException(e);
         }
     }
 }
@@ -58,9 +58,17 @@ public class Key implements Serializable {
     public static final int ELGAMAL_ENCRYPT = PGPPublicKey.ELGAMAL_ENCRYPT;
     public static final int DSA = PGPPublicKey.DSA;
 
+    private static final int KEY_FLAGS_UNKNOWN = -1;
+    private static final long EXPIRY_UNKNOWN = Long.MIN_VALUE;
+    private static final long EXPIRY_NONE = Long.MAX_VALUE;
+
     private transient PGPSecretKey mSecretKey;
     private transient PGPPublicKey mPublicKey;
 
+    // derived from the signatures on first use, the wrapped keys never change
+    private transient int mKeyFlags = KEY_FLAGS_UNKNOWN;
+    private transient volatile long mExpiryTime = EXPIRY_UNKNOWN;
+
     public static Key decode(byte[] data) {
         PGPObjectFactory factory = new PGPObjectFactory(data);
         Object obj = null;
@@ -129,28 +137,55 @@ public class Key implements Serializable {
     }
 
     public Date getExpiryDate() {
-        Date creationDate = getCreationDate();
-        if (mPublicKey.getValidDays() == 0) {
-            // no expiry
+        long expiryTime = getExpiryTime();
+        if (expiryTime == EXPIRY_NONE) {
             return null;
         }
-        Calendar calendar = GregorianCalendar.getInstance();
-        calendar.setTime(creationDate);
-        calendar.add(Calendar.DATE, mPublicKey.getValidDays());
-        Date expiryDate = calendar.getTime();
+        return new Date(expiryTime);
+    }
 
-        return expiryDate;
+    private long getExpiryTime() {
+        long expiryTime = mExpiryTime;
+        if (expiryTime == EXPIRY_UNKNOWN) {
+            // getValidDays() searches all self signatures
+            int validDays = mPublicKey.getValidDays();
+            if (validDays == 0) {
+                // no expiry
+                expiryTime = EXPIRY_NONE;
+            } else {
+                Calendar calendar = GregorianCalendar.getInstance();
+                calendar.setTime(getCreationDate());
+                calendar.add(Calendar.DATE, validDays);
+                expiryTime = calendar.getTimeInMillis();
+            }
+            mExpiryTime = expiryTime;
+        }
+        return expiryTime;
     }
 
     public boolean isExpired() {
-        Date creationDate = getCreationDate();
-        Date expiryDate = getExpiryDate();
-        Date now = new Date();
-        if (now.compareTo(creationDate) >= 0 &&
-            (expiryDate == null || now.compareTo(expiryDate) <= 0)) {
-            return false;
-        }
-        return true;
+        return isExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * @return whether the key is not valid at the given time, because it is not created yet or
+     *         has already expired
+     */
+    public boolean isExpired(long now) {
+        return now < getCreationDate().getTime() || now > getExpiryTime();
+    }
+
+    /**
+     * @return the next point in time after now at which {@link #isExpired(long)} changes, or
+     *         Long.MAX_VALUE if it never does
+     */
+    long getNextValidityChange(long now) {
+        long creationTime = getCreationDate().getTime();
+        if (now < creationTime) {
+            return creationTime;
+        }
+        long expiryTime = getExpiryTime();
+        return expiryTime == EXPIRY_NONE || now > expiryTime ? Long.MAX_VALUE : expiryTime + 1;
     }
 
     public boolean isRevoked() {
@@ -194,25 +229,7 @@ public class Key implements Serializable {
             return true;
         }
 
-        for (PGPSignature sig : new IterableIterator<PGPSignature>(mPublicKey.getSignatures())) {
-            if (mPublicKey.isMasterKey() && sig.getKeyID() != mPublicKey.getKeyID()) {
-                continue;
-            }
-            PGPSignatureSubpacketVector hashed = sig.getHashedSubPackets();
-
-            if (hashed != null && (hashed.getKeyFlags() &
-                                   (KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE)) != 0) {
-                return true;
-            }
-
-            PGPSignatureSubpacketVector unhashed = sig.getUnhashedSubPackets();
-
-            if (unhashed != null && (unhashed.getKeyFlags() &
-                                     (KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE)) != 0) {
-                return true;
-            }
-        }
-        return false;
+        return (getKeyFlags() & (KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE)) != 0;
     }
 
     public boolean isSigningKey() {
@@ -233,24 +250,7 @@ public class Key implements Serializable {
             return true;
         }
 
-        for (PGPSignature sig : new IterableIterator<PGPSignature>(mPublicKey.getSignatures())) {
-            if (mPublicKey.isMasterKey() && sig.getKeyID() != mPublicKey.getKeyID()) {
-                continue;
-            }
-            PGPSignatureSubpacketVector hashed = sig.getHashedSubPackets();
-
-            if (hashed != null && (hashed.getKeyFlags() & KeyFlags.SIGN_DATA) != 0) {
-                return true;
-            }
-
-            PGPSignatureSubpacketVector unhashed = sig.getUnhashedSubPackets();
-
-            if (unhashed != null && (unhashed.getKeyFlags() & KeyFlags.SIGN_DATA) != 0) {
-                return true;
-            }
-        }
-
-        return false;
+        return (getKeyFlags() & KeyFlags.SIGN_DATA) != 0;
     }
 
     public boolean isCertificationKey() {
@@ -262,24 +262,7 @@ public class Key implements Serializable {
             return true;
         }
 
-        for (PGPSignature sig : new IterableIterator<PGPSignature>(mPublicKey.getSignatures())) {
-            if (mPublicKey.isMasterKey() && sig.getKeyID() != mPublicKey.getKeyID()) {
-                continue;
-            }
-            PGPSignatureSubpacketVector hashed = sig.getHashedSubPackets();
-
-            if (hashed != null && (hashed.getKeyFlags() & KeyFlags.CERTIFY_OTHER) != 0) {
-                return true;
-            }
-
-            PGPSignatureSubpacketVector unhashed = sig.getUnhashedSubPackets();
-
-            if (unhashed != null && (unhashed.getKeyFlags() & KeyFlags.CERTIFY_OTHER) != 0) {
-                return true;
-            }
-        }
-
-        return false;
+        return (getKeyFlags() & KeyFlags.CERTIFY_OTHER) != 0;
     }
 
     public boolean isAuthenticationKey() {
@@ -287,32 +270,26 @@ public class Key implements Serializable {
             return true;
         }
 
-        for (PGPSignature sig : new IterableIterator<PGPSignature>(mPublicKey.getSignatures())) {
-            if (mPublicKey.isMasterKey() && sig.getKeyID() != mPublicKey.getKeyID()) {
-                continue;
-            }
-            PGPSignatureSubpacketVector hashed = sig.getHashedSubPackets();
-
-            if (hashed != null && (hashed.getKeyFlags() & KeyFlags.AUTHENTICATION) != 0) {
-                return true;
-            }
-
-            PGPSignatureSubpacketVector unhashed = sig.getUnhashedSubPackets();
-
-            if (unhashed != null && (unhashed.getKeyFlags() & KeyFlags.AUTHENTICATION) != 0) {
-                return true;
-            }
-        }
-
-        return false;
+        return (getKeyFlags() & KeyFlags.AUTHENTICATION) != 0;
     }
 
     public int getKeyUsage() {
         if (mPublicKey.getVersion() <= 3) {
             return 0;
         }
+        return getKeyFlags();
+    }
+
+    /**
+     * @return the key flags of all self signatures, or of all binding signatures for subkeys
+     */
+    private int getKeyFlags() {
+        int keyFlags = mKeyFlags;
+        if (keyFlags != KEY_FLAGS_UNKNOWN) {
+            return keyFlags;
+        }
 
-        int usage = 0;
+        keyFlags = 0;
         for (PGPSignature sig : new IterableIterator<PGPSignature>(mPublicKey.getSignatures())) {
             if (mPublicKey.isMasterKey() && sig.getKeyID() != mPublicKey.getKeyID()) {
                 continue;
@@ -320,15 +297,16 @@ public class Key implements Serializable {
 
             PGPSignatureSubpacketVector hashed = sig.getHashedSubPackets();
             if (hashed != null) {
-                usage |= hashed.getKeyFlags();
+                keyFlags |= hashed.getKeyFlags();
             }
 
             PGPSignatureSubpacketVector unhashed = sig.getUnhashedSubPackets();
             if (unhashed != null) {
-                usage |= unhashed.getKeyFlags();
+                keyFlags |= unhashed.getKeyFlags();
             }
         }
-        return usage;
+        mKeyFlags = keyFlags;
+        return keyFlags;
     }
 
     public int getAlgorithm() {
@@ -367,6 +345,16 @@ public class Key implements Serializable {
                 break;
             }
 
+            case PGPPublicKey.ECDSA: {
+                algorithmStr = "ECDSA";
+                break;
+            }
+
+            case PGPPublicKey.ECDH: {
+                algorithmStr = "ECDH";
+                break;
+            }
+
             default: {
                 algorithmStr = "???";
                 break;
@@ -431,8 +419,20 @@ public class Key implements Serializable {
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
         byte[] data = (byte[]) in.readObject();
-        mPublicKey = null;
-        mSecretKey = null;
+        Key key = decodeKeyData(data);
+        mPublicKey = key.mPublicKey;
+        mSecretKey = key.mSecretKey;
+        mKeyFlags = KEY_FLAGS_UNKNOWN;
+        mExpiryTime = EXPIRY_UNKNOWN;
+    }
+
+    /**
+     * Decodes a single key with its signatures, as stored in the key_data column of the keys
+     * table. Unlike {@link #decode(byte[])} this also works for subkeys without their key ring.
+     */
+    public static Key decodeKeyData(byte[] data) throws IOException {
+        PGPPublicKey publicKey = null;
+        PGPSecretKey secretKey = null;
         BCPGInputStream pIn = new BCPGInputStream(new ByteArrayInputStream(data));
 
         int initialTag = pIn.nextPacketTag();
@@ -459,7 +459,7 @@ public class Key implements Serializable {
             PGPKeyRing.readUserIDs(pIn, ids, idTrusts, idSigs);
 
             try {
-                mPublicKey = new PGPPublicKey(pubPk, trustPk, keySigs, ids, idTrusts, idSigs,
+                publicKey = new PGPPublicKey(pubPk, trustPk, keySigs, ids, idTrusts, idSigs,
                                               fingerPrintCalculator);
             } catch (PGPException e) {
                 throw new IOException("processing exception: " + e.toString());
@@ -475,7 +475,7 @@ public class Key implements Serializable {
             List sigList = PGPKeyRing.readSignaturesAndTrust(pIn);
 
             try {
-                mPublicKey = new PGPPublicKey(pk, kTrust, sigList, fingerPrintCalculator);
+                publicKey = new PGPPublicKey(pk, kTrust, sigList, fingerPrintCalculator);
             } catch (PGPException e) {
                 throw new IOException("processing exception: " + e.toString());
             }
@@ -501,7 +501,7 @@ public class Key implements Serializable {
             PGPKeyRing.readUserIDs(pIn, ids, idTrusts, idSigs);
 
             try {
-                mSecretKey = new PGPSecretKey(secret, new PGPPublicKey(secret.getPublicKeyPacket(),
+                secretKey = new PGPSecretKey(secret, new PGPPublicKey(secret.getPublicKeyPacket(),
                                 trust, keySigs, ids, idTrusts, idSigs, fingerPrintCalculator));
             } catch (PGPException e) {
                 throw new IOException("processing exception: " + e.toString());
@@ -521,7 +521,7 @@ public class Key implements Serializable {
             List sigList = PGPKeyRing.readSignaturesAndTrust(pIn);
 
             try {
-                mSecretKey = new PGPSecretKey(sub, new PGPPublicKey(sub.getPublicKeyPacket(), subTrust,
+                secretKey = new PGPSecretKey(sub, new PGPPublicKey(sub.getPublicKeyPacket(), subTrust,
                                                 sigList, fingerPrintCalculator));
             } catch (PGPException e) {
                 throw new IOException("processing exception: " + e.toString());
@@ -530,8 +530,9 @@ public class Key implements Serializable {
         }
         }
 
-        if (mSecretKey != null) {
-            mPublicKey = mSecretKey.getPublicKey();
+        if (secretKey != null) {
+            return new Key(secretKey);
         }
+        return new Key(publicKey);
     }
 }
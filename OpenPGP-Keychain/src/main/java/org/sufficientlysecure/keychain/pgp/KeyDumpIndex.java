@@ -0,0 +1,580 @@
+/*
+ * Copyright (C) 2010-2014 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * Index of a keyserver dump file, a plain concatenation of binary public key rings as written by
+ * "sks dump" or "gpg --export". The index is built once and memory-mapped, lookups are binary
+ * searches in it and only the requested key rings are read from the dump.
+ * <p/>
+ * Layout of the index file, all numbers big-endian:
+ * <pre>
+ * header  magic, version, dump length, dump modification time,
+ *         number of key rings, keys and tokens
+ * rings   offset in the dump (8), length (4), fingerprint of the master key (20)
+ * keys    key id of the master key or a subkey (8), ring (4), sorted by key id
+ * tokens  hash of a user id word (8), ring (4), sorted by hash
+ * </pre>
+ * Token hashes can collide, so rings found by words have to be checked against their user ids.
+ */
+public class KeyDumpIndex {
+    private static final int MAGIC = 0x41504758;
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 36;
+    private static final int RING_SIZE = 32;
+    private static final int ENTRY_SIZE = 12;
+    private static final int FINGERPRINT_LENGTH = 20;
+
+    // words shorter than this aren't indexed
+    private static final int MIN_TOKEN_LENGTH = 2;
+
+    private static final int TAG_PUBLIC_KEY = 6;
+    private static final int TAG_USER_ID = 13;
+    private static final int TAG_PUBLIC_SUBKEY = 14;
+
+    private final File mDump;
+    private final RandomAccessFile mDumpFile;
+    private final ByteBuffer mIndex;
+    private final long mDumpLength;
+    private final long mDumpModified;
+    private final int mRingCount;
+    private final int mKeyCount;
+    private final int mTokenCount;
+    private final int mKeysStart;
+    private final int mTokensStart;
+
+    private KeyDumpIndex(File dump, ByteBuffer index) throws IOException {
+        mDump = dump;
+        mIndex = index;
+        if (index.capacity() < HEADER_SIZE || index.getInt(0) != MAGIC
+                || index.getInt(4) != VERSION) {
+            throw new IOException("not an index of version " + VERSION);
+        }
+        mDumpLength = index.getLong(8);
+        mDumpModified = index.getLong(16);
+        mRingCount = index.getInt(24);
+        mKeyCount = index.getInt(28);
+        mTokenCount = index.getInt(32);
+        if (mRingCount < 0 || mKeyCount < 0 || mTokenCount < 0
+                || index.capacity() != HEADER_SIZE + (long) mRingCount * RING_SIZE
+                        + (long) (mKeyCount + mTokenCount) * ENTRY_SIZE) {
+            throw new IOException("index is truncated");
+        }
+        mKeysStart = HEADER_SIZE + mRingCount * RING_SIZE;
+        mTokensStart = mKeysStart + mKeyCount * ENTRY_SIZE;
+        mDumpFile = new RandomAccessFile(dump, "r");
+    }
+
+    /**
+     * Maps an index built by {@link #build(File, File)}.
+     */
+    public static KeyDumpIndex open(File dump, File indexFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        try {
+            // the mapping stays valid after the file is closed
+            return new KeyDumpIndex(dump,
+                    file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return false if the dump was changed or replaced since the index was built
+     */
+    public boolean isCurrent() {
+        return mDump.length() == mDumpLength && mDump.lastModified() == mDumpModified;
+    }
+
+    public File getDump() {
+        return mDump;
+    }
+
+    public int getRingCount() {
+        return mRingCount;
+    }
+
+    public void close() {
+        try {
+            mDumpFile.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Adds the rings that contain a key with this id.
+     */
+    public void findKey(long keyId, Collection<Integer> rings) {
+        find(mKeysStart, mKeyCount, keyId, rings);
+    }
+
+    /**
+     * Adds the rings that may have a user id containing this word.
+     */
+    public void findToken(String token, Collection<Integer> rings) {
+        find(mTokensStart, mTokenCount, hashToken(token), rings);
+    }
+
+    public byte[] getFingerprint(int ring) {
+        byte[] fingerprint = new byte[FINGERPRINT_LENGTH];
+        int position = HEADER_SIZE + ring * RING_SIZE + 12;
+        for (int i = 0; i < FINGERPRINT_LENGTH; ++i) {
+            fingerprint[i] = mIndex.get(position + i);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * @return the binary key ring as it is in the dump
+     */
+    public byte[] readRing(int ring) throws IOException {
+        int position = HEADER_SIZE + ring * RING_SIZE;
+        long offset = mIndex.getLong(position);
+        byte[] data = new byte[mIndex.getInt(position + 8)];
+        // not a FileChannel, interrupting a reading thread would close it for all others
+        synchronized (mDumpFile) {
+            mDumpFile.seek(offset);
+            mDumpFile.readFully(data);
+        }
+        return data;
+    }
+
+    private void find(int start, int count, long key, Collection<Integer> rings) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mIndex.getLong(start + middle * ENTRY_SIZE) < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        for (int i = low; i < count && mIndex.getLong(start + i * ENTRY_SIZE) == key; ++i) {
+            rings.add(mIndex.getInt(start + i * ENTRY_SIZE + 8));
+        }
+    }
+
+    /**
+     * Splits a user id or a query into the words that are indexed.
+     */
+    public static void tokenize(String text, Collection<String> tokens) {
+        String lowerCase = text.toLowerCase(Locale.US);
+        int start = -1;
+        for (int i = 0; i <= lowerCase.length(); ++i) {
+            boolean wordChar = i < lowerCase.length()
+                    && Character.isLetterOrDigit(lowerCase.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (i - start >= MIN_TOKEN_LENGTH) {
+                    tokens.add(lowerCase.substring(start, i));
+                }
+                start = -1;
+            }
+        }
+    }
+
+    // 64 bit FNV-1a
+    private static long hashToken(String token) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < token.length(); ++i) {
+            hash ^= token.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Reads the dump and writes its index. Packets that can't be parsed end the index, so a dump
+     * that is still being copied is indexed up to its last complete key ring.
+     */
+    public static void build(File dump, File indexFile) throws IOException {
+        long dumpLength = dump.length();
+        long dumpModified = dump.lastModified();
+        Builder builder = new Builder();
+        InputStream in = new BufferedInputStream(new FileInputStream(dump), 64 * 1024);
+        try {
+            builder.scan(in, dumpLength);
+        } finally {
+            in.close();
+        }
+
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile), 64 * 1024));
+        try {
+            builder.write(out, dumpLength, dumpModified);
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(indexFile)) {
+            tempFile.delete();
+            throw new IOException("could not write " + indexFile);
+        }
+    }
+
+    private static class Builder {
+        private final MessageDigest mSha1;
+        private final MessageDigest mMd5;
+
+        private long[] mRingOffsets = new long[1024];
+        private int[] mRingLengths = new int[1024];
+        private byte[][] mFingerprints = new byte[1024][];
+        private int mRingCount = 0;
+
+        private long[] mKeyIds = new long[1024];
+        private int[] mKeyRings = new int[1024];
+        private int mKeyCount = 0;
+
+        private long[] mTokens = new long[1024];
+        private int[] mTokenRings = new int[1024];
+        private int mTokenCount = 0;
+
+        // state of the key ring that is read
+        private long mRingStart = -1;
+        private byte[] mFingerprint;
+        private final ArrayList<Long> mRingKeyIds = new ArrayList<Long>();
+        private final HashSet<String> mRingTokens = new HashSet<String>();
+
+        private long mPosition = 0;
+
+        Builder() {
+            try {
+                mSha1 = MessageDigest.getInstance("SHA-1");
+                mMd5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void scan(InputStream in, long dumpLength) throws IOException {
+            try {
+                while (true) {
+                    long packetStart = mPosition;
+                    int header = in.read();
+                    if (header < 0) {
+                        break;
+                    }
+                    ++mPosition;
+                    if ((header & 0x80) == 0) {
+                        throw new IOException("no packet at " + packetStart);
+                    }
+
+                    boolean newFormat = (header & 0x40) != 0;
+                    int tag = newFormat ? header & 0x3f : (header >> 2) & 0x0f;
+                    if (tag == TAG_PUBLIC_KEY) {
+                        // the key ring before is complete, even if this one isn't
+                        endRing(packetStart);
+                    }
+
+                    long length;
+                    if (newFormat) {
+                        int first = readByte(in);
+                        if (first < 192) {
+                            length = first;
+                        } else if (first < 224) {
+                            length = ((first - 192) << 8) + readByte(in) + 192;
+                        } else if (first == 255) {
+                            length = readLength(in, 4);
+                        } else {
+                            // partial lengths are only used for data, not for keys
+                            throw new IOException("partial length at " + packetStart);
+                        }
+                    } else {
+                        int lengthType = header & 0x03;
+                        if (lengthType == 3) {
+                            throw new IOException("indeterminate length at " + packetStart);
+                        }
+                        length = readLength(in, 1 << lengthType);
+                    }
+                    if (mPosition + length > dumpLength) {
+                        throw new EOFException();
+                    }
+
+                    switch (tag) {
+                        case TAG_PUBLIC_KEY: {
+                            mRingStart = packetStart;
+                            byte[] body = readBody(in, length);
+                            mFingerprint = fingerprint(body);
+                            mRingKeyIds.add(keyId(body, mFingerprint));
+                            break;
+                        }
+                        case TAG_PUBLIC_SUBKEY: {
+                            byte[] body = readBody(in, length);
+                            if (mRingStart >= 0) {
+                                mRingKeyIds.add(keyId(body, fingerprint(body)));
+                            }
+                            break;
+                        }
+                        case TAG_USER_ID: {
+                            byte[] body = readBody(in, length);
+                            if (mRingStart >= 0) {
+                                tokenize(new String(body, "UTF-8"), mRingTokens);
+                            }
+                            break;
+                        }
+                        default: {
+                            skip(in, length);
+                            break;
+                        }
+                    }
+                }
+                endRing(mPosition);
+            } catch (EOFException e) {
+                // incomplete last key ring, left out
+            } catch (IOException e) {
+                // the key rings before are fine
+                Log.w(Constants.TAG, "dump unreadable after " + mPosition + ": " + e);
+            }
+        }
+
+        private void endRing(long end) {
+            if (mRingStart < 0) {
+                return;
+            }
+            if (mRingCount == mRingOffsets.length) {
+                int size = mRingCount * 2;
+                mRingOffsets = Arrays.copyOf(mRingOffsets, size);
+                mRingLengths = Arrays.copyOf(mRingLengths, size);
+                mFingerprints = Arrays.copyOf(mFingerprints, size);
+            }
+            int ring = mRingCount++;
+            mRingOffsets[ring] = mRingStart;
+            mRingLengths[ring] = (int) (end - mRingStart);
+            mFingerprints[ring] = mFingerprint;
+
+            for (long keyId : mRingKeyIds) {
+                if (mKeyCount == mKeyIds.length) {
+                    mKeyIds = Arrays.copyOf(mKeyIds, mKeyCount * 2);
+                    mKeyRings = Arrays.copyOf(mKeyRings, mKeyCount * 2);
+                }
+                mKeyIds[mKeyCount] = keyId;
+                mKeyRings[mKeyCount++] = ring;
+            }
+            for (String token : mRingTokens) {
+                if (mTokenCount == mTokens.length) {
+                    mTokens = Arrays.copyOf(mTokens, mTokenCount * 2);
+                    mTokenRings = Arrays.copyOf(mTokenRings, mTokenCount * 2);
+                }
+                mTokens[mTokenCount] = hashToken(token);
+                mTokenRings[mTokenCount++] = ring;
+            }
+
+            mRingStart = -1;
+            mRingKeyIds.clear();
+            mRingTokens.clear();
+        }
+
+        void write(DataOutputStream out, long dumpLength, long dumpModified)
+                throws IOException {
+            sort(mKeyIds, mKeyRings, 0, mKeyCount - 1);
+            sort(mTokens, mTokenRings, 0, mTokenCount - 1);
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(dumpLength);
+            out.writeLong(dumpModified);
+            out.writeInt(mRingCount);
+            out.writeInt(mKeyCount);
+            out.writeInt(mTokenCount);
+            for (int i = 0; i < mRingCount; ++i) {
+                out.writeLong(mRingOffsets[i]);
+                out.writeInt(mRingLengths[i]);
+                out.write(mFingerprints[i], 0, FINGERPRINT_LENGTH);
+            }
+            for (int i = 0; i < mKeyCount; ++i) {
+                out.writeLong(mKeyIds[i]);
+                out.writeInt(mKeyRings[i]);
+            }
+            for (int i = 0; i < mTokenCount; ++i) {
+                out.writeLong(mTokens[i]);
+                out.writeInt(mTokenRings[i]);
+            }
+        }
+
+        /**
+         * @return the v4 fingerprint, or the v3 fingerprint padded with zeros
+         */
+        private byte[] fingerprint(byte[] body) throws IOException {
+            if (body.length < 1) {
+                throw new IOException("empty key packet");
+            }
+            byte[] fingerprint = new byte[FINGERPRINT_LENGTH];
+            if (body[0] == 4) {
+                mSha1.update((byte) 0x99);
+                mSha1.update((byte) (body.length >> 8));
+                mSha1.update((byte) body.length);
+                mSha1.update(body);
+                System.arraycopy(mSha1.digest(), 0, fingerprint, 0, FINGERPRINT_LENGTH);
+            } else {
+                // version, creation time, validity, algorithm, RSA modulus and exponent
+                int modulusEnd = mpiEnd(body, 8);
+                int exponentEnd = mpiEnd(body, modulusEnd);
+                mMd5.update(body, 10, modulusEnd - 10);
+                mMd5.update(body, modulusEnd + 2, exponentEnd - modulusEnd - 2);
+                System.arraycopy(mMd5.digest(), 0, fingerprint, 0, 16);
+            }
+            return fingerprint;
+        }
+
+        private static long keyId(byte[] body, byte[] fingerprint) throws IOException {
+            // v4: the low 64 bits of the fingerprint, v3: the low 64 bits of the modulus
+            byte[] source = fingerprint;
+            int end = FINGERPRINT_LENGTH;
+            if (body[0] != 4) {
+                source = body;
+                end = mpiEnd(body, 8);
+            }
+            long keyId = 0;
+            for (int i = end - 8; i < end; ++i) {
+                keyId = (keyId << 8) | (source[i] & 0xff);
+            }
+            return keyId;
+        }
+
+        private static int mpiEnd(byte[] body, int start) throws IOException {
+            if (start + 2 > body.length) {
+                throw new IOException("invalid v3 key");
+            }
+            int bits = ((body[start] & 0xff) << 8) | (body[start + 1] & 0xff);
+            int end = start + 2 + (bits + 7) / 8;
+            if (end > body.length || end - start - 2 < 8) {
+                throw new IOException("invalid v3 key");
+            }
+            return end;
+        }
+
+        private int readByte(InputStream in) throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            ++mPosition;
+            return b;
+        }
+
+        private long readLength(InputStream in, int bytes) throws IOException {
+            long length = 0;
+            for (int i = 0; i < bytes; ++i) {
+                length = (length << 8) | readByte(in);
+            }
+            return length;
+        }
+
+        private byte[] readBody(InputStream in, long length) throws IOException {
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("packet too long");
+            }
+            byte[] body = new byte[(int) length];
+            int read = 0;
+            while (read < body.length) {
+                int count = in.read(body, read, body.length - read);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                read += count;
+            }
+            mPosition += length;
+            return body;
+        }
+
+        private void skip(InputStream in, long length) throws IOException {
+            long left = length;
+            while (left > 0) {
+                long skipped = in.skip(left);
+                if (skipped <= 0) {
+                    if (in.read() < 0) {
+                        throw new EOFException();
+                    }
+                    skipped = 1;
+                }
+                left -= skipped;
+            }
+            mPosition += length;
+        }
+
+        /**
+         * Sorts keys and values by key, both arrays from low to high inclusive.
+         */
+        private static void sort(long[] keys, int[] values, int low, int high) {
+            while (high - low > 16) {
+                long pivot = keys[(low + high) >>> 1];
+                int i = low;
+                int j = high;
+                while (i <= j) {
+                    while (keys[i] < pivot) {
+                        ++i;
+                    }
+                    while (keys[j] > pivot) {
+                        --j;
+                    }
+                    if (i <= j) {
+                        swap(keys, values, i++, j--);
+                    }
+                }
+                // recurse into the smaller part only
+                if (j - low < high - i) {
+                    sort(keys, values, low, j);
+                    low = i;
+                } else {
+                    sort(keys, values, i, high);
+                    high = j;
+                }
+            }
+            for (int i = low + 1; i <= high; ++i) {
+                for (int j = i; j > low && keys[j - 1] > keys[j]; --j) {
+                    swap(keys, values, j - 1, j);
+                }
+            }
+        }
+
+        private static void swap(long[] keys, int[] values, int i, int j) {
+            long key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+            int value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+}
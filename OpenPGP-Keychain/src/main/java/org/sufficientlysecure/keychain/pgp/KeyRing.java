@@ -26,16 +26,39 @@ import org.spongycastle.openpgp.PGPPublicKeyRing;
 import org.spongycastle.openpgp.PGPSecretKey;
 import org.spongycastle.openpgp.PGPSecretKeyRing;
 
+import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.util.IterableIterator;
+import org.thialfihar.android.apg.util.Log;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class KeyRing {
     private PGPSecretKeyRing mSecretKeyRing;
     private PGPPublicKeyRing mPublicKeyRing;
 
+    // built on first use, the wrapped key ring never changes
+    private volatile List<Key> mPublicKeys;
+    private volatile List<Key> mSecretKeys;
+    private volatile Key mMasterKey;
+    private volatile List<Key> mEncryptKeys;
+    private volatile List<Key> mSigningKeys;
+    private volatile List<Key> mUsableSigningKeys;
+    private volatile UsableKeys mUsableEncryptKeys;
+
+    private static class UsableKeys {
+        final List<Key> mKeys;
+        final long mValidUntil;
+
+        UsableKeys(List<Key> keys, long validUntil) {
+            mKeys = keys;
+            mValidUntil = validUntil;
+        }
+    }
+
     public static KeyRing decode(byte[] data) {
         PGPObjectFactory factory = new PGPObjectFactory(data);
         KeyRing keyRing = null;
@@ -55,6 +78,27 @@ public class KeyRing {
         return keyRing;
     }
 
+    /**
+     * Decodes a key ring stored as its core and the extras split off by {@link KeyRingSplit}.
+     * If the extras cannot be read null is returned, like for a key ring that cannot be read, so
+     * the core alone is never passed on as the complete key ring.
+     */
+    public static KeyRing decode(byte[] data, byte[] extras) {
+        KeyRing keyRing = decode(data);
+        if (keyRing == null || extras == null || !keyRing.isPublic()) {
+            return keyRing;
+        }
+
+        PGPPublicKeyRing core = keyRing.getPublicKeyRing();
+        try {
+            return new PublicKeyRing(KeyRingSplit.merge(core, extras));
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Could not merge extras of key ring "
+                    + PgpKeyHelper.convertKeyIdToHex(core.getPublicKey().getKeyID()), e);
+            return null;
+        }
+    }
+
     public KeyRing(PGPKeyRing keyRing) {
         if (keyRing instanceof PGPPublicKeyRing) {
             mPublicKeyRing = (PGPPublicKeyRing) keyRing;
@@ -87,14 +131,21 @@ public class KeyRing {
     }
 
     public Key getSecretKey(long keyId) {
-        if (isPublic()) {
-            return null;
+        for (Key key : getSecretKeys()) {
+            if (key.getKeyId() == keyId) {
+                return key;
+            }
         }
-        return new Key(mSecretKeyRing.getSecretKey(keyId));
+        return null;
     }
 
     public Key getPublicKey(long keyId) {
-        return new Key(mPublicKeyRing.getPublicKey(keyId));
+        for (Key key : getPublicKeys()) {
+            if (key.getKeyId() == keyId) {
+                return key;
+            }
+        }
+        return null;
     }
 
     public byte[] getEncoded() throws IOException {
@@ -114,117 +165,140 @@ public class KeyRing {
         return bos.toString("UTF-8");
     }
 
-    public ArrayList<Key> getPublicKeys() {
-        ArrayList<Key> keys = new ArrayList<Key>();
-        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(mPublicKeyRing.getPublicKeys())) {
-            keys.add(new Key(key));
+    public List<Key> getPublicKeys() {
+        List<Key> keys = mPublicKeys;
+        if (keys == null) {
+            ArrayList<Key> list = new ArrayList<Key>();
+            for (PGPPublicKey key :
+                    new IterableIterator<PGPPublicKey>(mPublicKeyRing.getPublicKeys())) {
+                list.add(new Key(key));
+            }
+            keys = Collections.unmodifiableList(list);
+            mPublicKeys = keys;
         }
         return keys;
     }
 
-    public ArrayList<Key> getSecretKeys() {
-        ArrayList<Key> keys = new ArrayList<Key>();
+    public List<Key> getSecretKeys() {
         if (isPublic()) {
-            return keys;
+            return Collections.emptyList();
         }
-        for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(mSecretKeyRing.getSecretKeys())) {
-            keys.add(new Key(key));
+        List<Key> keys = mSecretKeys;
+        if (keys == null) {
+            ArrayList<Key> list = new ArrayList<Key>();
+            for (PGPSecretKey key :
+                    new IterableIterator<PGPSecretKey>(mSecretKeyRing.getSecretKeys())) {
+                list.add(new Key(key));
+            }
+            keys = Collections.unmodifiableList(list);
+            mSecretKeys = keys;
         }
         return keys;
     }
 
     public Key getMasterKey() {
-        if (isPublic()) {
-            for (Key key : getPublicKeys()) {
+        Key masterKey = mMasterKey;
+        if (masterKey == null) {
+            for (Key key : isPublic() ? getPublicKeys() : getSecretKeys()) {
                 if (key.isMasterKey()) {
-                    return key;
+                    masterKey = key;
+                    break;
                 }
             }
+            mMasterKey = masterKey;
+        }
+        return masterKey;
+    }
 
-            return null;
-        } else {
-            for (Key key : getSecretKeys()) {
-                if (key.isMasterKey()) {
-                    return key;
+    public List<Key> getEncryptKeys() {
+        List<Key> encryptKeys = mEncryptKeys;
+        if (encryptKeys == null) {
+            ArrayList<Key> list = new ArrayList<Key>();
+            for (Key key : getPublicKeys()) {
+                if (key.isEncryptionKey()) {
+                    list.add(key);
                 }
             }
-
-            return null;
+            encryptKeys = Collections.unmodifiableList(list);
+            mEncryptKeys = encryptKeys;
         }
+        return encryptKeys;
     }
 
-    public ArrayList<Key> getEncryptKeys() {
-        ArrayList<Key> encryptKeys = new ArrayList<Key>();
-        for (Key key : getPublicKeys()) {
-            if (key.isEncryptionKey()) {
-                encryptKeys.add(key);
+    public List<Key> getSigningKeys() {
+        List<Key> signingKeys = mSigningKeys;
+        if (signingKeys == null) {
+            ArrayList<Key> list = new ArrayList<Key>();
+            for (Key key : getSecretKeys()) {
+                if (key.isSigningKey()) {
+                    list.add(key);
+                }
             }
+            signingKeys = Collections.unmodifiableList(list);
+            mSigningKeys = signingKeys;
         }
-
-        return encryptKeys;
+        return signingKeys;
     }
 
-    public ArrayList<Key> getSigningKeys() {
-        ArrayList<Key> signingKeys = new ArrayList<Key>();
-        for (Key key : getSecretKeys()) {
-            if (key.isSigningKey()) {
-                signingKeys.add(key);
+    /**
+     * @return the encryption keys that are valid now, subkeys first. The list is cached until
+     *         one of the keys expires or becomes valid.
+     */
+    public List<Key> getUsableEncryptKeys() {
+        long now = System.currentTimeMillis();
+        UsableKeys usableKeys = mUsableEncryptKeys;
+        if (usableKeys == null || now >= usableKeys.mValidUntil) {
+            ArrayList<Key> list = new ArrayList<Key>();
+            long validUntil = Long.MAX_VALUE;
+            Key masterKey = null;
+            for (Key key : getEncryptKeys()) {
+                validUntil = Math.min(validUntil, key.getNextValidityChange(now));
+                if (!key.isExpired(now)) {
+                    if (key.isMasterKey()) {
+                        masterKey = key;
+                    } else {
+                        list.add(key);
+                    }
+                }
+            }
+            if (masterKey != null) {
+                list.add(masterKey);
             }
+            usableKeys = new UsableKeys(Collections.unmodifiableList(list), validUntil);
+            mUsableEncryptKeys = usableKeys;
         }
-
-        return signingKeys;
+        return usableKeys.mKeys;
     }
 
-    public ArrayList<Key> getUsableEncryptKeys() {
-        ArrayList<Key> usableKeys = new ArrayList<Key>();
-        ArrayList<Key> encryptKeys = getEncryptKeys();
-        Key masterKey = null;
-        for (int i = 0; i < encryptKeys.size(); ++i) {
-            Key key = encryptKeys.get(i);
-            if (!key.isExpired()) {
+    public List<Key> getUsableSigningKeys() {
+        List<Key> usableKeys = mUsableSigningKeys;
+        if (usableKeys == null) {
+            ArrayList<Key> list = new ArrayList<Key>();
+            Key masterKey = null;
+            for (Key key : getSigningKeys()) {
                 if (key.isMasterKey()) {
                     masterKey = key;
                 } else {
-                    usableKeys.add(key);
+                    list.add(key);
                 }
             }
-        }
-        if (masterKey != null) {
-            usableKeys.add(masterKey);
-        }
-        return usableKeys;
-    }
-
-    public ArrayList<Key> getUsableSigningKeys() {
-        ArrayList<Key> usableKeys = new ArrayList<Key>();
-        ArrayList<Key> signingKeys = getSigningKeys();
-        Key masterKey = null;
-        for (int i = 0; i < signingKeys.size(); ++i) {
-            Key key = signingKeys.get(i);
-            if (key.isMasterKey()) {
-                masterKey = key;
-            } else {
-                usableKeys.add(key);
+            if (masterKey != null) {
+                list.add(masterKey);
             }
-        }
-        if (masterKey != null) {
-            usableKeys.add(masterKey);
+            usableKeys = Collections.unmodifiableList(list);
+            mUsableSigningKeys = usableKeys;
         }
         return usableKeys;
     }
 
 
     public Key getSigningKey() {
-        for (Key key : getUsableSigningKeys()) {
-            return key;
-        }
-        return null;
+        List<Key> keys = getUsableSigningKeys();
+        return keys.isEmpty() ? null : keys.get(0);
     }
 
     public Key getEncryptKey() {
-        for (Key key : getUsableEncryptKeys()) {
-            return key;
-        }
-        return null;
+        List<Key> keys = getUsableEncryptKeys();
+        return keys.isEmpty() ? null : keys.get(0);
     }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2010-2014 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPUserAttributeSubpacketVector;
+
+import org.thialfihar.android.apg.util.IterableIterator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * Merges an imported public key ring into the stored version of it on packet level, like
+ * GnuPG does: subkeys, user ids, user attributes and signatures of both are kept, a signature
+ * that is in both is kept once.
+ */
+public final class KeyRingMerger {
+
+    private KeyRingMerger() {
+    }
+
+    /**
+     * @return the merged key ring, stored itself if incoming adds nothing to it
+     */
+    @SuppressWarnings("unchecked")
+    public static PGPPublicKeyRing merge(PGPPublicKeyRing stored, PGPPublicKeyRing incoming)
+            throws IOException {
+        if (stored.getPublicKey().getKeyID() != incoming.getPublicKey().getKeyID()) {
+            throw new IOException("key rings have different master keys");
+        }
+
+        PGPPublicKeyRing result = stored;
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(incoming.getPublicKeys())) {
+            PGPPublicKey storedKey = stored.getPublicKey(key.getKeyID());
+            if (storedKey == null) {
+                result = PGPPublicKeyRing.insertPublicKey(result, key);
+                continue;
+            }
+
+            PGPPublicKey merged = mergeKey(storedKey, key);
+            if (merged != storedKey) {
+                result = PGPPublicKeyRing.insertPublicKey(result, merged);
+            }
+        }
+
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static PGPPublicKey mergeKey(PGPPublicKey stored, PGPPublicKey incoming)
+            throws IOException {
+        PGPPublicKey result = stored;
+
+        // direct signatures and revocations, binding signatures of subkeys
+        HashSet<ByteBuffer> known = encode(stored.getKeySignatures());
+        for (PGPSignature sig : new IterableIterator<PGPSignature>(
+                incoming.getKeySignatures())) {
+            if (known.add(ByteBuffer.wrap(sig.getEncoded()))) {
+                result = PGPPublicKey.addCertification(result, sig);
+            }
+        }
+
+        if (!incoming.isMasterKey()) {
+            return result;
+        }
+
+        for (String userId : new IterableIterator<String>(incoming.getUserIDs())) {
+            known = encode(stored.getSignaturesForID(userId));
+            for (PGPSignature sig : new IterableIterator<PGPSignature>(
+                    incoming.getSignaturesForID(userId))) {
+                if (known.add(ByteBuffer.wrap(sig.getEncoded()))) {
+                    result = PGPPublicKey.addCertification(result, userId, sig);
+                }
+            }
+        }
+
+        for (PGPUserAttributeSubpacketVector attributes :
+                new IterableIterator<PGPUserAttributeSubpacketVector>(
+                        incoming.getUserAttributes())) {
+            known = encode(stored.getSignaturesForUserAttribute(attributes));
+            for (PGPSignature sig : new IterableIterator<PGPSignature>(
+                    incoming.getSignaturesForUserAttribute(attributes), true)) {
+                if (known.add(ByteBuffer.wrap(sig.getEncoded()))) {
+                    result = PGPPublicKey.addCertification(result, attributes, sig);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static HashSet<ByteBuffer> encode(Iterator<PGPSignature> sigs) throws IOException {
+        HashSet<ByteBuffer> encoded = new HashSet<ByteBuffer>();
+        for (PGPSignature sig : new IterableIterator<PGPSignature>(sigs, true)) {
+            encoded.add(ByteBuffer.wrap(sig.getEncoded()));
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2010-2014 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPUserAttributeSubpacketVector;
+
+import org.thialfihar.android.apg.util.IterableIterator;
+
+import java.io.IOException;
+
+/**
+ * Splits a public key ring into a compact core, which is all that encryption and signature
+ * verification need, and its bulky extras: user attributes such as photo ids and the
+ * certifications of user ids made by other keys. The extras are stored as an encoded master key
+ * that only carries these parts.
+ */
+public final class KeyRingSplit {
+
+    private KeyRingSplit() {
+    }
+
+    /**
+     * @return the key ring with all subkeys and self-signatures, but without user attributes
+     *         and third-party certifications
+     */
+    @SuppressWarnings("unchecked")
+    public static PGPPublicKeyRing getCore(PGPPublicKeyRing keyRing) {
+        PGPPublicKey masterKey = keyRing.getPublicKey();
+        long masterKeyId = masterKey.getKeyID();
+
+        PGPPublicKey core = masterKey;
+        for (String userId : new IterableIterator<String>(masterKey.getUserIDs())) {
+            for (PGPSignature sig : new IterableIterator<PGPSignature>(
+                    masterKey.getSignaturesForID(userId))) {
+                if (sig.getKeyID() != masterKeyId) {
+                    core = nonNull(PGPPublicKey.removeCertification(core, userId, sig), core);
+                }
+            }
+        }
+        for (PGPUserAttributeSubpacketVector attributes :
+                new IterableIterator<PGPUserAttributeSubpacketVector>(
+                        masterKey.getUserAttributes())) {
+            core = nonNull(PGPPublicKey.removeCertification(core, attributes), core);
+        }
+
+        if (core == masterKey) {
+            return keyRing;
+        }
+        return PGPPublicKeyRing.insertPublicKey(keyRing, core);
+    }
+
+    /**
+     * @return the encoded extras of the key ring, null if it has none
+     */
+    @SuppressWarnings("unchecked")
+    public static byte[] getExtras(PGPPublicKeyRing keyRing) throws IOException {
+        PGPPublicKey masterKey = keyRing.getPublicKey();
+        long masterKeyId = masterKey.getKeyID();
+
+        boolean hasExtras = masterKey.getUserAttributes().hasNext();
+        PGPPublicKey extras = masterKey;
+        for (String userId : new IterableIterator<String>(masterKey.getUserIDs())) {
+            for (PGPSignature sig : new IterableIterator<PGPSignature>(
+                    masterKey.getSignaturesForID(userId))) {
+                if (sig.getKeyID() == masterKeyId) {
+                    extras = nonNull(PGPPublicKey.removeCertification(extras, userId, sig),
+                            extras);
+                } else {
+                    hasExtras = true;
+                }
+            }
+        }
+
+        if (!hasExtras) {
+            return null;
+        }
+        return extras.getEncoded();
+    }
+
+    /**
+     * Adds the extras returned by {@link #getExtras(PGPPublicKeyRing)} back to the core.
+     *
+     * @throws IOException if the extras cannot be read or belong to another key ring
+     */
+    @SuppressWarnings("unchecked")
+    public static PGPPublicKeyRing merge(PGPPublicKeyRing core, byte[] extrasData)
+            throws IOException {
+        Key extrasKey = Key.decodeKeyData(extrasData);
+        PGPPublicKey extras = (extrasKey == null) ? null : extrasKey.getPublicKey();
+        PGPPublicKey masterKey = core.getPublicKey();
+        if (extras == null || extras.getKeyID() != masterKey.getKeyID()) {
+            throw new IOException("extras do not belong to key ring");
+        }
+
+        for (String userId : new IterableIterator<String>(extras.getUserIDs())) {
+            for (PGPSignature sig : new IterableIterator<PGPSignature>(
+                    extras.getSignaturesForID(userId))) {
+                masterKey = PGPPublicKey.addCertification(masterKey, userId, sig);
+            }
+        }
+        for (PGPUserAttributeSubpacketVector attributes :
+                new IterableIterator<PGPUserAttributeSubpacketVector>(
+                        extras.getUserAttributes())) {
+            for (PGPSignature sig : new IterableIterator<PGPSignature>(
+                    extras.getSignaturesForUserAttribute(attributes), true)) {
+                masterKey = PGPPublicKey.addCertification(masterKey, attributes, sig);
+            }
+        }
+
+        return PGPPublicKeyRing.insertPublicKey(core, masterKey);
+    }
+
+    private static PGPPublicKey nonNull(PGPPublicKey key, PGPPublicKey fallback) {
+        return key != null ? key : fallback;
+    }
+}
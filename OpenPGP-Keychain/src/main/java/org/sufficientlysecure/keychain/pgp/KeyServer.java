@@ -31,6 +31,17 @@ public abstract class KeyServer {
         }
     }
 
+    /**
+     * The keyserver was asked, but doesn't know the key.
+     */
+    public static class KeyNotFoundException extends QueryException {
+        private static final long serialVersionUID = 2703768928624654515L;
+
+        public KeyNotFoundException(String message) {
+            super(message);
+        }
+    }
+
     public static class TooManyResponses extends Exception {
         private static final long serialVersionUID = 2703768928624654513L;
     }
@@ -43,10 +54,59 @@ public abstract class KeyServer {
         private static final long serialVersionUID = -507574859137295530L;
     }
 
+    /**
+     * Gets the results of a search while the keyserver's answer is still being read.
+     */
+    public interface SearchListener {
+        /**
+         * Called on the thread reading the answer with the entries read since the last call.
+         * All of them are part of the final result as well, unless the search fails.
+         */
+        void onEntries(List<ImportKeysListEntry> entries);
+    }
+
+    /**
+     * @param keyServer host name and optional port of an HKP keyserver, or the dump directory
+     *                  of a {@link LocalKeyServer}
+     */
+    static KeyServer forAddress(String keyServer) {
+        if (LocalKeyServer.isLocal(keyServer)) {
+            return LocalKeyServer.getInstance(keyServer);
+        }
+        return new HkpKeyServer(keyServer);
+    }
+
     abstract List<ImportKeysListEntry> search(String query)
         throws QueryException, TooManyResponses, InsufficientQuery;
 
+    /**
+     * Like {@link #search(String)}, keyservers that read their answer bit by bit pass the
+     * entries read so far to listener.
+     */
+    List<ImportKeysListEntry> search(String query, SearchListener listener)
+        throws QueryException, TooManyResponses, InsufficientQuery {
+        return search(query);
+    }
+
     abstract String get(String keyIdHex) throws QueryException;
 
     abstract void add(String armoredKey) throws AddKeyException;
+
+    /**
+     * Uploads several key rings, one request each unless the keyserver can take more at once.
+     *
+     * @return for every key ring whether the keyserver took it
+     */
+    boolean[] add(List<String> armoredKeys) {
+        boolean[] added = new boolean[armoredKeys.size()];
+        for (int i = 0; i < added.length; ++i) {
+            try {
+                add(armoredKeys.get(i));
+                added[i] = true;
+            } catch (AddKeyException e) {
+                // reported as not added
+            }
+        }
+        return added;
+    }
 }
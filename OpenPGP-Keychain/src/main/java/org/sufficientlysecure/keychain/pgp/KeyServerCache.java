@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2010-2014 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.spongycastle.util.encoders.Hex;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Keeps keyserver responses on disk, keyed by keyserver, operation and normalized query. Fresh
+ * responses are used without asking the keyserver, stale ones are revalidated with their ETag
+ * or Last-Modified date. The least recently used responses are removed when the cache grows
+ * over its maximum size.
+ */
+public class KeyServerCache {
+    public static final String OP_INDEX = "index";
+    public static final String OP_GET = "get";
+
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".response";
+
+    public static class Response {
+        private final String mName;
+        private long mStoredAt;
+        private final String mETag;
+        private final String mLastModified;
+        private final String mData;
+
+        private Response(String name, long storedAt, String eTag, String lastModified,
+                         String data) {
+            mName = name;
+            mStoredAt = storedAt;
+            mETag = eTag;
+            mLastModified = lastModified;
+            mData = data;
+        }
+
+        public String getETag() {
+            return mETag;
+        }
+
+        public String getLastModified() {
+            return mLastModified;
+        }
+
+        public String getData() {
+            return mData;
+        }
+    }
+
+    private final File mDir;
+    private long mMaxSize;
+    private long mTtl;
+
+    // file name -> size, in access order
+    private LinkedHashMap<String, Long> mFiles;
+    private long mSize = 0;
+
+    private int mHits = 0;
+    private int mRevalidations = 0;
+    private int mMisses = 0;
+
+    /**
+     * @param maxSize in bytes
+     * @param ttl     time in milliseconds a response is used without revalidation
+     */
+    public KeyServerCache(File dir, long maxSize, long ttl) {
+        mDir = dir;
+        mMaxSize = maxSize;
+        mTtl = ttl;
+    }
+
+    public synchronized void setMaxSize(long maxSize) {
+        mMaxSize = maxSize;
+        trim();
+    }
+
+    public synchronized void setTtl(long ttl) {
+        mTtl = ttl;
+    }
+
+    /**
+     * @return the cached response, null if there is none
+     */
+    public synchronized Response get(String keyServer, String op, String query) {
+        loadIndex();
+        String name = getName(keyServer, op, query);
+        // also marks it as recently used
+        if (mFiles.get(name) == null) {
+            return null;
+        }
+
+        File file = new File(mDir, name);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION) {
+                throw new IOException("unknown version");
+            }
+            long storedAt = in.readLong();
+            String eTag = readString(in);
+            String lastModified = readString(in);
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            file.setLastModified(System.currentTimeMillis());
+            return new Response(name, storedAt, eTag, lastModified, new String(data, "utf8"));
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "could not read cached keyserver response", e);
+            remove(name);
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * @return true if the response can be used without asking the keyserver, counts a hit
+     */
+    public synchronized boolean isFresh(Response response) {
+        long age = System.currentTimeMillis() - response.mStoredAt;
+        if (age >= 0 && age < mTtl) {
+            ++mHits;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The keyserver confirmed that the response is still valid.
+     */
+    public synchronized void revalidated(Response response) {
+        ++mRevalidations;
+        response.mStoredAt = System.currentTimeMillis();
+        put(response.mName, response);
+    }
+
+    /**
+     * The keyserver had to be asked, the response is stored if it isn't null.
+     */
+    public synchronized void put(String keyServer, String op, String query, String eTag,
+                                 String lastModified, String data) {
+        ++mMisses;
+        if (data == null) {
+            return;
+        }
+        String name = getName(keyServer, op, query);
+        put(name, new Response(name, System.currentTimeMillis(), eTag, lastModified, data));
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getRevalidationCount() {
+        return mRevalidations;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * @return the share of requests that didn't have to download a response
+     */
+    public synchronized float getHitRate() {
+        int requests = mHits + mRevalidations + mMisses;
+        return requests == 0 ? 0 : (float) (mHits + mRevalidations) / requests;
+    }
+
+    private void put(String name, Response response) {
+        loadIndex();
+        File tmp = new File(mDir, name + ".tmp");
+        DataOutputStream out = null;
+        try {
+            byte[] data = response.mData.getBytes("utf8");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(VERSION);
+            out.writeLong(response.mStoredAt);
+            writeString(out, response.mETag);
+            writeString(out, response.mLastModified);
+            out.writeInt(data.length);
+            out.write(data);
+            out.close();
+            out = null;
+
+            File file = new File(mDir, name);
+            if (!tmp.renameTo(file)) {
+                throw new IOException("could not rename " + tmp);
+            }
+            Long oldSize = mFiles.put(name, file.length());
+            mSize += file.length() - (oldSize != null ? oldSize : 0);
+            trim();
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "could not cache keyserver response", e);
+            tmp.delete();
+        } finally {
+            close(out);
+        }
+    }
+
+    private void remove(String name) {
+        Long size = mFiles.remove(name);
+        if (size != null) {
+            mSize -= size;
+        }
+        new File(mDir, name).delete();
+    }
+
+    private void trim() {
+        if (mFiles == null) {
+            return;
+        }
+        Iterator<Map.Entry<String, Long>> it = mFiles.entrySet().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            mSize -= eldest.getValue();
+            new File(mDir, eldest.getKey()).delete();
+            it.remove();
+        }
+    }
+
+    /**
+     * Reads the cached files in the order they were last used, done on first use so it doesn't
+     * happen on the main thread.
+     */
+    private void loadIndex() {
+        if (mFiles != null) {
+            return;
+        }
+        mFiles = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.e(Constants.TAG, "could not create " + mDir);
+            return;
+        }
+
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long left = lhs.lastModified();
+                long right = rhs.lastModified();
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                mFiles.put(file.getName(), file.length());
+                mSize += file.length();
+            } else {
+                // left over from an interrupted write
+                file.delete();
+            }
+        }
+        trim();
+    }
+
+    private static String getName(String keyServer, String op, String query) {
+        String normalized = query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.US);
+        String key = keyServer.toLowerCase(Locale.US) + "\n" + op + "\n" + normalized;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return Hex.toHexString(digest.digest(key.getBytes("utf8"))) + SUFFIX;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
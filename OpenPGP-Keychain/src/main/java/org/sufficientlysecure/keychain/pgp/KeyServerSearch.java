@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2010-2014 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.ui.adapter.ImportKeysListEntry;
+import org.thialfihar.android.apg.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a search to several keyservers at once and merges their results. Once the first
+ * keyserver has answered the others get {@link #GRACE_PERIOD} to answer as well, slower ones
+ * are cancelled.
+ */
+public class KeyServerSearch {
+    public interface Listener {
+        /**
+         * Called with all results so far whenever a keyserver answered or sent a part of its
+         * answer, on the searching thread or the thread reading the keyserver's answer.
+         */
+        void onPartialResult(ArrayList<ImportKeysListEntry> results);
+    }
+
+    private static final long GRACE_PERIOD = 3000;
+    private static final long TIMEOUT = 30000;
+
+    private static final ExecutorService sExecutor = Executors.newCachedThreadPool();
+
+    private final ArrayList<ImportKeysListEntry> mResults = new ArrayList<ImportKeysListEntry>();
+    private final HashMap<String, ImportKeysListEntry> mByFingerprint =
+            new HashMap<String, ImportKeysListEntry>();
+    private final HashMap<String, ImportKeysListEntry> mByKeyId =
+            new HashMap<String, ImportKeysListEntry>();
+    // set once the results are returned, later parts of answers are dropped
+    private boolean mDone = false;
+
+    /**
+     * @return the merged results of all keyservers that answered in time
+     * @throws KeyServer.QueryException    if no keyserver could be queried
+     * @throws KeyServer.TooManyResponses  if no keyserver returned a result and one of them had
+     *                                     too many
+     */
+    public static ArrayList<ImportKeysListEntry> search(String query, String[] keyServers,
+            Listener listener) throws KeyServer.QueryException, KeyServer.TooManyResponses,
+            KeyServer.InsufficientQuery {
+        if (query.length() < 3) {
+            throw new KeyServer.InsufficientQuery();
+        }
+        return new KeyServerSearch().run(query, keyServers, listener);
+    }
+
+    private ArrayList<ImportKeysListEntry> run(final String query, String[] keyServers,
+            final Listener listener) throws KeyServer.QueryException, KeyServer.TooManyResponses,
+            KeyServer.InsufficientQuery {
+        CompletionService<List<ImportKeysListEntry>> completionService =
+                new ExecutorCompletionService<List<ImportKeysListEntry>>(sExecutor);
+        ArrayList<Future<List<ImportKeysListEntry>>> futures =
+                new ArrayList<Future<List<ImportKeysListEntry>>>();
+        final HashMap<Future<List<ImportKeysListEntry>>, String> origins =
+                new HashMap<Future<List<ImportKeysListEntry>>, String>();
+        for (final String keyServer : keyServers) {
+            Future<List<ImportKeysListEntry>> future = completionService.submit(
+                    new Callable<List<ImportKeysListEntry>>() {
+                        @Override
+                        public List<ImportKeysListEntry> call() throws Exception {
+                            return KeyServer.forAddress(keyServer).search(query,
+                                    new KeyServer.SearchListener() {
+                                        @Override
+                                        public void onEntries(List<ImportKeysListEntry> entries) {
+                                            addPartial(entries, keyServer, listener);
+                                        }
+                                    });
+                        }
+                    });
+            futures.add(future);
+            origins.put(future, keyServer);
+        }
+
+        Exception error = null;
+        boolean answered = false;
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        try {
+            for (int pending = futures.size(); pending > 0; --pending) {
+                long timeLeft = deadline - System.currentTimeMillis();
+                if (timeLeft <= 0) {
+                    break;
+                }
+                Future<List<ImportKeysListEntry>> done =
+                        completionService.poll(timeLeft, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    break;
+                }
+
+                try {
+                    List<ImportKeysListEntry> results = done.get();
+                    if (results == null) {
+                        continue;
+                    }
+                    ArrayList<ImportKeysListEntry> partialResult;
+                    synchronized (this) {
+                        add(results, origins.get(done));
+                        partialResult = copyResults();
+                    }
+                    if (!answered) {
+                        answered = true;
+                        deadline = Math.min(deadline, System.currentTimeMillis() + GRACE_PERIOD);
+                    }
+                    if (listener != null) {
+                        listener.onPartialResult(partialResult);
+                    }
+                } catch (ExecutionException e) {
+                    Log.e(Constants.TAG, "search on " + origins.get(done) + " failed",
+                            e.getCause());
+                    if (error == null && e.getCause() instanceof Exception) {
+                        error = (Exception) e.getCause();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Future<List<ImportKeysListEntry>> future : futures) {
+                future.cancel(true);
+            }
+            synchronized (this) {
+                mDone = true;
+            }
+        }
+
+        if (!answered) {
+            if (error instanceof KeyServer.TooManyResponses) {
+                throw (KeyServer.TooManyResponses) error;
+            } else if (error instanceof KeyServer.InsufficientQuery) {
+                throw (KeyServer.InsufficientQuery) error;
+            }
+            throw new KeyServer.QueryException("querying keyservers failed");
+        }
+        synchronized (this) {
+            return copyResults();
+        }
+    }
+
+    /**
+     * Adds a part of a keyserver's answer that was read so far, the whole answer is added
+     * again when it is complete.
+     */
+    private void addPartial(List<ImportKeysListEntry> entries, String origin,
+                            Listener listener) {
+        ArrayList<ImportKeysListEntry> partialResult;
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            add(entries, origin);
+            partialResult = copyResults();
+        }
+        if (listener != null) {
+            listener.onPartialResult(partialResult);
+        }
+    }
+
+    /**
+     * Adds entries that aren't known yet. Entries are the same if their fingerprints match, if
+     * one of them has no fingerprint their key ids are compared.
+     *
+     * Entries in the results are never changed, they may have been handed out with a partial
+     * result already. A merge replaces them by a new entry, which keeps their selection.
+     */
+    private void add(List<ImportKeysListEntry> entries, String origin) {
+        for (ImportKeysListEntry entry : entries) {
+            String fingerprint = entry.getFingerPrintHex();
+            String keyId = entry.getKeyIdHex() == null ? null
+                    : entry.getKeyIdHex().toLowerCase(Locale.US);
+
+            ImportKeysListEntry known = null;
+            if (fingerprint != null) {
+                known = mByFingerprint.get(fingerprint);
+                if (known == null && keyId != null) {
+                    ImportKeysListEntry sameKeyId = mByKeyId.get(keyId);
+                    if (sameKeyId != null && sameKeyId.getFingerPrintHex() == null) {
+                        // the fingerprint makes this entry the better one
+                        ImportKeysListEntry merged = copy(entry);
+                        merged.addUserIds(sameKeyId.getUserIds());
+                        merged.setOrigin(sameKeyId.getOrigin());
+                        merged.setSelected(sameKeyId.isSelected());
+                        replace(sameKeyId, merged);
+                        continue;
+                    }
+                }
+            } else if (keyId != null) {
+                known = mByKeyId.get(keyId);
+            }
+
+            if (known != null) {
+                // keyservers aren't always in sync
+                if (!known.getUserIds().containsAll(entry.getUserIds())) {
+                    ImportKeysListEntry merged = copy(known);
+                    merged.addUserIds(entry.getUserIds());
+                    replace(known, merged);
+                }
+                continue;
+            }
+
+            // the keyserver's entry may be reported again with its whole answer
+            ImportKeysListEntry added = copy(entry);
+            added.setOrigin(origin);
+            mResults.add(added);
+            if (fingerprint != null) {
+                mByFingerprint.put(fingerprint, added);
+            }
+            if (keyId != null && !mByKeyId.containsKey(keyId)) {
+                mByKeyId.put(keyId, added);
+            }
+        }
+    }
+
+    private void replace(ImportKeysListEntry entry, ImportKeysListEntry merged) {
+        mResults.set(mResults.indexOf(entry), merged);
+        String fingerprint = merged.getFingerPrintHex();
+        if (fingerprint != null) {
+            mByFingerprint.put(fingerprint, merged);
+        }
+        String keyId = merged.getKeyIdHex() == null ? null
+                : merged.getKeyIdHex().toLowerCase(Locale.US);
+        if (keyId != null && (mByKeyId.get(keyId) == entry || !mByKeyId.containsKey(keyId))) {
+            mByKeyId.put(keyId, merged);
+        }
+    }
+
+    /**
+     * @return copies of the results, for the listener, which may change them on another thread
+     */
+    private ArrayList<ImportKeysListEntry> copyResults() {
+        ArrayList<ImportKeysListEntry> results =
+                new ArrayList<ImportKeysListEntry>(mResults.size());
+        for (ImportKeysListEntry entry : mResults) {
+            results.add(copy(entry));
+        }
+        return results;
+    }
+
+    private static ImportKeysListEntry copy(ImportKeysListEntry entry) {
+        ImportKeysListEntry copy = new ImportKeysListEntry(entry);
+        // the copy constructor shares the list
+        copy.setUserIds(new ArrayList<String>(entry.getUserIds()));
+        return copy;
+    }
+}
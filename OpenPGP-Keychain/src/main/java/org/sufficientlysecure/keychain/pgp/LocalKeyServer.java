@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2010-2014 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.spongycastle.bcpg.ArmoredOutputStream;
+import org.spongycastle.openpgp.PGPObjectFactory;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.util.encoders.Hex;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.ui.adapter.ImportKeysListEntry;
+import org.thialfihar.android.apg.util.IterableIterator;
+import org.thialfihar.android.apg.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Answers keyserver queries from a directory of keyserver dumps, for devices that are offline
+ * most of the time. The dumps are used as they are, they aren't imported into the database.
+ * <p/>
+ * Every dump file gets a {@link KeyDumpIndex} in a hidden subdirectory. Indexes are only built
+ * for dumps that are new or changed, so adding the next dump to the directory doesn't index the
+ * others again. Configured keyservers starting with {@link #SCHEME} refer to such a directory.
+ * <p/>
+ * Key ids, fingerprints and words of user ids can be searched for. Short key ids aren't indexed.
+ */
+public class LocalKeyServer extends KeyServer {
+    public static final String SCHEME = "file://";
+
+    private static final String INDEX_DIR = ".apg-index";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String[] DUMP_SUFFIXES = {".pgp", ".gpg", ".bin"};
+
+    private static final int MAX_RESULTS = 500;
+
+    // at least this often a changed dump is noticed, added dumps are noticed at once
+    private static final long CHECK_INTERVAL = 60 * 1000;
+
+    private static final HashMap<String, LocalKeyServer> sInstances =
+            new HashMap<String, LocalKeyServer>();
+
+    private final File mDir;
+    private final File mIndexDir;
+
+    private volatile List<KeyDumpIndex> mIndexes = Collections.emptyList();
+    private long mDirModified = -1;
+    private long mLastCheck = 0;
+    // replaced indexes, searches may still read them, closed a check interval later
+    private final ArrayList<KeyDumpIndex> mRetired = new ArrayList<KeyDumpIndex>();
+    private long mRetiredAt = 0;
+
+    private LocalKeyServer(File dir) {
+        mDir = dir;
+        mIndexDir = new File(dir, INDEX_DIR);
+    }
+
+    public static boolean isLocal(String keyServer) {
+        return keyServer.startsWith(SCHEME);
+    }
+
+    /**
+     * @param keyServer {@link #SCHEME} followed by the path of the dump directory
+     */
+    public static LocalKeyServer getInstance(String keyServer) {
+        return getInstance(new File(keyServer.substring(SCHEME.length())));
+    }
+
+    /**
+     * The indexes stay mapped, so there is one instance per directory.
+     */
+    public static synchronized LocalKeyServer getInstance(File dir) {
+        String path = dir.getAbsolutePath();
+        LocalKeyServer server = sInstances.get(path);
+        if (server == null) {
+            server = new LocalKeyServer(dir);
+            sInstances.put(path, server);
+        }
+        return server;
+    }
+
+    /**
+     * Indexes new and changed dumps and drops the indexes of removed ones.
+     *
+     * @return number of dumps that were indexed
+     */
+    public synchronized int updateIndex() throws IOException {
+        if (!mIndexDir.isDirectory() && !mIndexDir.mkdirs()) {
+            throw new IOException("could not create " + mIndexDir);
+        }
+        mDirModified = mDir.lastModified();
+        mLastCheck = System.currentTimeMillis();
+        if (mLastCheck - mRetiredAt >= CHECK_INTERVAL) {
+            for (KeyDumpIndex index : mRetired) {
+                index.close();
+            }
+            mRetired.clear();
+        }
+
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            throw new IOException(mDir + " is not a directory");
+        }
+        Arrays.sort(files);
+
+        HashMap<File, KeyDumpIndex> previous = new HashMap<File, KeyDumpIndex>();
+        for (KeyDumpIndex index : mIndexes) {
+            previous.put(index.getDump(), index);
+        }
+
+        ArrayList<KeyDumpIndex> indexes = new ArrayList<KeyDumpIndex>();
+        HashSet<String> indexNames = new HashSet<String>();
+        int built = 0;
+        for (File dump : files) {
+            if (!isDump(dump)) {
+                continue;
+            }
+            File indexFile = new File(mIndexDir, dump.getName() + INDEX_SUFFIX);
+            indexNames.add(indexFile.getName());
+
+            KeyDumpIndex index = previous.remove(dump);
+            if (index != null && index.isCurrent()) {
+                indexes.add(index);
+                continue;
+            }
+            if (index != null) {
+                retire(index);
+            }
+
+            index = openIndex(dump, indexFile);
+            if (index == null) {
+                long start = System.currentTimeMillis();
+                try {
+                    KeyDumpIndex.build(dump, indexFile);
+                    index = KeyDumpIndex.open(dump, indexFile);
+                } catch (IOException e) {
+                    // the other dumps can still be used
+                    Log.e(Constants.TAG, "indexing " + dump + " failed", e);
+                    continue;
+                }
+                ++built;
+                Log.d(Constants.TAG, "indexed " + index.getRingCount() + " key rings of " + dump
+                        + " in " + (System.currentTimeMillis() - start) + " ms");
+            }
+            indexes.add(index);
+        }
+        mIndexes = Collections.unmodifiableList(indexes);
+
+        for (KeyDumpIndex index : previous.values()) {
+            retire(index);
+        }
+        File[] indexFiles = mIndexDir.listFiles();
+        if (indexFiles != null) {
+            for (File indexFile : indexFiles) {
+                if (!indexNames.contains(indexFile.getName())) {
+                    indexFile.delete();
+                }
+            }
+        }
+
+        return built;
+    }
+
+    /**
+     * Keeps the index open for the searches that got it before it was replaced.
+     */
+    private void retire(KeyDumpIndex index) {
+        mRetired.add(index);
+        mRetiredAt = mLastCheck;
+    }
+
+    /**
+     * @return the index if it was built for the dump as it is now, null otherwise
+     */
+    private static KeyDumpIndex openIndex(File dump, File indexFile) {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        try {
+            KeyDumpIndex index = KeyDumpIndex.open(dump, indexFile);
+            if (index.isCurrent()) {
+                return index;
+            }
+            index.close();
+        } catch (IOException e) {
+            Log.w(Constants.TAG, "index " + indexFile + " unusable, building it again");
+        }
+        return null;
+    }
+
+    private static boolean isDump(File file) {
+        if (!file.isFile()) {
+            return false;
+        }
+        String name = file.getName().toLowerCase(Locale.US);
+        for (String suffix : DUMP_SUFFIXES) {
+            if (name.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<KeyDumpIndex> getIndexes() throws QueryException {
+        synchronized (this) {
+            if (mDir.lastModified() != mDirModified
+                    || System.currentTimeMillis() - mLastCheck > CHECK_INTERVAL) {
+                try {
+                    updateIndex();
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "indexing " + mDir + " failed", e);
+                    throw new QueryException("indexing " + mDir + " failed");
+                }
+            }
+            return mIndexes;
+        }
+    }
+
+    @Override
+    public ArrayList<ImportKeysListEntry> search(String query) throws QueryException,
+            TooManyResponses, InsufficientQuery {
+        String trimmed = query.trim();
+        if (trimmed.length() < 3) {
+            throw new InsufficientQuery();
+        }
+
+        ArrayList<ImportKeysListEntry> results = new ArrayList<ImportKeysListEntry>();
+        if (trimmed.startsWith("0x") || trimmed.startsWith("0X")) {
+            byte[] fingerprint = parseKeyId(trimmed);
+            if (fingerprint == null) {
+                throw new InsufficientQuery();
+            }
+            for (KeyDumpIndex index : getIndexes()) {
+                for (int ring : findRings(index, fingerprint)) {
+                    addEntry(results, index, ring, null);
+                }
+            }
+            return results;
+        }
+
+        LinkedHashSet<String> tokens = new LinkedHashSet<String>();
+        KeyDumpIndex.tokenize(trimmed, tokens);
+        if (tokens.isEmpty()) {
+            throw new InsufficientQuery();
+        }
+
+        for (KeyDumpIndex index : getIndexes()) {
+            HashSet<Integer> rings = null;
+            for (String token : tokens) {
+                HashSet<Integer> found = new HashSet<Integer>();
+                index.findToken(token, found);
+                if (rings == null) {
+                    rings = found;
+                } else {
+                    rings.retainAll(found);
+                }
+                if (rings.isEmpty()) {
+                    break;
+                }
+            }
+            if (results.size() + rings.size() > MAX_RESULTS) {
+                throw new TooManyResponses();
+            }
+            for (int ring : rings) {
+                addEntry(results, index, ring, tokens);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public String get(String keyIdHex) throws QueryException {
+        byte[] fingerprint = parseKeyId(keyIdHex);
+        if (fingerprint == null) {
+            throw new KeyNotFoundException("not a key id: " + keyIdHex);
+        }
+
+        for (KeyDumpIndex index : getIndexes()) {
+            for (int ring : findRings(index, fingerprint)) {
+                try {
+                    return armor(index.readRing(ring));
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "reading " + index.getDump() + " failed", e);
+                    throw new QueryException("reading " + index.getDump() + " failed");
+                }
+            }
+        }
+        throw new KeyNotFoundException("not found");
+    }
+
+    @Override
+    public void add(String armoredKey) throws AddKeyException {
+        // the dumps are only replaced as a whole
+        throw new AddKeyException();
+    }
+
+    /**
+     * @return the 8 byte key id or the 20 byte fingerprint, null if it is neither
+     */
+    private static byte[] parseKeyId(String keyIdHex) {
+        String hex = keyIdHex.trim();
+        if (hex.startsWith("0x") || hex.startsWith("0X")) {
+            hex = hex.substring(2);
+        }
+        hex = hex.replace(" ", "");
+        if (hex.length() != 16 && hex.length() != 40) {
+            return null;
+        }
+        try {
+            return Hex.decode(hex);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param keyIdOrFingerprint as returned by {@link #parseKeyId(String)}
+     */
+    private static ArrayList<Integer> findRings(KeyDumpIndex index, byte[] keyIdOrFingerprint) {
+        long keyId = 0;
+        for (int i = keyIdOrFingerprint.length - 8; i < keyIdOrFingerprint.length; ++i) {
+            keyId = (keyId << 8) | (keyIdOrFingerprint[i] & 0xff);
+        }
+        ArrayList<Integer> rings = new ArrayList<Integer>();
+        index.findKey(keyId, rings);
+        if (keyIdOrFingerprint.length == 8) {
+            return rings;
+        }
+
+        // only the master key has its fingerprint in the index
+        ArrayList<Integer> matching = new ArrayList<Integer>();
+        for (int ring : rings) {
+            if (Arrays.equals(index.getFingerprint(ring), keyIdOrFingerprint)) {
+                matching.add(ring);
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * Adds an entry for the ring, if tokens are given only if all of them are in its user ids.
+     */
+    @SuppressWarnings("unchecked")
+    private static void addEntry(ArrayList<ImportKeysListEntry> results, KeyDumpIndex index,
+                                 int ring, HashSet<String> tokens) throws QueryException {
+        PGPPublicKeyRing keyRing;
+        try {
+            Object obj = new PGPObjectFactory(index.readRing(ring)).nextObject();
+            if (!(obj instanceof PGPPublicKeyRing)) {
+                return;
+            }
+            keyRing = (PGPPublicKeyRing) obj;
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "reading " + index.getDump() + " failed", e);
+            throw new QueryException("reading " + index.getDump() + " failed");
+        }
+
+        PGPPublicKey masterKey = keyRing.getPublicKey();
+        ArrayList<String> userIds = new ArrayList<String>();
+        HashSet<String> userIdTokens = new HashSet<String>();
+        for (String userId : new IterableIterator<String>(masterKey.getUserIDs())) {
+            userIds.add(userId);
+            KeyDumpIndex.tokenize(userId, userIdTokens);
+        }
+        if (userIds.isEmpty() || (tokens != null && !userIdTokens.containsAll(tokens))) {
+            return;
+        }
+
+        ImportKeysListEntry entry = new ImportKeysListEntry();
+        entry.setKeyIdHex(PgpKeyHelper.convertKeyIdToHex(masterKey.getKeyID()));
+        entry.setFingerPrintHex(PgpKeyHelper.convertFingerprintToHex(
+                masterKey.getFingerprint()));
+        entry.setAlgorithm(ImportKeysListEntry.getAlgorithmFromId(masterKey.getAlgorithm()));
+        entry.setBitStrength(masterKey.getBitStrength());
+        entry.setDate(masterKey.getCreationTime());
+        entry.setRevoked(masterKey.isRevoked());
+        entry.setUserIds(userIds);
+        results.add(entry);
+    }
+
+    private static String armor(byte[] keyRing) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(keyRing.length * 4 / 3 + 128);
+        ArmoredOutputStream armorOut = new ArmoredOutputStream(out);
+        armorOut.write(keyRing);
+        armorOut.close();
+        return out.toString("US-ASCII");
+    }
+}
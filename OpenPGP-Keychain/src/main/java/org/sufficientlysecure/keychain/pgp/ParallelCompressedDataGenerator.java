@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2010-2014 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.spongycastle.bcpg.BCPGOutputStream;
+import org.spongycastle.bcpg.CompressionAlgorithmTags;
+import org.spongycastle.bcpg.PacketTags;
+
+import org.thialfihar.android.apg.util.ParallelDeflaterOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * Drop-in replacement for PGPCompressedDataGenerator for ZIP and ZLIB that deflates on all
+ * available cores. The packet it writes is a regular compressed data packet, readers do not
+ * need to know about the parallel engine.
+ */
+public class ParallelCompressedDataGenerator {
+    private int mAlgorithm;
+    private int mThreads;
+
+    private ExecutorService mExecutor = null;
+    private BCPGOutputStream mPacketOut = null;
+    private ParallelDeflaterOutputStream mDeflaterOut = null;
+    private Adler32 mAdler = null;
+
+    public static boolean isSupported(int algorithm) {
+        return ParallelDeflaterOutputStream.isSupported()
+                && (algorithm == CompressionAlgorithmTags.ZIP
+                    || algorithm == CompressionAlgorithmTags.ZLIB);
+    }
+
+    public ParallelCompressedDataGenerator(int algorithm) {
+        this(algorithm, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelCompressedDataGenerator(int algorithm, int threads) {
+        if (algorithm != CompressionAlgorithmTags.ZIP
+                && algorithm != CompressionAlgorithmTags.ZLIB) {
+            throw new IllegalArgumentException("unsupported compression algorithm " + algorithm);
+        }
+        mAlgorithm = algorithm;
+        mThreads = Math.max(1, threads);
+    }
+
+    /**
+     * Opens a compressed data packet on out, everything written to the returned stream is
+     * compressed. The returned stream has to be closed by {@link #close()}.
+     */
+    public OutputStream open(OutputStream out) throws IOException {
+        if (mPacketOut != null) {
+            throw new IllegalStateException("generator already in use");
+        }
+
+        mPacketOut = new BCPGOutputStream(out, PacketTags.COMPRESSED_DATA, new byte[1 << 16]);
+        mPacketOut.write(mAlgorithm);
+
+        if (mAlgorithm == CompressionAlgorithmTags.ZLIB) {
+            // CMF: deflate with 32K window, FLG: default level, no preset dictionary
+            mPacketOut.write(0x78);
+            mPacketOut.write(0x9c);
+            mAdler = new Adler32();
+        }
+
+        mExecutor = Executors.newFixedThreadPool(mThreads);
+        mDeflaterOut = new ParallelDeflaterOutputStream(mPacketOut, mExecutor, mThreads,
+                Deflater.DEFAULT_COMPRESSION);
+
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (mAdler != null) {
+                    mAdler.update(b, off, len);
+                }
+                mDeflaterOut.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                ParallelCompressedDataGenerator.this.close();
+            }
+        };
+    }
+
+    /**
+     * Finishes the compressed data packet, the underlying stream stays open.
+     */
+    public void close() throws IOException {
+        if (mPacketOut == null) {
+            return;
+        }
+
+        try {
+            mDeflaterOut.close();
+
+            if (mAdler != null) {
+                long checksum = mAdler.getValue();
+                mPacketOut.write((int) (checksum >>> 24) & 0xff);
+                mPacketOut.write((int) (checksum >>> 16) & 0xff);
+                mPacketOut.write((int) (checksum >>> 8) & 0xff);
+                mPacketOut.write((int) checksum & 0xff);
+            }
+
+            mPacketOut.finish();
+            mPacketOut.flush();
+        } finally {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+            mDeflaterOut = null;
+            mPacketOut = null;
+            mAdler = null;
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package org.thialfihar.android.apg.pgp;
 
 import android.content.Context;
+import android.support.v4.util.LruCache;
 
 import org.openintents.openpgp.OpenPgpSignatureResult;
 import org.spongycastle.bcpg.ArmoredInputStream;
@@ -55,6 +56,7 @@ import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.R;
 import org.thialfihar.android.apg.pgp.exception.PgpGeneralException;
 import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.provider.TrustEngine;
 import org.thialfihar.android.apg.service.PassphraseCacheService;
 import org.thialfihar.android.apg.util.InputData;
 import org.thialfihar.android.apg.util.Log;
@@ -65,6 +67,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
 import java.util.Iterator;
 import java.util.Set;
@@ -73,6 +77,18 @@ import java.util.Set;
  * This class uses a Builder pattern!
  */
 public class PgpDecryptVerify {
+    // verifiers are created per signature by the provider, it holds no other state
+    private static final JcaPGPContentVerifierBuilderProvider sContentVerifierBuilderProvider =
+            new JcaPGPContentVerifierBuilderProvider()
+                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+
+    /**
+     * Results of subkey binding verification, keyed by subkey id and a digest of master key and
+     * subkey including their signatures, so an updated key ring never hits a stale entry.
+     */
+    private static final LruCache<String, Boolean> sKeyBindingCache =
+            new LruCache<String, Boolean>(256);
+
     private Context mContext;
     private InputData mData;
     private OutputStream mOutputStream;
@@ -388,6 +404,7 @@ public class PgpDecryptVerify {
         }
 
         long signatureKeyId = 0;
+        long signatureMasterKeyId = 0;
         if (dataChunk instanceof PGPOnePassSignatureList) {
             updateProgress(R.string.progress_processing_signature, currentProgress, 100);
 
@@ -408,6 +425,7 @@ public class PgpDecryptVerify {
                     KeyRing signKeyRing = mKeyProvider.getPublicKeyRingByKeyId(signatureKeyId);
                     if (signKeyRing != null) {
                         userId = signKeyRing.getMasterKey().getMainUserId();
+                        signatureMasterKeyId = signKeyRing.getMasterKey().getKeyId();
                     }
                     signatureResult.setUserId(userId);
                     break;
@@ -417,11 +435,7 @@ public class PgpDecryptVerify {
             signatureResult.setKeyId(signatureKeyId);
 
             if (signature != null) {
-                JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                        new JcaPGPContentVerifierBuilderProvider()
-                                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-
-                signature.init(contentVerifierBuilderProvider, signatureKey.getPublicKey());
+                signature.init(sContentVerifierBuilderProvider, signatureKey.getPublicKey());
             } else {
                 signatureResult.setStatus(OpenPgpSignatureResult.SIGNATURE_UNKNOWN_PUB_KEY);
             }
@@ -465,11 +479,12 @@ public class PgpDecryptVerify {
                         signature = null;
                     }
                 }
-                // TODO: dead code?!
-                // unknown size, but try to at least have a moving, slowing down progress bar
-//                currentProgress = startProgress + (endProgress - startProgress) * progress
-//                        / (progress + 100000);
-                if (mData.getSize() - startPos == 0) {
+                if (mData.getSize() == 0) {
+                    // unknown size, but try to at least have a moving, slowing down progress bar
+                    long progress = mData.getStreamPosition() - startPos;
+                    currentProgress = (int) (startProgress + (endProgress - startProgress)
+                            * progress / (progress + 100000));
+                } else if (mData.getSize() - startPos == 0) {
                     currentProgress = endProgress;
                 } else {
                     currentProgress = (int) (startProgress + (endProgress - startProgress)
@@ -493,9 +508,8 @@ public class PgpDecryptVerify {
                     verifyKeyBinding(messageSignature, signatureKey.getPublicKey());
                 boolean validSignature = signature.verify(messageSignature);
 
-                // TODO: implement CERTIFIED!
                 if (validKeyBinding & validSignature) {
-                    signatureResult.setStatus(OpenPgpSignatureResult.SIGNATURE_SUCCESS_UNCERTIFIED);
+                    signatureResult.setStatus(getSuccessStatus(signatureMasterKeyId));
                 }
             }
         }
@@ -576,6 +590,7 @@ public class PgpDecryptVerify {
         }
         PGPSignature signature = null;
         long signatureKeyId = 0;
+        long signatureMasterKeyId = 0;
         Key signatureKey = null;
         for (int i = 0; i < sigList.size(); ++i) {
             signature = sigList.get(i);
@@ -592,6 +607,7 @@ public class PgpDecryptVerify {
                 KeyRing signKeyRing = mKeyProvider.getPublicKeyRingByKeyId(signatureKeyId);
                 if (signKeyRing != null) {
                     userId = signKeyRing.getMasterKey().getMainUserId();
+                    signatureMasterKeyId = signKeyRing.getMasterKey().getKeyId();
                 }
                 signatureResult.setUserId(userId);
                 break;
@@ -608,11 +624,7 @@ public class PgpDecryptVerify {
             return returnData;
         }
 
-        JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                new JcaPGPContentVerifierBuilderProvider()
-                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-
-        signature.init(contentVerifierBuilderProvider, signatureKey.getPublicKey());
+        signature.init(sContentVerifierBuilderProvider, signatureKey.getPublicKey());
 
         InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
 
@@ -636,10 +648,10 @@ public class PgpDecryptVerify {
         boolean validSignature = signature.verify();
 
         if (validSignature & validKeyBinding) {
-            signatureResult.setStatus(OpenPgpSignatureResult.SIGNATURE_SUCCESS_UNCERTIFIED);
+            signatureResult.setStatus(getSuccessStatus(signatureMasterKeyId));
         }
 
-        // TODO: what about SIGNATURE_SUCCESS_CERTIFIED and SIGNATURE_ERROR????
+        // TODO: what about SIGNATURE_ERROR????
 
         returnData.setSignatureResult(signatureResult);
 
@@ -647,6 +659,18 @@ public class PgpDecryptVerify {
         return returnData;
     }
 
+    /**
+     * @return SIGNATURE_SUCCESS_CERTIFIED if the signer is certified by one of our keys,
+     *         SIGNATURE_SUCCESS_UNCERTIFIED otherwise
+     */
+    private int getSuccessStatus(long signatureMasterKeyId) {
+        if (signatureMasterKeyId != 0
+                && TrustEngine.isCertified(mContext, signatureMasterKeyId)) {
+            return OpenPgpSignatureResult.SIGNATURE_SUCCESS_CERTIFIED;
+        }
+        return OpenPgpSignatureResult.SIGNATURE_SUCCESS_UNCERTIFIED;
+    }
+
     private boolean verifyKeyBinding(PGPSignature signature, PGPPublicKey signatureKey) {
         long signatureKeyId = signature.getKeyID();
         boolean validKeyBinding = false;
@@ -666,15 +690,45 @@ public class PgpDecryptVerify {
         return validKeyBinding;
     }
 
-    private boolean verifyKeyBinding(PGPPublicKey masterPublicKey, PGPPublicKey signingPublicKey) {
+    private static boolean verifyKeyBinding(PGPPublicKey masterPublicKey,
+                                            PGPPublicKey signingPublicKey) {
+        String cacheKey = getKeyBindingCacheKey(masterPublicKey, signingPublicKey);
+        if (cacheKey != null) {
+            Boolean cached = sKeyBindingCache.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        boolean valid = verifyKeyBindingSignatures(masterPublicKey, signingPublicKey);
+        if (cacheKey != null) {
+            sKeyBindingCache.put(cacheKey, valid);
+        }
+        return valid;
+    }
+
+    private static String getKeyBindingCacheKey(PGPPublicKey masterPublicKey,
+                                                PGPPublicKey signingPublicKey) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(masterPublicKey.getEncoded());
+            digest.update(signingPublicKey.getEncoded());
+            return PgpKeyHelper.convertKeyIdToHex(signingPublicKey.getKeyID()) + ":"
+                    + PgpKeyHelper.convertFingerprintToHex(digest.digest());
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "could not encode key for binding cache", e);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(Constants.TAG, "could not encode key for binding cache", e);
+        }
+        return null;
+    }
+
+    private static boolean verifyKeyBindingSignatures(PGPPublicKey masterPublicKey,
+                                                      PGPPublicKey signingPublicKey) {
         boolean validSubkeyBinding = false;
         boolean validTempSubkeyBinding = false;
         boolean validPrimaryKeyBinding = false;
 
-        JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                new JcaPGPContentVerifierBuilderProvider()
-                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-
         Iterator<PGPSignature> itr = signingPublicKey.getSignatures();
 
         while (itr.hasNext()) {
@@ -687,7 +741,7 @@ public class PgpDecryptVerify {
                 sig.getSignatureType() == PGPSignature.SUBKEY_BINDING) {
                 // check and if ok, check primary key binding.
                 try {
-                    sig.init(contentVerifierBuilderProvider, masterPublicKey);
+                    sig.init(sContentVerifierBuilderProvider, masterPublicKey);
                     validTempSubkeyBinding = sig.verifyCertification(masterPublicKey, signingPublicKey);
                 } catch (PGPException e) {
                     continue;
@@ -724,9 +778,6 @@ public class PgpDecryptVerify {
                                                    PGPPublicKey masterPublicKey,
                                                    PGPPublicKey signingPublicKey) {
         boolean validPrimaryKeyBinding = false;
-        JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                new JcaPGPContentVerifierBuilderProvider()
-                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
         PGPSignatureList eSigList;
 
         if (packets.hasSubpacket(SignatureSubpacketTags.EMBEDDED_SIGNATURE)) {
@@ -741,7 +792,7 @@ public class PgpDecryptVerify {
                 PGPSignature emSig = eSigList.get(j);
                 if (emSig.getSignatureType() == PGPSignature.PRIMARYKEY_BINDING) {
                     try {
-                        emSig.init(contentVerifierBuilderProvider, signingPublicKey);
+                        emSig.init(sContentVerifierBuilderProvider, signingPublicKey);
                         validPrimaryKeyBinding =
                             emSig.verifyCertification(masterPublicKey, signingPublicKey);
                         if (validPrimaryKeyBinding) {
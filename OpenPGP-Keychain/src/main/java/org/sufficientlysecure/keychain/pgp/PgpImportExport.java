@@ -24,10 +24,12 @@ import android.os.Environment;
 import org.spongycastle.bcpg.ArmoredOutputStream;
 import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPObjectFactory;
 import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 import org.spongycastle.openpgp.PGPSecretKey;
 import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.spongycastle.openpgp.PGPUtil;
 import org.spongycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
 
 import org.thialfihar.android.apg.Constants;
@@ -42,12 +44,60 @@ import org.thialfihar.android.apg.util.IterableIterator;
 import org.thialfihar.android.apg.util.KeychainServiceListener;
 import org.thialfihar.android.apg.util.Log;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class PgpImportExport {
+    // same as the connections HkpKeyServer keeps open per keyserver
+    private static final int DOWNLOAD_THREADS = 4;
+
+    /**
+     * Counts the results of storing key rings, as reported back to the user.
+     */
+    private static class ImportCounts {
+        int mNewKeys = 0;
+        int mOldKeys = 0;
+        int mUnchangedKeys = 0;
+        int mBadKeys = 0;
+        int mFailedKeys = 0;
+        int mDownloadFailedKeys = 0;
+
+        void add(int status) {
+            if (status == Id.return_value.updated) {
+                ++mOldKeys;
+            } else if (status == Id.return_value.unchanged) {
+                ++mUnchangedKeys;
+            } else if (status == Id.return_value.ok) {
+                ++mNewKeys;
+            } else if (status == Id.return_value.bad) {
+                ++mBadKeys;
+            } else if (status == Id.return_value.error) {
+                ++mFailedKeys;
+            }
+        }
+
+        Bundle toBundle() {
+            Bundle returnData = new Bundle();
+            returnData.putInt(ApgIntentService.RESULT_IMPORT_ADDED, mNewKeys);
+            returnData.putInt(ApgIntentService.RESULT_IMPORT_UPDATED, mOldKeys);
+            returnData.putInt(ApgIntentService.RESULT_IMPORT_UNCHANGED, mUnchangedKeys);
+            returnData.putInt(ApgIntentService.RESULT_IMPORT_BAD, mBadKeys);
+            returnData.putInt(ApgIntentService.RESULT_IMPORT_FAILED, mFailedKeys);
+            returnData.putInt(ApgIntentService.RESULT_DOWNLOAD_FAILED, mDownloadFailedKeys);
+            return returnData;
+        }
+    }
 
     private Context mContext;
     private Progressable mProgress;
@@ -85,9 +135,9 @@ public class PgpImportExport {
         }
     }
 
-    public boolean uploadKeyRingToServer(KeyServer server, PublicKeyRing keyRing) {
+    public boolean uploadKeyRingToServer(String keyServer, PublicKeyRing keyRing) {
         try {
-            server.add(keyRing.getArmoredEncoded(mContext));
+            KeyServer.forAddress(keyServer).add(keyRing.getArmoredEncoded(mContext));
             return true;
         } catch (IOException e) {
             return false;
@@ -97,18 +147,65 @@ public class PgpImportExport {
         }
     }
 
+    /**
+     * Uploads the key rings, as many of them in one request as the keyserver takes. Key rings
+     * that can't be uploaded don't abort the others.
+     *
+     * @return the master key ids of the uploaded and of the failed key rings
+     */
+    public Bundle uploadKeyRingsToServer(String keyServer, List<PublicKeyRing> keyRings) {
+        updateProgress(R.string.progress_uploading, 0, keyRings.size());
+
+        ArrayList<String> armoredKeys = new ArrayList<String>();
+        ArrayList<Long> masterKeyIds = new ArrayList<Long>();
+        ArrayList<Long> failed = new ArrayList<Long>();
+        for (PublicKeyRing keyRing : keyRings) {
+            long masterKeyId = keyRing.getMasterKey().getKeyId();
+            try {
+                armoredKeys.add(keyRing.getArmoredEncoded(mContext));
+                masterKeyIds.add(masterKeyId);
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "could not encode key ring "
+                        + PgpKeyHelper.convertKeyIdToHex(masterKeyId), e);
+                failed.add(masterKeyId);
+            }
+        }
+
+        boolean[] added = KeyServer.forAddress(keyServer).add(armoredKeys);
+        ArrayList<Long> uploaded = new ArrayList<Long>();
+        for (int i = 0; i < added.length; ++i) {
+            if (added[i]) {
+                uploaded.add(masterKeyIds.get(i));
+            } else {
+                failed.add(masterKeyIds.get(i));
+            }
+        }
+        updateProgress(keyRings.size(), keyRings.size());
+
+        Bundle returnData = new Bundle();
+        returnData.putLongArray(ApgIntentService.RESULT_UPLOADED_MASTER_KEY_IDS,
+                toLongArray(uploaded));
+        returnData.putLongArray(ApgIntentService.RESULT_UPLOAD_FAILED_MASTER_KEY_IDS,
+                toLongArray(failed));
+        return returnData;
+    }
+
+    private static long[] toLongArray(List<Long> list) {
+        long[] array = new long[list.size()];
+        for (int i = 0; i < array.length; ++i) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
     /**
      * Imports keys from given data. If keyIds is given only those are imported
      */
     public Bundle importKeyRings(List<ImportKeysListEntry> entries)
             throws PgpGeneralException, PGPException, IOException {
-        Bundle returnData = new Bundle();
-
         updateProgress(R.string.progress_importing, 0, 100);
 
-        int newKeys = 0;
-        int oldKeys = 0;
-        int badKeys = 0;
+        ImportCounts counts = new ImportCounts();
 
         int position = 0;
         try {
@@ -129,13 +226,7 @@ public class PgpImportExport {
                     }
 
                     // update the counts to display to the user at the end
-                    if (status == Id.return_value.updated) {
-                        ++oldKeys;
-                    } else if (status == Id.return_value.ok) {
-                        ++newKeys;
-                    } else if (status == Id.return_value.bad) {
-                        ++badKeys;
-                    }
+                    counts.add(status);
                 } else {
                     Log.e(Constants.TAG, "Object not recognized as PGPKeyRing!", new Exception());
                 }
@@ -147,11 +238,134 @@ public class PgpImportExport {
             Log.e(Constants.TAG, "Exception on parsing key file!", e);
         }
 
-        returnData.putInt(ApgIntentService.RESULT_IMPORT_ADDED, newKeys);
-        returnData.putInt(ApgIntentService.RESULT_IMPORT_UPDATED, oldKeys);
-        returnData.putInt(ApgIntentService.RESULT_IMPORT_BAD, badKeys);
+        return counts.toBundle();
+    }
 
-        return returnData;
+    /**
+     * Downloads the keys of the given entries, {@link #DOWNLOAD_THREADS} at a time, and stores
+     * each key ring as soon as it has arrived and its fingerprint was checked. Keys that can't be
+     * downloaded or stored don't abort the others, they are counted as failed downloads or
+     * failed imports.
+     *
+     * @param keyServer used for entries that don't know which keyserver they were found on
+     */
+    public Bundle downloadAndImportKeyRings(List<ImportKeysListEntry> entries,
+                                            final String keyServer) {
+        int total = entries.size();
+        updateProgress(R.string.progress_importing, 0, total);
+
+        ImportCounts counts = new ImportCounts();
+        if (total == 0) {
+            return counts.toBundle();
+        }
+
+        ExecutorService executor =
+                Executors.newFixedThreadPool(Math.min(DOWNLOAD_THREADS, total));
+        CompletionService<PGPKeyRing> completionService =
+                new ExecutorCompletionService<PGPKeyRing>(executor);
+        HashMap<Future<PGPKeyRing>, ImportKeysListEntry> downloads =
+                new HashMap<Future<PGPKeyRing>, ImportKeysListEntry>();
+        for (final ImportKeysListEntry entry : entries) {
+            downloads.put(completionService.submit(new Callable<PGPKeyRing>() {
+                @Override
+                public PGPKeyRing call() throws Exception {
+                    // get the key from the keyserver it was found on
+                    return downloadKeyRing(
+                            entry.getOrigin() != null ? entry.getOrigin() : keyServer, entry);
+                }
+            }), entry);
+        }
+
+        try {
+            for (int done = 1; done <= total; ++done) {
+                Future<PGPKeyRing> download = completionService.take();
+                PGPKeyRing keyRing = null;
+                try {
+                    keyRing = download.get();
+                } catch (ExecutionException e) {
+                    Log.e(Constants.TAG, "could not download key "
+                            + downloads.get(download).getKeyIdHex(), e.getCause());
+                    ++counts.mDownloadFailedKeys;
+                }
+                if (keyRing != null) {
+                    // stored on this thread, one at a time
+                    int status = storeKeyRingInCache(keyRing);
+                    if (status == Id.return_value.error) {
+                        Log.e(Constants.TAG, "could not store key "
+                                + downloads.get(download).getKeyIdHex());
+                    }
+                    counts.add(status);
+                }
+                updateProgress(done, total);
+
+                if (mKeychainServiceListener != null
+                        && mKeychainServiceListener.hasServiceStopped()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return counts.toBundle();
+    }
+
+    /**
+     * Downloads the key of the entry and makes sure it is the requested one.
+     */
+    private static PGPKeyRing downloadKeyRing(String keyServer, ImportKeysListEntry entry)
+            throws PgpGeneralException, KeyServer.QueryException, IOException {
+        if (keyServer == null) {
+            throw new PgpGeneralException("no keyserver for key " + entry.getKeyIdHex());
+        }
+        KeyServer server = KeyServer.forAddress(keyServer);
+
+        // TODO: add extra which requires fingerprint suport and force verification!
+        // only supported by newer sks keyserver versions
+
+        // if available use complete fingerprint for get request
+        String armoredKey;
+        if (entry.getFingerPrintHex() != null) {
+            armoredKey = server.get("0x" + entry.getFingerPrintHex());
+        } else {
+            armoredKey = server.get(entry.getKeyIdHex());
+        }
+        if (armoredKey == null) {
+            throw new PgpGeneralException("no key in keyserver response");
+        }
+
+        return decodeDownloadedKeyRing(armoredKey, entry.getFingerPrintHex());
+    }
+
+    /**
+     * Reads a key ring sent by a keyserver and makes sure it is the requested one.
+     *
+     * @param fingerprintHex fingerprint of the requested key, null if only the key id was known
+     */
+    public static PGPKeyRing decodeDownloadedKeyRing(String armoredKey, String fingerprintHex)
+            throws PgpGeneralException, IOException {
+        // create PGPKeyRing object based on downloaded armored key
+        PGPObjectFactory objectFactory = new PGPObjectFactory(PGPUtil.getDecoderStream(
+                new ByteArrayInputStream(armoredKey.getBytes())));
+        Object obj = objectFactory.nextObject();
+        if (!(obj instanceof PGPKeyRing)) {
+            throw new PgpGeneralException("Object not recognized as PGPKeyRing!");
+        }
+        PGPKeyRing downloadedKey = (PGPKeyRing) obj;
+
+        // verify downloaded key by comparing fingerprints
+        if (fingerprintHex != null) {
+            String downloadedKeyFp = PgpKeyHelper.convertFingerprintToHex(
+                    downloadedKey.getPublicKey().getFingerprint());
+            if (!downloadedKeyFp.equals(fingerprintHex)) {
+                throw new PgpGeneralException("fingerprint of downloaded key is "
+                        + "NOT the same as the requested fingerprint!");
+            }
+        }
+
+        return downloadedKey;
     }
 
     public Bundle exportKeyRings(ArrayList<Long> publicKeyRingMasterIds,
@@ -182,9 +396,14 @@ public class PgpImportExport {
             PGPPublicKeyRing publicKeyRing =
                     ProviderHelper.getPGPPublicKeyRingByMasterKeyId(mContext, pubKeyMasterId);
 
-            if (publicKeyRing != null) {
-                publicKeyRing.encode(arOutStream);
+            if (publicKeyRing == null) {
+                // don't export an incomplete key ring whose certifications could not be read
+                arOutStream.close();
+                throw new PgpGeneralException(mContext.getString(
+                        R.string.error_could_not_read_key_ring,
+                        PgpKeyHelper.convertKeyIdToHex(pubKeyMasterId)));
             }
+            publicKeyRing.encode(arOutStream);
 
             if (mKeychainServiceListener.hasServiceStopped()) {
                 arOutStream.close();
@@ -224,7 +443,11 @@ public class PgpImportExport {
     }
 
     /**
-     * TODO: implement Id.return_value.updated as status when key already existed
+     * Stores the key ring, a public key ring is merged into the stored version of it
+     *
+     * @return Id.return_value.ok for a new key ring, Id.return_value.updated or
+     *         Id.return_value.unchanged if it existed, Id.return_value.bad or
+     *         Id.return_value.error
      */
     @SuppressWarnings("unchecked")
     public int storeKeyRingInCache(PGPKeyRing keyRing) {
@@ -246,9 +469,8 @@ public class PgpImportExport {
                 }
 
                 if (save) {
-                    ProviderHelper.saveKeyRing(mContext, secretKeyRing);
-                    // TODO: preserve certifications
-                    // (http://osdir.com/ml/encryption.bouncy-castle.devel/2007-01/msg00054.html ?)
+                    status = ProviderHelper.saveKeyRing(mContext, secretKeyRing);
+                    // certifications of the stored public key ring are preserved by merging
                     PGPPublicKeyRing newPubRing = null;
                     for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(
                             secretKeyRing.getPublicKeys())) {
@@ -259,16 +481,18 @@ public class PgpImportExport {
                         newPubRing = PGPPublicKeyRing.insertPublicKey(newPubRing, key);
                     }
                     if (newPubRing != null) {
-                        ProviderHelper.saveKeyRing(mContext, newPubRing);
+                        int publicStatus = ProviderHelper.saveKeyRing(mContext, newPubRing, true);
+                        if (status == Id.return_value.unchanged
+                                && publicStatus != Id.return_value.unchanged) {
+                            status = Id.return_value.updated;
+                        }
                     }
                     // TODO: remove status returns, use exceptions!
-                    status = Id.return_value.ok;
                 }
             } else if (keyRing instanceof PGPPublicKeyRing) {
                 PGPPublicKeyRing publicKeyRing = (PGPPublicKeyRing) keyRing;
-                ProviderHelper.saveKeyRing(mContext, publicKeyRing);
                 // TODO: remove status returns, use exceptions!
-                status = Id.return_value.ok;
+                status = ProviderHelper.saveKeyRing(mContext, publicKeyRing, true);
             }
         } catch (IOException e) {
             status = Id.return_value.error;
@@ -23,6 +23,11 @@ import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.style.ForegroundColorSpan;
 
+import org.spongycastle.asn1.ASN1ObjectIdentifier;
+import org.spongycastle.asn1.sec.SECObjectIdentifiers;
+import org.spongycastle.bcpg.BCPGKey;
+import org.spongycastle.bcpg.ECPublicBCPGKey;
+import org.spongycastle.bcpg.HashAlgorithmTags;
 import org.spongycastle.bcpg.sig.KeyFlags;
 import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
@@ -229,44 +234,19 @@ public class PgpKeyHelper {
     }
 
     public static PGPPublicKey getEncryptPublicKey(Context context, long masterKeyId) {
-        PGPPublicKeyRing keyRing = ProviderHelper.getPGPPublicKeyRingByMasterKeyId(context,
-                masterKeyId);
-        if (keyRing == null) {
-            Log.e(Constants.TAG, "keyRing is null!");
-            return null;
-        }
-        Vector<PGPPublicKey> encryptKeys = getUsableEncryptKeys(keyRing);
-        if (encryptKeys.size() == 0) {
-            Log.e(Constants.TAG, "encryptKeys is null!");
-            return null;
+        PGPPublicKey key = ProviderHelper.getUsableEncryptPublicKey(context, masterKeyId);
+        if (key == null) {
+            Log.e(Constants.TAG, "no usable encryption key for " + convertKeyIdToHex(masterKeyId));
         }
-        return encryptKeys.get(0);
+        return key;
     }
 
     public static PGPSecretKey getCertificationKey(Context context, long masterKeyId) {
-        PGPSecretKeyRing keyRing = ProviderHelper.getPGPSecretKeyRingByMasterKeyId(context,
-                masterKeyId);
-        if (keyRing == null) {
-            return null;
-        }
-        Vector<PGPSecretKey> signingKeys = getUsableCertificationKeys(keyRing);
-        if (signingKeys.size() == 0) {
-            return null;
-        }
-        return signingKeys.get(0);
+        return ProviderHelper.getUsableCertificationSecretKey(context, masterKeyId);
     }
 
     public static PGPSecretKey getSigningKey(Context context, long masterKeyId) {
-        PGPSecretKeyRing keyRing = ProviderHelper.getPGPSecretKeyRingByMasterKeyId(context,
-                masterKeyId);
-        if (keyRing == null) {
-            return null;
-        }
-        Vector<PGPSecretKey> signingKeys = getUsableSigningKeys(keyRing);
-        if (signingKeys.size() == 0) {
-            return null;
-        }
-        return signingKeys.get(0);
+        return ProviderHelper.getUsableSigningSecretKey(context, masterKeyId);
     }
 
     @SuppressWarnings("unchecked")
@@ -498,6 +478,16 @@ public class PgpKeyHelper {
                 break;
             }
 
+            case PGPPublicKey.ECDSA: {
+                algorithmStr = "ECDSA";
+                break;
+            }
+
+            case PGPPublicKey.ECDH: {
+                algorithmStr = "ECDH";
+                break;
+            }
+
             default: {
                 algorithmStr = "Unknown";
                 break;
@@ -506,6 +496,68 @@ public class PgpKeyHelper {
         return algorithmStr + ", " + keySize + " bit";
     }
 
+    /**
+     * Returns the size of the curve of an EC key in bits, 0 for non EC keys and unknown curves.
+     */
+    public static int getEcCurveBits(PGPPublicKey key) {
+        BCPGKey bcpgKey = key.getPublicKeyPacket().getKey();
+        if (!(bcpgKey instanceof ECPublicBCPGKey)) {
+            return 0;
+        }
+
+        ASN1ObjectIdentifier curve = ((ECPublicBCPGKey) bcpgKey).getCurveOID();
+        if (SECObjectIdentifiers.secp256r1.equals(curve)) {
+            return 256;
+        } else if (SECObjectIdentifiers.secp384r1.equals(curve)) {
+            return 384;
+        } else if (SECObjectIdentifiers.secp521r1.equals(curve)) {
+            return 521;
+        }
+        return 0;
+    }
+
+    private static int getHashBits(int hashAlgorithm) {
+        switch (hashAlgorithm) {
+            case HashAlgorithmTags.MD5:
+                return 128;
+            case HashAlgorithmTags.SHA1:
+            case HashAlgorithmTags.RIPEMD160:
+                return 160;
+            case HashAlgorithmTags.SHA224:
+                return 224;
+            case HashAlgorithmTags.SHA256:
+                return 256;
+            case HashAlgorithmTags.SHA384:
+                return 384;
+            case HashAlgorithmTags.SHA512:
+                return 512;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * ECDSA signatures need a hash at least as long as the curve (RFC 6637, section 12.2.1),
+     * so a shorter preferred hash algorithm is upgraded for ECDSA keys. For all other keys the
+     * preferred hash algorithm is returned unchanged.
+     */
+    public static int getSignatureHashAlgorithm(PGPPublicKey key, int preferredHashAlgorithm) {
+        if (key.getAlgorithm() != PGPPublicKey.ECDSA) {
+            return preferredHashAlgorithm;
+        }
+
+        int curveBits = Math.min(getEcCurveBits(key), 512);
+        if (getHashBits(preferredHashAlgorithm) >= curveBits) {
+            return preferredHashAlgorithm;
+        }
+        if (curveBits <= 256) {
+            return HashAlgorithmTags.SHA256;
+        } else if (curveBits <= 384) {
+            return HashAlgorithmTags.SHA384;
+        }
+        return HashAlgorithmTags.SHA512;
+    }
+
     public static String getFingerPrint(Context context, long keyId) {
         PGPPublicKey key = ProviderHelper.getPGPPublicKeyByKeyId(context, keyId);
         // if it is no public key get it from your own keys...
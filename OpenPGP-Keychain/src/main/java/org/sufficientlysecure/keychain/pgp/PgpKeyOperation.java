@@ -59,11 +59,13 @@ import org.thialfihar.android.apg.util.Primes;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
 import java.security.SignatureException;
+import java.security.spec.ECGenParameterSpec;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.GregorianCalendar;
@@ -111,42 +113,34 @@ public class PgpKeyOperation {
     }
 
     /**
-     * Creates new secret key.
+     * Generates the raw key pair for a new key, this is the expensive part of key creation.
+     * Does not touch any state of this object, so it may be called from several threads at once.
      *
      * @param algorithmChoice
      * @param keySize
-     * @param passphrase
      * @param isMasterKey
-     * @return A newly created PGPSecretKey
+     * @return A newly generated key pair
      * @throws NoSuchAlgorithmException
-     * @throws PGPException
      * @throws NoSuchProviderException
      * @throws PgpGeneralMsgIdException
      * @throws InvalidAlgorithmParameterException
      */
+    public KeyPair generateKeyPair(int algorithmChoice, int keySize, boolean isMasterKey)
+            throws NoSuchAlgorithmException, NoSuchProviderException, PgpGeneralMsgIdException,
+                   InvalidAlgorithmParameterException {
 
-    // TODO: key flags?
-    public Key createKey(int algorithmChoice, int keySize, String passphrase,
-                         boolean isMasterKey)
-            throws NoSuchAlgorithmException, PGPException, NoSuchProviderException,
-                   PgpGeneralMsgIdException, InvalidAlgorithmParameterException {
-
-        if (keySize < 512) {
+        boolean isEcChoice = (algorithmChoice == Id.choice.algorithm.ecdsa
+                || algorithmChoice == Id.choice.algorithm.ecdh);
+        if (!isEcChoice && keySize < 512) {
             throw new PgpGeneralMsgIdException(R.string.error_key_size_minimum512bit);
         }
 
-        if (passphrase == null) {
-            passphrase = "";
-        }
-
-        int algorithm;
         KeyPairGenerator keyGen;
 
         switch (algorithmChoice) {
             case Id.choice.algorithm.dsa: {
                 keyGen = KeyPairGenerator.getInstance("DSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
                 keyGen.initialize(keySize, new SecureRandom());
-                algorithm = PGPPublicKey.DSA;
                 break;
             }
 
@@ -161,15 +155,29 @@ public class PgpKeyOperation {
                 ElGamalParameterSpec elParams = new ElGamalParameterSpec(p, g);
 
                 keyGen.initialize(elParams);
-                algorithm = PGPPublicKey.ELGAMAL_ENCRYPT;
                 break;
             }
 
             case Id.choice.algorithm.rsa: {
                 keyGen = KeyPairGenerator.getInstance("RSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
                 keyGen.initialize(keySize, new SecureRandom());
+                break;
+            }
 
-                algorithm = PGPPublicKey.RSA_GENERAL;
+            case Id.choice.algorithm.ecdsa: {
+                keyGen = KeyPairGenerator.getInstance("ECDSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                keyGen.initialize(new ECGenParameterSpec(getEcCurveName(keySize)),
+                        new SecureRandom());
+                break;
+            }
+
+            case Id.choice.algorithm.ecdh: {
+                if (isMasterKey) {
+                    throw new PgpGeneralMsgIdException(R.string.error_master_key_must_not_be_ecdh);
+                }
+                keyGen = KeyPairGenerator.getInstance("ECDH", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                keyGen.initialize(new ECGenParameterSpec(getEcCurveName(keySize)),
+                        new SecureRandom());
                 break;
             }
 
@@ -178,8 +186,82 @@ public class PgpKeyOperation {
             }
         }
 
+        return keyGen.generateKeyPair();
+    }
+
+    /**
+     * For EC keys the key size selects one of the NIST curves from RFC 6637.
+     */
+    private static String getEcCurveName(int keySize) throws PgpGeneralMsgIdException {
+        switch (keySize) {
+            case 256:
+                return "P-256";
+            case 384:
+                return "P-384";
+            case 521:
+                return "P-521";
+            default:
+                throw new PgpGeneralMsgIdException(R.string.error_unsupported_ec_curve);
+        }
+    }
+
+    private static int getPgpAlgorithm(int algorithmChoice) throws PgpGeneralMsgIdException {
+        switch (algorithmChoice) {
+            case Id.choice.algorithm.dsa:
+                return PGPPublicKey.DSA;
+            case Id.choice.algorithm.elgamal:
+                return PGPPublicKey.ELGAMAL_ENCRYPT;
+            case Id.choice.algorithm.rsa:
+                return PGPPublicKey.RSA_GENERAL;
+            case Id.choice.algorithm.ecdsa:
+                return PGPPublicKey.ECDSA;
+            case Id.choice.algorithm.ecdh:
+                return PGPPublicKey.ECDH;
+            default:
+                throw new PgpGeneralMsgIdException(R.string.error_unknown_algorithm_choice);
+        }
+    }
+
+    /**
+     * Creates new secret key.
+     *
+     * @param algorithmChoice
+     * @param keySize
+     * @param passphrase
+     * @param isMasterKey
+     * @return A newly created PGPSecretKey
+     * @throws NoSuchAlgorithmException
+     * @throws PGPException
+     * @throws NoSuchProviderException
+     * @throws PgpGeneralMsgIdException
+     * @throws InvalidAlgorithmParameterException
+     */
+
+    // TODO: key flags?
+    public Key createKey(int algorithmChoice, int keySize, String passphrase,
+                         boolean isMasterKey)
+            throws NoSuchAlgorithmException, PGPException, NoSuchProviderException,
+                   PgpGeneralMsgIdException, InvalidAlgorithmParameterException {
+        return createKey(algorithmChoice, passphrase, isMasterKey,
+                generateKeyPair(algorithmChoice, keySize, isMasterKey));
+    }
+
+    /**
+     * Creates new secret key from an already generated key pair, for example one taken from
+     * the KeyMaterialPool or generated concurrently with {@link #generateKeyPair}.
+     */
+    public Key createKey(int algorithmChoice, String passphrase, boolean isMasterKey,
+                         KeyPair javaKeyPair)
+            throws PGPException, PgpGeneralMsgIdException {
+
+        if (passphrase == null) {
+            passphrase = "";
+        }
+
+        int algorithm = getPgpAlgorithm(algorithmChoice);
+
         // build new key pair
-        PGPKeyPair keyPair = new JcaPGPKeyPair(algorithm, keyGen.generateKeyPair(), new Date());
+        PGPKeyPair keyPair = new JcaPGPKeyPair(algorithm, javaKeyPair, new Date());
 
         // define hashing and signing algos
         PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build().get(
@@ -250,7 +332,9 @@ public class PgpKeyOperation {
 
         for (String userId : userIds) {
                 PGPContentSignerBuilder signerBuilder = new JcaPGPContentSignerBuilder(
-                        masterPublicKey.getAlgorithm(), HashAlgorithmTags.SHA1)
+                        masterPublicKey.getAlgorithm(),
+                        PgpKeyHelper.getSignatureHashAlgorithm(masterPublicKey,
+                                HashAlgorithmTags.SHA1))
                         .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
                 PGPSignatureGenerator sGen = new PGPSignatureGenerator(signerBuilder);
 
@@ -295,7 +379,9 @@ public class PgpKeyOperation {
         PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build().get(
                 HashAlgorithmTags.SHA1);
         PGPContentSignerBuilder certificationSignerBuilder = new JcaPGPContentSignerBuilder(
-                masterKeyPair.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1);
+                masterKeyPair.getPublicKey().getAlgorithm(),
+                PgpKeyHelper.getSignatureHashAlgorithm(masterKeyPair.getPublicKey(),
+                        HashAlgorithmTags.SHA1));
 
         // Build key encrypter based on passphrase
         PBESecretKeyEncryptor keyEncryptor = new JcePBESecretKeyEncryptorBuilder(
@@ -332,7 +418,8 @@ public class PgpKeyOperation {
                 PGPSignatureSubpacketGenerator subHashedPacketsGen = new PGPSignatureSubpacketGenerator();
                 subHashedPacketsGen.setSignatureCreationTime(false, todayDate); //set inner creation time
                 PGPContentSignerBuilder signerBuilder = new JcaPGPContentSignerBuilder(
-                        subPublicKey.getAlgorithm(), PGPUtil.SHA1)
+                        subPublicKey.getAlgorithm(),
+                        PgpKeyHelper.getSignatureHashAlgorithm(subPublicKey, PGPUtil.SHA1))
                         .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
                 PGPSignatureGenerator sGen = new PGPSignatureGenerator(signerBuilder);
                 sGen.init(PGPSignature.PRIMARYKEY_BINDING, subPrivateKey);
@@ -483,7 +570,9 @@ public class PgpKeyOperation {
                     }
                 } else {
                     PGPContentSignerBuilder signerBuilder = new JcaPGPContentSignerBuilder(
-                            masterPublicKey.getAlgorithm(), HashAlgorithmTags.SHA1)
+                            masterPublicKey.getAlgorithm(),
+                            PgpKeyHelper.getSignatureHashAlgorithm(masterPublicKey,
+                                    HashAlgorithmTags.SHA1))
                             .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
                     PGPSignatureGenerator sGen = new PGPSignatureGenerator(signerBuilder);
 
@@ -510,7 +599,9 @@ public class PgpKeyOperation {
                 if (!origID.equals(userId) || saveParcel.newIDs[userIDIndex]) {
                     anyIDChanged = true;
                     PGPContentSignerBuilder signerBuilder = new JcaPGPContentSignerBuilder(
-                            masterPublicKey.getAlgorithm(), HashAlgorithmTags.SHA1)
+                            masterPublicKey.getAlgorithm(),
+                            PgpKeyHelper.getSignatureHashAlgorithm(masterPublicKey,
+                                    HashAlgorithmTags.SHA1))
                             .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
                     PGPSignatureGenerator sGen = new PGPSignatureGenerator(signerBuilder);
 
@@ -563,7 +654,9 @@ public class PgpKeyOperation {
         PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build().get(
                 HashAlgorithmTags.SHA1);
         PGPContentSignerBuilder certificationSignerBuilder = new JcaPGPContentSignerBuilder(
-                masterKeyPair.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1);
+                masterKeyPair.getPublicKey().getAlgorithm(),
+                PgpKeyHelper.getSignatureHashAlgorithm(masterKeyPair.getPublicKey(),
+                        HashAlgorithmTags.SHA1));
 
         // Build key encryptor based on old passphrase, as some keys may be unchanged
         PBESecretKeyEncryptor keyEncryptor = new JcePBESecretKeyEncryptorBuilder(
@@ -601,7 +694,9 @@ public class PgpKeyOperation {
                     PGPSignatureSubpacketGenerator subHashedPacketsGen = new PGPSignatureSubpacketGenerator();
                     subHashedPacketsGen.setSignatureCreationTime(false, todayDate); //set inner creation time
                     PGPContentSignerBuilder signerBuilder = new JcaPGPContentSignerBuilder(
-                            subPublicKey.getAlgorithm(), PGPUtil.SHA1)
+                            subPublicKey.getAlgorithm(),
+                            PgpKeyHelper.getSignatureHashAlgorithm(subPublicKey,
+                                    PGPUtil.SHA1))
                             .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
                     PGPSignatureGenerator sGen = new PGPSignatureGenerator(signerBuilder);
                     sGen.init(PGPSignature.PRIMARYKEY_BINDING, subPrivateKey);
@@ -728,7 +823,9 @@ public class PgpKeyOperation {
 
             // TODO: SHA256 fixed?
             JcaPGPContentSignerBuilder contentSignerBuilder = new JcaPGPContentSignerBuilder(
-                    certificationKey.getPublicKey().getAlgorithm(), PGPUtil.SHA256)
+                    certificationKey.getPublicKey().getAlgorithm(),
+                    PgpKeyHelper.getSignatureHashAlgorithm(certificationKey.getPublicKey(),
+                            PGPUtil.SHA256))
                     .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
 
             signatureGenerator = new PGPSignatureGenerator(contentSignerBuilder);
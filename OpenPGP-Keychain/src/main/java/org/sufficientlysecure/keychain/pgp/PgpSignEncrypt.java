@@ -65,6 +65,7 @@ public class PgpSignEncrypt {
     private Progressable mProgressable;
     private boolean mEnableAsciiArmorOutput;
     private int mCompressionId;
+    private boolean mEnableParallelCompression;
     private long[] mEncryptionKeyIds;
     private String mSymmetricPassphrase;
     private int mSymmetricEncryptionAlgorithm;
@@ -83,6 +84,7 @@ public class PgpSignEncrypt {
         this.mProgressable = builder.mProgressable;
         this.mEnableAsciiArmorOutput = builder.mEnableAsciiArmorOutput;
         this.mCompressionId = builder.mCompressionId;
+        this.mEnableParallelCompression = builder.mEnableParallelCompression;
         this.mEncryptionKeyIds = builder.mEncryptionKeyIds;
         this.mSymmetricPassphrase = builder.mSymmetricPassphrase;
         this.mSymmetricEncryptionAlgorithm = builder.mSymmetricEncryptionAlgorithm;
@@ -103,6 +105,7 @@ public class PgpSignEncrypt {
         private Progressable mProgressable = null;
         private boolean mEnableAsciiArmorOutput = false;
         private int mCompressionId = Id.choice.compression.none;
+        private boolean mEnableParallelCompression = false;
         private long[] mEncryptionKeyIds = null;
         private String mSymmetricPassphrase = null;
         private int mSymmetricEncryptionAlgorithm = 0;
@@ -134,6 +137,15 @@ public class PgpSignEncrypt {
             return this;
         }
 
+        /**
+         * Deflate on all cores for ZIP and ZLIB, see {@link ParallelCompressedDataGenerator}.
+         * Ignored for other algorithms and on devices without Deflater.SYNC_FLUSH.
+         */
+        public Builder setEnableParallelCompression(boolean enableParallelCompression) {
+            mEnableParallelCompression = enableParallelCompression;
+            return this;
+        }
+
         public Builder setEncryptionKeyIds(long[] encryptionKeyIds) {
             mEncryptionKeyIds = encryptionKeyIds;
             return this;
@@ -277,8 +289,10 @@ public class PgpSignEncrypt {
                 for (long id : mEncryptionKeyIds) {
                     PGPPublicKey key = PgpKeyHelper.getEncryptPublicKey(mContext, id);
                     if (key != null) {
+                        // ECDH needs the key agreement of our provider
                         JcePublicKeyKeyEncryptionMethodGenerator pubKeyEncryptionGenerator =
-                                new JcePublicKeyKeyEncryptionMethodGenerator(key);
+                                new JcePublicKeyKeyEncryptionMethodGenerator(key)
+                                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
                         cPk.addMethod(pubKeyEncryptionGenerator);
                     }
                 }
@@ -293,7 +307,9 @@ public class PgpSignEncrypt {
 
             // content signer based on signing key algorithm and chosen hash algorithm
             JcaPGPContentSignerBuilder contentSignerBuilder = new JcaPGPContentSignerBuilder(
-                    signingKey.getAlgorithm(), mSignatureHashAlgorithm)
+                    signingKey.getAlgorithm(),
+                    PgpKeyHelper.getSignatureHashAlgorithm(signingKey.getPublicKey(),
+                        mSignatureHashAlgorithm))
                     .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
 
             if (mSignatureForceV3) {
@@ -311,6 +327,7 @@ public class PgpSignEncrypt {
         }
 
         PGPCompressedDataGenerator compressGen = null;
+        ParallelCompressedDataGenerator parallelCompressGen = null;
         OutputStream pOut;
         OutputStream encryptionOut = null;
         BCPGOutputStream bcpgOut;
@@ -319,7 +336,11 @@ public class PgpSignEncrypt {
 
             encryptionOut = cPk.open(out, new byte[1 << 16]);
 
-            if (enableCompression) {
+            if (enableCompression && mEnableParallelCompression
+                    && ParallelCompressedDataGenerator.isSupported(mCompressionId)) {
+                parallelCompressGen = new ParallelCompressedDataGenerator(mCompressionId);
+                bcpgOut = new BCPGOutputStream(parallelCompressGen.open(encryptionOut));
+            } else if (enableCompression) {
                 compressGen = new PGPCompressedDataGenerator(mCompressionId);
                 bcpgOut = new BCPGOutputStream(compressGen.open(encryptionOut));
             } else {
@@ -424,7 +445,9 @@ public class PgpSignEncrypt {
         // NOTE: closing needs to be done in the correct order!
         // TODO: closing bcpgOut and pOut???
         if (enableEncryption) {
-            if (enableCompression) {
+            if (parallelCompressGen != null) {
+                parallelCompressGen.close();
+            } else if (enableCompression) {
                 compressGen.close();
             }
 
@@ -486,7 +509,9 @@ public class PgpSignEncrypt {
 
         // content signer based on signing key algorithm and chosen hash algorithm
         JcaPGPContentSignerBuilder contentSignerBuilder = new JcaPGPContentSignerBuilder(signingKey
-                .getPublicKey().getAlgorithm(), mSignatureHashAlgorithm)
+                .getPublicKey().getAlgorithm(),
+                PgpKeyHelper.getSignatureHashAlgorithm(signingKey.getPublicKey(),
+                        mSignatureHashAlgorithm))
                 .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
 
         PGPSignatureGenerator signatureGenerator = null;
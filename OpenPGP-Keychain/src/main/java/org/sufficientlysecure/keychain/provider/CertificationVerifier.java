@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2010-2014 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.Process;
+import android.os.RemoteException;
+
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.provider.KeychainContract.Certs;
+import org.thialfihar.android.apg.util.IterableIterator;
+import org.thialfihar.android.apg.util.Log;
+
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Verifies the certifications in the certs table that are still pending, on a background
+ * thread. Rows become pending when the certified key ring is saved or when the key ring of the
+ * certifier changes, so every certification is verified once per change instead of every time
+ * it is displayed.
+ */
+public class CertificationVerifier {
+    private static final int BATCH_SIZE = 100;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+    private static final AtomicBoolean sQueued = new AtomicBoolean(false);
+
+    private static final JcaPGPContentVerifierBuilderProvider sContentVerifierBuilderProvider =
+            new JcaPGPContentVerifierBuilderProvider()
+                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+
+    private CertificationVerifier() {
+    }
+
+    /**
+     * Verifies all pending certifications in the background. Requests made while a run is
+     * queued are merged into it.
+     */
+    public static void verifyPendingAsync(Context context) {
+        if (!sQueued.compareAndSet(false, true)) {
+            return;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                sQueued.set(false);
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    verifyPending(appContext);
+                } catch (RuntimeException e) {
+                    Log.e(Constants.TAG, "Verifying certifications failed", e);
+                }
+            }
+        });
+    }
+
+    private static void verifyPending(Context context) {
+        ContentResolver cr = context.getContentResolver();
+        Cursor cursor = cr.query(Certs.CONTENT_URI, new String[] {
+                Certs._ID, Certs.KEY_RING_ROW_ID, Certs.USER_ID, Certs.KEY_ID_CERTIFIER,
+                Certs.TYPE, Certs.CREATION
+        }, Certs.VERIFIED + " = " + Certs.VERIFIED_PENDING, null, Certs.KEY_RING_ROW_ID);
+        if (cursor == null) {
+            return;
+        }
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        HashSet<Long> changedKeyRings = new HashSet<Long>();
+        HashSet<Long> changedMasterKeyIds = new HashSet<Long>();
+        HashMap<Long, PGPPublicKey> certifiers = new HashMap<Long, PGPPublicKey>();
+        long keyRingRowId = -1;
+        PGPPublicKey certifiedKey = null;
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getLong(1) != keyRingRowId) {
+                    keyRingRowId = cursor.getLong(1);
+                    PGPPublicKeyRing keyRing =
+                            ProviderHelper.getPGPPublicKeyRingByRowId(context, keyRingRowId);
+                    certifiedKey = (keyRing == null) ? null : keyRing.getPublicKey();
+                }
+                if (certifiedKey == null) {
+                    // key ring was deleted meanwhile
+                    continue;
+                }
+
+                long certifierKeyId = cursor.getLong(3);
+                if (!certifiers.containsKey(certifierKeyId)) {
+                    certifiers.put(certifierKeyId,
+                            ProviderHelper.getPGPPublicKeyByKeyId(context, certifierKeyId));
+                }
+
+                int status = verify(certifiedKey, cursor.getString(2),
+                        certifiers.get(certifierKeyId), certifierKeyId, cursor.getInt(4),
+                        cursor.getLong(5));
+
+                operations.add(ContentProviderOperation.newUpdate(Certs.CONTENT_URI)
+                        .withSelection(Certs._ID + " = " + cursor.getLong(0), null)
+                        .withValue(Certs.VERIFIED, status)
+                        .build());
+                changedKeyRings.add(keyRingRowId);
+                changedMasterKeyIds.add(certifiedKey.getKeyID());
+
+                if (operations.size() >= BATCH_SIZE) {
+                    applyBatch(cr, operations);
+                }
+            }
+            applyBatch(cr, operations);
+        } finally {
+            cursor.close();
+        }
+
+        for (long rowId : changedKeyRings) {
+            cr.notifyChange(Certs.buildPublicCertsUri(Long.toString(rowId)), null);
+        }
+        for (long masterKeyId : changedMasterKeyIds) {
+            TrustEngine.onCertificationsChanged(context, masterKeyId);
+        }
+        Log.d(Constants.TAG, "Verified certifications of " + changedKeyRings.size()
+                + " key ring(s)");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int verify(PGPPublicKey certifiedKey, String userId, PGPPublicKey certifier,
+                              long certifierKeyId, int type, long creation) {
+        if (certifier == null) {
+            return Certs.VERIFIED_CERTIFIER_UNKNOWN;
+        }
+
+        for (PGPSignature cert : new IterableIterator<PGPSignature>(
+                certifiedKey.getSignaturesForID(userId))) {
+            if (cert.getKeyID() != certifierKeyId || cert.getSignatureType() != type
+                    || cert.getCreationTime().getTime() / 1000 != creation) {
+                continue;
+            }
+
+            try {
+                cert.init(sContentVerifierBuilderProvider, certifier);
+                if (cert.verifyCertification(userId, certifiedKey)) {
+                    return Certs.VERIFIED_OK;
+                }
+            } catch (PGPException e) {
+                Log.d(Constants.TAG, "Certification could not be verified", e);
+            } catch (SignatureException e) {
+                Log.d(Constants.TAG, "Certification could not be verified", e);
+            }
+        }
+
+        return Certs.VERIFIED_BAD;
+    }
+
+    private static void applyBatch(ContentResolver cr,
+                                   ArrayList<ContentProviderOperation> operations) {
+        if (operations.isEmpty()) {
+            return;
+        }
+        try {
+            cr.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException e) {
+            Log.e(Constants.TAG, "applyBatch failed!", e);
+        } catch (OperationApplicationException e) {
+            Log.e(Constants.TAG, "applyBatch failed!", e);
+        }
+        operations.clear();
+    }
+}
@@ -28,6 +28,8 @@ public class KeychainContract {
         String MASTER_KEY_ID = "master_key_id"; // not a database id
         String TYPE = "type"; // see KeyTypes
         String KEY_RING_DATA = "key_ring_data"; // PGPPublicKeyRing / PGPSecretKeyRing blob
+        String CONTENT_HASH = "content_hash"; // SHA-256 of the complete encoded key ring
+        String LAST_REFRESHED = "last_refreshed"; // last lookup on a keyserver, in milliseconds
     }
 
     interface KeysColumns {
@@ -54,6 +56,22 @@ public class KeychainContract {
         String RANK = "rank";
     }
 
+    interface CertsColumns {
+        String KEY_RING_ROW_ID = "key_ring_row_id"; // foreign key to key_rings._ID, certified
+        String KEY_ID = "key_id"; // master key id of the certified key ring
+        String USER_ID = "user_id"; // certified user id
+        String KEY_ID_CERTIFIER = "key_id_certifier";
+        String TYPE = "type"; // PGPSignature certification or certification revocation type
+        String CREATION = "creation";
+        String VERIFIED = "verified"; // see Certs.VERIFIED_*
+        String SIGNER_USER_ID = "signer_user_id"; // main user id of certifier, only in queries
+    }
+
+    interface KeyRingExtrasColumns {
+        String KEY_RING_ROW_ID = "key_ring_row_id"; // foreign key to key_rings._ID
+        String DATA = "data"; // see KeyRingSplit, bulky parts of a public key ring
+    }
+
     interface ApiAppsColumns {
         String PACKAGE_NAME = "package_name";
         String PACKAGE_SIGNATURE = "package_signature";
@@ -91,6 +109,11 @@ public class KeychainContract {
 
     public static final String PATH_USER_IDS = "user_ids";
     public static final String PATH_KEYS = "keys";
+    public static final String PATH_CERTS = "certs";
+    public static final String PATH_EXTRAS = "extras";
+
+    public static final String BASE_CERTS = "certs";
+    public static final String BASE_EXTRAS = "extras";
 
     public static final String BASE_API_APPS = "api_apps";
     public static final String PATH_ACCOUNTS = "accounts";
@@ -197,6 +220,18 @@ public class KeychainContract {
                     .appendPath(PATH_KEYS).appendPath(keyRowId).build();
         }
 
+        public static Uri buildPublicKeysByMasterKeyIdUri(String masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC)
+                    .appendPath(PATH_BY_MASTER_KEY_ID).appendPath(masterKeyId)
+                    .appendPath(PATH_KEYS).build();
+        }
+
+        public static Uri buildSecretKeysByMasterKeyIdUri(String masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SECRET)
+                    .appendPath(PATH_BY_MASTER_KEY_ID).appendPath(masterKeyId)
+                    .appendPath(PATH_KEYS).build();
+        }
+
         public static Uri buildKeysUri(Uri keyRingUri) {
             return keyRingUri.buildUpon().appendPath(PATH_KEYS).build();
         }
@@ -245,6 +280,51 @@ public class KeychainContract {
         }
     }
 
+    public static class Certs implements CertsColumns, BaseColumns {
+        /** all certifications, used by the verifier */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_CERTS).build();
+
+        /** Use if multiple items get returned */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.thialfihar.apg.cert";
+
+        /** Use if a single item is returned */
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.thialfihar.apg.cert";
+
+        public static final int VERIFIED_PENDING = 0;
+        public static final int VERIFIED_OK = 1;
+        public static final int VERIFIED_BAD = 2;
+        public static final int VERIFIED_CERTIFIER_UNKNOWN = 3;
+
+        public static Uri buildPublicCertsUri(String keyRingRowId) {
+            return KeyRings.CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC)
+                    .appendPath(keyRingRowId).appendPath(PATH_CERTS).build();
+        }
+
+        public static Uri buildCertsUri(Uri keyRingUri) {
+            return keyRingUri.buildUpon().appendPath(PATH_CERTS).build();
+        }
+    }
+
+    public static class KeyRingExtras implements KeyRingExtrasColumns, BaseColumns {
+        /** extras of all key rings, to read those of several key rings in one query */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_EXTRAS).build();
+
+        /** Use if multiple items get returned */
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.thialfihar.apg.key_ring_extras";
+
+        /** Use if a single item is returned */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.thialfihar.apg.key_ring_extras";
+
+        public static Uri buildPublicExtrasUri(String keyRingRowId) {
+            return KeyRings.CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC)
+                    .appendPath(keyRingRowId).appendPath(PATH_EXTRAS).build();
+        }
+    }
+
     public static class ApiApps implements ApiAppsColumns, BaseColumns {
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
                 .appendPath(BASE_API_APPS).build();
@@ -17,27 +17,59 @@
 
 package org.thialfihar.android.apg.provider;
 
+import android.annotation.TargetApi;
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.os.Process;
+
+import org.spongycastle.openpgp.PGPPublicKeyRing;
 
 import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.pgp.Key;
+import org.thialfihar.android.apg.pgp.KeyRing;
+import org.thialfihar.android.apg.pgp.KeyRingSplit;
+import org.thialfihar.android.apg.pgp.PgpKeyHelper;
+import org.thialfihar.android.apg.provider.KeychainContract.KeyTypes;
 import org.thialfihar.android.apg.util.Log;
 
+import java.io.IOException;
+
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "apg";
-    private static final int DATABASE_VERSION = 4;
+    private static final int DATABASE_VERSION = 10;
+
+    private static final int FINGERPRINT_BATCH_SIZE = 100;
+
+    private boolean mFillingFingerprints = false;
 
     public interface Tables {
         String KEY_RINGS = "key_rings";
         String KEYS = "keys";
         String USER_IDS = "user_ids";
+        String CERTS = "certs";
+        String KEY_RING_EXTRAS = "key_ring_extras";
         String API_APPS = "api_apps";
         String API_ACCOUNTS = "api_accounts";
     }
 
     KeychainDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+        // with write-ahead logging readers get their own connections and don't have to wait
+        // for a running import, old versions of SQLite only have the rollback journal
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            enableWriteAheadLogging();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void enableWriteAheadLogging() {
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
@@ -48,7 +80,9 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
             "master_key_id INT64, " +
             "type INTEGER, " +
-            "key_ring_data BLOB)");
+            "key_ring_data BLOB, " +
+            "content_hash BLOB, " +
+            "last_refreshed INTEGER)");
 
         db.execSQL("CREATE TABLE keys(" +
             "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
@@ -76,6 +110,11 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             "rank INTEGER, " +
             "FOREIGN KEY(key_ring_row_id) REFERENCES key_rings(_id) ON DELETE CASCADE)");
 
+        createCertsTable(db);
+        createKeyIndexes(db);
+        createKeyRingExtrasTable(db);
+        createFingerprintIndex(db);
+
         db.execSQL("CREATE TABLE api_apps(" +
             "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
             "package_name TEXT NOT NULL UNIQUE, " +
@@ -93,12 +132,273 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             "FOREIGN KEY(package_name) REFERENCES api_apps(package_name) ON DELETE CASCADE)");
     }
 
+    private static void createCertsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE certs(" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            "key_ring_row_id INTEGER NOT NULL, " +
+            "key_id INT64, " +
+            "user_id TEXT, " +
+            "key_id_certifier INT64, " +
+            "type INTEGER, " +
+            "creation INTEGER, " +
+            "verified INTEGER, " +
+            "FOREIGN KEY(key_ring_row_id) REFERENCES key_rings(_id) ON DELETE CASCADE)");
+        db.execSQL("CREATE INDEX certs_key_ring_row_id ON certs(key_ring_row_id)");
+        db.execSQL("CREATE INDEX certs_key_id_certifier ON certs(key_id_certifier)");
+        db.execSQL("CREATE INDEX certs_verified ON certs(verified)");
+    }
+
+    /**
+     * Indexes used to select keys by master key id and their flags without reading the key ring
+     * blobs.
+     */
+    private static void createKeyIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX key_rings_master_key_id ON key_rings(master_key_id, type)");
+        db.execSQL("CREATE INDEX keys_key_ring_row_id ON keys(key_ring_row_id)");
+    }
+
+    /**
+     * A key can be stored in a public and a secret key ring and be bound to more than one key
+     * ring, so the fingerprint is only unique together with these. It is the first column to make
+     * lookups by fingerprint point queries.
+     */
+    private static void createFingerprintIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE UNIQUE INDEX keys_fingerprint ON keys(fingerprint, type, " +
+            "key_ring_row_id)");
+    }
+
+    private static void createKeyRingExtrasTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE key_ring_extras(" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            "key_ring_row_id INTEGER NOT NULL UNIQUE, " +
+            "data BLOB, " +
+            "FOREIGN KEY(key_ring_row_id) REFERENCES key_rings(_id) ON DELETE CASCADE)");
+    }
+
+    /**
+     * Moves user attributes and certifications of others out of the stored public key rings
+     * into the key_ring_extras table, see {@link KeyRingSplit}.
+     */
+    private static void splitKeyRings(SQLiteDatabase db) {
+        Cursor cursor = db.query("key_rings", new String[] {"_id", "key_ring_data"},
+                "type = " + KeyTypes.PUBLIC, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                long rowId = cursor.getLong(0);
+                KeyRing keyRing = KeyRing.decode(cursor.getBlob(1));
+                if (keyRing == null || !keyRing.isPublic()) {
+                    Log.e(Constants.TAG, "Could not read key ring " + rowId);
+                    continue;
+                }
+
+                try {
+                    PGPPublicKeyRing publicKeyRing = keyRing.getPublicKeyRing();
+                    byte[] extras = KeyRingSplit.getExtras(publicKeyRing);
+                    if (extras == null) {
+                        continue;
+                    }
+                    PGPPublicKeyRing core = KeyRingSplit.getCore(publicKeyRing);
+
+                    ContentValues values = new ContentValues();
+                    values.put("key_ring_data", core.getEncoded());
+                    db.update("key_rings", values, "_id = " + rowId, null);
+
+                    values = new ContentValues();
+                    values.put("key_data", core.getPublicKey().getEncoded());
+                    db.update("keys", values,
+                            "key_ring_row_id = " + rowId + " AND is_master_key = 1", null);
+
+                    values = new ContentValues();
+                    values.put("key_ring_row_id", rowId);
+                    values.put("data", extras);
+                    db.insert(Tables.KEY_RING_EXTRAS, null, values);
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "Could not split key ring " + rowId, e);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Fills in the fingerprints of keys saved by old versions, which did not store them, on a
+     * background thread. Each batch of keys is committed on its own, so the database is only
+     * locked for one batch at a time and an interrupted run is continued on the next start.
+     */
+    private synchronized void fillFingerprintsAsync(SQLiteDatabase db) {
+        if (mFillingFingerprints || !hasKeysWithoutFingerprint(db)) {
+            return;
+        }
+        mFillingFingerprints = true;
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                long start = System.currentTimeMillis();
+                try {
+                    int filled = fillFingerprints(getWritableDatabase());
+                    Log.d(Constants.TAG, "Filled in " + filled + " fingerprints in "
+                            + (System.currentTimeMillis() - start) + " ms");
+                } catch (RuntimeException e) {
+                    Log.e(Constants.TAG, "Filling in fingerprints failed", e);
+                } finally {
+                    synchronized (KeychainDatabase.this) {
+                        mFillingFingerprints = false;
+                    }
+                }
+            }
+        }, "KeychainDatabase fingerprints").start();
+    }
+
+    private static boolean hasKeysWithoutFingerprint(SQLiteDatabase db) {
+        Cursor cursor = db.query("keys", new String[] {"_id"}, "fingerprint IS NULL", null,
+                null, null, null, "1");
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return number of keys whose fingerprint was filled in
+     */
+    private static int fillFingerprints(SQLiteDatabase db) {
+        int filled = 0;
+        long lastRowId = -1;
+        while (true) {
+            db.beginTransaction();
+            try {
+                Cursor cursor = db.query("keys",
+                        new String[] {"_id", "key_data", "key_ring_row_id", "key_id"},
+                        "fingerprint IS NULL AND _id > " + lastRowId, null, null, null, "_id",
+                        Integer.toString(FINGERPRINT_BATCH_SIZE));
+                try {
+                    if (!cursor.moveToFirst()) {
+                        db.setTransactionSuccessful();
+                        return filled;
+                    }
+                    do {
+                        lastRowId = cursor.getLong(0);
+                        if (fillFingerprint(db, lastRowId, cursor.getBlob(1), cursor.getLong(2),
+                                cursor.getLong(3))) {
+                            ++filled;
+                        }
+                    } while (cursor.moveToNext());
+                } finally {
+                    cursor.close();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * @return true if the fingerprint was filled in, false if the key could not be read or was
+     *         a duplicate and has been deleted
+     */
+    private static boolean fillFingerprint(SQLiteDatabase db, long rowId, byte[] keyData,
+                                           long keyRingRowId, long keyId) {
+        Key key;
+        try {
+            key = Key.decodeKeyData(keyData);
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Could not read key " + rowId, e);
+            return false;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put("fingerprint", key.getFingerprint());
+        try {
+            db.updateWithOnConflict("keys", values, "_id = " + rowId, null,
+                    SQLiteDatabase.CONFLICT_ABORT);
+            return true;
+        } catch (SQLiteConstraintException e) {
+            // old versions could store a key twice in the same key ring
+            Log.w(Constants.TAG, "Deleting key " + PgpKeyHelper.convertKeyIdToHex(keyId)
+                    + " (row " + rowId + "), it is stored in key ring " + keyRingRowId
+                    + " already");
+            db.delete("keys", "_id = " + rowId, null);
+            return false;
+        }
+    }
+
+    /**
+     * Deletes all but the first row of keys stored more than once in the same key ring, which old
+     * versions could save, so the unique fingerprint index can be created. Keys without
+     * fingerprint are checked when it is filled in.
+     */
+    private static void deleteDuplicateKeys(SQLiteDatabase db) {
+        String selection = "fingerprint IS NOT NULL AND _id NOT IN (" +
+                "SELECT MIN(_id) FROM keys WHERE fingerprint IS NOT NULL " +
+                "GROUP BY fingerprint, type, key_ring_row_id)";
+        Cursor cursor = db.query("keys", new String[] {"_id", "key_ring_row_id", "key_id"},
+                selection, null, null, null, "_id");
+        try {
+            while (cursor.moveToNext()) {
+                Log.w(Constants.TAG, "Deleting key "
+                        + PgpKeyHelper.convertKeyIdToHex(cursor.getLong(2)) + " (row "
+                        + cursor.getLong(0) + "), it is stored in key ring " + cursor.getLong(1)
+                        + " already");
+            }
+        } finally {
+            cursor.close();
+        }
+
+        int deleted = db.delete("keys", selection, null);
+        if (deleted > 0) {
+            Log.w(Constants.TAG, "Deleted " + deleted + " duplicate keys");
+        }
+    }
+
+    /**
+     * Fills the certs table from the certifications in all stored public key rings, they are
+     * verified later by the CertificationVerifier.
+     */
+    private static void fillCertsTable(SQLiteDatabase db) {
+        Cursor cursor = db.query("key_rings", new String[] {"_id", "key_ring_data"},
+                "type = " + KeyTypes.PUBLIC, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                KeyRing keyRing = KeyRing.decode(cursor.getBlob(1));
+                if (keyRing == null || !keyRing.isPublic()) {
+                    Log.e(Constants.TAG, "Could not read key ring " + cursor.getLong(0));
+                    continue;
+                }
+                for (ContentValues values : ProviderHelper.buildCertValues(cursor.getLong(0),
+                        keyRing.getPublicKeyRing())) {
+                    db.insert(Tables.CERTS, null, values);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
     @Override
     public void onOpen(SQLiteDatabase db) {
         super.onOpen(db);
         if (!db.isReadOnly()) {
             // Enable foreign key constraints
             db.execSQL("PRAGMA foreign_keys=ON;");
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                    && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                enableWriteAheadLogging(db);
+            }
+
+            fillFingerprintsAsync(db);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void enableWriteAheadLogging(SQLiteDatabase db) {
+        if (!db.enableWriteAheadLogging()) {
+            Log.w(Constants.TAG, "Write-ahead logging not available, using rollback journal");
         }
     }
 
@@ -217,6 +517,43 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                                 "FOREIGN KEY(package_name) REFERENCES " +
                                     "api_apps(package_name) ON DELETE CASCADE)");
                     break;
+                case 4:
+                    db.beginTransaction();
+                    try {
+                        createCertsTable(db);
+                        fillCertsTable(db);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                    break;
+                case 5:
+                    createKeyIndexes(db);
+                    break;
+                case 6:
+                    db.beginTransaction();
+                    try {
+                        createKeyRingExtrasTable(db);
+                        splitKeyRings(db);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                    break;
+                case 7:
+                    // filled in when a key ring is saved again
+                    db.execSQL("ALTER TABLE key_rings ADD COLUMN content_hash BLOB");
+                    break;
+                case 8:
+                    // the fingerprints are filled in in the background once the database is
+                    // open, the index allows any number of keys without one
+                    deleteDuplicateKeys(db);
+                    createFingerprintIndex(db);
+                    break;
+                case 9:
+                    // set by the KeyRefresher
+                    db.execSQL("ALTER TABLE key_rings ADD COLUMN last_refreshed INTEGER");
+                    break;
                 default:
                     break;
             }
@@ -18,7 +18,10 @@
 package org.thialfihar.android.apg.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -32,6 +35,9 @@ import android.text.TextUtils;
 import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.provider.KeychainContract.ApiAccounts;
 import org.thialfihar.android.apg.provider.KeychainContract.ApiApps;
+import org.thialfihar.android.apg.provider.KeychainContract.Certs;
+import org.thialfihar.android.apg.provider.KeychainContract.CertsColumns;
+import org.thialfihar.android.apg.provider.KeychainContract.KeyRingExtras;
 import org.thialfihar.android.apg.provider.KeychainContract.KeyRings;
 import org.thialfihar.android.apg.provider.KeychainContract.KeyRingsColumns;
 import org.thialfihar.android.apg.provider.KeychainContract.KeyTypes;
@@ -42,6 +48,7 @@ import org.thialfihar.android.apg.provider.KeychainContract.UserIdsColumns;
 import org.thialfihar.android.apg.provider.KeychainDatabase.Tables;
 import org.thialfihar.android.apg.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 
@@ -61,11 +68,16 @@ public class KeychainProvider extends ContentProvider {
 
     private static final int PUBLIC_KEY_RING_KEY = 111;
     private static final int PUBLIC_KEY_RING_KEY_BY_ROW_ID = 112;
+    private static final int PUBLIC_KEY_RING_BY_MASTER_KEY_ID_KEY = 113;
 
     private static final int PUBLIC_KEY_RING_USER_ID = 121;
     private static final int PUBLIC_KEY_RING_USER_ID_BY_ROW_ID = 122;
     private static final int PUBLIC_KEY_RING_BY_MASTER_KEY_ID_USER_ID = 123;
 
+    private static final int PUBLIC_KEY_RING_CERTS = 131;
+
+    private static final int PUBLIC_KEY_RING_EXTRAS = 141;
+
     private static final int SECRET_KEY_RING = 201;
     private static final int SECRET_KEY_RING_BY_ROW_ID = 202;
     private static final int SECRET_KEY_RING_BY_MASTER_KEY_ID = 203;
@@ -75,6 +87,7 @@ public class KeychainProvider extends ContentProvider {
 
     private static final int SECRET_KEY_RING_KEY = 211;
     private static final int SECRET_KEY_RING_KEY_BY_ROW_ID = 212;
+    private static final int SECRET_KEY_RING_BY_MASTER_KEY_ID_KEY = 213;
 
     private static final int SECRET_KEY_RING_USER_ID = 221;
     private static final int SECRET_KEY_RING_USER_ID_BY_ROW_ID = 222;
@@ -86,6 +99,9 @@ public class KeychainProvider extends ContentProvider {
 
     private static final int UNIFIED_KEY_RING = 401;
 
+    private static final int CERTS = 601;
+    private static final int EXTRAS = 602;
+
     // private static final int DATA_STREAM = 401;
 
     public static final int LEGACY_SECRET_KEY_RING_BY_KEY_ID = 501;
@@ -151,6 +167,7 @@ public class KeychainProvider extends ContentProvider {
          * <pre>
          * key_rings/public/#/keys
          * key_rings/public/#/keys/#
+         * key_rings/public/master_key_id/_/keys
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -159,6 +176,10 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_PUBLIC + "/#/" + KeychainContract.PATH_KEYS + "/#",
                 PUBLIC_KEY_RING_KEY_BY_ROW_ID);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_PUBLIC + "/"
+                + KeychainContract.PATH_BY_MASTER_KEY_ID + "/*/" + KeychainContract.PATH_KEYS,
+                PUBLIC_KEY_RING_BY_MASTER_KEY_ID_KEY);
 
         /**
          * public user ids
@@ -180,6 +201,32 @@ public class KeychainProvider extends ContentProvider {
                 + KeychainContract.PATH_BY_MASTER_KEY_ID + "/*/" + KeychainContract.PATH_USER_IDS,
                 PUBLIC_KEY_RING_BY_MASTER_KEY_ID_USER_ID);
 
+        /**
+         * certifications of public key rings
+         *
+         * <pre>
+         * key_rings/public/#/certs
+         * certs
+         * </pre>
+         */
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_PUBLIC + "/#/" + KeychainContract.PATH_CERTS,
+                PUBLIC_KEY_RING_CERTS);
+        matcher.addURI(authority, KeychainContract.BASE_CERTS, CERTS);
+
+        /**
+         * user attributes and certifications of others split off public key rings
+         *
+         * <pre>
+         * key_rings/public/#/extras
+         * extras
+         * </pre>
+         */
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_PUBLIC + "/#/" + KeychainContract.PATH_EXTRAS,
+                PUBLIC_KEY_RING_EXTRAS);
+        matcher.addURI(authority, KeychainContract.BASE_EXTRAS, EXTRAS);
+
         /**
          * secret key rings
          *
@@ -218,6 +265,7 @@ public class KeychainProvider extends ContentProvider {
          * <pre>
          * key_rings/secret/#/keys
          * key_rings/secret/#/keys/#
+         * key_rings/secret/master_key_id/_/keys
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -226,6 +274,10 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_SECRET + "/#/" + KeychainContract.PATH_KEYS + "/#",
                 SECRET_KEY_RING_KEY_BY_ROW_ID);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_SECRET + "/"
+                + KeychainContract.PATH_BY_MASTER_KEY_ID + "/*/" + KeychainContract.PATH_KEYS,
+                SECRET_KEY_RING_BY_MASTER_KEY_ID_KEY);
 
         /**
          * secret user ids
@@ -319,7 +371,9 @@ public class KeychainProvider extends ContentProvider {
                 return KeyRings.CONTENT_ITEM_TYPE;
 
             case PUBLIC_KEY_RING_KEY:
+            case PUBLIC_KEY_RING_BY_MASTER_KEY_ID_KEY:
             case SECRET_KEY_RING_KEY:
+            case SECRET_KEY_RING_BY_MASTER_KEY_ID_KEY:
                 return Keys.CONTENT_TYPE;
 
             case PUBLIC_KEY_RING_KEY_BY_ROW_ID:
@@ -335,6 +389,16 @@ public class KeychainProvider extends ContentProvider {
             case SECRET_KEY_RING_USER_ID_BY_ROW_ID:
                 return UserIds.CONTENT_ITEM_TYPE;
 
+            case PUBLIC_KEY_RING_CERTS:
+            case CERTS:
+                return Certs.CONTENT_TYPE;
+
+            case PUBLIC_KEY_RING_EXTRAS:
+                return KeyRingExtras.CONTENT_ITEM_TYPE;
+
+            case EXTRAS:
+                return KeyRingExtras.CONTENT_TYPE;
+
             case API_APPS:
                 return ApiApps.CONTENT_TYPE;
 
@@ -369,9 +433,12 @@ public class KeychainProvider extends ContentProvider {
             case PUBLIC_KEY_RING_BY_LIKE_EMAIL:
             case PUBLIC_KEY_RING_KEY:
             case PUBLIC_KEY_RING_KEY_BY_ROW_ID:
+            case PUBLIC_KEY_RING_BY_MASTER_KEY_ID_KEY:
             case PUBLIC_KEY_RING_USER_ID:
             case PUBLIC_KEY_RING_BY_MASTER_KEY_ID_USER_ID:
             case PUBLIC_KEY_RING_USER_ID_BY_ROW_ID:
+            case PUBLIC_KEY_RING_CERTS:
+            case PUBLIC_KEY_RING_EXTRAS:
             case LEGACY_PUBLIC_KEY_RING_BY_EMAILS:
             case LEGACY_PUBLIC_KEY_RING_BY_KEY_ID:
                 type = KeyTypes.PUBLIC;
@@ -385,6 +452,7 @@ public class KeychainProvider extends ContentProvider {
             case SECRET_KEY_RING_BY_LIKE_EMAIL:
             case SECRET_KEY_RING_KEY:
             case SECRET_KEY_RING_KEY_BY_ROW_ID:
+            case SECRET_KEY_RING_BY_MASTER_KEY_ID_KEY:
             case SECRET_KEY_RING_USER_ID:
             case SECRET_KEY_RING_USER_ID_BY_ROW_ID:
             case LEGACY_SECRET_KEY_RING_BY_EMAILS:
@@ -420,6 +488,10 @@ public class KeychainProvider extends ContentProvider {
         }
         projectionMap.put(KeyRingsColumns.MASTER_KEY_ID,
                           Tables.KEY_RINGS + "." + KeyRingsColumns.MASTER_KEY_ID);
+        projectionMap.put(KeyRingsColumns.CONTENT_HASH,
+                          Tables.KEY_RINGS + "." + KeyRingsColumns.CONTENT_HASH);
+        projectionMap.put(KeyRingsColumns.LAST_REFRESHED,
+                          Tables.KEY_RINGS + "." + KeyRingsColumns.LAST_REFRESHED);
 
         projectionMap.put(KeysColumns.ALGORITHM, Tables.KEYS + "." + KeysColumns.ALGORITHM);
         projectionMap.put(KeysColumns.KEY_SIZE, Tables.KEYS + "." + KeysColumns.KEY_SIZE);
@@ -477,6 +549,25 @@ public class KeychainProvider extends ContentProvider {
         return projectionMap;
     }
 
+    private HashMap<String, String> getProjectionMapForCerts() {
+        HashMap<String, String> projectionMap = new HashMap<String, String>();
+
+        projectionMap.put(BaseColumns._ID, Tables.CERTS + "." + BaseColumns._ID);
+        projectionMap.put(CertsColumns.KEY_RING_ROW_ID, Tables.CERTS + "."
+                + CertsColumns.KEY_RING_ROW_ID);
+        projectionMap.put(CertsColumns.KEY_ID, Tables.CERTS + "." + CertsColumns.KEY_ID);
+        projectionMap.put(CertsColumns.USER_ID, Tables.CERTS + "." + CertsColumns.USER_ID);
+        projectionMap.put(CertsColumns.KEY_ID_CERTIFIER, Tables.CERTS + "."
+                + CertsColumns.KEY_ID_CERTIFIER);
+        projectionMap.put(CertsColumns.TYPE, Tables.CERTS + "." + CertsColumns.TYPE);
+        projectionMap.put(CertsColumns.CREATION, Tables.CERTS + "." + CertsColumns.CREATION);
+        projectionMap.put(CertsColumns.VERIFIED, Tables.CERTS + "." + CertsColumns.VERIFIED);
+        projectionMap.put(CertsColumns.SIGNER_USER_ID, "signer_user_ids."
+                + UserIdsColumns.USER_ID + " AS " + CertsColumns.SIGNER_USER_ID);
+
+        return projectionMap;
+    }
+
     /**
      * Builds default query for keyRings: KeyRings table is joined with UserIds and Keys
      */
@@ -681,6 +772,24 @@ public class KeychainProvider extends ContentProvider {
 
                 qb.setProjectionMap(getProjectionMapForKeys());
 
+                break;
+            case PUBLIC_KEY_RING_BY_MASTER_KEY_ID_KEY:
+            case SECRET_KEY_RING_BY_MASTER_KEY_ID_KEY:
+                qb.setTables(Tables.KEYS);
+                qb.appendWhere(KeysColumns.TYPE + " = ");
+                qb.appendWhereEscapeString(Integer.toString(getKeyType(match)));
+
+                // no join, the key ring is only needed to find the row id
+                qb.appendWhere(" AND " + KeysColumns.KEY_RING_ROW_ID + " IN (SELECT "
+                        + BaseColumns._ID + " FROM " + Tables.KEY_RINGS + " WHERE "
+                        + KeyRingsColumns.MASTER_KEY_ID + " = ");
+                qb.appendWhereEscapeString(uri.getPathSegments().get(3));
+                qb.appendWhere(" AND " + KeyRingsColumns.TYPE + " = ");
+                qb.appendWhereEscapeString(Integer.toString(getKeyType(match)));
+                qb.appendWhere(")");
+
+                qb.setProjectionMap(getProjectionMapForKeys());
+
                 break;
             case PUBLIC_KEY_RING_BY_MASTER_KEY_ID_USER_ID:
                 qb.setTables(Tables.USER_IDS + " INNER JOIN " + Tables.KEY_RINGS + " ON " + "("
@@ -708,6 +817,40 @@ public class KeychainProvider extends ContentProvider {
                 qb.appendWhere(" AND " + BaseColumns._ID + " = ");
                 qb.appendWhereEscapeString(uri.getLastPathSegment());
 
+                break;
+            case PUBLIC_KEY_RING_CERTS:
+                // join the main user id of the certifier, if we have its public key
+                qb.setTables(Tables.CERTS + " LEFT JOIN " + Tables.KEY_RINGS + " AS signer ON ("
+                        + "signer." + KeyRingsColumns.MASTER_KEY_ID + " = " + Tables.CERTS + "."
+                        + CertsColumns.KEY_ID_CERTIFIER + " AND signer." + KeyRingsColumns.TYPE
+                        + " = " + KeyTypes.PUBLIC + ") LEFT JOIN " + Tables.USER_IDS
+                        + " AS signer_user_ids ON (signer_user_ids."
+                        + UserIdsColumns.KEY_RING_ROW_ID + " = signer." + BaseColumns._ID
+                        + " AND signer_user_ids." + UserIdsColumns.RANK + " = 0)");
+                qb.appendWhere(Tables.CERTS + "." + CertsColumns.KEY_RING_ROW_ID + " = ");
+                qb.appendWhereEscapeString(uri.getPathSegments().get(2));
+
+                qb.setProjectionMap(getProjectionMapForCerts());
+
+                if (TextUtils.isEmpty(sortOrder)) {
+                    sortOrder = Tables.CERTS + "." + CertsColumns.USER_ID + " ASC, "
+                            + Tables.CERTS + "." + CertsColumns.CREATION + " DESC";
+                }
+
+                break;
+            case CERTS:
+                qb.setTables(Tables.CERTS);
+
+                break;
+            case PUBLIC_KEY_RING_EXTRAS:
+                qb.setTables(Tables.KEY_RING_EXTRAS);
+                qb.appendWhere(KeyRingExtras.KEY_RING_ROW_ID + " = ");
+                qb.appendWhereEscapeString(uri.getPathSegments().get(2));
+
+                break;
+            case EXTRAS:
+                qb.setTables(Tables.KEY_RING_EXTRAS);
+
                 break;
             case API_APPS:
                 qb.setTables(Tables.API_APPS);
@@ -821,6 +964,22 @@ public class KeychainProvider extends ContentProvider {
                     // TODO: this is wrong:
                     rowUri = UserIds.buildSecretUserIdsUri(Long.toString(rowId));
 
+                    break;
+                case PUBLIC_KEY_RING_CERTS:
+                    rowId = db.insertOrThrow(Tables.CERTS, null, values);
+                    rowUri = uri;
+
+                    break;
+                case PUBLIC_KEY_RING_EXTRAS:
+                    // set foreign key automatically based on given uri, unless given, e.g., as
+                    // back reference to a key ring inserted in the same batch
+                    if (!values.containsKey(KeyRingExtras.KEY_RING_ROW_ID)) {
+                        values.put(KeyRingExtras.KEY_RING_ROW_ID, uri.getPathSegments().get(2));
+                    }
+
+                    rowId = db.insertOrThrow(Tables.KEY_RING_EXTRAS, null, values);
+                    rowUri = uri;
+
                     break;
                 case API_APPS:
                     rowId = db.insertOrThrow(Tables.API_APPS, null, values);
@@ -849,6 +1008,8 @@ public class KeychainProvider extends ContentProvider {
 
         } catch (SQLiteConstraintException e) {
             Log.e(Constants.TAG, "Constraint exception on insert! Entry already existing?");
+            // a batch has to fail as a whole instead of going on without the row
+            throw e;
         }
 
         return rowUri;
@@ -894,9 +1055,16 @@ public class KeychainProvider extends ContentProvider {
                 break;
             case PUBLIC_KEY_RING_USER_ID_BY_ROW_ID:
             case SECRET_KEY_RING_USER_ID_BY_ROW_ID:
-                count = db.delete(Tables.KEYS, buildDefaultUserIdsSelection(uri, selection),
+                count = db.delete(Tables.USER_IDS, buildDefaultUserIdsSelection(uri, selection),
                         selectionArgs);
                 break;
+            case CERTS:
+                count = db.delete(Tables.CERTS, selection, selectionArgs);
+                break;
+            case PUBLIC_KEY_RING_EXTRAS:
+                count = db.delete(Tables.KEY_RING_EXTRAS, KeyRingExtras.KEY_RING_ROW_ID + " = "
+                        + DatabaseUtils.sqlEscapeString(uri.getPathSegments().get(2)), null);
+                break;
             case API_APPS_BY_PACKAGE_NAME:
                 count = db.delete(Tables.API_APPS, buildDefaultApiAppsSelection(uri, selection),
                         selectionArgs);
@@ -915,6 +1083,30 @@ public class KeychainProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Applies all operations in one transaction, so a key ring and its keys, user ids and
+     * certifications are replaced at once and readers never see a half-written key ring.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mKeychainDatabase.getWritableDatabase();
+
+        ContentProviderResult[] results;
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // the operations notified before the changes were committed, observers that query
+        // right away, like the trust graph of other processes, have to hear it once more
+        getContext().getContentResolver().notifyChange(KeyRings.CONTENT_URI, null);
+        return results;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -967,6 +1159,9 @@ public class KeychainProvider extends ContentProvider {
                     count = db.update(Tables.USER_IDS, values,
                             buildDefaultUserIdsSelection(uri, selection), selectionArgs);
                     break;
+                case CERTS:
+                    count = db.update(Tables.CERTS, values, selection, selectionArgs);
+                    break;
                 case API_APPS_BY_PACKAGE_NAME:
                     count = db.update(Tables.API_APPS, values,
                             buildDefaultApiAppsSelection(uri, selection), selectionArgs);
@@ -24,6 +24,7 @@ import android.content.Context;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.RemoteException;
 
@@ -35,11 +36,16 @@ import org.spongycastle.openpgp.PGPSecretKeyRing;
 import org.spongycastle.openpgp.PGPSignature;
 
 import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.Id;
 import org.thialfihar.android.apg.pgp.Key;
 import org.thialfihar.android.apg.pgp.KeyRing;
+import org.thialfihar.android.apg.pgp.KeyRingMerger;
+import org.thialfihar.android.apg.pgp.KeyRingSplit;
 import org.thialfihar.android.apg.pgp.PgpKeyHelper;
 import org.thialfihar.android.apg.pgp.PgpKeyProvider;
 import org.thialfihar.android.apg.provider.KeychainContract.ApiApps;
+import org.thialfihar.android.apg.provider.KeychainContract.Certs;
+import org.thialfihar.android.apg.provider.KeychainContract.KeyRingExtras;
 import org.thialfihar.android.apg.provider.KeychainContract.KeyRings;
 import org.thialfihar.android.apg.provider.KeychainContract.Keys;
 import org.thialfihar.android.apg.provider.KeychainContract.UserIds;
@@ -51,12 +57,24 @@ import org.thialfihar.android.apg.util.Log;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Set;
 
 public class ProviderHelper implements PgpKeyProvider {
+    /**
+     * Row id standing for a key ring that is inserted by the first operation of the batch its
+     * rows are inserted with, see {@link #buildKeyRingRowInsert}
+     */
+    private static final long NEW_KEY_RING = -1;
+
     Context mContext;
 
     public ProviderHelper(Context context) {
@@ -64,27 +82,64 @@ public class ProviderHelper implements PgpKeyProvider {
     }
 
     /**
-     * Private helper method to get KeyRing from database
+     * Private helper method to get KeyRing from database. Public key rings come without their
+     * extras, i.e. without user attributes and certifications of others, use
+     * {@link #getKeyRingWithExtras(Uri)} for those.
      */
     public KeyRing getKeyRing(Uri queryUri) {
-        Cursor cursor = mContext.getContentResolver().query(queryUri,
+        return readKeyRing(mContext, queryUri, false);
+    }
+
+    /**
+     * Like {@link #getKeyRing(Uri)}, but with the complete public key ring
+     */
+    public KeyRing getKeyRingWithExtras(Uri queryUri) {
+        return readKeyRing(mContext, queryUri, true);
+    }
+
+    private static KeyRing readKeyRing(Context context, Uri queryUri, boolean withExtras) {
+        Cursor cursor = context.getContentResolver().query(queryUri,
                 new String[] {KeyRings._ID, KeyRings.KEY_RING_DATA}, null, null, null);
 
-        KeyRing keyRing = null;
+        byte[] data = null;
+        long rowId = -1;
         if (cursor != null && cursor.moveToFirst()) {
-            int keyRingDataCol = cursor.getColumnIndex(KeyRings.KEY_RING_DATA);
-
-            byte[] data = cursor.getBlob(keyRingDataCol);
-            if (data != null) {
-                keyRing = KeyRing.decode(data);
-            }
+            data = cursor.getBlob(cursor.getColumnIndex(KeyRings.KEY_RING_DATA));
+            rowId = cursor.getLong(cursor.getColumnIndex(KeyRings._ID));
         }
 
         if (cursor != null) {
             cursor.close();
         }
 
-        return keyRing;
+        if (data == null) {
+            return null;
+        }
+
+        byte[] extras = withExtras ? getKeyRingExtras(context, rowId) : null;
+        return KeyRing.decode(data, extras);
+    }
+
+    /**
+     * @return the extras split off the public key ring with this row id, null if it has none
+     */
+    private static byte[] getKeyRingExtras(Context context, long keyRingRowId) {
+        Cursor cursor = context.getContentResolver().query(
+                KeyRingExtras.buildPublicExtrasUri(Long.toString(keyRingRowId)),
+                new String[] {KeyRingExtras.DATA}, null, null, null);
+
+        byte[] extras = null;
+        try {
+            if (cursor != null && cursor.moveToFirst()) {
+                extras = cursor.getBlob(0);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return extras;
     }
 
     public KeyRing getPublicKeyRingByMasterKeyId(long keyId) {
@@ -92,6 +147,15 @@ public class ProviderHelper implements PgpKeyProvider {
         return getKeyRing(queryUri);
     }
 
+    /**
+     * Complete public key ring with user attributes and certifications of others, e.g., for
+     * sharing
+     */
+    public KeyRing getPublicKeyRingWithExtrasByMasterKeyId(long keyId) {
+        Uri queryUri = KeyRings.buildPublicKeyRingsByMasterKeyIdUri(Long.toString(keyId));
+        return getKeyRingWithExtras(queryUri);
+    }
+
     public KeyRing getSecretKeyRingByMasterKeyId(long keyId) {
         Uri queryUri = KeyRings.buildSecretKeyRingsByMasterKeyIdUri(Long.toString(keyId));
         return getKeyRing(queryUri);
@@ -169,43 +233,7 @@ public class ProviderHelper implements PgpKeyProvider {
             }
         }
 
-        if (fingerprint != null) {
-            return fingerprint;
-        }
-
-        // FALLBACK: If fingerprint is not in database, get it from key blob!
-        // this could happen if the key was saved by a previous version of Keychain!
-        Log.d(Constants.TAG, "FALLBACK: fingerprint is not in database, get it from key blob!");
-
-        // get master key id
-        projection = new String[] {KeyRings.MASTER_KEY_ID};
-        cursor = mContext.getContentResolver().query(queryUri, projection, null, null, null);
-        long masterKeyId = 0;
-        try {
-            if (cursor != null && cursor.moveToFirst()) {
-                int col = cursor.getColumnIndexOrThrow(KeyRings.MASTER_KEY_ID);
-
-                masterKeyId = cursor.getLong(col);
-            }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-
-        KeyRing keyRing = getPublicKeyRingByMasterKeyId(masterKeyId);
-        if (keyRing == null) {
-            // try to find a secret key ring instead
-            keyRing = getSecretKeyRingByMasterKeyId(masterKeyId);
-        }
-        if (keyRing == null) {
-            Log.e(Constants.TAG, "Key could not be found!");
-            return null;
-        }
-
-        Key key = keyRing.getMasterKey();
-
-        return key.getFingerprint();
+        return fingerprint;
     }
 
     /**
@@ -221,25 +249,10 @@ public class ProviderHelper implements PgpKeyProvider {
     }
 
     /**
-     * Private helper method to get PGPKeyRing from database
+     * Private helper method to get PGPKeyRing from database, public key rings are complete
      */
     public static PGPKeyRing getPGPKeyRing(Context context, Uri queryUri) {
-        Cursor cursor = context.getContentResolver().query(queryUri,
-                new String[] {KeyRings._ID, KeyRings.KEY_RING_DATA}, null, null, null);
-
-        KeyRing keyRing = null;
-        if (cursor != null && cursor.moveToFirst()) {
-            int keyRingDataCol = cursor.getColumnIndex(KeyRings.KEY_RING_DATA);
-
-            byte[] data = cursor.getBlob(keyRingDataCol);
-            if (data != null) {
-                keyRing = KeyRing.decode(data);
-            }
-        }
-
-        if (cursor != null) {
-            cursor.close();
-        }
+        KeyRing keyRing = readKeyRing(context, queryUri, true);
 
         if (keyRing == null) {
             return null;
@@ -331,124 +344,518 @@ public class ProviderHelper implements PgpKeyProvider {
     }
 
     /**
-     * Saves PGPPublicKeyRing with its keys and userIds in DB
+     * Selects the encryption key of a public key ring using the flags stored in the keys table,
+     * only the selected key is decoded. Valid subkeys are preferred over the master key.
+     *
+     * @return the key or null if the key ring has no usable encryption key
+     */
+    public static PGPPublicKey getUsableEncryptPublicKey(Context context, long masterKeyId) {
+        long now = System.currentTimeMillis() / 1000;
+        Key key = getUsableKey(context,
+                Keys.buildPublicKeysByMasterKeyIdUri(Long.toString(masterKeyId)),
+                Keys.CAN_ENCRYPT + " = 1 AND " + Keys.IS_REVOKED + " = 0 AND "
+                        + Keys.CREATION + " <= " + now + " AND (" + Keys.EXPIRY + " IS NULL OR "
+                        + Keys.EXPIRY + " >= " + now + ")");
+        return key == null ? null : key.getPublicKey();
+    }
+
+    /**
+     * Selects the signing key of a secret key ring, like
+     * {@link #getUsableEncryptPublicKey(Context, long)}.
+     */
+    public static PGPSecretKey getUsableSigningSecretKey(Context context, long masterKeyId) {
+        Key key = getUsableKey(context,
+                Keys.buildSecretKeysByMasterKeyIdUri(Long.toString(masterKeyId)),
+                Keys.CAN_SIGN + " = 1");
+        return key == null ? null : key.getSecretKey();
+    }
+
+    /**
+     * Selects the certification key of a secret key ring, like
+     * {@link #getUsableEncryptPublicKey(Context, long)}.
+     */
+    public static PGPSecretKey getUsableCertificationSecretKey(Context context,
+                                                               long masterKeyId) {
+        Key key = getUsableKey(context,
+                Keys.buildSecretKeysByMasterKeyIdUri(Long.toString(masterKeyId)),
+                Keys.CAN_CERTIFY + " = 1");
+        return key == null ? null : key.getSecretKey();
+    }
+
+    private static Key getUsableKey(Context context, Uri queryUri, String selection) {
+        // subkeys first, in the order of the key ring
+        Cursor cursor = context.getContentResolver().query(queryUri,
+                new String[] {Keys.KEY_DATA}, selection, null,
+                Keys.IS_MASTER_KEY + " ASC, " + Keys.RANK + " ASC");
+        if (cursor == null) {
+            return null;
+        }
+
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return Key.decodeKeyData(cursor.getBlob(0));
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Could not decode key data", e);
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Saves PGPPublicKeyRing with its keys and userIds in DB, replacing a stored version of it
+     */
+    public static int saveKeyRing(Context context, PGPPublicKeyRing keyRing) throws IOException {
+        return saveKeyRing(context, keyRing, false);
+    }
+
+    /**
+     * Saves PGPPublicKeyRing with its keys and userIds in DB. If merge is set, a stored version
+     * keeps its subkeys, user ids and signatures and only gets those of keyRing added, as on
+     * import. Otherwise it is replaced, e.g., after editing the key.
+     * <p/>
+     * Nothing is written if the result is what is stored already, for a stored key ring only
+     * the rows of changed keys, user ids and certifications are written.
+     *
+     * @return Id.return_value.ok for a new key ring, Id.return_value.updated or
+     *         Id.return_value.unchanged for a stored one
+     * @throws IOException if the key ring could not be encoded or stored, nothing is stored then
      */
     @SuppressWarnings("unchecked")
-    public static void saveKeyRing(Context context, PGPPublicKeyRing keyRing) throws IOException {
-        PGPPublicKey masterKey = keyRing.getPublicKey();
-        long masterKeyId = masterKey.getKeyID();
+    public static int saveKeyRing(Context context, PGPPublicKeyRing keyRing, boolean merge)
+            throws IOException {
+        long masterKeyId = keyRing.getPublicKey().getKeyID();
 
-        Uri deleteUri = KeyRings.buildPublicKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId));
+        StoredKeyRing current = getStoredKeyRing(context,
+                KeyRings.buildPublicKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId)));
+        long currentRowId = (current == null) ? NEW_KEY_RING : current.mRowId;
 
-        // get current _ID of key
-        long currentRowId = -1;
-        Cursor oldQuery = context.getContentResolver().query(deleteUri,
-            new String[] {KeyRings._ID}, null, null, null);
-        if (oldQuery != null && oldQuery.moveToFirst()) {
-            currentRowId = oldQuery.getLong(0);
+        byte[] hash = getContentHash(keyRing.getEncoded());
+        if (current != null && hash != null && Arrays.equals(hash, current.mContentHash)) {
+            return Id.return_value.unchanged;
+        }
+        if (current != null && merge) {
+            PGPPublicKeyRing storedKeyRing = getPGPPublicKeyRingByRowId(context, currentRowId);
+            if (storedKeyRing != null) {
+                // the stored key ring is put together from core and extras, its packets are not
+                // in the order they were imported in, so its hash doesn't tell if merging added
+                // anything
+                PGPPublicKeyRing merged = KeyRingMerger.merge(storedKeyRing, keyRing);
+                if (merged == storedKeyRing) {
+                    return Id.return_value.unchanged;
+                }
+                keyRing = merged;
+                hash = getContentHash(keyRing.getEncoded());
+            }
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(KeyRings.MASTER_KEY_ID, masterKeyId);
+        // user attributes and certifications of others are stored separately, so loading the
+        // key ring for encryption or verification doesn't have to read them
+        byte[] extras = KeyRingSplit.getExtras(keyRing);
+        PGPPublicKeyRing coreKeyRing = (extras == null) ? keyRing : KeyRingSplit.getCore(keyRing);
+        values.put(KeyRings.KEY_RING_DATA, coreKeyRing.getEncoded());
+        values.put(KeyRings.CONTENT_HASH, hash);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        long keyRingRowId = currentRowId;
+        if (currentRowId == NEW_KEY_RING) {
+            // inserted by the first operation, in the same transaction as its rows
+            operations.add(ContentProviderOperation.newInsert(KeyRings.buildPublicKeyRingsUri())
+                    .withValues(values).build());
         } else {
-            Log.e(Constants.TAG, "Key could not be found! Something wrong is happening!");
+            // update in-place, only changed rows are written
+            operations.add(ContentProviderOperation.newUpdate(
+                    KeyRings.buildPublicKeyRingsUri(Long.toString(keyRingRowId)))
+                    .withValues(values).build());
+            operations.add(ContentProviderOperation.newDelete(
+                    KeyRingExtras.buildPublicExtrasUri(Long.toString(keyRingRowId))).build());
         }
 
-        // delete old version of this keyRing, which also deletes all keys and userIds on cascade
+        if (extras != null) {
+            ContentValues extrasValues = new ContentValues();
+            extrasValues.put(KeyRingExtras.DATA, extras);
+            operations.add(buildKeyRingRowInsert(
+                    KeyRingExtras.buildPublicExtrasUri(getKeyRingUriId(keyRingRowId)),
+                    KeyRingExtras.KEY_RING_ROW_ID, keyRingRowId, extrasValues));
+        }
+
+        boolean keysChanged = addPublicKeyOperations(context, keyRingRowId, coreKeyRing,
+                currentRowId != NEW_KEY_RING, operations);
+        addPublicUserIdOperations(context, keyRingRowId, keyRing.getPublicKey(),
+                currentRowId != NEW_KEY_RING, operations);
+        // certifications are stored unverified, the CertificationVerifier checks them later
+        boolean certsChanged = addCertOperations(context, keyRingRowId, keyRing,
+                currentRowId != NEW_KEY_RING, operations);
+
+        // nothing is stored if it fails, the batch is one transaction
+        applyBatch(context, operations, masterKeyId);
+
+        // certifications made by this key ring have to be checked again against the new version
+        if (keysChanged) {
+            resetCertsByCertifier(context, keyRing);
+        }
+        // deleted certifications and revocations must not be counted until verified again
+        if (certsChanged) {
+            TrustEngine.onCertificationsChanged(context, masterKeyId);
+        }
+        CertificationVerifier.verifyPendingAsync(context);
+
+        return (currentRowId == NEW_KEY_RING) ? Id.return_value.ok : Id.return_value.updated;
+    }
+
+    private static void applyBatch(Context context, ArrayList<ContentProviderOperation> operations,
+                                   long masterKeyId) throws IOException {
         try {
-            context.getContentResolver().delete(deleteUri, null, null);
-        } catch (UnsupportedOperationException e) {
-            Log.e(Constants.TAG, "Key could not be deleted! Maybe we are creating a new one!", e);
+            context.getContentResolver().applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException e) {
+            throw saveFailed(masterKeyId, e);
+        } catch (OperationApplicationException e) {
+            throw saveFailed(masterKeyId, e);
+        } catch (SQLiteException e) {
+            throw saveFailed(masterKeyId, e);
         }
+    }
 
-        ContentValues values = new ContentValues();
-        // use exactly the same _ID again to replace key in-place.
-        // NOTE: If we would not use the same _ID again, getting back to the ViewKeyActivity would
-        // result in Nullpointer, because the currently loaded key would be gone from the database
-        if (currentRowId != -1) {
-            values.put(KeyRings._ID, currentRowId);
+    private static IOException saveFailed(long masterKeyId, Exception e) {
+        Log.e(Constants.TAG, "applyBatch failed!", e);
+        IOException ioException = new IOException("could not save key ring "
+                + PgpKeyHelper.convertKeyIdToHex(masterKeyId));
+        ioException.initCause(e);
+        return ioException;
+    }
+
+    /**
+     * Builds the insert of a row belonging to the key ring keyRingRowId. For a
+     * {@link #NEW_KEY_RING}, rowIdColumn is set to the row id returned by the first operation of
+     * the batch.
+     */
+    private static ContentProviderOperation buildKeyRingRowInsert(Uri uri, String rowIdColumn,
+                                                                  long keyRingRowId,
+                                                                  ContentValues values) {
+        ContentProviderOperation.Builder builder =
+                ContentProviderOperation.newInsert(uri).withValues(values);
+        if (keyRingRowId == NEW_KEY_RING) {
+            builder.withValueBackReference(rowIdColumn, 0);
+        } else {
+            builder.withValue(rowIdColumn, keyRingRowId);
         }
-        values.put(KeyRings.MASTER_KEY_ID, masterKeyId);
-        values.put(KeyRings.KEY_RING_DATA, keyRing.getEncoded());
+        return builder.build();
+    }
+
+    /**
+     * @return the key ring segment for uris of its rows. The provider takes the key ring of an
+     *         inserted row from its values, so any id does for a {@link #NEW_KEY_RING}.
+     */
+    private static String getKeyRingUriId(long keyRingRowId) {
+        return (keyRingRowId == NEW_KEY_RING) ? "0" : Long.toString(keyRingRowId);
+    }
 
-        // insert new version of this keyRing
-        Uri uri = KeyRings.buildPublicKeyRingsUri();
-        Uri insertedUri = context.getContentResolver().insert(uri, values);
-        long keyRingRowId = Long.valueOf(insertedUri.getLastPathSegment());
+    private static class StoredKeyRing {
+        final long mRowId;
+        final byte[] mContentHash;
 
-        // save all keys and userIds included in keyRing object in database
-        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        StoredKeyRing(long rowId, byte[] contentHash) {
+            mRowId = rowId;
+            mContentHash = contentHash;
+        }
+    }
+
+    /**
+     * @return row id and content hash of the key ring matching masterKeyIdUri, null if none is
+     *         stored
+     */
+    private static StoredKeyRing getStoredKeyRing(Context context, Uri masterKeyIdUri) {
+        Cursor cursor = context.getContentResolver().query(masterKeyIdUri,
+                new String[] {KeyRings._ID, KeyRings.CONTENT_HASH}, null, null, null);
+
+        StoredKeyRing storedKeyRing = null;
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                storedKeyRing = new StoredKeyRing(cursor.getLong(0), cursor.getBlob(1));
+            }
+            cursor.close();
+        }
+
+        return storedKeyRing;
+    }
+
+    private static byte[] getContentHash(byte[] encoded) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(encoded);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(Constants.TAG, "SHA-256 not available", e);
+            return null;
+        }
+    }
+
+    /**
+     * Adds operations for the keys of keyRing, for a stored key ring only for keys that were
+     * added, changed or removed.
+     *
+     * @return true if any key is written
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean addPublicKeyOperations(Context context, long keyRingRowId,
+                                                  PGPPublicKeyRing keyRing, boolean stored,
+                                                  ArrayList<ContentProviderOperation> operations)
+            throws IOException {
+        // key id -> {row id, rank}, and the stored key data
+        HashMap<Long, long[]> storedRows = new HashMap<Long, long[]>();
+        HashMap<Long, byte[]> storedData = new HashMap<Long, byte[]>();
+        if (stored) {
+            Cursor cursor = context.getContentResolver().query(
+                    Keys.buildPublicKeysUri(Long.toString(keyRingRowId)),
+                    new String[] {Keys._ID, Keys.KEY_ID, Keys.RANK, Keys.KEY_DATA},
+                    null, null, null);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    storedRows.put(cursor.getLong(1),
+                            new long[] {cursor.getLong(0), cursor.getLong(2)});
+                    storedData.put(cursor.getLong(1), cursor.getBlob(3));
+                }
+                cursor.close();
+            }
+        }
 
+        int size = operations.size();
         int rank = 0;
         for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
-            operations.add(buildPublicKeyOperations(context, keyRingRowId, key, rank));
+            long[] row = storedRows.remove(key.getKeyID());
+            if (row == null) {
+                operations.add(buildPublicKeyOperations(context, keyRingRowId, key, rank));
+            } else if (row[1] != rank
+                    || !Arrays.equals(storedData.get(key.getKeyID()), key.getEncoded())) {
+                operations.add(ContentProviderOperation.newUpdate(Keys.buildPublicKeysUri(
+                        Long.toString(keyRingRowId), Long.toString(row[0])))
+                        .withValues(buildPublicKeyValues(keyRingRowId, key, rank)).build());
+            }
             ++rank;
         }
+        for (long[] row : storedRows.values()) {
+            operations.add(ContentProviderOperation.newDelete(Keys.buildPublicKeysUri(
+                    Long.toString(keyRingRowId), Long.toString(row[0]))).build());
+        }
+
+        return operations.size() > size;
+    }
+
+    /**
+     * Adds operations for the user ids of masterKey, for a stored key ring only for user ids
+     * that were added, moved or removed.
+     */
+    @SuppressWarnings("unchecked")
+    private static void addPublicUserIdOperations(Context context, long keyRingRowId,
+                                                  PGPPublicKey masterKey, boolean stored,
+                                                  ArrayList<ContentProviderOperation> operations) {
+        // user id -> {row id, rank}
+        HashMap<String, long[]> storedRows = new HashMap<String, long[]>();
+        if (stored) {
+            Cursor cursor = context.getContentResolver().query(
+                    UserIds.buildPublicUserIdsUri(Long.toString(keyRingRowId)),
+                    new String[] {UserIds._ID, UserIds.USER_ID, UserIds.RANK},
+                    null, null, null);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    storedRows.put(cursor.getString(1),
+                            new long[] {cursor.getLong(0), cursor.getLong(2)});
+                }
+                cursor.close();
+            }
+        }
 
         int userIdRank = 0;
         for (String userId : new IterableIterator<String>(masterKey.getUserIDs())) {
-            operations.add(buildPublicUserIdOperations(context, keyRingRowId, userId, userIdRank));
+            long[] row = storedRows.remove(userId);
+            if (row == null) {
+                operations.add(buildPublicUserIdOperations(context, keyRingRowId, userId,
+                        userIdRank));
+            } else if (row[1] != userIdRank) {
+                operations.add(ContentProviderOperation.newUpdate(UserIds.buildPublicUserIdsUri(
+                        Long.toString(keyRingRowId), Long.toString(row[0])))
+                        .withValue(UserIds.RANK, userIdRank).build());
+            }
             ++userIdRank;
         }
+        for (long[] row : storedRows.values()) {
+            operations.add(ContentProviderOperation.newDelete(UserIds.buildPublicUserIdsUri(
+                    Long.toString(keyRingRowId), Long.toString(row[0]))).build());
+        }
+    }
 
-        for (PGPSignature certification : new IterableIterator<PGPSignature>(
-                 masterKey.getSignaturesOfType(PGPSignature.POSITIVE_CERTIFICATION))) {
-            //TODO: how to do this?? we need to verify the signatures again and again when
-            // they are displayed...
-//            if (certification.verify
-//            operations.add(buildPublicKeyOperations(context, keyRingRowId, key, rank));
+    /**
+     * Adds operations for the certifications of keyRing, for a stored key ring only for
+     * certifications that were added or removed, so the others keep their verification status.
+     *
+     * @return true if any certification is written or deleted
+     */
+    private static boolean addCertOperations(Context context, long keyRingRowId,
+                                          PGPPublicKeyRing keyRing, boolean stored,
+                                          ArrayList<ContentProviderOperation> operations) {
+        int size = operations.size();
+        HashMap<String, Long> storedRows = new HashMap<String, Long>();
+        if (stored) {
+            Cursor cursor = context.getContentResolver().query(
+                    Certs.buildPublicCertsUri(Long.toString(keyRingRowId)),
+                    new String[] {Certs._ID, Certs.USER_ID, Certs.KEY_ID_CERTIFIER, Certs.TYPE,
+                            Certs.CREATION}, null, null, null);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    storedRows.put(cursor.getString(1) + "\n" + cursor.getLong(2) + "\n"
+                            + cursor.getInt(3) + "\n" + cursor.getLong(4), cursor.getLong(0));
+                }
+                cursor.close();
+            }
         }
 
+        Uri certsUri = Certs.buildPublicCertsUri(getKeyRingUriId(keyRingRowId));
+        for (ContentValues certValues : buildCertValues(keyRingRowId, keyRing)) {
+            Long rowId = storedRows.remove(certValues.getAsString(Certs.USER_ID) + "\n"
+                    + certValues.getAsLong(Certs.KEY_ID_CERTIFIER) + "\n"
+                    + certValues.getAsInteger(Certs.TYPE) + "\n"
+                    + certValues.getAsLong(Certs.CREATION));
+            if (rowId == null) {
+                operations.add(buildKeyRingRowInsert(certsUri, Certs.KEY_RING_ROW_ID,
+                        keyRingRowId, certValues));
+            }
+        }
+        if (!storedRows.isEmpty()) {
+            StringBuilder rowIds = new StringBuilder();
+            for (long rowId : storedRows.values()) {
+                if (rowIds.length() > 0) {
+                    rowIds.append(", ");
+                }
+                rowIds.append(rowId);
+            }
+            operations.add(ContentProviderOperation.newDelete(Certs.CONTENT_URI)
+                    .withSelection(Certs._ID + " IN (" + rowIds + ")", null).build());
+        }
 
-        try {
-            context.getContentResolver().applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
-        } catch (RemoteException e) {
-            Log.e(Constants.TAG, "applyBatch failed!", e);
-        } catch (OperationApplicationException e) {
-            Log.e(Constants.TAG, "applyBatch failed!", e);
+        return operations.size() > size;
+    }
+
+    /**
+     * Prepares storing a key ring row with the given values. The stored key ring with
+     * currentRowId is replaced in-place by adding its deletion and the insertion of the new row
+     * to operations, so it is replaced in the same transaction as its keys and user ids. A new
+     * key ring ({@link #NEW_KEY_RING}) is inserted by the first operation, operations has to be
+     * empty then.
+     *
+     * @return row id of the key ring, {@link #NEW_KEY_RING} for a new one
+     */
+    private static long insertOrReplaceKeyRing(Context context, long currentRowId,
+                                               Uri masterKeyIdUri, Uri keyRingsUri,
+                                               ContentValues values,
+                                               ArrayList<ContentProviderOperation> operations) {
+        if (currentRowId == NEW_KEY_RING) {
+            operations.add(ContentProviderOperation.newInsert(keyRingsUri)
+                    .withValues(values).build());
+            return NEW_KEY_RING;
         }
+
+        // use exactly the same _ID again to replace key in-place.
+        // NOTE: If we would not use the same _ID again, getting back to the ViewKeyActivity would
+        // result in Nullpointer, because the currently loaded key would be gone from the database
+        values.put(KeyRings._ID, currentRowId);
+
+        // delete old version of this keyRing, which also deletes all keys and userIds on cascade
+        operations.add(ContentProviderOperation.newDelete(masterKeyIdUri).build());
+        operations.add(ContentProviderOperation.newInsert(keyRingsUri).withValues(values).build());
+
+        return currentRowId;
     }
 
     /**
-     * Saves PGPSecretKeyRing with its keys and userIds in DB
+     * Build values for the certs table for all third-party certifications and certification
+     * revocations of the user ids of keyRing, with status {@link Certs#VERIFIED_PENDING}
      */
     @SuppressWarnings("unchecked")
-    public static void saveKeyRing(Context context, PGPSecretKeyRing keyRing) throws IOException {
-        PGPSecretKey masterKey = keyRing.getSecretKey();
+    public static ArrayList<ContentValues> buildCertValues(long keyRingRowId,
+                                                          PGPPublicKeyRing keyRing) {
+        PGPPublicKey masterKey = keyRing.getPublicKey();
         long masterKeyId = masterKey.getKeyID();
 
-        Uri deleteUri = KeyRings.buildSecretKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId));
+        ArrayList<ContentValues> result = new ArrayList<ContentValues>();
+        for (String userId : new IterableIterator<String>(masterKey.getUserIDs())) {
+            for (PGPSignature cert : new IterableIterator<PGPSignature>(
+                    masterKey.getSignaturesForID(userId))) {
+                // only generic, persona, casual and positive certifications of others, and their
+                // revocations, which cancel the earlier certifications of the same certifier
+                int type = cert.getSignatureType();
+                if (cert.getKeyID() == masterKeyId
+                        || (type < PGPSignature.DEFAULT_CERTIFICATION
+                                || type > PGPSignature.POSITIVE_CERTIFICATION)
+                        && type != PGPSignature.CERTIFICATION_REVOCATION) {
+                    continue;
+                }
 
-        // get current _ID of key
-        long currentRowId = -1;
-        Cursor oldQuery = context.getContentResolver()
-                .query(deleteUri, new String[] {KeyRings._ID}, null, null, null);
-        if (oldQuery != null && oldQuery.moveToFirst()) {
-            currentRowId = oldQuery.getLong(0);
-        } else {
-            Log.e(Constants.TAG, "Key could not be found! Something wrong is happening!");
+                ContentValues values = new ContentValues();
+                values.put(Certs.KEY_RING_ROW_ID, keyRingRowId);
+                values.put(Certs.KEY_ID, masterKeyId);
+                values.put(Certs.USER_ID, userId);
+                values.put(Certs.KEY_ID_CERTIFIER, cert.getKeyID());
+                values.put(Certs.TYPE, cert.getSignatureType());
+                values.put(Certs.CREATION, cert.getCreationTime().getTime() / 1000);
+                values.put(Certs.VERIFIED, Certs.VERIFIED_PENDING);
+                result.add(values);
+            }
         }
 
-        // delete old version of this keyRing, which also deletes all keys and userIds on cascade
-        try {
-            context.getContentResolver().delete(deleteUri, null, null);
-        } catch (UnsupportedOperationException e) {
-            Log.e(Constants.TAG, "Key could not be deleted! Maybe we are creating a new one!", e);
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void resetCertsByCertifier(Context context, PGPPublicKeyRing keyRing) {
+        StringBuilder keyIds = new StringBuilder();
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
+            if (keyIds.length() > 0) {
+                keyIds.append(", ");
+            }
+            keyIds.append(key.getKeyID());
         }
 
         ContentValues values = new ContentValues();
-        // use exactly the same _ID again to replace key in-place.
-        // NOTE: If we would not use the same _ID again, getting back to the ViewKeyActivity would
-        // result in Nullpointer, because the currently loaded key would be gone from the database
-        if (currentRowId != -1) {
-            values.put(KeyRings._ID, currentRowId);
+        values.put(Certs.VERIFIED, Certs.VERIFIED_PENDING);
+        context.getContentResolver().update(Certs.CONTENT_URI, values,
+                Certs.KEY_ID_CERTIFIER + " IN (" + keyIds + ")", null);
+    }
+
+    /**
+     * Saves PGPSecretKeyRing with its keys and userIds in DB, replacing a stored version of it.
+     * Nothing is written if it is stored already.
+     *
+     * @return Id.return_value.ok for a new key ring, Id.return_value.updated or
+     *         Id.return_value.unchanged for a stored one
+     * @throws IOException if the key ring could not be encoded or stored, nothing is stored then
+     */
+    @SuppressWarnings("unchecked")
+    public static int saveKeyRing(Context context, PGPSecretKeyRing keyRing) throws IOException {
+        PGPSecretKey masterKey = keyRing.getSecretKey();
+        long masterKeyId = masterKey.getKeyID();
+
+        Uri masterKeyIdUri = KeyRings.buildSecretKeyRingsByMasterKeyIdUri(
+                Long.toString(masterKeyId));
+        StoredKeyRing current = getStoredKeyRing(context, masterKeyIdUri);
+
+        byte[] encoded = keyRing.getEncoded();
+        byte[] hash = getContentHash(encoded);
+        if (current != null && hash != null && Arrays.equals(hash, current.mContentHash)) {
+            return Id.return_value.unchanged;
         }
-        values.put(KeyRings.MASTER_KEY_ID, masterKeyId);
-        values.put(KeyRings.KEY_RING_DATA, keyRing.getEncoded());
 
-        // insert new version of this keyRing
-        Uri uri = KeyRings.buildSecretKeyRingsUri();
-        Uri insertedUri = context.getContentResolver().insert(uri, values);
-        long keyRingRowId = Long.valueOf(insertedUri.getLastPathSegment());
+        ContentValues values = new ContentValues();
+        values.put(KeyRings.MASTER_KEY_ID, masterKeyId);
+        values.put(KeyRings.KEY_RING_DATA, encoded);
+        values.put(KeyRings.CONTENT_HASH, hash);
 
         // save all keys and userIds included in keyRing object in database
         ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        long keyRingRowId = insertOrReplaceKeyRing(context,
+                (current == null) ? NEW_KEY_RING : current.mRowId, masterKeyIdUri,
+                KeyRings.buildSecretKeyRingsUri(), values, operations);
 
         int rank = 0;
         for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(keyRing.getSecretKeys())) {
@@ -462,13 +869,13 @@ public class ProviderHelper implements PgpKeyProvider {
             ++userIdRank;
         }
 
-        try {
-            context.getContentResolver().applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
-        } catch (RemoteException e) {
-            Log.e(Constants.TAG, "applyBatch failed!", e);
-        } catch (OperationApplicationException e) {
-            Log.e(Constants.TAG, "applyBatch failed!", e);
-        }
+        // nothing is stored if it fails, the batch is one transaction
+        applyBatch(context, operations, masterKeyId);
+
+        // keys certified by our own keys are certified
+        TrustEngine.onSecretKeyRingSaved(masterKeyId);
+
+        return (current == null) ? Id.return_value.ok : Id.return_value.updated;
     }
 
     /**
@@ -476,6 +883,15 @@ public class ProviderHelper implements PgpKeyProvider {
      */
     private static ContentProviderOperation buildPublicKeyOperations(
         Context context, long keyRingRowId, PGPPublicKey key, int rank) throws IOException {
+        ContentValues values = buildPublicKeyValues(keyRingRowId, key, rank);
+
+        Uri uri = Keys.buildPublicKeysUri(getKeyRingUriId(keyRingRowId));
+
+        return buildKeyRingRowInsert(uri, Keys.KEY_RING_ROW_ID, keyRingRowId, values);
+    }
+
+    private static ContentValues buildPublicKeyValues(long keyRingRowId, PGPPublicKey key,
+                                                      int rank) throws IOException {
         ContentValues values = new ContentValues();
         values.put(Keys.KEY_ID, key.getKeyID());
         values.put(Keys.IS_MASTER_KEY, key.isMasterKey());
@@ -488,15 +904,15 @@ public class ProviderHelper implements PgpKeyProvider {
         Date expiryDate = PgpKeyHelper.getExpiryDate(key);
         if (expiryDate != null) {
             values.put(Keys.EXPIRY, expiryDate.getTime() / 1000);
+        } else {
+            values.putNull(Keys.EXPIRY);
         }
         values.put(Keys.KEY_RING_ROW_ID, keyRingRowId);
         values.put(Keys.KEY_DATA, key.getEncoded());
         values.put(Keys.RANK, rank);
         values.put(Keys.FINGERPRINT, key.getFingerprint());
 
-        Uri uri = Keys.buildPublicKeysUri(Long.toString(keyRingRowId));
-
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return values;
     }
 
     /**
@@ -509,9 +925,9 @@ public class ProviderHelper implements PgpKeyProvider {
         values.put(UserIds.USER_ID, userId);
         values.put(UserIds.RANK, rank);
 
-        Uri uri = UserIds.buildPublicUserIdsUri(Long.toString(keyRingRowId));
+        Uri uri = UserIds.buildPublicUserIdsUri(getKeyRingUriId(keyRingRowId));
 
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return buildKeyRingRowInsert(uri, UserIds.KEY_RING_ROW_ID, keyRingRowId, values);
     }
 
     /**
@@ -546,9 +962,9 @@ public class ProviderHelper implements PgpKeyProvider {
         values.put(Keys.RANK, rank);
         values.put(Keys.FINGERPRINT, key.getPublicKey().getFingerprint());
 
-        Uri uri = Keys.buildSecretKeysUri(Long.toString(keyRingRowId));
+        Uri uri = Keys.buildSecretKeysUri(getKeyRingUriId(keyRingRowId));
 
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return buildKeyRingRowInsert(uri, Keys.KEY_RING_ROW_ID, keyRingRowId, values);
     }
 
     /**
@@ -561,9 +977,9 @@ public class ProviderHelper implements PgpKeyProvider {
         values.put(UserIds.USER_ID, userId);
         values.put(UserIds.RANK, rank);
 
-        Uri uri = UserIds.buildSecretUserIdsUri(Long.toString(keyRingRowId));
+        Uri uri = UserIds.buildSecretUserIdsUri(getKeyRingUriId(keyRingRowId));
 
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return buildKeyRingRowInsert(uri, UserIds.KEY_RING_ROW_ID, keyRingRowId, values);
     }
 
     /**
@@ -646,9 +1062,49 @@ public class ProviderHelper implements PgpKeyProvider {
         return getKeyRingsRowIds(context, queryUri);
     }
 
+    /**
+     * Public key rings that haven't been looked up on a keyserver since refreshedBefore, those
+     * that never were first, then the longest ago.
+     *
+     * @return row id and master key fingerprint of at most limit key rings
+     */
+    public static LinkedHashMap<Long, byte[]> getPublicKeyRingsToRefresh(Context context,
+                                                                        long refreshedBefore,
+                                                                        int limit) {
+        Cursor cursor = context.getContentResolver().query(KeyRings.buildPublicKeyRingsUri(),
+                new String[] {KeyRings._ID, Keys.FINGERPRINT},
+                KeyRings.LAST_REFRESHED + " IS NULL OR " + KeyRings.LAST_REFRESHED + " < ?",
+                new String[] {Long.toString(refreshedBefore)},
+                KeyRings.LAST_REFRESHED + " ASC");
+
+        LinkedHashMap<Long, byte[]> keyRings = new LinkedHashMap<Long, byte[]>();
+        if (cursor != null) {
+            while (keyRings.size() < limit && cursor.moveToNext()) {
+                if (!cursor.isNull(1)) {
+                    keyRings.put(cursor.getLong(0), cursor.getBlob(1));
+                }
+            }
+            cursor.close();
+        }
+
+        return keyRings;
+    }
+
+    public static void setLastRefreshed(Context context, long keyRingRowId, long time) {
+        ContentValues values = new ContentValues();
+        values.put(KeyRings.LAST_REFRESHED, time);
+        context.getContentResolver().update(
+                KeyRings.buildPublicKeyRingsUri(Long.toString(keyRingRowId)), values, null, null);
+    }
+
     public static void deletePublicKeyRing(Context context, long rowId) {
+        long masterKeyId = getPublicMasterKeyId(context, rowId);
         ContentResolver cr = context.getContentResolver();
         cr.delete(KeyRings.buildPublicKeyRingsUri(Long.toString(rowId)), null, null);
+        // its certifications are deleted on cascade
+        if (masterKeyId != 0) {
+            TrustEngine.onCertificationsChanged(context, masterKeyId);
+        }
     }
 
     public static void deleteSecretKeyRing(Context context, long rowId) {
@@ -662,7 +1118,7 @@ public class ProviderHelper implements PgpKeyProvider {
         if (isSecretKey) {
             cr.delete(KeyRings.buildSecretKeyRingsByMasterKeyIdUri(masterKeyId), null, null);
         }
-
+        TrustEngine.onKeyRingDeleted(Long.parseLong(masterKeyId));
     }
 
     /**
@@ -788,41 +1244,6 @@ public class ProviderHelper implements PgpKeyProvider {
             }
         }
 
-        // FALLBACK: If fingerprint is not in database, get it from key blob!
-        // this could happen if the key was saved by a previous version of Keychain!
-        if (fingerprint == null) {
-            Log.d(Constants.TAG, "FALLBACK: fingerprint is not in database, get it from key blob!");
-
-            // get master key id
-            projection = new String[] {KeyRings.MASTER_KEY_ID};
-            cursor = context.getContentResolver().query(queryUri, projection, null, null, null);
-            long masterKeyId = 0;
-            try {
-                if (cursor != null && cursor.moveToFirst()) {
-                    int col = cursor.getColumnIndexOrThrow(KeyRings.MASTER_KEY_ID);
-
-                    masterKeyId = cursor.getLong(col);
-                }
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
-            }
-
-            PGPPublicKey key = ProviderHelper.getPGPPublicKeyByKeyId(context, masterKeyId);
-            // if it is no public key get it from your own keys...
-            if (key == null) {
-                PGPSecretKey secretKey = ProviderHelper.getPGPSecretKeyByKeyId(context, masterKeyId);
-                if (secretKey == null) {
-                    Log.e(Constants.TAG, "Key could not be found!");
-                    return null;
-                }
-                key = secretKey.getPublicKey();
-            }
-
-            fingerprint = key.getFingerprint();
-        }
-
         return fingerprint;
     }
 
@@ -846,6 +1267,9 @@ public class ProviderHelper implements PgpKeyProvider {
         return userId;
     }
 
+    /**
+     * @return the complete key rings, concatenated, null if one of them cannot be read
+     */
     public static byte[] getKeyRingsAsByteArray(Context context, Uri uri, long[] masterKeyIds) {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
 
@@ -854,24 +1278,42 @@ public class ProviderHelper implements PgpKeyProvider {
             Cursor cursor = getCursorWithSelectedKeyringMasterKeyIds(context, uri, masterKeyIds);
 
             if (cursor != null) {
+                int idCol = cursor.getColumnIndex(KeyRings._ID);
                 int masterIdCol = cursor.getColumnIndex(KeyRings.MASTER_KEY_ID);
                 int dataCol = cursor.getColumnIndex(KeyRings.KEY_RING_DATA);
-                if (cursor.moveToFirst()) {
-                    do {
-                        Log.d(Constants.TAG, "masterKeyId: " + cursor.getLong(masterIdCol));
-
-                        // get actual keyring data blob and write it to ByteArrayOutputStream
-                        try {
-                            bos.write(cursor.getBlob(dataCol));
-                        } catch (IOException e) {
-                            Log.e(Constants.TAG, "IOException", e);
-                        }
-                    } while (cursor.moveToNext());
-                }
-            }
 
-            if (cursor != null) {
-                cursor.close();
+                // extras of all key rings in one query instead of one per key ring
+                ArrayList<Long> rowIds = new ArrayList<Long>();
+                while (cursor.moveToNext()) {
+                    rowIds.add(cursor.getLong(idCol));
+                }
+                HashMap<Long, byte[]> allExtras = getKeyRingsExtras(context, rowIds);
+
+                try {
+                    if (cursor.moveToFirst()) {
+                        do {
+                            Log.d(Constants.TAG, "masterKeyId: " + cursor.getLong(masterIdCol));
+
+                            // get actual keyring data blob and write it to ByteArrayOutputStream
+                            byte[] data = cursor.getBlob(dataCol);
+                            byte[] extras = allExtras.get(cursor.getLong(idCol));
+                            if (extras != null) {
+                                KeyRing keyRing = KeyRing.decode(data, extras);
+                                if (keyRing == null) {
+                                    // the core alone would lose the certifications
+                                    return null;
+                                }
+                                data = keyRing.getEncoded();
+                            }
+                            bos.write(data);
+                        } while (cursor.moveToNext());
+                    }
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "IOException", e);
+                    return null;
+                } finally {
+                    cursor.close();
+                }
             }
 
         } else {
@@ -881,6 +1323,40 @@ public class ProviderHelper implements PgpKeyProvider {
         return bos.toByteArray();
     }
 
+    /**
+     * @return key ring row id -> extras, for those of the key rings that have extras
+     */
+    private static HashMap<Long, byte[]> getKeyRingsExtras(Context context,
+                                                           List<Long> keyRingRowIds) {
+        HashMap<Long, byte[]> result = new HashMap<Long, byte[]>();
+        if (keyRingRowIds.isEmpty()) {
+            return result;
+        }
+
+        StringBuilder rowIds = new StringBuilder();
+        for (long rowId : keyRingRowIds) {
+            if (rowIds.length() > 0) {
+                rowIds.append(", ");
+            }
+            rowIds.append(rowId);
+        }
+
+        Cursor cursor = context.getContentResolver().query(KeyRingExtras.CONTENT_URI,
+                new String[] {KeyRingExtras.KEY_RING_ROW_ID, KeyRingExtras.DATA},
+                KeyRingExtras.KEY_RING_ROW_ID + " IN (" + rowIds + ")", null, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    result.put(cursor.getLong(0), cursor.getBlob(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        return result;
+    }
+
     private static Cursor getCursorWithSelectedKeyringMasterKeyIds(Context context, Uri baseUri,
                                                                    long[] masterKeyIds) {
         Cursor cursor = null;
@@ -942,12 +1418,20 @@ public class ProviderHelper implements PgpKeyProvider {
     }
 
     public static void insertApiApp(Context context, AppSettings appSettings) {
-        context.getContentResolver().insert(KeychainContract.ApiApps.CONTENT_URI,
-                contentValueForApiApps(appSettings));
+        try {
+            context.getContentResolver().insert(KeychainContract.ApiApps.CONTENT_URI,
+                    contentValueForApiApps(appSettings));
+        } catch (SQLiteException e) {
+            Log.e(Constants.TAG, "Could not insert api app, already registered?", e);
+        }
     }
 
     public static void insertApiAccount(Context context, Uri uri, AccountSettings accSettings) {
-        context.getContentResolver().insert(uri, contentValueForApiAccounts(accSettings));
+        try {
+            context.getContentResolver().insert(uri, contentValueForApiAccounts(accSettings));
+        } catch (SQLiteException e) {
+            Log.e(Constants.TAG, "Could not insert api account, already existing?", e);
+        }
     }
 
     public static void updateApiApp(Context context, AppSettings appSettings, Uri uri) {
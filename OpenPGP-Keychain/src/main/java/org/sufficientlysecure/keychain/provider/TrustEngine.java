@@ -0,0 +1,567 @@
+/*
+ * Copyright (C) 2010-2014 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg.provider;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Process;
+
+import org.spongycastle.openpgp.PGPSignature;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.provider.KeychainContract.Certs;
+import org.thialfihar.android.apg.provider.KeychainContract.KeyRings;
+import org.thialfihar.android.apg.provider.KeychainDatabase.Tables;
+import org.thialfihar.android.apg.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the graph of verified certifications between master keys in memory and knows which keys
+ * are certified, i.e. reachable from one of our own secret keys within {@link #MAX_DEPTH}
+ * certifications.
+ *
+ * Nodes are master key ids, mapped to indexes by an open addressing hash table, edges are kept
+ * in int arrays per node, so the graph of tens of thousands of keys stays small and
+ * {@link #isCertified(long)} is a hash lookup. Adding certifications or own keys only relaxes
+ * the depths reachable from the changed node, only removing them recomputes all depths.
+ *
+ * Certifications are assumed to be issued by master keys, which is what APG and GnuPG do. A
+ * certification doesn't count if its certifier has revoked it, i.e. issued a verified
+ * certification revocation for the same user id at the same time or later.
+ *
+ * The hooks below keep the graph of the process that changes the database up to date at once.
+ * Every process also watches the provider and reloads its graph in the background after a
+ * change, so the remote API process doesn't keep answering from a stale graph.
+ */
+public class TrustEngine {
+    /**
+     * There is no owner trust yet, so only keys certified by our own keys are certified.
+     */
+    public static final int MAX_DEPTH = 1;
+
+    private static final String CERTS = Tables.CERTS;
+    private static final String SELECTION_VALID = CERTS + "." + Certs.VERIFIED + " = "
+            + Certs.VERIFIED_OK + " AND " + CERTS + "." + Certs.TYPE + " != "
+            + PGPSignature.CERTIFICATION_REVOCATION + " AND NOT EXISTS (SELECT 1 FROM " + CERTS
+            + " AS revocation WHERE revocation." + Certs.KEY_ID + " = " + CERTS + "."
+            + Certs.KEY_ID + " AND revocation." + Certs.USER_ID + " = " + CERTS + "."
+            + Certs.USER_ID + " AND revocation." + Certs.KEY_ID_CERTIFIER + " = " + CERTS + "."
+            + Certs.KEY_ID_CERTIFIER + " AND revocation." + Certs.TYPE + " = "
+            + PGPSignature.CERTIFICATION_REVOCATION + " AND revocation." + Certs.VERIFIED
+            + " = " + Certs.VERIFIED_OK + " AND revocation." + Certs.CREATION + " >= " + CERTS
+            + "." + Certs.CREATION + ")";
+
+    private static final int UNREACHABLE = Integer.MAX_VALUE;
+    private static final int[] NO_EDGES = new int[0];
+
+    private static volatile TrustEngine sInstance;
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+    private static final AtomicBoolean sLoadQueued = new AtomicBoolean(false);
+    private static final AtomicBoolean sReloadQueued = new AtomicBoolean(false);
+    // counts provider changes, a reload is only used if none happened while it was loading
+    private static final AtomicInteger sChanges = new AtomicInteger();
+    private static boolean sObserving = false;
+
+    private final int mMaxDepth;
+
+    // open addressing table master key id -> node index, 0 is free, index + 1 is stored
+    private long[] mTableIds = new long[64];
+    private int[] mTableIndexes = new int[64];
+
+    private long[] mIds = new long[16];
+    private boolean[] mRoot = new boolean[16];
+    private int[] mDepth = new int[16];
+    private int[][] mCertifiers = new int[16][];
+    private int[] mCertifiersCount = new int[16];
+    private int[][] mCertified = new int[16][];
+    private int[] mCertifiedCount = new int[16];
+    private int mSize;
+
+    /**
+     * @param maxDepth maximum number of certifications between one of our keys and a
+     *                 certified key, the engine used by the app uses {@link #MAX_DEPTH}
+     */
+    public TrustEngine(int maxDepth) {
+        mMaxDepth = maxDepth;
+    }
+
+    /**
+     * @return the engine, loaded from the database on first use
+     */
+    public static TrustEngine getInstance(Context context) {
+        TrustEngine engine = sInstance;
+        if (engine != null) {
+            return engine;
+        }
+        synchronized (TrustEngine.class) {
+            if (sInstance == null) {
+                Context appContext = context.getApplicationContext();
+                observeChanges(appContext);
+                engine = new TrustEngine(MAX_DEPTH);
+                engine.load(appContext);
+                sInstance = engine;
+            }
+            return sInstance;
+        }
+    }
+
+    private static TrustEngine getLoadedInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Never loads the graph on the calling thread. Until it is loaded in the background, the
+     * database is asked directly, which only finds certifications by our own keys, i.e. it
+     * looks {@link #MAX_DEPTH} certifications deep.
+     *
+     * @return true if the key is one of our own or certified by a certified key
+     */
+    public static boolean isCertified(Context context, long masterKeyId) {
+        TrustEngine engine = getLoadedInstance();
+        if (engine != null) {
+            return engine.isCertified(masterKeyId);
+        }
+        loadAsync(context);
+
+        ArrayList<Long> ownKeyIds = ProviderHelper.getSecretKeyRingsMasterKeyIds(context);
+        if (ownKeyIds.contains(masterKeyId)) {
+            return true;
+        }
+        for (long certifierKeyId : queryCertifiers(context, masterKeyId)) {
+            if (ownKeyIds.contains(certifierKeyId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Loads the graph in the background, unless it is loaded or loading already.
+     */
+    public static void loadAsync(Context context) {
+        if (getLoadedInstance() != null || !sLoadQueued.compareAndSet(false, true)) {
+            return;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    getInstance(appContext);
+                } catch (RuntimeException e) {
+                    Log.e(Constants.TAG, "Loading trust graph failed", e);
+                } finally {
+                    sLoadQueued.set(false);
+                }
+            }
+        });
+    }
+
+    private static synchronized void observeChanges(final Context context) {
+        if (sObserving) {
+            return;
+        }
+        sObserving = true;
+
+        // called on a binder thread, changes made by this process are reported as well
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                reloadAsync(context);
+            }
+        };
+        for (Uri uri : new Uri[] {KeyRings.CONTENT_URI, Certs.CONTENT_URI}) {
+            context.getContentResolver().registerContentObserver(uri, true, observer);
+        }
+    }
+
+    /**
+     * Reloads the graph in the background after the provider has changed. Changes reported
+     * while a reload is queued are merged into it.
+     */
+    private static void reloadAsync(final Context context) {
+        sChanges.incrementAndGet();
+        if (getLoadedInstance() == null || !sReloadQueued.compareAndSet(false, true)) {
+            return;
+        }
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                sReloadQueued.set(false);
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                int changes = sChanges.get();
+                TrustEngine loaded = new TrustEngine(MAX_DEPTH);
+                try {
+                    loaded.load(context);
+                } catch (RuntimeException e) {
+                    Log.e(Constants.TAG, "Reloading trust graph failed", e);
+                    return;
+                }
+                getLoadedInstance().replaceWith(loaded, changes);
+            }
+        });
+    }
+
+    /**
+     * Takes over the graph of a reload, unless the provider changed while it was loading, in
+     * which case another reload is queued already.
+     */
+    private synchronized void replaceWith(TrustEngine loaded, int changes) {
+        if (sChanges.get() != changes) {
+            return;
+        }
+        mTableIds = loaded.mTableIds;
+        mTableIndexes = loaded.mTableIndexes;
+        mIds = loaded.mIds;
+        mRoot = loaded.mRoot;
+        mDepth = loaded.mDepth;
+        mCertifiers = loaded.mCertifiers;
+        mCertifiersCount = loaded.mCertifiersCount;
+        mCertified = loaded.mCertified;
+        mCertifiedCount = loaded.mCertifiedCount;
+        mSize = loaded.mSize;
+    }
+
+    /**
+     * To be called after the certifications of a key ring have been verified, added or
+     * deleted.
+     */
+    public static void onCertificationsChanged(Context context, long masterKeyId) {
+        TrustEngine engine = getLoadedInstance();
+        if (engine != null) {
+            engine.setCertifiers(masterKeyId, queryCertifiers(context, masterKeyId));
+        }
+    }
+
+    /**
+     * To be called after a secret key ring has been saved.
+     */
+    public static void onSecretKeyRingSaved(long masterKeyId) {
+        TrustEngine engine = getLoadedInstance();
+        if (engine != null) {
+            engine.setRoot(masterKeyId, true);
+        }
+    }
+
+    /**
+     * To be called after a key ring has been deleted.
+     */
+    public static void onKeyRingDeleted(long masterKeyId) {
+        TrustEngine engine = getLoadedInstance();
+        if (engine != null) {
+            engine.removeKey(masterKeyId);
+        }
+    }
+
+    private void load(Context context) {
+        long start = System.currentTimeMillis();
+
+        for (long masterKeyId : ProviderHelper.getSecretKeyRingsMasterKeyIds(context)) {
+            setRoot(masterKeyId, true);
+        }
+
+        Cursor cursor = context.getContentResolver().query(Certs.CONTENT_URI,
+                new String[] {Certs.KEY_ID, Certs.KEY_ID_CERTIFIER}, SELECTION_VALID, null, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    addCertification(cursor.getLong(1), cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        Log.d(Constants.TAG, "Trust graph with " + mSize + " keys loaded in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static long[] queryCertifiers(Context context, long masterKeyId) {
+        Cursor cursor = context.getContentResolver().query(Certs.CONTENT_URI,
+                new String[] {Certs.KEY_ID_CERTIFIER},
+                CERTS + "." + Certs.KEY_ID + " = ? AND " + SELECTION_VALID,
+                new String[] {Long.toString(masterKeyId)}, null);
+        if (cursor == null) {
+            return new long[0];
+        }
+        try {
+            long[] certifiers = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); ++i) {
+                certifiers[i] = cursor.getLong(0);
+            }
+            return certifiers;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return true if the key is one of our own or certified by a certified key
+     */
+    public synchronized boolean isCertified(long masterKeyId) {
+        int index = indexOf(masterKeyId);
+        return index >= 0 && mDepth[index] <= mMaxDepth;
+    }
+
+    /**
+     * Marks a key as our own, i.e. as root of the trust graph.
+     */
+    public synchronized void setRoot(long masterKeyId, boolean root) {
+        int index = getOrAddIndex(masterKeyId);
+        if (mRoot[index] == root) {
+            return;
+        }
+        mRoot[index] = root;
+        if (root) {
+            mDepth[index] = 0;
+            propagate(index);
+        } else {
+            recompute();
+        }
+    }
+
+    /**
+     * Adds a verified certification of certified by certifier.
+     */
+    public synchronized void addCertification(long certifierKeyId, long certifiedKeyId) {
+        if (certifierKeyId == certifiedKeyId) {
+            return;
+        }
+        int certifier = getOrAddIndex(certifierKeyId);
+        int certified = getOrAddIndex(certifiedKeyId);
+        if (contains(mCertifiers[certified], mCertifiersCount[certified], certifier)) {
+            return;
+        }
+        addEdge(certifier, certified);
+        relax(certifier, certified);
+    }
+
+    /**
+     * Replaces all certifications of a key by the given certifiers.
+     */
+    public synchronized void setCertifiers(long certifiedKeyId, long[] certifierKeyIds) {
+        int certified = getOrAddIndex(certifiedKeyId);
+
+        int[] newCertifiers = new int[certifierKeyIds.length];
+        int newCount = 0;
+        for (long certifierKeyId : certifierKeyIds) {
+            if (certifierKeyId != certifiedKeyId) {
+                int certifier = getOrAddIndex(certifierKeyId);
+                if (!contains(newCertifiers, newCount, certifier)) {
+                    newCertifiers[newCount++] = certifier;
+                }
+            }
+        }
+
+        // a removed certification only matters if the depth of the key depended on it
+        boolean needsRecompute = false;
+        int[] oldCertifiers = mCertifiers[certified];
+        for (int i = mCertifiersCount[certified] - 1; i >= 0; --i) {
+            int certifier = oldCertifiers[i];
+            if (!contains(newCertifiers, newCount, certifier)) {
+                needsRecompute |= mDepth[certifier] != UNREACHABLE
+                        && mDepth[certifier] + 1 == mDepth[certified];
+                removeEdge(certifier, certified);
+            }
+        }
+
+        for (int i = 0; i < newCount; ++i) {
+            int certifier = newCertifiers[i];
+            if (!contains(mCertifiers[certified], mCertifiersCount[certified], certifier)) {
+                addEdge(certifier, certified);
+                if (!needsRecompute) {
+                    relax(certifier, certified);
+                }
+            }
+        }
+
+        if (needsRecompute) {
+            recompute();
+        }
+    }
+
+    /**
+     * Removes a key with all certifications it has issued or received.
+     */
+    public synchronized void removeKey(long masterKeyId) {
+        int index = indexOf(masterKeyId);
+        if (index < 0) {
+            return;
+        }
+        while (mCertifiersCount[index] > 0) {
+            removeEdge(mCertifiers[index][mCertifiersCount[index] - 1], index);
+        }
+        while (mCertifiedCount[index] > 0) {
+            removeEdge(index, mCertified[index][mCertifiedCount[index] - 1]);
+        }
+        // the node itself stays, unconnected, to keep the indexes stable
+        mRoot[index] = false;
+        recompute();
+    }
+
+    private void relax(int certifier, int certified) {
+        if (mDepth[certifier] != UNREACHABLE && mDepth[certifier] + 1 < mDepth[certified]) {
+            mDepth[certified] = mDepth[certifier] + 1;
+            propagate(certified);
+        }
+    }
+
+    /**
+     * Breadth first search from a node whose depth has decreased, up to the max depth.
+     */
+    private void propagate(int start) {
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        queue.add(start);
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            int depth = mDepth[node] + 1;
+            if (depth > mMaxDepth) {
+                continue;
+            }
+            int[] certified = mCertified[node];
+            for (int i = 0; i < mCertifiedCount[node]; ++i) {
+                if (depth < mDepth[certified[i]]) {
+                    mDepth[certified[i]] = depth;
+                    queue.add(certified[i]);
+                }
+            }
+        }
+    }
+
+    private void recompute() {
+        Arrays.fill(mDepth, 0, mSize, UNREACHABLE);
+        for (int i = 0; i < mSize; ++i) {
+            if (mRoot[i]) {
+                mDepth[i] = 0;
+                propagate(i);
+            }
+        }
+    }
+
+    private void addEdge(int certifier, int certified) {
+        mCertifiers[certified] = append(mCertifiers[certified], mCertifiersCount[certified]++,
+                certifier);
+        mCertified[certifier] = append(mCertified[certifier], mCertifiedCount[certifier]++,
+                certified);
+    }
+
+    private void removeEdge(int certifier, int certified) {
+        mCertifiersCount[certified] =
+                remove(mCertifiers[certified], mCertifiersCount[certified], certifier);
+        mCertifiedCount[certifier] =
+                remove(mCertified[certifier], mCertifiedCount[certifier], certified);
+    }
+
+    private static int[] append(int[] array, int count, int value) {
+        if (count == array.length) {
+            array = Arrays.copyOf(array, Math.max(4, count * 2));
+        }
+        array[count] = value;
+        return array;
+    }
+
+    private static int remove(int[] array, int count, int value) {
+        for (int i = 0; i < count; ++i) {
+            if (array[i] == value) {
+                array[i] = array[count - 1];
+                return count - 1;
+            }
+        }
+        return count;
+    }
+
+    private static boolean contains(int[] array, int count, int value) {
+        for (int i = 0; i < count; ++i) {
+            if (array[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int indexOf(long id) {
+        int mask = mTableIds.length - 1;
+        for (int slot = hash(id) & mask; mTableIndexes[slot] != 0; slot = (slot + 1) & mask) {
+            if (mTableIds[slot] == id) {
+                return mTableIndexes[slot] - 1;
+            }
+        }
+        return -1;
+    }
+
+    private int getOrAddIndex(long id) {
+        int index = indexOf(id);
+        if (index >= 0) {
+            return index;
+        }
+
+        index = mSize++;
+        if (index == mIds.length) {
+            int capacity = index * 2;
+            mIds = Arrays.copyOf(mIds, capacity);
+            mRoot = Arrays.copyOf(mRoot, capacity);
+            mDepth = Arrays.copyOf(mDepth, capacity);
+            mCertifiers = Arrays.copyOf(mCertifiers, capacity);
+            mCertifiersCount = Arrays.copyOf(mCertifiersCount, capacity);
+            mCertified = Arrays.copyOf(mCertified, capacity);
+            mCertifiedCount = Arrays.copyOf(mCertifiedCount, capacity);
+        }
+        mIds[index] = id;
+        mDepth[index] = UNREACHABLE;
+        mCertifiers[index] = NO_EDGES;
+        mCertified[index] = NO_EDGES;
+
+        // keep the table at most half full
+        if (mSize * 2 > mTableIds.length) {
+            mTableIds = new long[mTableIds.length * 2];
+            mTableIndexes = new int[mTableIndexes.length * 2];
+            for (int i = 0; i < mSize; ++i) {
+                putIndex(mIds[i], i);
+            }
+        } else {
+            putIndex(id, index);
+        }
+        return index;
+    }
+
+    private void putIndex(long id, int index) {
+        int mask = mTableIds.length - 1;
+        int slot = hash(id) & mask;
+        while (mTableIndexes[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        mTableIds[slot] = id;
+        mTableIndexes[slot] = index + 1;
+    }
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
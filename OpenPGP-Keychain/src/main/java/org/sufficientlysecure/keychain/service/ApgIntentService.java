@@ -17,22 +17,21 @@
 
 package org.thialfihar.android.apg.service;
 
-import android.app.IntentService;
+import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
 
 import org.spongycastle.bcpg.sig.KeyFlags;
-import org.spongycastle.openpgp.PGPKeyRing;
-import org.spongycastle.openpgp.PGPObjectFactory;
 import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 import org.spongycastle.openpgp.PGPSecretKey;
 import org.spongycastle.openpgp.PGPSecretKeyRing;
-import org.spongycastle.openpgp.PGPUtil;
 
 import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.Id;
@@ -40,7 +39,6 @@ import org.thialfihar.android.apg.R;
 import org.thialfihar.android.apg.helper.FileHelper;
 import org.thialfihar.android.apg.helper.OtherHelper;
 import org.thialfihar.android.apg.helper.Preferences;
-import org.thialfihar.android.apg.pgp.HkpKeyServer;
 import org.thialfihar.android.apg.pgp.Key;
 import org.thialfihar.android.apg.pgp.KeyRing;
 import org.thialfihar.android.apg.pgp.PgpDecryptVerify;
@@ -61,9 +59,9 @@ import org.thialfihar.android.apg.util.KeychainServiceListener;
 import org.thialfihar.android.apg.util.Log;
 import org.thialfihar.android.apg.util.ProgressScaler;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -71,21 +69,35 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.KeyPair;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This Service contains all important long lasting operations for APG. It receives Intents with
  * data from the activities or other apps, queues these intents, executes them, and stops itself
  * after doing them.
+ *
+ * Intents are executed by an {@link OperationScheduler}: sign, encrypt, decrypt and verify of
+ * bytes run on their own interactive lane, everything else shares a few workers. The messenger
+ * of an intent identifies its operation, {@link #cancel(Context, Intent)} cancels it.
  */
-public class ApgIntentService extends IntentService implements Progressable, KeychainServiceListener {
+public class ApgIntentService extends Service implements Progressable, KeychainServiceListener {
 
     /* extras that can be given by intent */
     public static final String EXTRA_MESSENGER = "messenger";
     public static final String EXTRA_DATA = "data";
 
     /* possible actions */
+    public static final String ACTION_CANCEL = Constants.INTENT_PREFIX + "CANCEL";
+    /* started by the alarm set in KeyRefresher, runs outside of the scheduler */
+    public static final String ACTION_REFRESH_KEYS = Constants.INTENT_PREFIX + "REFRESH_KEYS";
+
     public static final String ACTION_ENCRYPT_SIGN = Constants.INTENT_PREFIX + "ENCRYPT_SIGN";
 
     public static final String ACTION_DECRYPT_VERIFY = Constants.INTENT_PREFIX + "DECRYPT_VERIFY";
@@ -102,6 +114,7 @@ public class ApgIntentService extends IntentService implements Progressable, Key
     public static final String ACTION_EXPORT_KEYRING = Constants.INTENT_PREFIX + "EXPORT_KEYRING";
 
     public static final String ACTION_UPLOAD_KEYRING = Constants.INTENT_PREFIX + "UPLOAD_KEYRING";
+    public static final String ACTION_UPLOAD_KEYRINGS = Constants.INTENT_PREFIX + "UPLOAD_KEYRINGS";
     public static final String ACTION_DOWNLOAD_AND_IMPORT_KEYS = Constants.INTENT_PREFIX + "QUERY_KEYRING";
 
     public static final String ACTION_CERTIFY_KEYRING = Constants.INTENT_PREFIX + "SIGN_KEYRING";
@@ -125,6 +138,7 @@ public class ApgIntentService extends IntentService implements Progressable, Key
     public static final String ENCRYPT_INPUT_FILE = "input_file";
     public static final String ENCRYPT_OUTPUT_FILE = "output_file";
     public static final String ENCRYPT_PROVIDER_URI = "provider_uri";
+    public static final String ENCRYPT_OUTPUT_URI = "output_uri";
     public static final String ENCRYPT_SYMMETRIC_PASSPHRASE = "passphrase";
 
     // decrypt/verify
@@ -157,6 +171,7 @@ public class ApgIntentService extends IntentService implements Progressable, Key
 
     // upload key
     public static final String UPLOAD_KEY_SERVER = "upload_key_server";
+    public static final String UPLOAD_KEY_RING_MASTER_KEY_IDS = "upload_key_ring_master_key_ids";
 
     // query key
     public static final String DOWNLOAD_KEY_SERVER = "query_key_server";
@@ -188,36 +203,147 @@ public class ApgIntentService extends IntentService implements Progressable, Key
     // import
     public static final String RESULT_IMPORT_ADDED = "added";
     public static final String RESULT_IMPORT_UPDATED = "updated";
+    public static final String RESULT_IMPORT_UNCHANGED = "unchanged";
     public static final String RESULT_IMPORT_BAD = "bad";
+    public static final String RESULT_IMPORT_FAILED = "failed";
+    public static final String RESULT_DOWNLOAD_FAILED = "download_failed";
 
     // export
     public static final String RESULT_EXPORT = "exported";
 
+    // upload
+    public static final String RESULT_UPLOADED_MASTER_KEY_IDS = "uploaded";
+    public static final String RESULT_UPLOAD_FAILED_MASTER_KEY_IDS = "upload_failed";
+
     // query
     public static final String RESULT_QUERY_KEY_DATA = "query_key_data";
     public static final String RESULT_QUERY_KEY_SEARCH_RESULT = "query_key_search_result";
 
-    private Messenger mMessenger;
+    // below this size the thread pool overhead of parallel compression isn't worth it
+    private static final long PARALLEL_COMPRESSION_THRESHOLD = 1 << 20;
+
+    private OperationScheduler mScheduler;
+    private int mActiveOperations = 0;
+    private int mLastStartId;
+
+    /**
+     * Cancels the operation started with serviceIntent, other operations continue.
+     */
+    public static void cancel(Context context, Intent serviceIntent) {
+        Intent cancelIntent = new Intent(context, ApgIntentService.class);
+        cancelIntent.setAction(ACTION_CANCEL);
+        cancelIntent.putExtra(EXTRA_MESSENGER, serviceIntent.getParcelableExtra(EXTRA_MESSENGER));
+        context.startService(cancelIntent);
+    }
 
-    private boolean mIsCanceled;
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // leave one core for the ui and the interactive lane
+        int heavyWorkers = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+        mScheduler = new OperationScheduler(heavyWorkers,
+                new OperationScheduler.OnOperationFinishedListener() {
+                    @Override
+                    public void onOperationFinished(OperationScheduler.OperationHandle handle) {
+                        synchronized (ApgIntentService.this) {
+                            mActiveOperations--;
+                            if (mActiveOperations == 0) {
+                                stopSelf(mLastStartId);
+                            }
+                        }
+                    }
+                });
+    }
 
-    public ApgIntentService() {
-        super("ApgIntentService");
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        this.mIsCanceled = true;
+        mScheduler.shutdown();
+    }
+
+    @Override
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        boolean isOperation = intent != null && !ACTION_CANCEL.equals(intent.getAction())
+                && !ACTION_REFRESH_KEYS.equals(intent.getAction());
+        // in one step, an operation finishing in between must not stop the service with the
+        // new start id while this one isn't counted yet
+        synchronized (this) {
+            mLastStartId = startId;
+            if (isOperation) {
+                mActiveOperations++;
+            }
+        }
+
+        if (intent == null) {
+            stopIfIdle();
+            return START_NOT_STICKY;
+        }
+
+        if (ACTION_CANCEL.equals(intent.getAction())) {
+            int canceled = mScheduler.cancel(intent.getParcelableExtra(EXTRA_MESSENGER));
+            Log.d(Constants.TAG, "canceled " + canceled + " operation(s)");
+            stopIfIdle();
+            return START_NOT_STICKY;
+        }
+
+        if (ACTION_REFRESH_KEYS.equals(intent.getAction())) {
+            KeyRefresher.refreshAsync(this);
+            stopIfIdle();
+            return START_NOT_STICKY;
+        }
+
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                handleIntent(intent);
+            }
+        }, getPriority(intent), intent.getParcelableExtra(EXTRA_MESSENGER));
+
+        return START_NOT_STICKY;
+    }
+
+    private synchronized void stopIfIdle() {
+        if (mActiveOperations == 0) {
+            stopSelf(mLastStartId);
+        }
+    }
+
+    private static int getPriority(Intent intent) {
+        String action = intent.getAction();
+        Bundle data = intent.getBundleExtra(EXTRA_DATA);
+        int target = (data == null) ? 0 : data.getInt(TARGET);
+
+        if ((ACTION_ENCRYPT_SIGN.equals(action) || ACTION_DECRYPT_VERIFY.equals(action)
+                || "org.thialfihar.android.apg.intent.ENCRYPT_AND_RETURN".equals(action))
+                && target == TARGET_BYTES) {
+            return OperationScheduler.PRIORITY_INTERACTIVE;
+        }
+
+        // the user is waiting for these in a dialog
+        if (ACTION_SAVE_KEYRING.equals(action) || ACTION_GENERATE_KEY.equals(action)
+                || ACTION_GENERATE_DEFAULT_RSA_KEYS.equals(action)
+                || ACTION_CERTIFY_KEYRING.equals(action)) {
+            return OperationScheduler.PRIORITY_HIGH;
+        }
+
+        return OperationScheduler.PRIORITY_NORMAL;
+    }
+
+    private Messenger getMessenger() {
+        OperationScheduler.OperationHandle handle = OperationScheduler.OperationHandle.getCurrent();
+        return handle == null ? null : (Messenger) handle.getTag();
     }
 
     /**
-     * The IntentService calls this method from the default worker thread with the intent that
-     * started the service. When this method returns, IntentService stops the service, as
-     * appropriate.
+     * Executes the intent, called by the scheduler on one of its worker threads.
      */
-    @Override
-    protected void onHandleIntent(Intent intent) {
+    private void handleIntent(Intent intent) {
         Bundle extras = intent.getExtras();
         if (extras == null) {
             Log.e(Constants.TAG, "Extras bundle is null!");
@@ -233,7 +359,6 @@ public class ApgIntentService extends IntentService implements Progressable, Key
 
         Uri dataUri = intent.getData();
 
-        mMessenger = (Messenger) extras.get(EXTRA_MESSENGER);
         Bundle data = extras.getBundle(EXTRA_DATA);
 
         OtherHelper.logDebugBundle(data, "EXTRA_DATA");
@@ -243,6 +368,8 @@ public class ApgIntentService extends IntentService implements Progressable, Key
         // executeServiceMethod action from extra bundle
         if (ACTION_ENCRYPT_SIGN.equals(action) ||
             "org.thialfihar.android.apg.intent.ENCRYPT_AND_RETURN".equals(action)) {
+            InputStream inStream = null;
+            OutputStream outStream = null;
             try {
                 /* Input */
                 int target = data.getInt(TARGET);
@@ -254,14 +381,11 @@ public class ApgIntentService extends IntentService implements Progressable, Key
                 long encryptionKeyIds[] = data.getLongArray(ENCRYPT_ENCRYPTION_KEYS_IDS);
                 int compressionId = data.getInt(ENCRYPT_COMPRESSION_ID);
                 boolean generateSignature = data.getBoolean(ENCRYPT_GENERATE_SIGNATURE);
-                InputStream inStream;
                 long inLength;
                 InputData inputData;
-                OutputStream outStream;
-//                String streamFilename = null;
                 switch (target) {
                     case TARGET_BYTES: /* encrypting bytes directly */
-                        byte[] bytes = data.getByteArray(ENCRYPT_MESSAGE_BYTES);
+                        byte[] bytes = ByteHandleStore.getBytes(data, ENCRYPT_MESSAGE_BYTES);
 
                         inStream = new ByteArrayInputStream(bytes);
                         inLength = bytes.length;
@@ -290,30 +414,22 @@ public class ApgIntentService extends IntentService implements Progressable, Key
 
                         break;
 
-                    // TODO: not used currently
-//                    case TARGET_STREAM: /* Encrypting stream from content uri */
-//                        Uri providerUri = (Uri) data.getParcelable(ENCRYPT_PROVIDER_URI);
-//
-//                        // InputStream
-//                        InputStream in = getContentResolver().openInputStream(providerUri);
-//                        inLength = PgpHelper.getLengthOfStream(in);
-//                        inputData = new InputData(in, inLength);
-//
-//                        // OutputStream
-//                        try {
-//                            while (true) {
-//                                streamFilename = PgpHelper.generateRandomFilename(32);
-//                                if (streamFilename == null) {
-//                                    throw new PgpGeneralException("couldn't generate random file name");
-//                                }
-//                                openFileInput(streamFilename).close();
-//                            }
-//                        } catch (FileNotFoundException e) {
-//                            // found a name that isn't used yet
-//                        }
-//                        outStream = openFileOutput(streamFilename, Context.MODE_PRIVATE);
-//
-//                        break;
+                    case TARGET_STREAM: /* encrypting stream from content uri */
+                        Uri providerUri = data.getParcelable(ENCRYPT_PROVIDER_URI);
+                        Uri outputUri = data.getParcelable(ENCRYPT_OUTPUT_URI);
+                        checkStreamUris(providerUri, outputUri);
+
+                        // streamed straight from the provider, size is 0 if unknown
+                        inStream = getContentResolver().openInputStream(providerUri);
+                        inLength = FileHelper.getSize(this, providerUri);
+                        inputData = new InputData(inStream, inLength);
+
+                        outStream = getContentResolver().openOutputStream(outputUri);
+                        if (outStream == null) {
+                            throw new PgpGeneralException("cannot write to " + outputUri);
+                        }
+
+                        break;
 
                     default:
                         throw new PgpGeneralException("No target choosen!");
@@ -340,6 +456,8 @@ public class ApgIntentService extends IntentService implements Progressable, Key
                     Log.d(Constants.TAG, "encrypt...");
                     builder.setEnableAsciiArmorOutput(useAsciiArmor)
                         .setCompressionId(compressionId)
+                        .setEnableParallelCompression(
+                            inputData.getSize() >= PARALLEL_COMPRESSION_THRESHOLD)
                         .setSymmetricEncryptionAlgorithm(
                             Preferences.getPreferences(this).getDefaultEncryptionAlgorithm())
                         .setSignatureForceV3(Preferences.getPreferences(this).getForceV3Signatures())
@@ -355,6 +473,7 @@ public class ApgIntentService extends IntentService implements Progressable, Key
                 }
 
                 outStream.close();
+                inStream.close();
 
                 /* Output */
 
@@ -364,18 +483,18 @@ public class ApgIntentService extends IntentService implements Progressable, Key
                     case TARGET_BYTES:
                         byte output[] = ((ByteArrayOutputStream) outStream).toByteArray();
 
-                        resultData.putByteArray(RESULT_BYTES, output);
+                        ByteHandleStore.putBytes(resultData, RESULT_BYTES, output);
 
                         break;
                     case TARGET_URI:
                         // nothing, file was written, just send okay
 
                         break;
-//                    case TARGET_STREAM:
-//                        String uri = DataStream.buildDataStreamUri(streamFilename).toString();
-//                        resultData.putString(RESULT_URI, uri);
-//
-//                        break;
+                    case TARGET_STREAM:
+                        resultData.putString(RESULT_URI,
+                                data.getParcelable(ENCRYPT_OUTPUT_URI).toString());
+
+                        break;
                 }
 
                 OtherHelper.logDebugBundle(resultData, "resultData");
@@ -383,20 +502,22 @@ public class ApgIntentService extends IntentService implements Progressable, Key
                 sendMessageToHandler(ApgIntentServiceHandler.MESSAGE_OKAY, resultData);
             } catch (Exception e) {
                 sendErrorToHandler(e);
+            } finally {
+                close(outStream);
+                close(inStream);
             }
         } else if (ACTION_DECRYPT_VERIFY.equals(action)) {
+            InputStream inStream = null;
+            OutputStream outStream = null;
             try {
                 /* Input */
                 int target = data.getInt(TARGET);
 
-                byte[] bytes = data.getByteArray(DECRYPT_CIPHERTEXT_BYTES);
+                byte[] bytes = ByteHandleStore.getBytes(data, DECRYPT_CIPHERTEXT_BYTES);
                 String passphrase = data.getString(DECRYPT_PASSPHRASE);
 
-                InputStream inStream;
                 long inLength;
                 InputData inputData;
-                OutputStream outStream;
-                String streamFilename = null;
                 switch (target) {
                     case TARGET_BYTES: /* decrypting bytes directly */
                         inStream = new ByteArrayInputStream(bytes);
@@ -430,30 +551,22 @@ public class ApgIntentService extends IntentService implements Progressable, Key
 
                         break;
 
-                    // TODO: not used, maybe contains code useful for new decrypt method for files?
-//                    case TARGET_STREAM: /* decrypting stream from content uri */
-//                        Uri providerUri = (Uri) data.getParcelable(ENCRYPT_PROVIDER_URI);
-//
-//                        // InputStream
-//                        InputStream in = getContentResolver().openInputStream(providerUri);
-//                        inLength = PgpHelper.getLengthOfStream(in);
-//                        inputData = new InputData(in, inLength);
-//
-//                        // OutputStream
-//                        try {
-//                            while (true) {
-//                                streamFilename = PgpHelper.generateRandomFilename(32);
-//                                if (streamFilename == null) {
-//                                    throw new PgpGeneralException("couldn't generate random file name");
-//                                }
-//                                openFileInput(streamFilename).close();
-//                            }
-//                        } catch (FileNotFoundException e) {
-//                            // found a name that isn't used yet
-//                        }
-//                        outStream = openFileOutput(streamFilename, Context.MODE_PRIVATE);
-//
-//                        break;
+                    case TARGET_STREAM: /* decrypting stream from content uri */
+                        Uri providerUri = data.getParcelable(ENCRYPT_PROVIDER_URI);
+                        Uri outputUri = data.getParcelable(ENCRYPT_OUTPUT_URI);
+                        checkStreamUris(providerUri, outputUri);
+
+                        // streamed straight from the provider, size is 0 if unknown
+                        inStream = getContentResolver().openInputStream(providerUri);
+                        inLength = FileHelper.getSize(this, providerUri);
+                        inputData = new InputData(inStream, inLength);
+
+                        outStream = getContentResolver().openOutputStream(outputUri);
+                        if (outStream == null) {
+                            throw new PgpGeneralException("cannot write to " + outputUri);
+                        }
+
+                        break;
 
                     default:
                         throw new PgpGeneralException("No target choosen!");
@@ -476,6 +589,7 @@ public class ApgIntentService extends IntentService implements Progressable, Key
                 PgpDecryptVerifyResult decryptVerifyResult = builder.build().execute();
 
                 outStream.close();
+                inStream.close();
 
                 resultData.putParcelable(RESULT_DECRYPT_VERIFY_RESULT, decryptVerifyResult);
 
@@ -484,17 +598,17 @@ public class ApgIntentService extends IntentService implements Progressable, Key
                 switch (target) {
                     case TARGET_BYTES:
                         byte output[] = ((ByteArrayOutputStream) outStream).toByteArray();
-                        resultData.putByteArray(RESULT_DECRYPTED_BYTES, output);
+                        ByteHandleStore.putBytes(resultData, RESULT_DECRYPTED_BYTES, output);
                         break;
                     case TARGET_URI:
                         // nothing, file was written, just send okay and verification bundle
 
                         break;
-//                    case TARGET_STREAM:
-//                        String uri = DataStream.buildDataStreamUri(streamFilename).toString();
-//                        resultData.putString(RESULT_URI, uri);
-//
-//                        break;
+                    case TARGET_STREAM:
+                        resultData.putString(RESULT_URI,
+                                data.getParcelable(ENCRYPT_OUTPUT_URI).toString());
+
+                        break;
                 }
 
                 OtherHelper.logDebugBundle(resultData, "resultData");
@@ -502,6 +616,9 @@ public class ApgIntentService extends IntentService implements Progressable, Key
                 sendMessageToHandler(ApgIntentServiceHandler.MESSAGE_OKAY, resultData);
             } catch (Exception e) {
                 sendErrorToHandler(e);
+            } finally {
+                close(outStream);
+                close(inStream);
             }
         } else if (ACTION_SAVE_KEYRING.equals(action)) {
             try {
@@ -562,7 +679,20 @@ public class ApgIntentService extends IntentService implements Progressable, Key
 
                 /* Operation */
                 PgpKeyOperation keyOperations = new PgpKeyOperation(new ProgressScaler(this, 0, 100, 100));
-                Key newKey = keyOperations.createKey(algorithm, keysize, passphrase, masterKey);
+                KeyMaterialPool pool = KeyMaterialPool.getInstance(this);
+                KeyPair keyPair = null;
+                // createKey refuses ElGamal master keys, don't use up a pooled key pair on them
+                boolean elGamalMasterKey = masterKey && algorithm == Id.choice.algorithm.elgamal;
+                if (!elGamalMasterKey) {
+                    keyPair = pool.take(algorithm, keysize);
+                }
+                Key newKey;
+                if (keyPair != null) {
+                    newKey = keyOperations.createKey(algorithm, passphrase, masterKey, keyPair);
+                } else {
+                    newKey = keyOperations.createKey(algorithm, keysize, passphrase, masterKey);
+                }
+                pool.fillAsync();
 
                 /* Output */
                 Bundle resultData = new Bundle();
@@ -590,28 +720,53 @@ public class ApgIntentService extends IntentService implements Progressable, Key
                             .getQuantityString(R.plurals.progress_generating, keysTotal),
                         keysCreated,
                         keysTotal);
-                PgpKeyOperation keyOperations = new PgpKeyOperation(new ProgressScaler(this, 0, 100, 100));
+                final PgpKeyOperation keyOperations = new PgpKeyOperation(null);
+                final KeyMaterialPool pool = KeyMaterialPool.getInstance(this);
+                int[] keyUsages = new int[] {
+                    KeyFlags.CERTIFY_OTHER,
+                    KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE,
+                    KeyFlags.SIGN_DATA
+                };
+
+                // take pre-generated key pairs where possible, generate the rest concurrently
+                ExecutorService executor = Executors.newFixedThreadPool(keysTotal);
+                ArrayList<Future<KeyPair>> keyPairs = new ArrayList<Future<KeyPair>>();
+                for (int i = 0; i < keysTotal; ++i) {
+                    final boolean isMasterKey = (i == 0);
+                    keyPairs.add(executor.submit(new Callable<KeyPair>() {
+                        @Override
+                        public KeyPair call() throws Exception {
+                            KeyPair keyPair = pool.take(Id.choice.algorithm.rsa, 4096);
+                            if (keyPair == null) {
+                                keyPair = keyOperations.generateKeyPair(Id.choice.algorithm.rsa,
+                                        4096, isMasterKey);
+                            }
+                            return keyPair;
+                        }
+                    }));
+                }
 
-                Key masterKey = keyOperations.createKey(Id.choice.algorithm.rsa,
-                        4096, passphrase, true);
-                newKeys.add(masterKey);
-                keyUsageList.add(KeyFlags.CERTIFY_OTHER);
-                keysCreated++;
-                setProgress(keysCreated, keysTotal);
-
-                Key subKey = keyOperations.createKey(Id.choice.algorithm.rsa,
-                        4096, passphrase, false);
-                newKeys.add(subKey);
-                keyUsageList.add(KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE);
-                keysCreated++;
-                setProgress(keysCreated, keysTotal);
-
-                subKey = keyOperations.createKey(Id.choice.algorithm.rsa,
-                        4096, passphrase, false);
-                newKeys.add(subKey);
-                keyUsageList.add(KeyFlags.SIGN_DATA);
-                keysCreated++;
-                setProgress(keysCreated, keysTotal);
+                try {
+                    for (int i = 0; i < keysTotal; ++i) {
+                        KeyPair keyPair;
+                        try {
+                            keyPair = keyPairs.get(i).get();
+                        } catch (ExecutionException e) {
+                            if (e.getCause() instanceof Exception) {
+                                throw (Exception) e.getCause();
+                            }
+                            throw e;
+                        }
+                        newKeys.add(keyOperations.createKey(Id.choice.algorithm.rsa, passphrase,
+                                i == 0, keyPair));
+                        keyUsageList.add(keyUsages[i]);
+                        keysCreated++;
+                        setProgress(keysCreated, keysTotal);
+                    }
+                } finally {
+                    executor.shutdownNow();
+                }
+                pool.fillAsync();
 
                 // TODO: default to one master for cert, one sub for encrypt and one sub
                 //       for sign
@@ -717,7 +872,7 @@ public class ApgIntentService extends IntentService implements Progressable, Key
                         .exportKeyRings(publicMasterKeyIds, secretMasterKeyIds,
                                 new FileOutputStream(outputFile));
 
-                if (mIsCanceled) {
+                if (hasServiceStopped()) {
                    new File(outputFile).delete();
                 }
 
@@ -733,14 +888,12 @@ public class ApgIntentService extends IntentService implements Progressable, Key
                 // and dataUri!
 
                 /* Operation */
-                HkpKeyServer server = new HkpKeyServer(keyServer);
-
                 KeyRing keyRing = ProviderHelper.getKeyRing(this, dataUri);
                 if (keyRing != null) {
                     PgpImportExport pgpImportExport = new PgpImportExport(this, null);
 
                     boolean uploaded =
-                        pgpImportExport.uploadKeyRingToServer(server, new PublicKeyRing(keyRing));
+                        pgpImportExport.uploadKeyRingToServer(keyServer, new PublicKeyRing(keyRing));
                     if (!uploaded) {
                         throw new PgpGeneralException("Unable to export key to selected server");
                     }
@@ -750,77 +903,53 @@ public class ApgIntentService extends IntentService implements Progressable, Key
             } catch (Exception e) {
                 sendErrorToHandler(e);
             }
-        } else if (ACTION_DOWNLOAD_AND_IMPORT_KEYS.equals(action)) {
+        } else if (ACTION_UPLOAD_KEYRINGS.equals(action)) {
             try {
-                ArrayList<ImportKeysListEntry> entries = data.getParcelableArrayList(DOWNLOAD_KEY_LIST);
-                String keyServer = data.getString(DOWNLOAD_KEY_SERVER);
 
-                // TODO: add extra which requires fingerprint suport and force verification!
-                // only supported by newer sks keyserver versions
-
-                // this downloads the keys and places them into the ImportKeysListEntry entries
-                HkpKeyServer server = new HkpKeyServer(keyServer);
+                /* Input */
+                String keyServer = data.getString(UPLOAD_KEY_SERVER);
+                long[] masterKeyIds = data.getLongArray(UPLOAD_KEY_RING_MASTER_KEY_IDS);
 
-                for (ImportKeysListEntry entry : entries) {
-                    // if available use complete fingerprint for get request
-                    byte[] downloadedKeyBytes;
-                    if (entry.getFingerPrintHex() != null) {
-                        downloadedKeyBytes = server.get("0x" + entry.getFingerPrintHex()).getBytes();
+                /* Operation */
+                ArrayList<PublicKeyRing> keyRings = new ArrayList<PublicKeyRing>();
+                ArrayList<Long> missing = new ArrayList<Long>();
+                for (long masterKeyId : masterKeyIds) {
+                    PGPPublicKeyRing keyRing =
+                            ProviderHelper.getPGPPublicKeyRingByMasterKeyId(this, masterKeyId);
+                    if (keyRing != null) {
+                        keyRings.add(new PublicKeyRing(keyRing));
                     } else {
-                        downloadedKeyBytes = server.get(entry.getKeyIdHex()).getBytes();
-                    }
-
-                    // create PGPKeyRing object based on downloaded armored key
-                    PGPKeyRing downloadedKey = null;
-                    BufferedInputStream bufferedInput =
-                            new BufferedInputStream(new ByteArrayInputStream(downloadedKeyBytes));
-                    if (bufferedInput.available() > 0) {
-                        InputStream in = PGPUtil.getDecoderStream(bufferedInput);
-                        PGPObjectFactory objectFactory = new PGPObjectFactory(in);
-
-                        // get first object in block
-                        Object obj;
-                        if ((obj = objectFactory.nextObject()) != null) {
-                            Log.d(Constants.TAG, "Found class: " + obj.getClass());
-
-                            if (obj instanceof PGPKeyRing) {
-                                downloadedKey = (PGPKeyRing) obj;
-                            } else {
-                                throw new PgpGeneralException("Object not recognized as PGPKeyRing!");
-                            }
-                        }
+                        missing.add(masterKeyId);
                     }
+                }
 
-                    // verify downloaded key by comparing fingerprints
-                    if (entry.getFingerPrintHex() != null) {
-                        String downloadedKeyFp = PgpKeyHelper.convertFingerprintToHex(
-                            downloadedKey.getPublicKey().getFingerprint());
-                        if (downloadedKeyFp.equals(entry.getFingerPrintHex())) {
-                            Log.d(Constants.TAG, "fingerprint of downloaded key is the same as " +
-                                    "the requested fingerprint!");
-                        } else {
-                            throw new PgpGeneralException("fingerprint of downloaded key is " +
-                                "NOT the same as the requested fingerprint!");
-                        }
+                // one request for all keys where the keyserver takes it
+                PgpImportExport pgpImportExport = new PgpImportExport(this, this, this);
+                Bundle resultData = pgpImportExport.uploadKeyRingsToServer(keyServer, keyRings);
+                if (!missing.isEmpty()) {
+                    long[] failed = resultData.getLongArray(RESULT_UPLOAD_FAILED_MASTER_KEY_IDS);
+                    long[] allFailed = new long[failed.length + missing.size()];
+                    System.arraycopy(failed, 0, allFailed, 0, failed.length);
+                    for (int i = 0; i < missing.size(); ++i) {
+                        allFailed[failed.length + i] = missing.get(i);
                     }
-
-                    // save key bytes in entry object for doing the
-                    // actual import afterwards
-                    entry.setBytes(downloadedKey.getEncoded());
+                    resultData.putLongArray(RESULT_UPLOAD_FAILED_MASTER_KEY_IDS, allFailed);
                 }
 
-                Intent importIntent = new Intent(this, ApgIntentService.class);
-
-                importIntent.setAction(ACTION_IMPORT_KEYRING);
-                Bundle importData = new Bundle();
-                importData.putParcelableArrayList(IMPORT_KEY_LIST, entries);
-                importIntent.putExtra(EXTRA_DATA, importData);
-                importIntent.putExtra(EXTRA_MESSENGER, mMessenger);
+                sendMessageToHandler(ApgIntentServiceHandler.MESSAGE_OKAY, resultData);
+            } catch (Exception e) {
+                sendErrorToHandler(e);
+            }
+        } else if (ACTION_DOWNLOAD_AND_IMPORT_KEYS.equals(action)) {
+            try {
+                ArrayList<ImportKeysListEntry> entries = data.getParcelableArrayList(DOWNLOAD_KEY_LIST);
+                String keyServer = data.getString(DOWNLOAD_KEY_SERVER);
 
-                // now import it with this service
-                onHandleIntent(importIntent);
+                // keys are imported while the others are still downloading
+                PgpImportExport pgpImportExport = new PgpImportExport(this, this, this);
+                Bundle resultData = pgpImportExport.downloadAndImportKeyRings(entries, keyServer);
 
-                // result is handled in ACTION_IMPORT_KEYRING
+                sendMessageToHandler(ApgIntentServiceHandler.MESSAGE_OKAY, resultData);
             } catch (Exception e) {
                 sendErrorToHandler(e);
             }
@@ -863,9 +992,43 @@ public class ApgIntentService extends IntentService implements Progressable, Key
         }
     }
 
+    /**
+     * Checks the uris of a TARGET_STREAM operation: both must be given, and the output must be a
+     * file or content uri other than the input, so a mistyped target can't overwrite the input.
+     */
+    private void checkStreamUris(Uri providerUri, Uri outputUri) throws PgpGeneralException {
+        if (providerUri == null) {
+            throw new PgpGeneralException("no input uri given");
+        }
+        if (outputUri == null) {
+            throw new PgpGeneralException("no output uri given");
+        }
+        String scheme = outputUri.getScheme();
+        if (!"file".equalsIgnoreCase(scheme) && !"content".equalsIgnoreCase(scheme)) {
+            throw new PgpGeneralException("cannot write to " + outputUri);
+        }
+        if (outputUri.equals(providerUri)) {
+            throw new PgpGeneralException("output uri is the input uri");
+        }
+        if ("file".equalsIgnoreCase(scheme) && !FileHelper.isStorageMounted(outputUri.getPath())) {
+            throw new PgpGeneralException(getString(R.string.error_external_storage_not_ready));
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
     private void sendErrorToHandler(Exception e) {
         // Service was canceled. Do not send error to handler.
-        if (this.mIsCanceled) {
+        if (hasServiceStopped()) {
             return;
         }
 
@@ -883,7 +1046,7 @@ public class ApgIntentService extends IntentService implements Progressable, Key
 
     private void sendMessageToHandler(Integer arg1, Integer arg2, Bundle data) {
         // Service was canceled. Do not send message to handler.
-        if (this.mIsCanceled) {
+        if (hasServiceStopped()) {
             return;
         }
 
@@ -897,7 +1060,7 @@ public class ApgIntentService extends IntentService implements Progressable, Key
         }
 
         try {
-            mMessenger.send(msg);
+            getMessenger().send(msg);
         } catch (RemoteException e) {
             Log.w(Constants.TAG, "Exception sending message, Is handler present?", e);
         } catch (NullPointerException e) {
@@ -940,6 +1103,8 @@ public class ApgIntentService extends IntentService implements Progressable, Key
 
     @Override
     public boolean hasServiceStopped() {
-        return mIsCanceled;
+        OperationScheduler.OperationHandle handle = OperationScheduler.OperationHandle.getCurrent();
+        // called outside of the scheduler, nothing can cancel it
+        return handle != null && handle.isCancelled();
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2010-2014 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg.service;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Passes large byte arrays between the activities and ApgIntentService without putting them
+ * into Intents or Messages. Intents to startService() travel through the system process, they
+ * are copied several times and fail beyond the binder transaction limit, and they may not carry
+ * file descriptors at all. The service runs in the process of the activities, so the array is
+ * parked here and only a handle is put into the Bundle.
+ *
+ * Every handle can be taken once, arrays that are never taken (e.g. results of canceled
+ * operations) are dropped after {@link #MAX_AGE_MILLIS}.
+ */
+public class ByteHandleStore {
+    /** byte arrays smaller than this are put into the Bundle directly */
+    public static final int THRESHOLD = 64 * 1024;
+
+    private static final long MAX_AGE_MILLIS = 10 * 60 * 1000;
+    private static final String HANDLE_SUFFIX = "_handle";
+
+    private static class Entry {
+        final byte[] mBytes;
+        final long mCreated;
+
+        Entry(byte[] bytes) {
+            mBytes = bytes;
+            mCreated = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private static final HashMap<Long, Entry> sEntries = new HashMap<Long, Entry>();
+    private static long sNextHandle = 1;
+
+    private ByteHandleStore() {
+    }
+
+    /**
+     * Puts bytes into bundle, by reference if they are larger than {@link #THRESHOLD}.
+     */
+    public static void putBytes(Bundle bundle, String key, byte[] bytes) {
+        if (bytes == null || bytes.length < THRESHOLD) {
+            bundle.putByteArray(key, bytes);
+        } else {
+            bundle.putLong(key + HANDLE_SUFFIX, put(bytes));
+        }
+    }
+
+    /**
+     * Gets bytes put into bundle by {@link #putBytes(Bundle, String, byte[])}. A handle can
+     * only be resolved once.
+     *
+     * @return the bytes or null if there are none or the handle has expired
+     */
+    public static byte[] getBytes(Bundle bundle, String key) {
+        if (bundle.containsKey(key + HANDLE_SUFFIX)) {
+            return take(bundle.getLong(key + HANDLE_SUFFIX));
+        }
+        return bundle.getByteArray(key);
+    }
+
+    private static synchronized long put(byte[] bytes) {
+        removeExpired();
+        long handle = sNextHandle++;
+        sEntries.put(handle, new Entry(bytes));
+        return handle;
+    }
+
+    private static synchronized byte[] take(long handle) {
+        Entry entry = sEntries.remove(handle);
+        return entry == null ? null : entry.mBytes;
+    }
+
+    private static void removeExpired() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Entry> it = sEntries.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().mCreated > MAX_AGE_MILLIS) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2010-2014 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.Id;
+import org.thialfihar.android.apg.pgp.PgpKeyOperation;
+import org.thialfihar.android.apg.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps a small stash of pre-generated key pairs, so that creating a key does not have to wait
+ * for the prime search. The pool is refilled in the background while the device is charging,
+ * or idle with its screen off and the battery at least half full. Key pairs are generated in
+ * parallel on all cores.
+ *
+ * The pool is kept in memory only and is lost with the process. Unencrypted private keys are
+ * never written to storage, and there is no key to encrypt them with that would not have to be
+ * stored in the same data directory on the Android versions supported. The key pairs get their
+ * passphrase protection when they are handed out and become part of a key ring.
+ *
+ * Key pairs handed out are removed from the pool immediately, they are never used twice.
+ */
+public class KeyMaterialPool {
+    // stashes of earlier versions and the key of the first one, deleted when found
+    private static final String[] OLD_STASH_FILES = new String[] {
+            "key_material_pool", "key_material_pool.v2", "key_material_pool.v2.tmp"
+    };
+    private static final String OLD_PREFS_NAME = "APG.key_material_pool";
+    private static final int MIN_IDLE_BATTERY_PERCENT = 50;
+
+    /**
+     * Which key pairs to keep around: one default RSA 4096 ring consists of a master key and
+     * two subkeys.
+     */
+    private static final int[][] POOL_SPECS = new int[][] {
+            // algorithm choice, key size, count
+            { Id.choice.algorithm.rsa, 4096, 3 },
+    };
+
+    private static KeyMaterialPool sInstance;
+
+    private Context mContext;
+    private final HashMap<String, LinkedList<KeyPair>> mStash =
+            new HashMap<String, LinkedList<KeyPair>>();
+    private boolean mStashFilesRemoved = false;
+    private boolean mFilling = false;
+    private boolean mReceiverRegistered = false;
+
+    public static synchronized KeyMaterialPool getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new KeyMaterialPool(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private KeyMaterialPool(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Refill the pool whenever the charger is connected or the screen is turned off, for as
+     * long as the process lives.
+     */
+    public synchronized void registerReceivers() {
+        if (mReceiverRegistered) {
+            return;
+        }
+        IntentFilter filter = new IntentFilter(Intent.ACTION_POWER_CONNECTED);
+        // only delivered to receivers registered at runtime
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        mContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                fillAsync();
+            }
+        }, filter);
+        mReceiverRegistered = true;
+    }
+
+    /**
+     * Takes a pre-generated key pair out of the pool.
+     *
+     * @return the key pair or null if the pool has none for this algorithm and key size
+     */
+    public synchronized KeyPair take(int algorithmChoice, int keySize) {
+        removeStashFiles();
+        LinkedList<KeyPair> keyPairs = mStash.get(getSpecName(algorithmChoice, keySize));
+        if (keyPairs == null || keyPairs.isEmpty()) {
+            return null;
+        }
+
+        KeyPair keyPair = keyPairs.removeFirst();
+        Log.d(Constants.TAG, "KeyMaterialPool: handed out " + algorithmChoice + "/" + keySize
+                + ", " + keyPairs.size() + " left");
+        return keyPair;
+    }
+
+    /**
+     * Starts refilling the pool on a low priority background thread, if the device is charging
+     * or idle and no refill is running yet.
+     */
+    public void fillAsync() {
+        synchronized (this) {
+            if (mFilling || !canFill()) {
+                return;
+            }
+            mFilling = true;
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                android.os.Process.setThreadPriority(
+                        android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    fill();
+                } finally {
+                    synchronized (KeyMaterialPool.this) {
+                        mFilling = false;
+                    }
+                }
+            }
+        }, "KeyMaterialPool");
+        thread.start();
+    }
+
+    private void fill() {
+        ArrayList<int[]> missing = new ArrayList<int[]>();
+        synchronized (this) {
+            removeStashFiles();
+            for (int[] spec : POOL_SPECS) {
+                LinkedList<KeyPair> keyPairs = mStash.get(getSpecName(spec[0], spec[1]));
+                int have = keyPairs == null ? 0 : keyPairs.size();
+                for (int i = have; i < spec[2]; ++i) {
+                    missing.add(spec);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        int threads = Math.min(missing.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        android.os.Process.setThreadPriority(
+                                android.os.Process.THREAD_PRIORITY_LOWEST);
+                        r.run();
+                    }
+                }, "KeyMaterialPool worker");
+            }
+        });
+
+        final PgpKeyOperation keyOperation = new PgpKeyOperation(null);
+        List<Future<KeyPair>> futures = new ArrayList<Future<KeyPair>>();
+        for (final int[] spec : missing) {
+            futures.add(executor.submit(new Callable<KeyPair>() {
+                @Override
+                public KeyPair call() throws Exception {
+                    // pooled key pairs are always usable as master and subkeys
+                    return keyOperation.generateKeyPair(spec[0], spec[1], false);
+                }
+            }));
+        }
+
+        // a failed generation doesn't discard the key pairs of the others, when interrupted the
+        // key pairs that are done already are kept
+        int generated = 0;
+        boolean interrupted = false;
+        try {
+            for (int i = 0; i < futures.size(); ++i) {
+                Future<KeyPair> future = futures.get(i);
+                if (interrupted && !future.isDone()) {
+                    continue;
+                }
+                KeyPair keyPair;
+                try {
+                    keyPair = future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    --i;
+                    continue;
+                } catch (ExecutionException e) {
+                    Log.e(Constants.TAG, "KeyMaterialPool: generating a key pair failed",
+                            e.getCause());
+                    continue;
+                }
+                int[] spec = missing.get(i);
+                synchronized (this) {
+                    String name = getSpecName(spec[0], spec[1]);
+                    LinkedList<KeyPair> keyPairs = mStash.get(name);
+                    if (keyPairs == null) {
+                        keyPairs = new LinkedList<KeyPair>();
+                        mStash.put(name, keyPairs);
+                    }
+                    keyPairs.add(keyPair);
+                }
+                ++generated;
+            }
+        } finally {
+            Log.d(Constants.TAG, "KeyMaterialPool: generated " + generated + " of "
+                    + futures.size() + " key pairs");
+            executor.shutdownNow();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return true if the device is charging, or idle with enough battery left
+     */
+    private boolean canFill() {
+        Intent battery = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return false;
+        }
+        int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        if (status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL) {
+            return true;
+        }
+
+        PowerManager powerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        if (powerManager.isScreenOn()) {
+            return false;
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level >= 0 && scale > 0 && level * 100 / scale >= MIN_IDLE_BATTERY_PERCENT;
+    }
+
+    private static String getSpecName(int algorithmChoice, int keySize) {
+        return algorithmChoice + "/" + keySize;
+    }
+
+    /**
+     * Removes the stash files earlier versions kept in app private storage, the key pairs in
+     * them are overwritten first.
+     */
+    private void removeStashFiles() {
+        if (mStashFilesRemoved) {
+            return;
+        }
+        mStashFilesRemoved = true;
+
+        for (String name : OLD_STASH_FILES) {
+            File file = new File(mContext.getFilesDir(), name);
+            if (!file.exists()) {
+                continue;
+            }
+            try {
+                RandomAccessFile out = new RandomAccessFile(file, "rws");
+                try {
+                    byte[] zeros = new byte[4096];
+                    for (long left = out.length(); left > 0; left -= zeros.length) {
+                        out.write(zeros, 0, (int) Math.min(left, zeros.length));
+                    }
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "KeyMaterialPool: overwriting " + file + " failed", e);
+            }
+            if (!file.delete()) {
+                Log.e(Constants.TAG, "KeyMaterialPool: could not delete " + file);
+            }
+        }
+        mContext.getSharedPreferences(OLD_PREFS_NAME, Context.MODE_PRIVATE).edit().clear()
+                .commit();
+    }
+}
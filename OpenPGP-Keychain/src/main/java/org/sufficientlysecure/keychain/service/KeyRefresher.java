@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2010-2014 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg.service;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Process;
+import android.os.SystemClock;
+
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.Id;
+import org.thialfihar.android.apg.helper.Preferences;
+import org.thialfihar.android.apg.pgp.HkpKeyServer;
+import org.thialfihar.android.apg.pgp.KeyServer.KeyNotFoundException;
+import org.thialfihar.android.apg.pgp.KeyServer.QueryException;
+import org.thialfihar.android.apg.pgp.LocalKeyServer;
+import org.thialfihar.android.apg.pgp.PgpImportExport;
+import org.thialfihar.android.apg.pgp.PgpKeyHelper;
+import org.thialfihar.android.apg.pgp.exception.PgpGeneralException;
+import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.util.Log;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Looks up the public keys in the database on the keyserver from time to time and merges new
+ * certifications, user ids, subkeys and revocations into them.
+ * <p/>
+ * The keys are asked for one at a time, a few seconds apart, so the keyserver isn't flooded and
+ * the radio doesn't stay up for a burst of requests. The time of the last lookup is stored with
+ * every key ring, an interrupted run continues with the keys it didn't get to.
+ */
+public class KeyRefresher {
+    /**
+     * Every key ring is looked up once in this interval.
+     */
+    public static final long REFRESH_INTERVAL = 7 * AlarmManager.INTERVAL_DAY;
+
+    /**
+     * Minimum time between two requests, a random part of the same length is added.
+     */
+    public static final long REQUEST_INTERVAL = 3000;
+
+    private static final int BATCH_SIZE = 20;
+
+    /**
+     * The run is given up after this many keyserver errors in a row, the keys are tried again
+     * by the next run.
+     */
+    private static final int MAX_FAILURES = 3;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+    private static final AtomicBoolean sRunning = new AtomicBoolean(false);
+    private static final Random sRandom = new Random();
+
+    private KeyRefresher() {
+    }
+
+    /**
+     * Sets or cancels the alarm that starts the refresh, depending on the preference.
+     */
+    public static void schedule(Context context) {
+        Context appContext = context.getApplicationContext();
+        AlarmManager alarmManager =
+                (AlarmManager) appContext.getSystemService(Context.ALARM_SERVICE);
+        Intent intent = new Intent(appContext, ApgIntentService.class);
+        intent.setAction(ApgIntentService.ACTION_REFRESH_KEYS);
+
+        if (!Preferences.getPreferences(appContext).getRefreshKeys()) {
+            PendingIntent pendingIntent = PendingIntent.getService(appContext, 0, intent,
+                    PendingIntent.FLAG_NO_CREATE);
+            if (pendingIntent != null) {
+                alarmManager.cancel(pendingIntent);
+                pendingIntent.cancel();
+            }
+            return;
+        }
+
+        if (PendingIntent.getService(appContext, 0, intent, PendingIntent.FLAG_NO_CREATE)
+                != null) {
+            // already set
+            return;
+        }
+
+        // inexact, so the system can run it together with the wakeups of other apps, the
+        // alarm doesn't wake the device
+        PendingIntent pendingIntent = PendingIntent.getService(appContext, 0, intent, 0);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR,
+                AlarmManager.INTERVAL_HALF_DAY, pendingIntent);
+    }
+
+    /**
+     * Refreshes the key rings due in the background, unless a run is already going on.
+     */
+    public static void refreshAsync(Context context) {
+        if (!sRunning.compareAndSet(false, true)) {
+            return;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    String server = null;
+                    for (String keyServer :
+                            Preferences.getPreferences(appContext).getKeyServers()) {
+                        // dumps are only as new as their last copy, only ask real keyservers
+                        if (!LocalKeyServer.isLocal(keyServer)) {
+                            server = keyServer;
+                            break;
+                        }
+                    }
+                    if (server == null) {
+                        return;
+                    }
+                    int updated = refresh(appContext, new HkpKeyServer(server),
+                            System.currentTimeMillis() - REFRESH_INTERVAL, REQUEST_INTERVAL);
+                    Log.d(Constants.TAG, "refreshed keys, " + updated + " updated");
+                } catch (RuntimeException e) {
+                    Log.e(Constants.TAG, "Refreshing keys failed", e);
+                } finally {
+                    sRunning.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Looks up all public key rings that weren't looked up since refreshedBefore and saves
+     * what changed. Blocks until it is done.
+     *
+     * @param requestInterval minimum time between two requests in milliseconds
+     * @return number of key rings that changed
+     */
+    public static int refresh(Context context, HkpKeyServer server, long refreshedBefore,
+                              long requestInterval) {
+        Preferences preferences = Preferences.getPreferences(context);
+        int updated = 0;
+        int failures = 0;
+        long lastRequest = 0;
+
+        while (true) {
+            LinkedHashMap<Long, byte[]> keyRings =
+                    ProviderHelper.getPublicKeyRingsToRefresh(context, refreshedBefore,
+                            BATCH_SIZE);
+            if (keyRings.isEmpty()) {
+                return updated;
+            }
+
+            for (Map.Entry<Long, byte[]> keyRing : keyRings.entrySet()) {
+                if (!preferences.getRefreshKeys()) {
+                    // switched off meanwhile
+                    return updated;
+                }
+
+                long wait = lastRequest + requestInterval
+                        + (long) (sRandom.nextDouble() * requestInterval)
+                        - SystemClock.elapsedRealtime();
+                if (lastRequest != 0 && wait > 0) {
+                    try {
+                        Thread.sleep(wait);
+                    } catch (InterruptedException e) {
+                        return updated;
+                    }
+                }
+                lastRequest = SystemClock.elapsedRealtime();
+
+                String fingerprintHex = PgpKeyHelper.convertFingerprintToHex(keyRing.getValue());
+                try {
+                    String armoredKey = server.get("0x" + fingerprintHex);
+                    failures = 0;
+                    // an answer without a key block is as good as not found
+                    if (armoredKey != null) {
+                        PGPKeyRing downloaded = PgpImportExport.decodeDownloadedKeyRing(
+                                armoredKey, fingerprintHex);
+                        if (downloaded instanceof PGPPublicKeyRing
+                                && ProviderHelper.saveKeyRing(context,
+                                        (PGPPublicKeyRing) downloaded, true)
+                                        == Id.return_value.updated) {
+                            ++updated;
+                        }
+                    }
+                } catch (KeyNotFoundException e) {
+                    // never uploaded, nothing to refresh
+                    failures = 0;
+                } catch (QueryException e) {
+                    // keyserver not reachable, the key stays due
+                    Log.e(Constants.TAG, "Refreshing key " + fingerprintHex + " failed", e);
+                    if (++failures >= MAX_FAILURES) {
+                        return updated;
+                    }
+                    continue;
+                } catch (PgpGeneralException e) {
+                    Log.e(Constants.TAG, "Bad key ring for " + fingerprintHex, e);
+                } catch (IOException e) {
+                    // unreadable or not stored, tried again by the run after the next interval
+                    Log.e(Constants.TAG, "Could not refresh key " + fingerprintHex, e);
+                } catch (RuntimeException e) {
+                    // a key ring the parser chokes on must not stop the run, it would be the
+                    // first one due in every later run again
+                    Log.e(Constants.TAG, "Bad key ring for " + fingerprintHex, e);
+                }
+
+                ProviderHelper.setLastRefreshed(context, keyRing.getKey(),
+                        System.currentTimeMillis());
+            }
+
+            if (failures > 0) {
+                // failed keys come first in the next batch again
+                return updated;
+            }
+        }
+    }
+}
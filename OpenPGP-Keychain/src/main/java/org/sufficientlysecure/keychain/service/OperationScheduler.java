@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2010-2014 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg.service;
+
+import java.util.ArrayList;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs operations on two lanes: short interactive operations (sign, encrypt, decrypt or verify
+ * of bytes) get a dedicated thread, so they never wait behind a long export, heavy operations
+ * (imports, exports, key generation, file crypto) share a limited number of workers and are
+ * started by priority, then in order of submission.
+ *
+ * Every operation gets an {@link OperationHandle} that can be used to cancel it. Operations
+ * should check {@link OperationHandle#isCancelled()} of {@link OperationHandle#getCurrent()}
+ * regularly.
+ */
+public class OperationScheduler {
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_HIGH = 1;
+    public static final int PRIORITY_NORMAL = 2;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    public interface OnOperationFinishedListener {
+        /**
+         * Called once for every scheduled operation, after it has run or after it has been
+         * canceled before it was started. A running operation that is canceled is finished only
+         * when it has returned.
+         */
+        void onOperationFinished(OperationHandle handle);
+    }
+
+    /**
+     * Handle of a scheduled operation, a FutureTask that is ordered by priority.
+     */
+    public static class OperationHandle extends FutureTask<Void>
+            implements Comparable<OperationHandle> {
+        private static final ThreadLocal<OperationHandle> sCurrent =
+                new ThreadLocal<OperationHandle>();
+
+        private final int mPriority;
+        private final long mSequence;
+        private final Object mTag;
+        private OnOperationFinishedListener mListener;
+        private final AtomicBoolean mFinished = new AtomicBoolean(false);
+
+        private OperationHandle(Runnable runnable, int priority, long sequence, Object tag,
+                                OnOperationFinishedListener listener) {
+            super(runnable, null);
+            mPriority = priority;
+            mSequence = sequence;
+            mTag = tag;
+            mListener = listener;
+        }
+
+        /**
+         * @return the handle of the operation running on the calling thread, or null
+         */
+        public static OperationHandle getCurrent() {
+            return sCurrent.get();
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * @return the object given on scheduling, used to find operations to cancel
+         */
+        public Object getTag() {
+            return mTag;
+        }
+
+        @Override
+        public void run() {
+            sCurrent.set(this);
+            try {
+                super.run();
+            } finally {
+                sCurrent.remove();
+                finish();
+            }
+        }
+
+        /**
+         * Not done(), which FutureTask calls as soon as the operation is canceled, while it may
+         * still be running.
+         */
+        private void finish() {
+            if (mFinished.compareAndSet(false, true) && mListener != null) {
+                mListener.onOperationFinished(this);
+            }
+        }
+
+        @Override
+        public int compareTo(OperationHandle another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            if (mSequence != another.mSequence) {
+                return mSequence < another.mSequence ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+
+    private final ThreadPoolExecutor mInteractiveExecutor;
+    private final ThreadPoolExecutor mHeavyExecutor;
+    private final OnOperationFinishedListener mListener;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final ArrayList<OperationHandle> mOperations = new ArrayList<OperationHandle>();
+
+    /**
+     * @param heavyWorkers maximum number of heavy operations running at the same time
+     */
+    public OperationScheduler(int heavyWorkers, OnOperationFinishedListener listener) {
+        mListener = listener;
+
+        mInteractiveExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mInteractiveExecutor.allowCoreThreadTimeOut(true);
+
+        // the queue orders by OperationHandle.compareTo
+        mHeavyExecutor = new ThreadPoolExecutor(heavyWorkers, heavyWorkers,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+        mHeavyExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param runnable the operation
+     * @param priority one of the PRIORITY_* constants, PRIORITY_INTERACTIVE runs on the
+     *                 interactive lane
+     * @param tag      arbitrary object to find the operation again for {@link #cancel(Object)}
+     */
+    public OperationHandle schedule(Runnable runnable, int priority, Object tag) {
+        OperationHandle handle = new OperationHandle(runnable, priority,
+                mSequence.getAndIncrement(), tag, new OnOperationFinishedListener() {
+                    @Override
+                    public void onOperationFinished(OperationHandle handle) {
+                        synchronized (mOperations) {
+                            mOperations.remove(handle);
+                        }
+                        if (mListener != null) {
+                            mListener.onOperationFinished(handle);
+                        }
+                    }
+                });
+
+        synchronized (mOperations) {
+            mOperations.add(handle);
+        }
+        if (priority == PRIORITY_INTERACTIVE) {
+            mInteractiveExecutor.execute(handle);
+        } else {
+            mHeavyExecutor.execute(handle);
+        }
+        return handle;
+    }
+
+    /**
+     * Cancels all operations scheduled with a tag equal to the given one.
+     *
+     * @return number of canceled operations
+     */
+    public int cancel(Object tag) {
+        ArrayList<OperationHandle> toCancel = new ArrayList<OperationHandle>();
+        synchronized (mOperations) {
+            for (OperationHandle handle : mOperations) {
+                if (tag == null ? handle.getTag() == null : tag.equals(handle.getTag())) {
+                    toCancel.add(handle);
+                }
+            }
+        }
+        for (OperationHandle handle : toCancel) {
+            handle.cancel(true);
+            // not started yet, its run() won't be called anymore
+            if (mHeavyExecutor.remove(handle) || mInteractiveExecutor.remove(handle)) {
+                handle.finish();
+            }
+        }
+        return toCancel.size();
+    }
+
+    /**
+     * Cancels all operations and stops the worker threads.
+     */
+    public void shutdown() {
+        ArrayList<OperationHandle> toCancel;
+        synchronized (mOperations) {
+            toCancel = new ArrayList<OperationHandle>(mOperations);
+        }
+        for (OperationHandle handle : toCancel) {
+            handle.cancel(true);
+        }
+        mInteractiveExecutor.shutdownNow();
+        mHeavyExecutor.shutdownNow();
+    }
+}
@@ -214,14 +214,14 @@ public class CertifyKeyActivity extends ActionBarActivity implements
                     String mainUserId = data.getString(INDEX_USER_ID);
                     ((TextView) findViewById(R.id.main_user_id)).setText(mainUserId);
 
+                    // null for a key whose fingerprint could not be filled in on upgrade
                     byte[] fingerprintBlob = data.getBlob(INDEX_FINGERPRINT);
-                    if (fingerprintBlob == null) {
-                        // FALLBACK for old database entries
-                        fingerprintBlob = ProviderHelper.getFingerprint(this, mDataUri);
+                    if (fingerprintBlob != null) {
+                        String fingerprint =
+                            PgpKeyHelper.convertFingerprintToHex(fingerprintBlob);
+                        ((TextView) findViewById(R.id.fingerprint))
+                            .setText(PgpKeyHelper.colorizeFingerprint(fingerprint));
                     }
-                    String fingerprint = PgpKeyHelper.convertFingerprintToHex(fingerprintBlob);
-                    ((TextView) findViewById(R.id.fingerprint))
-                        .setText(PgpKeyHelper.colorizeFingerprint(fingerprint));
                 }
                 break;
             case LOADER_ID_USER_IDS:
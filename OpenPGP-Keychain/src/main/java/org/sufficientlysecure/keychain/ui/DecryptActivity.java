@@ -22,12 +22,10 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.view.PagerTabStrip;
 import android.support.v4.view.ViewPager;
-import android.widget.Toast;
 
 import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.R;
 import org.thialfihar.android.apg.helper.ActionBarHelper;
-import org.thialfihar.android.apg.helper.FileHelper;
 import org.thialfihar.android.apg.pgp.PgpHelper;
 import org.thialfihar.android.apg.ui.adapter.PagerTabStripAdapter;
 import org.thialfihar.android.apg.util.Log;
@@ -190,21 +188,9 @@ public class DecryptActivity extends DrawerActivity {
                 }
             }
         } else if (ACTION_DECRYPT.equals(action) && uri != null) {
-            // get file path from uri
-            String path = FileHelper.getPath(this, uri);
-
-            if (path != null) {
-                mFileFragmentBundle.putString(DecryptFileFragment.ARG_FILENAME, path);
-                mSwitchToTab = PAGER_TAB_FILE;
-            } else {
-                Log.e(Constants.TAG,
-                        "Direct binary data without actual file in filesystem is not supported. " +
-                        "Please use the Remote Service API!");
-                Toast.makeText(this, R.string.error_only_files_are_supported, Toast.LENGTH_LONG)
-                        .show();
-                // end activity
-                finish();
-            }
+            // streamed by ApgIntentService, works for content without a file path too
+            mFileFragmentBundle.putParcelable(DecryptFileFragment.ARG_URI, uri);
+            mSwitchToTab = PAGER_TAB_FILE;
         } else {
             Log.e(Constants.TAG,
                     "Include the extra 'text' or an Uri with setData() in your Intent!");
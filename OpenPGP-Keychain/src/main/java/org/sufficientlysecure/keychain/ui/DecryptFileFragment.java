@@ -20,6 +20,7 @@ package org.thialfihar.android.apg.ui;
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -49,6 +50,7 @@ import java.io.File;
 
 public class DecryptFileFragment extends DecryptFragment {
     public static final String ARG_FILENAME = "filename";
+    public static final String ARG_URI = "uri";
 
     private static final int RESULT_CODE_FILE = 0x00007003;
 
@@ -59,6 +61,7 @@ public class DecryptFileFragment extends DecryptFragment {
     private BootstrapButton mDecryptButton;
 
     private String mInputFilename = null;
+    private Uri mInputUri = null;
     private String mOutputFilename = null;
 
     private FileDialogFragment mFileDialog;
@@ -98,10 +101,30 @@ public class DecryptFileFragment extends DecryptFragment {
         if (filename != null) {
             mFilename.setText(filename);
         }
+        Uri uri = getArguments().getParcelable(ARG_URI);
+        if (uri != null) {
+            setInputUri(uri);
+        }
+    }
+
+    /**
+     * Decrypts the content behind uri, streamed by ApgIntentService. Content without a file path
+     * can't be deleted afterwards.
+     */
+    private void setInputUri(Uri uri) {
+        mInputUri = uri;
+        mInputFilename = FileHelper.getDisplayName(getActivity(), uri);
+        mFilename.setText(mInputFilename);
+        guessOutputFilename();
+
+        boolean hasPath = FileHelper.getPath(getActivity(), uri) != null;
+        if (!hasPath) {
+            mDeleteAfter.setChecked(false);
+        }
+        mDeleteAfter.setEnabled(hasPath);
     }
 
     private void guessOutputFilename() {
-        mInputFilename = mFilename.getText().toString();
         File file = new File(mInputFilename);
         String filename = file.getName();
         if (filename.endsWith(".asc") || filename.endsWith(".gpg") || filename.endsWith(".pgp")) {
@@ -113,6 +136,10 @@ public class DecryptFileFragment extends DecryptFragment {
     private void decryptAction() {
         String currentFilename = mFilename.getText().toString();
         if (mInputFilename == null || !mInputFilename.equals(currentFilename)) {
+            mInputFilename = currentFilename;
+            // typed in by hand
+            mInputUri = null;
+            mDeleteAfter.setEnabled(true);
             guessOutputFilename();
         }
 
@@ -172,13 +199,19 @@ public class DecryptFileFragment extends DecryptFragment {
         intent.setAction(ApgIntentService.ACTION_DECRYPT_VERIFY);
 
         // data
-        data.putInt(ApgIntentService.TARGET, ApgIntentService.TARGET_URI);
-
         Log.d(Constants.TAG, "mInputFilename=" + mInputFilename + ", mOutputFilename="
                 + mOutputFilename);
 
-        data.putString(ApgIntentService.ENCRYPT_INPUT_FILE, mInputFilename);
-        data.putString(ApgIntentService.ENCRYPT_OUTPUT_FILE, mOutputFilename);
+        if (mInputUri != null) {
+            data.putInt(ApgIntentService.TARGET, ApgIntentService.TARGET_STREAM);
+            data.putParcelable(ApgIntentService.ENCRYPT_PROVIDER_URI, mInputUri);
+            data.putParcelable(ApgIntentService.ENCRYPT_OUTPUT_URI,
+                    Uri.fromFile(new File(mOutputFilename)));
+        } else {
+            data.putInt(ApgIntentService.TARGET, ApgIntentService.TARGET_URI);
+            data.putString(ApgIntentService.ENCRYPT_INPUT_FILE, mInputFilename);
+            data.putString(ApgIntentService.ENCRYPT_OUTPUT_FILE, mOutputFilename);
+        }
 
         data.putString(ApgIntentService.DECRYPT_PASSPHRASE, passphrase);
 
@@ -238,15 +271,8 @@ public class DecryptFileFragment extends DecryptFragment {
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         switch (requestCode) {
             case RESULT_CODE_FILE: {
-                if (resultCode == Activity.RESULT_OK && data != null) {
-                    try {
-                        String path = FileHelper.getPath(getActivity(), data.getData());
-                        Log.d(Constants.TAG, "path=" + path);
-
-                        mFilename.setText(path);
-                    } catch (NullPointerException e) {
-                        Log.e(Constants.TAG, "Nullpointer while retrieving path!");
-                    }
+                if (resultCode == Activity.RESULT_OK && data != null && data.getData() != null) {
+                    setInputUri(data.getData());
                 }
                 return;
             }
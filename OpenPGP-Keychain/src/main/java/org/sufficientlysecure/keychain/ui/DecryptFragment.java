@@ -127,17 +127,13 @@ public class DecryptFragment extends Fragment {
             }
 
             switch (signatureResult.getStatus()) {
+                case OpenPgpSignatureResult.SIGNATURE_SUCCESS_CERTIFIED:
                 case OpenPgpSignatureResult.SIGNATURE_SUCCESS_UNCERTIFIED: {
                     mSignatureStatusImage.setImageResource(R.drawable.overlay_ok);
                     mLookupKey.setVisibility(View.GONE);
                     break;
                 }
 
-                // TODO!
-//                            case OpenPgpSignatureResult.SIGNATURE_SUCCESS_CERTIFIED: {
-//                                break;
-//                            }
-
                 case OpenPgpSignatureResult.SIGNATURE_UNKNOWN_PUB_KEY: {
                     mSignatureStatusImage.setImageResource(R.drawable.overlay_error);
                     mLookupKey.setVisibility(View.VISIBLE);
@@ -41,6 +41,7 @@ import org.thialfihar.android.apg.pgp.PgpDecryptVerifyResult;
 import org.thialfihar.android.apg.pgp.PgpHelper;
 import org.thialfihar.android.apg.service.ApgIntentService;
 import org.thialfihar.android.apg.service.ApgIntentServiceHandler;
+import org.thialfihar.android.apg.service.ByteHandleStore;
 import org.thialfihar.android.apg.util.Log;
 
 import java.util.regex.Matcher;
@@ -146,7 +147,8 @@ public class DecryptMessageFragment extends DecryptFragment {
 
         // data
         data.putInt(ApgIntentService.TARGET, ApgIntentService.TARGET_BYTES);
-        data.putByteArray(ApgIntentService.DECRYPT_CIPHERTEXT_BYTES, mCiphertext.getBytes());
+        ByteHandleStore.putBytes(data, ApgIntentService.DECRYPT_CIPHERTEXT_BYTES,
+                mCiphertext.getBytes());
         data.putString(ApgIntentService.DECRYPT_PASSPHRASE, passphrase);
 
         intent.putExtra(ApgIntentService.EXTRA_DATA, data);
@@ -181,14 +183,16 @@ public class DecryptMessageFragment extends DecryptFragment {
                             intent.putExtra("signatureKeyId", signatureResult.getKeyId());
                             intent.putExtra("signatureSuccess",
                                 signatureResult.getStatus() ==
-                                    OpenPgpSignatureResult.SIGNATURE_SUCCESS_UNCERTIFIED);
+                                    OpenPgpSignatureResult.SIGNATURE_SUCCESS_UNCERTIFIED
+                                || signatureResult.getStatus() ==
+                                    OpenPgpSignatureResult.SIGNATURE_SUCCESS_CERTIFIED);
                             intent.putExtra("signatureUnknown",
                                 signatureResult.getStatus() ==
                                     OpenPgpSignatureResult.SIGNATURE_UNKNOWN_PUB_KEY);
                         }
 
-                        byte[] decryptedMessage = returnData
-                                .getByteArray(ApgIntentService.RESULT_DECRYPTED_BYTES);
+                        byte[] decryptedMessage = ByteHandleStore.getBytes(returnData,
+                                ApgIntentService.RESULT_DECRYPTED_BYTES);
                         intent.putExtra("decryptedMessage", new String(decryptedMessage));
                         activity.setResult(Activity.RESULT_OK, intent);
                         activity.finish();
@@ -197,8 +201,8 @@ public class DecryptMessageFragment extends DecryptFragment {
                         AppMsg.makeText(getActivity(), R.string.decryption_successful,
                                 AppMsg.STYLE_INFO).show();
 
-                        byte[] decryptedMessage = returnData
-                                .getByteArray(ApgIntentService.RESULT_DECRYPTED_BYTES);
+                        byte[] decryptedMessage = ByteHandleStore.getBytes(returnData,
+                                ApgIntentService.RESULT_DECRYPTED_BYTES);
                         mMessage.setText(new String(decryptedMessage));
                         mMessage.setHorizontallyScrolling(false);
 
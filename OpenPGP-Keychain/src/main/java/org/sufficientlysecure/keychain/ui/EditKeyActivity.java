@@ -213,8 +213,8 @@ public class EditKeyActivity extends ActionBarActivity implements EditorListener
                             new DialogInterface.OnCancelListener() {
                                 @Override
                                 public void onCancel(DialogInterface dialog) {
-                                    // Stop key generation on cancel
-                                    stopService(serviceIntent);
+                                    // Cancel key generation
+                                    ApgIntentService.cancel(EditKeyActivity.this, serviceIntent);
                                     EditKeyActivity.this.setResult(Activity.RESULT_CANCELED);
                                     EditKeyActivity.this.finish();
                                 }
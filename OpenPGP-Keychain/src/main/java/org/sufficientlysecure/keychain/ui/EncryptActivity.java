@@ -22,13 +22,11 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.view.PagerTabStrip;
 import android.support.v4.view.ViewPager;
-import android.widget.Toast;
 
 import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.Id;
 import org.thialfihar.android.apg.R;
 import org.thialfihar.android.apg.helper.ActionBarHelper;
-import org.thialfihar.android.apg.helper.FileHelper;
 import org.thialfihar.android.apg.ui.adapter.PagerTabStripAdapter;
 import org.thialfihar.android.apg.util.Log;
 
@@ -249,21 +247,9 @@ public class EncryptActivity extends DrawerActivity implements
         } else if (ACTION_ENCRYPT.equals(action) && uri != null) {
             // encrypt file based on Uri
 
-            // get file path from uri
-            String path = FileHelper.getPath(this, uri);
-
-            if (path != null) {
-                mFileFragmentBundle.putString(EncryptFileFragment.ARG_FILENAME, path);
-                mSwitchToContent = PAGER_CONTENT_FILE;
-            } else {
-                Log.e(Constants.TAG,
-                        "Direct binary data without actual file in filesystem is not supported " +
-                        "by Intents. Please use the Remote Service API!");
-                Toast.makeText(this, R.string.error_only_files_are_supported, Toast.LENGTH_LONG)
-                        .show();
-                // end activity
-                finish();
-            }
+            // streamed by ApgIntentService, works for content without a file path too
+            mFileFragmentBundle.putParcelable(EncryptFileFragment.ARG_URI, uri);
+            mSwitchToContent = PAGER_CONTENT_FILE;
         } else {
             Log.e(Constants.TAG,
                     "Include the extra 'text' or an Uri with setData() in your Intent!");
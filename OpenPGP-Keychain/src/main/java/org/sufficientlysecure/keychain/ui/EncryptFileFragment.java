@@ -55,6 +55,7 @@ import java.io.File;
 
 public class EncryptFileFragment extends Fragment {
     public static final String ARG_FILENAME = "filename";
+    public static final String ARG_URI = "uri";
     public static final String ARG_ASCII_ARMOR = "ascii_armor";
 
     private static final int RESULT_CODE_FILE = 0x00007003;
@@ -74,6 +75,7 @@ public class EncryptFileFragment extends Fragment {
 
     // model
     private String mInputFilename = null;
+    private Uri mInputUri = null;
     private String mOutputFilename = null;
 
     @Override
@@ -151,12 +153,32 @@ public class EncryptFileFragment extends Fragment {
         if (filename != null) {
             mFilename.setText(filename);
         }
+        Uri uri = getArguments().getParcelable(ARG_URI);
+        if (uri != null) {
+            setInputUri(uri);
+        }
         boolean asciiArmor = getArguments().getBoolean(ARG_ASCII_ARMOR);
         if (asciiArmor) {
             mAsciiArmor.setChecked(asciiArmor);
         }
     }
 
+    /**
+     * Encrypts the content behind uri, streamed by ApgIntentService. Content without a file path
+     * can't be deleted afterwards.
+     */
+    private void setInputUri(Uri uri) {
+        mInputUri = uri;
+        mInputFilename = FileHelper.getDisplayName(getActivity(), uri);
+        mFilename.setText(mInputFilename);
+
+        boolean hasPath = FileHelper.getPath(getActivity(), uri) != null;
+        if (!hasPath) {
+            mDeleteAfter.setChecked(false);
+        }
+        mDeleteAfter.setEnabled(hasPath);
+    }
+
     /**
      * Guess output filename based on input path
      *
@@ -167,7 +189,12 @@ public class EncryptFileFragment extends Fragment {
         // output in the same directory but with additional ending
         File file = new File(path);
         String ending = (mAsciiArmor.isChecked() ? ".asc" : ".gpg");
-        String outputFilename = file.getParent() + File.separator + file.getName() + ending;
+        String parent = file.getParent();
+        if (parent == null) {
+            // content without a file path
+            parent = Constants.Path.APP_DIR;
+        }
+        String outputFilename = parent + File.separator + file.getName() + ending;
 
         return outputFilename;
     }
@@ -199,6 +226,9 @@ public class EncryptFileFragment extends Fragment {
         String currentFilename = mFilename.getText().toString();
         if (mInputFilename == null || !mInputFilename.equals(currentFilename)) {
             mInputFilename = mFilename.getText().toString();
+            // typed in by hand
+            mInputUri = null;
+            mDeleteAfter.setEnabled(true);
         }
 
         mOutputFilename = guessOutputFilename(mInputFilename);
@@ -208,7 +238,7 @@ public class EncryptFileFragment extends Fragment {
             return;
         }
 
-        if (!mInputFilename.startsWith("content")) {
+        if (mInputUri == null) {
             File file = new File(mInputFilename);
             if (!file.exists() || !file.isFile()) {
                 AppMsg.makeText(
@@ -281,8 +311,6 @@ public class EncryptFileFragment extends Fragment {
         // fill values for this action
         Bundle data = new Bundle();
 
-        data.putInt(ApgIntentService.TARGET, ApgIntentService.TARGET_URI);
-
         if (mEncryptInterface.isModeSymmetric()) {
             Log.d(Constants.TAG, "Symmetric encryption enabled!");
             String passphrase = mEncryptInterface.getPassphrase();
@@ -300,8 +328,16 @@ public class EncryptFileFragment extends Fragment {
         Log.d(Constants.TAG, "mInputFilename=" + mInputFilename + ", mOutputFilename="
                 + mOutputFilename);
 
-        data.putString(ApgIntentService.ENCRYPT_INPUT_FILE, mInputFilename);
-        data.putString(ApgIntentService.ENCRYPT_OUTPUT_FILE, mOutputFilename);
+        if (mInputUri != null) {
+            data.putInt(ApgIntentService.TARGET, ApgIntentService.TARGET_STREAM);
+            data.putParcelable(ApgIntentService.ENCRYPT_PROVIDER_URI, mInputUri);
+            data.putParcelable(ApgIntentService.ENCRYPT_OUTPUT_URI,
+                    Uri.fromFile(new File(mOutputFilename)));
+        } else {
+            data.putInt(ApgIntentService.TARGET, ApgIntentService.TARGET_URI);
+            data.putString(ApgIntentService.ENCRYPT_INPUT_FILE, mInputFilename);
+            data.putString(ApgIntentService.ENCRYPT_OUTPUT_FILE, mOutputFilename);
+        }
 
         boolean useAsciiArmor = mAsciiArmor.isChecked();
         data.putBoolean(ApgIntentService.ENCRYPT_USE_ASCII_ARMOR, useAsciiArmor);
@@ -357,15 +393,8 @@ public class EncryptFileFragment extends Fragment {
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         switch (requestCode) {
             case RESULT_CODE_FILE: {
-                if (resultCode == Activity.RESULT_OK && data != null) {
-                    try {
-                        String path = FileHelper.getPath(getActivity(), data.getData());
-                        Log.d(Constants.TAG, "path=" + path);
-
-                        mFilename.setText(path);
-                    } catch (NullPointerException e) {
-                        Log.e(Constants.TAG, "Nullpointer while retrieving path!");
-                    }
+                if (resultCode == Activity.RESULT_OK && data != null && data.getData() != null) {
+                    setInputUri(data.getData());
                 }
                 return;
             }
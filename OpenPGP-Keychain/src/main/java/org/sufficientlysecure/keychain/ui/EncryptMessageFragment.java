@@ -39,6 +39,7 @@ import org.thialfihar.android.apg.compatibility.ClipboardReflection;
 import org.thialfihar.android.apg.helper.Preferences;
 import org.thialfihar.android.apg.service.ApgIntentService;
 import org.thialfihar.android.apg.service.ApgIntentServiceHandler;
+import org.thialfihar.android.apg.service.ByteHandleStore;
 import org.thialfihar.android.apg.service.PassphraseCacheService;
 import org.thialfihar.android.apg.ui.dialog.PassphraseDialogFragment;
 import org.thialfihar.android.apg.util.Log;
@@ -211,7 +212,7 @@ public class EncryptMessageFragment extends Fragment {
             }
         }
 
-        data.putByteArray(ApgIntentService.ENCRYPT_MESSAGE_BYTES, message.getBytes());
+        ByteHandleStore.putBytes(data, ApgIntentService.ENCRYPT_MESSAGE_BYTES, message.getBytes());
 
         data.putBoolean(ApgIntentService.ENCRYPT_USE_ASCII_ARMOR, true);
 
@@ -233,7 +234,8 @@ public class EncryptMessageFragment extends Fragment {
                     // get returned data bundle
                     Bundle data = message.getData();
 
-                    String output = new String(data.getByteArray(ApgIntentService.RESULT_BYTES));
+                    String output = new String(
+                            ByteHandleStore.getBytes(data, ApgIntentService.RESULT_BYTES));
                     Log.d(Constants.TAG, "output: " + output);
 
                     if (mLegacyMode) {
@@ -383,6 +383,9 @@ public class ImportKeysActivity extends DrawerActivity implements ActionBar.OnNa
                     int added = returnData.getInt(ApgIntentService.RESULT_IMPORT_ADDED);
                     int updated = returnData.getInt(ApgIntentService.RESULT_IMPORT_UPDATED);
                     int bad = returnData.getInt(ApgIntentService.RESULT_IMPORT_BAD);
+                    int failed = returnData.getInt(ApgIntentService.RESULT_IMPORT_FAILED);
+                    int downloadFailed =
+                            returnData.getInt(ApgIntentService.RESULT_DOWNLOAD_FAILED);
                     String toastMessage;
                     if (added > 0 && updated > 0) {
                         String addedStr = getResources().getQuantityString(
@@ -399,6 +402,14 @@ public class ImportKeysActivity extends DrawerActivity implements ActionBar.OnNa
                     } else {
                         toastMessage = getString(R.string.no_keys_added_or_updated);
                     }
+                    if (downloadFailed > 0) {
+                        toastMessage += getResources().getQuantityString(
+                                R.plurals.keys_download_failed, downloadFailed, downloadFailed);
+                    }
+                    if (failed > 0) {
+                        toastMessage += getResources().getQuantityString(
+                                R.plurals.keys_import_failed, failed, failed);
+                    }
                     AppMsg.makeText(ImportKeysActivity.this, toastMessage, AppMsg.STYLE_INFO)
                             .show();
                     if (bad > 0) {
@@ -162,6 +162,9 @@ public class ImportKeysListFragment extends ListFragment implements
         mAdapter.notifyDataSetChanged();
     }
 
+    /**
+     * @param keyServer null to search all keyservers
+     */
     public void loadNew(byte[] keyBytes, Uri dataUri, String serverQuery, String keyServer) {
         mKeyBytes = keyBytes;
         mDataUri = dataUri;
@@ -175,7 +178,7 @@ public class ImportKeysListFragment extends ListFragment implements
             getLoaderManager().restartLoader(LOADER_ID_BYTES, null, this);
         }
 
-        if (mServerQuery != null && mKeyServer != null) {
+        if (mServerQuery != null) {
             // Start out with a progress indicator.
             setListShown(false);
 
@@ -192,7 +195,9 @@ public class ImportKeysListFragment extends ListFragment implements
                 return new ImportKeysListLoader(mActivity, inputData);
             }
             case LOADER_ID_SERVER_QUERY: {
-                return new ImportKeysListServerLoader(getActivity(), mServerQuery, mKeyServer);
+                String[] keyServers = mKeyServer != null ? new String[] {mKeyServer}
+                        : Preferences.getPreferences(getActivity()).getKeyServers();
+                return new ImportKeysListServerLoader(getActivity(), mServerQuery, keyServers);
             }
 
             default:
@@ -245,7 +250,9 @@ public class ImportKeysListFragment extends ListFragment implements
                 break;
 
             case LOADER_ID_SERVER_QUERY:
-                if (error == null) {
+                if (((ImportKeysListServerLoader) loader).isSearching()) {
+                    // more results are coming
+                } else if (error == null) {
                     AppMsg.makeText(
                             getActivity(), getResources().getQuantityString(R.plurals.keys_found,
                             mAdapter.getCount(), mAdapter.getCount()),
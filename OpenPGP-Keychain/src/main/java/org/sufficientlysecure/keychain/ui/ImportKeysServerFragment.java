@@ -39,6 +39,9 @@ import org.thialfihar.android.apg.R;
 import org.thialfihar.android.apg.helper.Preferences;
 import org.thialfihar.android.apg.util.Log;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 public class ImportKeysServerFragment extends Fragment {
     public static final String ARG_QUERY = "query";
     public static final String ARG_KEY_SERVER = "key_server";
@@ -49,6 +52,7 @@ public class ImportKeysServerFragment extends Fragment {
     private EditText mQueryEditText;
     private Spinner mServerSpinner;
     private ArrayAdapter<String> mServerAdapter;
+    private int mAllKeyServersPosition = -1;
 
     /**
      * Creates new instance of this fragment
@@ -76,10 +80,15 @@ public class ImportKeysServerFragment extends Fragment {
         mQueryEditText = (EditText) view.findViewById(R.id.import_server_query);
         mServerSpinner = (Spinner) view.findViewById(R.id.import_server_spinner);
 
-        // add keyservers to spinner
+        // add keyservers to spinner, followed by the entry to search all of them
+        String[] keyServers = Preferences.getPreferences(getActivity()).getKeyServers();
         mServerAdapter = new ArrayAdapter<String>(getActivity(),
-                android.R.layout.simple_spinner_item, Preferences.getPreferences(getActivity())
-                .getKeyServers());
+                android.R.layout.simple_spinner_item,
+                new ArrayList<String>(Arrays.asList(keyServers)));
+        if (keyServers.length > 1) {
+            mAllKeyServersPosition = keyServers.length;
+            mServerAdapter.add(getString(R.string.label_all_key_servers));
+        }
         mServerAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
         mServerSpinner.setAdapter(mServerAdapter);
         if (mServerAdapter.getCount() > 0) {
@@ -92,8 +101,7 @@ public class ImportKeysServerFragment extends Fragment {
             @Override
             public void onClick(View v) {
                 String query = mQueryEditText.getText().toString();
-                String keyServer = (String) mServerSpinner.getSelectedItem();
-                search(query, keyServer);
+                search(query, getSelectedKeyServer());
 
                 // close keyboard after pressing search
                 InputMethodManager imm =
@@ -107,8 +115,7 @@ public class ImportKeysServerFragment extends Fragment {
             public boolean onEditorAction(TextView v, int actionId, KeyEvent event) {
                 if (actionId == EditorInfo.IME_ACTION_SEARCH) {
                     String query = mQueryEditText.getText().toString();
-                    String keyServer = (String) mServerSpinner.getSelectedItem();
-                    search(query, keyServer);
+                    search(query, getSelectedKeyServer());
 
                     // Don't return true to let the keyboard close itself after pressing search
                     // http://bit.ly/1n52gUM
@@ -146,6 +153,16 @@ public class ImportKeysServerFragment extends Fragment {
         }
     }
 
+    /**
+     * @return the selected keyserver, null if all keyservers are selected
+     */
+    private String getSelectedKeyServer() {
+        if (mServerSpinner.getSelectedItemPosition() == mAllKeyServersPosition) {
+            return null;
+        }
+        return (String) mServerSpinner.getSelectedItem();
+    }
+
     private void search(String query, String keyServer) {
         mImportActivity.loadCallback(null, null, query, keyServer);
     }
@@ -195,6 +195,11 @@ public class KeyListFragment extends Fragment
                             encrypt(mode, ids);
                             break;
                         }
+                        case R.id.menu_key_list_multi_upload: {
+                            ids = mAdapter.getCurrentSelectedMasterKeyIds();
+                            upload(mode, ids);
+                            break;
+                        }
                         case R.id.menu_key_list_multi_delete: {
                             ids = mStickyList.getWrappedList().getCheckedItemIds();
                             showDeleteKeyDialog(mode, ids);
@@ -362,6 +367,15 @@ public class KeyListFragment extends Fragment
         mode.finish();
     }
 
+    @TargetApi(11)
+    protected void upload(ActionMode mode, long[] keyRingMasterKeyIds) {
+        Intent intent = new Intent(getActivity(), UploadKeyActivity.class);
+        intent.putExtra(UploadKeyActivity.EXTRA_MASTER_KEY_IDS, keyRingMasterKeyIds);
+        startActivity(intent);
+
+        mode.finish();
+    }
+
     /**
      * Show dialog to delete key
      *
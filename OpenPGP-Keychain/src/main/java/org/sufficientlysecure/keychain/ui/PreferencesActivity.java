@@ -18,6 +18,7 @@ package org.thialfihar.android.apg.ui;
 
 import android.annotation.SuppressLint;
 import android.content.Intent;
+import android.content.res.Resources;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.CheckBoxPreference;
@@ -33,6 +34,9 @@ import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.Id;
 import org.thialfihar.android.apg.R;
 import org.thialfihar.android.apg.helper.Preferences;
+import org.thialfihar.android.apg.pgp.HkpKeyServer;
+import org.thialfihar.android.apg.pgp.KeyServerCache;
+import org.thialfihar.android.apg.service.KeyRefresher;
 import org.thialfihar.android.apg.ui.widget.IntegerListPreference;
 
 import java.util.List;
@@ -64,6 +68,12 @@ public class PreferencesActivity extends PreferenceActivity {
             initializePassPassPhraceCacheTtl(
                     (IntegerListPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_TTL));
 
+            initializeKeyServerCacheTtl(getResources(),
+                    (IntegerListPreference) findPreference(Constants.Pref.KEY_SERVER_CACHE_TTL));
+
+            initializeRefreshKeys(
+                    (CheckBoxPreference) findPreference(Constants.Pref.REFRESH_KEYS));
+
             mKeyServerPreference = (PreferenceScreen) findPreference(Constants.Pref.KEY_SERVERS);
             String servers[] = sPreferences.getKeyServers();
             mKeyServerPreference.setSummary(getResources().getQuantityString(R.plurals.n_key_servers,
@@ -166,6 +176,12 @@ public class PreferencesActivity extends PreferenceActivity {
             initializePassPassPhraceCacheTtl(
                     (IntegerListPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_TTL));
 
+            initializeKeyServerCacheTtl(getResources(),
+                    (IntegerListPreference) findPreference(Constants.Pref.KEY_SERVER_CACHE_TTL));
+
+            initializeRefreshKeys(
+                    (CheckBoxPreference) findPreference(Constants.Pref.REFRESH_KEYS));
+
             mKeyServerPreference = (PreferenceScreen) findPreference(Constants.Pref.KEY_SERVERS);
             String servers[] = sPreferences.getKeyServers();
             mKeyServerPreference.setSummary(getResources().getQuantityString(R.plurals.n_key_servers,
@@ -271,6 +287,40 @@ public class PreferencesActivity extends PreferenceActivity {
                 });
     }
 
+    private static void initializeKeyServerCacheTtl(
+            final Resources resources, final IntegerListPreference mKeyServerCacheTtl) {
+        mKeyServerCacheTtl.setValue("" + sPreferences.getKeyServerCacheTtl());
+        setKeyServerCacheSummary(resources, mKeyServerCacheTtl);
+        mKeyServerCacheTtl
+                .setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                    public boolean onPreferenceChange(Preference preference, Object newValue) {
+                        int ttl = Integer.parseInt(newValue.toString());
+                        mKeyServerCacheTtl.setValue(newValue.toString());
+                        sPreferences.setKeyServerCacheTtl(ttl);
+                        // used from the next request on, not only after a restart
+                        KeyServerCache cache = HkpKeyServer.getCache();
+                        if (cache != null) {
+                            cache.setTtl(ttl * 1000L);
+                        }
+                        setKeyServerCacheSummary(resources, mKeyServerCacheTtl);
+                        return false;
+                    }
+                });
+    }
+
+    private static void setKeyServerCacheSummary(Resources resources,
+                                                 IntegerListPreference keyServerCacheTtl) {
+        KeyServerCache cache = HkpKeyServer.getCache();
+        int requests = (cache == null) ? 0 : cache.getHitCount() + cache.getRevalidationCount()
+                + cache.getMissCount();
+        if (requests == 0) {
+            keyServerCacheTtl.setSummary(keyServerCacheTtl.getEntry());
+            return;
+        }
+        keyServerCacheTtl.setSummary(resources.getString(R.string.label_key_server_cache_summary,
+                keyServerCacheTtl.getEntry(), Math.round(cache.getHitRate() * 100), requests));
+    }
+
     private static void initializeEncryptionAlgorithm(final IntegerListPreference mEncryptionAlgorithm) {
         int valueIds[] = { PGPEncryptedData.AES_128, PGPEncryptedData.AES_192,
                 PGPEncryptedData.AES_256, PGPEncryptedData.BLOWFISH, PGPEncryptedData.TWOFISH,
@@ -380,4 +430,16 @@ public class PreferencesActivity extends PreferenceActivity {
                     }
                 });
     }
+
+    private static void initializeRefreshKeys(final CheckBoxPreference mRefreshKeys) {
+        mRefreshKeys.setChecked(sPreferences.getRefreshKeys());
+        mRefreshKeys.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                mRefreshKeys.setChecked((Boolean) newValue);
+                sPreferences.setRefreshKeys((Boolean) newValue);
+                KeyRefresher.schedule(preference.getContext());
+                return false;
+            }
+        });
+    }
 }
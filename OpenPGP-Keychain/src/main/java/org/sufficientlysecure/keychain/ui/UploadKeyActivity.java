@@ -40,13 +40,17 @@ import org.thialfihar.android.apg.service.ApgIntentServiceHandler;
 import org.thialfihar.android.apg.util.Log;
 
 /**
- * Sends the selected public key to a keyserver
+ * Sends the selected public key to a keyserver, or the keys given by their master key ids
  */
 public class UploadKeyActivity extends ActionBarActivity {
+    /* extras, instead of the data uri */
+    public static final String EXTRA_MASTER_KEY_IDS = "master_key_ids";
+
     private BootstrapButton mUploadButton;
     private Spinner mKeyServerSpinner;
 
     private Uri mDataUri;
+    private long[] mMasterKeyIds;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -76,7 +80,8 @@ public class UploadKeyActivity extends ActionBarActivity {
         });
 
         mDataUri = getIntent().getData();
-        if (mDataUri == null) {
+        mMasterKeyIds = getIntent().getLongArrayExtra(EXTRA_MASTER_KEY_IDS);
+        if (mDataUri == null && mMasterKeyIds == null) {
             Log.e(Constants.TAG, "Intent data missing. Should be Uri of key!");
             finish();
             return;
@@ -87,14 +92,20 @@ public class UploadKeyActivity extends ActionBarActivity {
         // Send all information needed to service to upload key in other thread
         Intent intent = new Intent(this, ApgIntentService.class);
 
-        intent.setAction(ApgIntentService.ACTION_UPLOAD_KEYRING);
-
-        // set data uri as path to keyring
-        intent.setData(mDataUri);
-
         // fill values for this action
         Bundle data = new Bundle();
 
+        if (mMasterKeyIds != null) {
+            // all keys in one request where the keyserver takes it
+            intent.setAction(ApgIntentService.ACTION_UPLOAD_KEYRINGS);
+            data.putLongArray(ApgIntentService.UPLOAD_KEY_RING_MASTER_KEY_IDS, mMasterKeyIds);
+        } else {
+            intent.setAction(ApgIntentService.ACTION_UPLOAD_KEYRING);
+
+            // set data uri as path to keyring
+            intent.setData(mDataUri);
+        }
+
         String server = (String) mKeyServerSpinner.getSelectedItem();
         data.putString(ApgIntentService.UPLOAD_KEY_SERVER, server);
 
@@ -108,9 +119,28 @@ public class UploadKeyActivity extends ActionBarActivity {
                 super.handleMessage(message);
 
                 if (message.arg1 == ApgIntentServiceHandler.MESSAGE_OKAY) {
-
-                    Toast.makeText(UploadKeyActivity.this, R.string.key_send_success,
-                            Toast.LENGTH_SHORT).show();
+                    if (mMasterKeyIds == null) {
+                        Toast.makeText(UploadKeyActivity.this, R.string.key_send_success,
+                                Toast.LENGTH_SHORT).show();
+                        finish();
+                        return;
+                    }
+
+                    // get returned data bundle
+                    Bundle returnData = message.getData();
+
+                    long[] uploaded = returnData.getLongArray(
+                            ApgIntentService.RESULT_UPLOADED_MASTER_KEY_IDS);
+                    long[] failed = returnData.getLongArray(
+                            ApgIntentService.RESULT_UPLOAD_FAILED_MASTER_KEY_IDS);
+                    String toastMessage = getResources().getQuantityString(
+                            R.plurals.keys_send_success, uploaded.length, uploaded.length);
+                    if (failed.length > 0) {
+                        toastMessage += getResources().getQuantityString(
+                                R.plurals.keys_send_failed, failed.length, failed.length);
+                    }
+                    Toast.makeText(UploadKeyActivity.this, toastMessage, Toast.LENGTH_LONG)
+                            .show();
                     finish();
                 }
             }
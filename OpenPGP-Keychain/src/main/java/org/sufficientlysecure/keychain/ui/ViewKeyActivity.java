@@ -192,7 +192,7 @@ public class ViewKeyActivity extends ActionBarActivity {
         } else {
             // get public key ring as ascii armored string
             long masterKeyId = mProvider.getMasterKeyId(dataUri);
-            KeyRing keyRing = mProvider.getPublicKeyRingByMasterKeyId(masterKeyId);
+            KeyRing keyRing = mProvider.getPublicKeyRingWithExtrasByMasterKeyId(masterKeyId);
             try {
                 content = keyRing.getArmoredEncoded(this);
             } catch (IOException e) {
@@ -227,7 +227,7 @@ public class ViewKeyActivity extends ActionBarActivity {
     private void copyToClipboard(Uri dataUri) {
         // get public keyring as ascii armored string
         long masterKeyId = ProviderHelper.getMasterKeyId(this, dataUri);
-        KeyRing keyRing = mProvider.getPublicKeyRingByMasterKeyId(masterKeyId);
+        KeyRing keyRing = mProvider.getPublicKeyRingWithExtrasByMasterKeyId(masterKeyId);
         String armoredKeyRing;
         try {
             armoredKeyRing = keyRing.getArmoredEncoded(this);
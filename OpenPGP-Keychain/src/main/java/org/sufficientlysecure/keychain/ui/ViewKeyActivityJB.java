@@ -35,6 +35,7 @@ import android.widget.Toast;
 import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.R;
 import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.util.Log;
 
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
 public class ViewKeyActivityJB extends ViewKeyActivity implements CreateNdefMessageCallback,
@@ -67,6 +68,10 @@ public class ViewKeyActivityJB extends ViewKeyActivity implements CreateNdefMess
                 long masterKeyId = ProviderHelper.getMasterKeyId(this, dataUri);
                 mSharedKeyringBytes = ProviderHelper.getKeyRingsAsByteArray(this, dataUri,
                         new long[] { masterKeyId });
+                if (mSharedKeyringBytes == null) {
+                    Log.e(Constants.TAG, "Key ring could not be read, not sharing it by NFC");
+                    return;
+                }
 
                 // Register callback to set NDEF message
                 mNfcAdapter.setNdefPushMessageCallback(this, this);
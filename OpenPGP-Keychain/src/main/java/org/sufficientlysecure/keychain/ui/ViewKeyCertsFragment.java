@@ -18,32 +18,48 @@
 package org.thialfihar.android.apg.ui;
 
 import android.content.Intent;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.CursorLoader;
+import android.support.v4.content.Loader;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ListView;
 
 import com.beardedhen.androidbootstrap.BootstrapButton;
 
 import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.R;
+import org.thialfihar.android.apg.provider.KeychainContract;
+import org.thialfihar.android.apg.ui.adapter.ViewKeyCertsAdapter;
 import org.thialfihar.android.apg.util.Log;
 
 
-public class ViewKeyCertsFragment extends Fragment {
+public class ViewKeyCertsFragment extends Fragment implements
+        LoaderManager.LoaderCallbacks<Cursor> {
 
     public static final String ARG_DATA_URI = "uri";
 
+    private static final int LOADER_ID_CERTS = 0;
+
+    private ListView mCerts;
+    private View mCertsEmpty;
     private BootstrapButton mActionCertify;
 
+    private ViewKeyCertsAdapter mCertsAdapter;
+
     private Uri mDataUri;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.view_key_certs_fragment, container, false);
 
+        mCerts = (ListView) view.findViewById(R.id.certs);
+        mCertsEmpty = view.findViewById(R.id.certs_empty);
         mActionCertify = (BootstrapButton) view.findViewById(R.id.action_certify);
 
         return view;
@@ -81,6 +97,45 @@ public class ViewKeyCertsFragment extends Fragment {
             }
         });
 
+        mCertsAdapter = new ViewKeyCertsAdapter(getActivity(), null, 0);
+        mCerts.setAdapter(mCertsAdapter);
+
+        // certifications are verified in the background when the key ring is saved,
+        // displaying them is a plain query
+        getLoaderManager().initLoader(LOADER_ID_CERTS, null, this);
+    }
+
+    static final String[] CERTS_PROJECTION = new String[] {
+        KeychainContract.Certs._ID,
+        KeychainContract.Certs.USER_ID,
+        KeychainContract.Certs.KEY_ID_CERTIFIER,
+        KeychainContract.Certs.TYPE,
+        KeychainContract.Certs.CREATION,
+        KeychainContract.Certs.VERIFIED,
+        KeychainContract.Certs.SIGNER_USER_ID,
+    };
+
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        Uri baseUri = KeychainContract.Certs.buildCertsUri(mDataUri);
+
+        // Now create and return a CursorLoader that will take care of
+        // creating a Cursor for the data being displayed.
+        return new CursorLoader(getActivity(), baseUri, CERTS_PROJECTION, null, null, null);
+    }
+
+    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        // Swap the new cursor in. (The framework will take care of closing the
+        // old cursor once we return.)
+        mCertsAdapter.swapCursor(data);
+        mCertsEmpty.setVisibility(data.getCount() == 0 ? View.VISIBLE : View.GONE);
+    }
+
+    /**
+     * This is called when the last Cursor provided to onLoadFinished() above is about to be
+     * closed. We need to make sure we are no longer using it.
+     */
+    public void onLoaderReset(Loader<Cursor> loader) {
+        mCertsAdapter.swapCursor(null);
     }
 
     private void certifyKey(Uri dataUri) {
@@ -322,14 +322,13 @@ public class ViewKeyMainFragment extends Fragment  implements
                             data.getInt(KEYS_INDEX_ALGORITHM), data.getInt(KEYS_INDEX_KEY_SIZE));
                     mAlgorithm.setText(algorithmStr);
 
+                    // null for a key whose fingerprint could not be filled in on upgrade
                     byte[] fingerprintBlob = data.getBlob(KEYS_INDEX_FINGERPRINT);
-                    if (fingerprintBlob == null) {
-                        // FALLBACK for old database entries
-                        fingerprintBlob = ProviderHelper.getFingerprint(getActivity(), mDataUri);
+                    if (fingerprintBlob != null) {
+                        String fingerprint =
+                            PgpKeyHelper.convertFingerprintToHex(fingerprintBlob);
+                        mFingerprint.setText(PgpKeyHelper.colorizeFingerprint(fingerprint));
                     }
-                    String fingerprint = PgpKeyHelper.convertFingerprintToHex(fingerprintBlob);
-
-                    mFingerprint.setText(PgpKeyHelper.colorizeFingerprint(fingerprint));
                 }
 
                 // hide encrypt button if no encryption key is available
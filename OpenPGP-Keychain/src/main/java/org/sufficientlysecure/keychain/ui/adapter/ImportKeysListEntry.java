@@ -33,6 +33,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 public class ImportKeysListEntry implements Serializable, Parcelable {
     private static final long serialVersionUID = -7797972103284992662L;
@@ -46,6 +47,7 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
     public int bitStrength;
     public String algorithm;
     public boolean secretKey;
+    public String origin;
 
     private byte[] mBytes = new byte[] {};
     private boolean mSelected;
@@ -60,6 +62,7 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
         this.bitStrength = b.bitStrength;
         this.algorithm = b.algorithm;
         this.secretKey = b.secretKey;
+        this.origin = b.origin;
         this.mSelected = b.mSelected;
         this.mBytes = b.mBytes;
     }
@@ -79,6 +82,7 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
         dest.writeInt(bitStrength);
         dest.writeString(algorithm);
         dest.writeByte((byte) (secretKey ? 1 : 0));
+        dest.writeString(origin);
         dest.writeByte((byte) (mSelected ? 1 : 0));
         dest.writeInt(mBytes.length);
         dest.writeByteArray(mBytes);
@@ -97,6 +101,7 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
             vr.bitStrength = source.readInt();
             vr.algorithm = source.readString();
             vr.secretKey = source.readByte() == 1;
+            vr.origin = source.readString();
             vr.setSelected(source.readByte() == 1);
             vr.setBytes(new byte[source.readInt()]);
             source.readByteArray(vr.mBytes);
@@ -197,6 +202,28 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
         this.userIds = userIds;
     }
 
+    /**
+     * Adds the user ids that aren't in the list yet.
+     */
+    public void addUserIds(List<String> userIds) {
+        for (String userId : userIds) {
+            if (!this.userIds.contains(userId)) {
+                this.userIds.add(userId);
+            }
+        }
+    }
+
+    /**
+     * @return the keyserver this entry was found on, null if it wasn't found on a keyserver
+     */
+    public String getOrigin() {
+        return origin;
+    }
+
+    public void setOrigin(String origin) {
+        this.origin = origin;
+    }
+
     /**
      * Constructor for later querying from keyserver
      */
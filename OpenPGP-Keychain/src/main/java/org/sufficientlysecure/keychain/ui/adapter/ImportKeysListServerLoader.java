@@ -18,30 +18,50 @@
 package org.thialfihar.android.apg.ui.adapter;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.content.AsyncTaskLoader;
 
 import org.thialfihar.android.apg.Constants;
-import org.thialfihar.android.apg.pgp.HkpKeyServer;
 import org.thialfihar.android.apg.pgp.KeyServer;
+import org.thialfihar.android.apg.pgp.KeyServerSearch;
 import org.thialfihar.android.apg.util.Log;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 
 public class ImportKeysListServerLoader
     extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
     private Context mContext;
 
     private String mServerQuery;
-    private String mKeyServer;
+    private String[] mKeyServers;
+    private Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean mSearching = false;
 
     private ArrayList<ImportKeysListEntry> mEntryList = new ArrayList<ImportKeysListEntry>();
     private AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
+    // the entries shown last, only used on the main thread
+    private List<ImportKeysListEntry> mDelivered;
 
-    public ImportKeysListServerLoader(Context context, String serverQuery, String keyServer) {
+    /**
+     * @param keyServers all of them are queried at once, results are delivered as they come in
+     */
+    public ImportKeysListServerLoader(Context context, String serverQuery, String[] keyServers) {
         super(context);
         mContext = context;
         mServerQuery = serverQuery;
-        mKeyServer = keyServer;
+        mKeyServers = keyServers;
+    }
+
+    /**
+     * @return true if the delivered result is partial, because more keyservers are still being
+     *         waited for
+     */
+    public boolean isSearching() {
+        return mSearching;
     }
 
     @Override
@@ -54,7 +74,12 @@ public class ImportKeysListServerLoader
             return mEntryListWrapper;
         }
 
-        queryServer(mServerQuery, mKeyServer);
+        mSearching = true;
+        try {
+            queryServers(mServerQuery, mKeyServers);
+        } finally {
+            mSearching = false;
+        }
 
         return mEntryListWrapper;
     }
@@ -79,16 +104,57 @@ public class ImportKeysListServerLoader
 
     @Override
     public void deliverResult(AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> data) {
+        // every result consists of new entries, the user may have selected some of the shown
+        // ones meanwhile
+        ArrayList<ImportKeysListEntry> entries = data.getResult();
+        if (mDelivered != null && entries != null) {
+            keepSelection(mDelivered, entries);
+        }
+        mDelivered = entries;
         super.deliverResult(data);
     }
 
     /**
-     * Query keyserver
+     * Entries are the same if their fingerprints match, an entry that got its fingerprint from
+     * another keyserver is found by its key id.
      */
-    private void queryServer(String query, String keyServer) {
-        HkpKeyServer server = new HkpKeyServer(keyServer);
+    private static void keepSelection(List<ImportKeysListEntry> shown,
+                                      List<ImportKeysListEntry> entries) {
+        HashMap<String, Boolean> selected = new HashMap<String, Boolean>();
+        for (ImportKeysListEntry entry : shown) {
+            if (entry.getFingerPrintHex() != null) {
+                selected.put(entry.getFingerPrintHex(), entry.isSelected());
+            }
+            if (entry.getKeyIdHex() != null) {
+                selected.put(entry.getKeyIdHex().toLowerCase(Locale.US), entry.isSelected());
+            }
+        }
+        for (ImportKeysListEntry entry : entries) {
+            Boolean wasSelected = null;
+            if (entry.getFingerPrintHex() != null) {
+                wasSelected = selected.get(entry.getFingerPrintHex());
+            }
+            if (wasSelected == null && entry.getKeyIdHex() != null) {
+                wasSelected = selected.get(entry.getKeyIdHex().toLowerCase(Locale.US));
+            }
+            if (wasSelected != null) {
+                entry.setSelected(wasSelected);
+            }
+        }
+    }
+
+    /**
+     * Query keyservers
+     */
+    private void queryServers(String query, String[] keyServers) {
         try {
-            ArrayList<ImportKeysListEntry> searchResult = server.search(query);
+            ArrayList<ImportKeysListEntry> searchResult = KeyServerSearch.search(query, keyServers,
+                    new KeyServerSearch.Listener() {
+                        @Override
+                        public void onPartialResult(ArrayList<ImportKeysListEntry> results) {
+                            deliverPartialResult(results);
+                        }
+                    });
 
             mEntryList.clear();
             // add result to data
@@ -106,4 +172,20 @@ public class ImportKeysListServerLoader
         }
     }
 
+    /**
+     * Shows the results of the keyservers that answered first while waiting for the others
+     */
+    private void deliverPartialResult(final ArrayList<ImportKeysListEntry> results) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // the complete result may have been delivered in the meantime
+                if (mSearching && isStarted()) {
+                    deliverResult(new AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>(
+                            results, null));
+                }
+            }
+        });
+    }
+
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2010-2014 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg.ui.adapter;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.v4.widget.CursorAdapter;
+import android.text.format.DateFormat;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import org.spongycastle.openpgp.PGPSignature;
+
+import org.thialfihar.android.apg.R;
+import org.thialfihar.android.apg.pgp.PgpKeyHelper;
+import org.thialfihar.android.apg.provider.KeychainContract.Certs;
+
+import java.util.Date;
+
+public class ViewKeyCertsAdapter extends CursorAdapter {
+    private LayoutInflater mInflater;
+
+    private int mIndexUserId, mIndexKeyIdCertifier, mIndexType, mIndexCreation, mIndexVerified,
+            mIndexSignerUserId;
+
+    public ViewKeyCertsAdapter(Context context, Cursor c, int flags) {
+        super(context, c, flags);
+
+        mInflater = LayoutInflater.from(context);
+
+        initIndex(c);
+    }
+
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        initIndex(newCursor);
+
+        return super.swapCursor(newCursor);
+    }
+
+    /**
+     * Get column indexes for performance reasons just once in constructor and swapCursor. For a
+     * performance comparison see http://stackoverflow.com/a/17999582
+     *
+     * @param cursor
+     */
+    private void initIndex(Cursor cursor) {
+        if (cursor != null) {
+            mIndexUserId = cursor.getColumnIndexOrThrow(Certs.USER_ID);
+            mIndexKeyIdCertifier = cursor.getColumnIndexOrThrow(Certs.KEY_ID_CERTIFIER);
+            mIndexType = cursor.getColumnIndexOrThrow(Certs.TYPE);
+            mIndexCreation = cursor.getColumnIndexOrThrow(Certs.CREATION);
+            mIndexVerified = cursor.getColumnIndexOrThrow(Certs.VERIFIED);
+            mIndexSignerUserId = cursor.getColumnIndexOrThrow(Certs.SIGNER_USER_ID);
+        }
+    }
+
+    @Override
+    public void bindView(View view, Context context, Cursor cursor) {
+        TextView vSignerUserId = (TextView) view.findViewById(R.id.signerUserId);
+        TextView vSignerKeyId = (TextView) view.findViewById(R.id.signerKeyId);
+        TextView vCertifiedUserId = (TextView) view.findViewById(R.id.certifiedUserId);
+        TextView vStatus = (TextView) view.findViewById(R.id.status);
+
+        String signerUserId = cursor.getString(mIndexSignerUserId);
+        if (signerUserId != null) {
+            vSignerUserId.setText(signerUserId);
+        } else {
+            vSignerUserId.setText(R.string.user_id_no_name);
+        }
+        vSignerKeyId.setText(
+                PgpKeyHelper.convertKeyIdToHex(cursor.getLong(mIndexKeyIdCertifier)));
+        vCertifiedUserId.setText(cursor.getString(mIndexUserId));
+
+        Date creation = new Date(cursor.getLong(mIndexCreation) * 1000);
+        vStatus.setText(DateFormat.getDateFormat(context).format(creation) + ", "
+                + context.getString(getTypeName(cursor.getInt(mIndexType))) + ", "
+                + context.getString(getVerifiedName(cursor.getInt(mIndexVerified))));
+    }
+
+    private static int getTypeName(int type) {
+        switch (type) {
+            case PGPSignature.NO_CERTIFICATION:
+                return R.string.cert_none;
+            case PGPSignature.CASUAL_CERTIFICATION:
+                return R.string.cert_casual;
+            case PGPSignature.POSITIVE_CERTIFICATION:
+                return R.string.cert_positive;
+            case PGPSignature.CERTIFICATION_REVOCATION:
+                return R.string.cert_revocation;
+            default:
+                return R.string.cert_default;
+        }
+    }
+
+    private static int getVerifiedName(int verified) {
+        switch (verified) {
+            case Certs.VERIFIED_OK:
+                return R.string.cert_verified_ok;
+            case Certs.VERIFIED_BAD:
+                return R.string.cert_verified_bad;
+            case Certs.VERIFIED_CERTIFIER_UNKNOWN:
+                return R.string.cert_verified_unknown;
+            default:
+                return R.string.cert_verified_pending;
+        }
+    }
+
+    @Override
+    public View newView(Context context, Cursor cursor, ViewGroup parent) {
+        return mInflater.inflate(R.layout.view_key_certs_item, null);
+    }
+
+}
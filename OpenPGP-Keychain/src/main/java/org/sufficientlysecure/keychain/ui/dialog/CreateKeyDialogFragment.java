@@ -31,9 +31,11 @@ import android.widget.Spinner;
 
 import org.thialfihar.android.apg.Id;
 import org.thialfihar.android.apg.R;
+import org.thialfihar.android.apg.util.AlgorithmNames;
 import org.thialfihar.android.apg.util.Choice;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 public class CreateKeyDialogFragment extends DialogFragment {
 
@@ -79,16 +81,24 @@ public class CreateKeyDialogFragment extends DialogFragment {
         boolean wouldBeMasterKey = (childCount == 0);
 
         final Spinner algorithm = (Spinner) view.findViewById(R.id.create_key_algorithm);
+        HashMap<Integer, String> algorithmNames =
+                new AlgorithmNames(context).getKeyAlgorithmNames();
         ArrayList<Choice> choices = new ArrayList<Choice>();
-        choices.add(new Choice(Id.choice.algorithm.dsa, getResources().getString(
-                R.string.dsa)));
+        choices.add(new Choice(Id.choice.algorithm.dsa,
+                algorithmNames.get(Id.choice.algorithm.dsa)));
         if (!wouldBeMasterKey) {
-            choices.add(new Choice(Id.choice.algorithm.elgamal, getResources().getString(
-                    R.string.elgamal)));
+            choices.add(new Choice(Id.choice.algorithm.elgamal,
+                    algorithmNames.get(Id.choice.algorithm.elgamal)));
         }
 
-        choices.add(new Choice(Id.choice.algorithm.rsa, getResources().getString(
-                R.string.rsa)));
+        choices.add(new Choice(Id.choice.algorithm.rsa,
+                algorithmNames.get(Id.choice.algorithm.rsa)));
+        choices.add(new Choice(Id.choice.algorithm.ecdsa,
+                algorithmNames.get(Id.choice.algorithm.ecdsa)));
+        if (!wouldBeMasterKey) {
+            choices.add(new Choice(Id.choice.algorithm.ecdh,
+                    algorithmNames.get(Id.choice.algorithm.ecdh)));
+        }
 
         ArrayAdapter<Choice> adapter = new ArrayAdapter<Choice>(context,
                 android.R.layout.simple_spinner_item, choices);
@@ -103,11 +113,17 @@ public class CreateKeyDialogFragment extends DialogFragment {
         }
 
         final Spinner keySize = (Spinner) view.findViewById(R.id.create_key_size);
-        ArrayAdapter<CharSequence> keySizeAdapter = ArrayAdapter.createFromResource(
+        final ArrayAdapter<CharSequence> keySizeAdapter = ArrayAdapter.createFromResource(
                 context, R.array.key_size_spinner_values,
                 android.R.layout.simple_spinner_item);
         keySizeAdapter
                 .setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        // for elliptic curve keys the size selects the curve
+        final ArrayAdapter<CharSequence> ecKeySizeAdapter = ArrayAdapter.createFromResource(
+                context, R.array.ec_key_size_spinner_values,
+                android.R.layout.simple_spinner_item);
+        ecKeySizeAdapter
+                .setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
         keySize.setAdapter(keySizeAdapter);
         keySize.setSelection(3); // Default to 4096 for the key length
         dialog.setPositiveButton(android.R.string.ok,
@@ -115,21 +131,7 @@ public class CreateKeyDialogFragment extends DialogFragment {
                     public void onClick(DialogInterface di, int id) {
                         di.dismiss();
                         try {
-                            int nKeyIndex = keySize.getSelectedItemPosition();
-                            switch (nKeyIndex) {
-                                case 0:
-                                    mNewKeySize = 512;
-                                    break;
-                                case 1:
-                                    mNewKeySize = 1024;
-                                    break;
-                                case 2:
-                                    mNewKeySize = 2048;
-                                    break;
-                                case 3:
-                                    mNewKeySize = 4096;
-                                    break;
-                            }
+                            mNewKeySize = Integer.parseInt((String) keySize.getSelectedItem());
                         } catch (NumberFormatException e) {
                             mNewKeySize = 0;
                         }
@@ -165,7 +167,26 @@ public class CreateKeyDialogFragment extends DialogFragment {
         };
 
         keySize.setOnItemSelectedListener(weakRsaListener);
-        algorithm.setOnItemSelectedListener(weakRsaListener);
+        algorithm.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                final int selectedAlgorithm = ((Choice) algorithm.getSelectedItem()).getId();
+                final boolean isEc = (selectedAlgorithm == Id.choice.algorithm.ecdsa ||
+                                      selectedAlgorithm == Id.choice.algorithm.ecdh);
+                if (isEc && keySize.getAdapter() != ecKeySizeAdapter) {
+                    keySize.setAdapter(ecKeySizeAdapter);
+                    keySize.setSelection(0); // Default to P-256
+                } else if (!isEc && keySize.getAdapter() != keySizeAdapter) {
+                    keySize.setAdapter(keySizeAdapter);
+                    keySize.setSelection(3); // Default to 4096 for the key length
+                }
+                weakRsaListener.onItemSelected(parent, view, position, id);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
 
         return alertDialog;
     }
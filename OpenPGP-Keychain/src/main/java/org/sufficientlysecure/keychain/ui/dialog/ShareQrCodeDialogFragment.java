@@ -109,7 +109,7 @@ public class ShareQrCodeDialogFragment extends DialogFragment {
 
             // TODO
             long masterKeyId = ProviderHelper.getMasterKeyId(mContext, dataUri);
-            KeyRing keyRing = mProvider.getPublicKeyRingByMasterKeyId(masterKeyId);
+            KeyRing keyRing = mProvider.getPublicKeyRingWithExtrasByMasterKeyId(masterKeyId);
             try {
                 content = keyRing.getArmoredEncoded(mContext);
             } catch (IOException e) {
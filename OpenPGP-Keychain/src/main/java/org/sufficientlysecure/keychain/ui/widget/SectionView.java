@@ -369,7 +369,7 @@ public class SectionView extends LinearLayout implements OnClickListener, Editor
                 new DialogInterface.OnCancelListener() {
                     @Override
                     public void onCancel(DialogInterface dialog) {
-                        mActivity.stopService(intent);
+                        ApgIntentService.cancel(mActivity, intent);
                     }
                 });
 
@@ -35,6 +35,7 @@ public class AlgorithmNames {
     HashMap<Integer, String> mEncryptionNames = new HashMap<Integer, String>();
     HashMap<Integer, String> mHashNames = new HashMap<Integer, String>();
     HashMap<Integer, String> mCompressionNames = new HashMap<Integer, String>();
+    HashMap<Integer, String> mKeyAlgorithmNames = new HashMap<Integer, String>();
 
     public AlgorithmNames(Activity context) {
         super();
@@ -66,6 +67,12 @@ public class AlgorithmNames {
                 "ZLIB (" + mActivity.getString(R.string.compression_fast) + ")");
         mCompressionNames.put(Id.choice.compression.bzip2,
                 "BZIP2 (" + mActivity.getString(R.string.compression_very_slow) + ")");
+
+        mKeyAlgorithmNames.put(Id.choice.algorithm.dsa, mActivity.getString(R.string.dsa));
+        mKeyAlgorithmNames.put(Id.choice.algorithm.elgamal, mActivity.getString(R.string.elgamal));
+        mKeyAlgorithmNames.put(Id.choice.algorithm.rsa, mActivity.getString(R.string.rsa));
+        mKeyAlgorithmNames.put(Id.choice.algorithm.ecdsa, mActivity.getString(R.string.ecdsa));
+        mKeyAlgorithmNames.put(Id.choice.algorithm.ecdh, mActivity.getString(R.string.ecdh));
     }
 
     public HashMap<Integer, String> getEncryptionNames() {
@@ -92,4 +99,12 @@ public class AlgorithmNames {
         this.mCompressionNames = compressionNames;
     }
 
+    public HashMap<Integer, String> getKeyAlgorithmNames() {
+        return mKeyAlgorithmNames;
+    }
+
+    public void setKeyAlgorithmNames(HashMap<Integer, String> keyAlgorithmNames) {
+        this.mKeyAlgorithmNames = keyAlgorithmNames;
+    }
+
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2010-2014 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Raw DEFLATE (RFC 1951) output stream that compresses independent blocks of the input on an
+ * executor, in the style of pigz. Every block is primed with the last 32 KiB of the previous
+ * block as preset dictionary, so the ratio stays close to a single-threaded deflate. Non-final
+ * blocks are terminated with a sync flush, which leaves them byte-aligned, so the compressed
+ * blocks can simply be concatenated in order into one standard DEFLATE stream that any inflater
+ * can read.
+ *
+ * Deflater.SYNC_FLUSH is only available on API level 19 and newer, callers have to check
+ * {@link #isSupported()}.
+ *
+ * The underlying stream is not closed by {@link #close()}.
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+public class ParallelDeflaterOutputStream extends OutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 17;
+    private static final int DICTIONARY_SIZE = 1 << 15;
+
+    private OutputStream mOut;
+    private ExecutorService mExecutor;
+    private int mLevel;
+    private int mMaxPending;
+
+    private byte[] mBlock;
+    private int mBlockLength = 0;
+    private byte[] mDictionary = null;
+    private LinkedList<Future<byte[]>> mPending = new LinkedList<Future<byte[]>>();
+    private boolean mClosed = false;
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * @param out      raw deflate data is written to this stream, in input order
+     * @param executor blocks are compressed on this executor, it is not shut down by this stream
+     * @param threads  number of worker threads of the executor, used to bound the number of
+     *                 blocks held in memory
+     * @param level    deflate level, see {@link Deflater}
+     */
+    public ParallelDeflaterOutputStream(OutputStream out, ExecutorService executor, int threads,
+                                        int level) {
+        this(out, executor, threads, level, DEFAULT_BLOCK_SIZE);
+    }
+
+    public ParallelDeflaterOutputStream(OutputStream out, ExecutorService executor, int threads,
+                                        int level, int blockSize) {
+        mOut = out;
+        mExecutor = executor;
+        mLevel = level;
+        mMaxPending = Math.max(2, threads * 2);
+        mBlock = new byte[Math.max(blockSize, DICTIONARY_SIZE)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mClosed) {
+            throw new IOException("stream closed");
+        }
+        while (len > 0) {
+            int n = Math.min(len, mBlock.length - mBlockLength);
+            System.arraycopy(b, off, mBlock, mBlockLength, n);
+            mBlockLength += n;
+            off += n;
+            len -= n;
+
+            if (mBlockLength == mBlock.length) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /**
+     * Finishes the DEFLATE stream. The underlying stream stays open.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+
+        // the last block carries BFINAL, it may be empty
+        submitBlock(true);
+        while (!mPending.isEmpty()) {
+            writeNextResult();
+        }
+        mOut.flush();
+    }
+
+    private void submitBlock(boolean last) throws IOException {
+        final byte[] block = new byte[mBlockLength];
+        System.arraycopy(mBlock, 0, block, 0, mBlockLength);
+        final byte[] dictionary = mDictionary;
+        final boolean finish = last;
+        final int level = mLevel;
+
+        // the next block is primed with the tail of this one
+        if (mBlockLength >= DICTIONARY_SIZE) {
+            mDictionary = new byte[DICTIONARY_SIZE];
+            System.arraycopy(mBlock, mBlockLength - DICTIONARY_SIZE, mDictionary, 0,
+                    DICTIONARY_SIZE);
+        }
+        mBlockLength = 0;
+
+        mPending.add(mExecutor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return deflateBlock(block, dictionary, level, finish);
+            }
+        }));
+
+        // keep memory bounded, write out the oldest block if too many are in flight
+        while (mPending.size() >= mMaxPending) {
+            writeNextResult();
+        }
+    }
+
+    private void writeNextResult() throws IOException {
+        Future<byte[]> future = mPending.removeFirst();
+        try {
+            mOut.write(future.get());
+        } catch (InterruptedException e) {
+            cancelPending();
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while compressing");
+        } catch (ExecutionException e) {
+            cancelPending();
+            IOException ioe = new IOException("compressing block failed");
+            ioe.initCause(e.getCause());
+            throw ioe;
+        }
+    }
+
+    private void cancelPending() {
+        for (Future<byte[]> future : mPending) {
+            future.cancel(true);
+        }
+        mPending.clear();
+    }
+
+    private static byte[] deflateBlock(byte[] block, byte[] dictionary, int level,
+                                       boolean finish) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(block);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(block.length / 2 + 64);
+            byte[] buffer = new byte[1 << 14];
+            if (finish) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    out.write(buffer, 0, n);
+                }
+            } else {
+                // a completely filled buffer means there might be more output pending
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+}
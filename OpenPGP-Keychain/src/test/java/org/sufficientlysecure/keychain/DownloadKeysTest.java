@@ -0,0 +1,113 @@
+package org.sufficientlysecure.keychain;
+
+import android.os.Bundle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+import org.thialfihar.android.apg.pgp.PgpImportExport;
+import org.thialfihar.android.apg.pgp.Progressable;
+import org.thialfihar.android.apg.provider.KeychainContract;
+import org.thialfihar.android.apg.provider.KeychainProvider;
+import org.thialfihar.android.apg.service.ApgIntentService;
+import org.thialfihar.android.apg.ui.adapter.ImportKeysListEntry;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class DownloadKeysTest {
+
+    private HkpTestServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+        KeychainProvider provider = new KeychainProvider();
+        provider.attachInfo(Robolectric.application, null);
+        ShadowContentResolver.registerProvider(KeychainContract.CONTENT_AUTHORITY, provider);
+
+        mServer = new HkpTestServer();
+        // not a key ring
+        mServer.putKey("0x00000000000000ff", "-----BEGIN PGP PUBLIC KEY BLOCK-----\n\n"
+                + "-----END PGP PUBLIC KEY BLOCK-----");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    @Test
+    public void failedKeysDontAbortBatch() throws Exception {
+        ArrayList<ImportKeysListEntry> entries = new ArrayList<ImportKeysListEntry>();
+        for (int i = 0; i < 10; ++i) {
+            ImportKeysListEntry entry = new ImportKeysListEntry();
+            entry.setKeyIdHex(String.format("0x%016x", 0xf0 + i));
+            entries.add(entry);
+        }
+
+        final AtomicInteger progress = new AtomicInteger(0);
+        PgpImportExport importExport = new PgpImportExport(Robolectric.application,
+                new Progressable() {
+                    @Override
+                    public void setProgress(String message, int current, int total) {
+                    }
+
+                    @Override
+                    public void setProgress(int resourceId, int current, int total) {
+                    }
+
+                    @Override
+                    public void setProgress(int current, int total) {
+                        progress.incrementAndGet();
+                    }
+                });
+        Bundle result = importExport.downloadAndImportKeyRings(entries, mServer.getHostAndPort());
+
+        assertEquals(10, result.getInt(ApgIntentService.RESULT_DOWNLOAD_FAILED));
+        assertEquals(0, result.getInt(ApgIntentService.RESULT_IMPORT_FAILED));
+        assertEquals(0, result.getInt(ApgIntentService.RESULT_IMPORT_ADDED));
+        assertEquals(10, progress.get());
+        assertEquals(10, mServer.getRequestCount());
+        assertTrue(mServer.getConnectionCount() <= 4);
+    }
+
+    @Test
+    public void mixedResults() throws Exception {
+        ArrayList<ImportKeysListEntry> entries = new ArrayList<ImportKeysListEntry>();
+        for (int i = 0; i < 3; ++i) {
+            PGPPublicKeyRing keyRing = TestKeyRings.generate(
+                    "User " + i + " <user" + i + "@example.com>");
+            mServer.addKeyRing(keyRing);
+            entries.add(new ImportKeysListEntry(keyRing));
+        }
+        // not on the keyserver
+        entries.add(new ImportKeysListEntry(TestKeyRings.generate("Gone <gone@example.com>")));
+        // not a key ring
+        ImportKeysListEntry broken = new ImportKeysListEntry();
+        broken.setKeyIdHex("0x00000000000000ff");
+        entries.add(broken);
+
+        PgpImportExport importExport = new PgpImportExport(Robolectric.application, null);
+        Bundle result = importExport.downloadAndImportKeyRings(entries, mServer.getHostAndPort());
+        assertEquals(3, result.getInt(ApgIntentService.RESULT_IMPORT_ADDED));
+        assertEquals(2, result.getInt(ApgIntentService.RESULT_DOWNLOAD_FAILED));
+        assertEquals(0, result.getInt(ApgIntentService.RESULT_IMPORT_FAILED));
+
+        // stored keys are counted as unchanged, failed downloads as failed again
+        result = importExport.downloadAndImportKeyRings(entries, mServer.getHostAndPort());
+        assertEquals(0, result.getInt(ApgIntentService.RESULT_IMPORT_ADDED));
+        assertEquals(3, result.getInt(ApgIntentService.RESULT_IMPORT_UNCHANGED));
+        assertEquals(2, result.getInt(ApgIntentService.RESULT_DOWNLOAD_FAILED));
+    }
+}
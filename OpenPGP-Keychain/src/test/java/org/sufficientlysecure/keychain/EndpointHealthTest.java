@@ -0,0 +1,38 @@
+package org.sufficientlysecure.keychain;
+
+import org.junit.Test;
+
+import org.thialfihar.android.apg.pgp.EndpointHealth;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class EndpointHealthTest {
+
+    private static final int PORT = 11371;
+
+    @Test
+    public void fastestFirstFailedLast() throws Exception {
+        InetAddress a = InetAddress.getByName("192.0.2.1");
+        InetAddress b = InetAddress.getByName("192.0.2.2");
+        InetAddress c = InetAddress.getByName("192.0.2.3");
+        InetAddress d = InetAddress.getByName("192.0.2.4");
+        InetAddress[] pool = new InetAddress[] {a, b, c, d};
+
+        EndpointHealth health = new EndpointHealth();
+        assertEquals(Arrays.asList(a, b, c, d), health.sort(pool, PORT));
+
+        health.reportFailure(a, PORT);
+        health.reportSuccess(c, PORT, 900);
+        health.reportSuccess(d, PORT, 100);
+        assertEquals(Arrays.asList(d, c, b, a), health.sort(pool, PORT));
+
+        // other port, other endpoints
+        assertEquals(Arrays.asList(a, b, c, d), health.sort(pool, 80));
+
+        health.reportSuccess(a, PORT, 50);
+        assertEquals(Arrays.asList(a, d, c, b), health.sort(pool, PORT));
+    }
+}
@@ -0,0 +1,132 @@
+package org.sufficientlysecure.keychain;
+
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.thialfihar.android.apg.pgp.HkpIndexParser;
+import org.thialfihar.android.apg.ui.adapter.ImportKeysListEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Parses a large machine readable index, shaped like the answer of an sks keyserver to a broad
+ * query, with the line parser and with the regular expressions it replaced.
+ * Results are printed to stderr.
+ */
+@Ignore("benchmark, run by hand")
+@RunWith(RobolectricGradleTestRunner.class)
+public class HkpIndexBenchmark {
+
+    private static final int KEYS = 20000;
+    private static final int ROUNDS = 5;
+
+    // what HkpKeyServer used before
+    private static final Pattern PUB_KEY_LINE = Pattern
+            .compile("pub:([0-9a-fA-F]+):([0-9]+):([0-9]+):([0-9]+):([0-9]*):([rde]*)[ \n\r]*"
+                    + "(uid:(.*):([0-9]+):([0-9]*):([rde]*))+",
+                    Pattern.CASE_INSENSITIVE);
+    private static final Pattern UID_LINE = Pattern
+            .compile("uid:(.*):([0-9]+):([0-9]*):([rde]*)",
+                    Pattern.CASE_INSENSITIVE);
+
+    private static byte[] sIndex;
+
+    @BeforeClass
+    public static void setUpIndex() {
+        Random random = new Random(42);
+        StringBuilder index = new StringBuilder();
+        index.append("info:1:").append(KEYS).append('\n');
+        for (int i = 0; i < KEYS; ++i) {
+            index.append(String.format(Locale.US, "pub:%016X%016X%08X:1:%d:%d::%s\n",
+                    random.nextLong(), random.nextLong(), random.nextInt(),
+                    random.nextBoolean() ? 2048 : 4096, 1000000000 + random.nextInt(400000000),
+                    i % 50 == 0 ? "r" : ""));
+            int userIds = 1 + random.nextInt(4);
+            for (int j = 0; j < userIds; ++j) {
+                index.append("uid:")
+                        .append(j % 3 == 2 ? "Universit%C3%A4t User " : "Example User ")
+                        .append(i).append(" <user").append(i).append('.').append(j)
+                        .append("@example.com>:").append(1000000000 + random.nextInt(400000000))
+                        .append("::\n");
+            }
+        }
+        sIndex = index.toString().getBytes();
+    }
+
+    @Test
+    public void benchmarkParse() throws Exception {
+        int keys = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; ++i) {
+            keys = parseStreaming().size();
+        }
+        long streamingNanos = (System.nanoTime() - start) / ROUNDS;
+        assertEquals(KEYS, keys);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; ++i) {
+            keys = parseRegex().size();
+        }
+        long regexNanos = (System.nanoTime() - start) / ROUNDS;
+        assertEquals(KEYS, keys);
+
+        System.err.println("index of " + KEYS + " keys, " + sIndex.length / 1024 + " KiB: "
+                + "line parser " + streamingNanos / 1000000 + " ms ("
+                + mbPerSecond(streamingNanos) + " MB/s), regex " + regexNanos / 1000000
+                + " ms (" + mbPerSecond(regexNanos) + " MB/s)");
+    }
+
+    @Test
+    public void benchmarkMaxResults() throws Exception {
+        long start = System.nanoTime();
+        HkpIndexParser parser = new HkpIndexParser(new InputStreamReader(
+                new ByteArrayInputStream(sIndex), "utf8"), 100);
+        assertEquals(100, parser.readAll().size());
+        long nanos = System.nanoTime() - start;
+
+        System.err.println("first 100 of " + KEYS + " keys: " + nanos / 1000 + " us");
+    }
+
+    private static ArrayList<ImportKeysListEntry> parseStreaming() throws Exception {
+        return new HkpIndexParser(new InputStreamReader(new ByteArrayInputStream(sIndex),
+                "utf8"), 0).readAll();
+    }
+
+    private static ArrayList<ImportKeysListEntry> parseRegex() throws Exception {
+        ArrayList<ImportKeysListEntry> results = new ArrayList<ImportKeysListEntry>();
+        String data = new String(sIndex, "utf8");
+        Matcher matcher = PUB_KEY_LINE.matcher(data);
+        while (matcher.find()) {
+            ImportKeysListEntry entry = new ImportKeysListEntry();
+            entry.setBitStrength(Integer.parseInt(matcher.group(3)));
+            entry.setFingerPrintHex(matcher.group(1).toLowerCase(Locale.US));
+            ArrayList<String> userIds = new ArrayList<String>();
+            Matcher uidMatcher = UID_LINE.matcher(matcher.group(7));
+            while (uidMatcher.find()) {
+                String userId = uidMatcher.group(1).trim();
+                if (userId.contains("%")) {
+                    userId = URLDecoder.decode(userId, "UTF8");
+                }
+                userIds.add(userId);
+            }
+            entry.setUserIds(userIds);
+            results.add(entry);
+        }
+        return results;
+    }
+
+    private static long mbPerSecond(long nanos) {
+        return nanos == 0 ? 0 : sIndex.length * 1000L / nanos;
+    }
+}
@@ -0,0 +1,64 @@
+package org.sufficientlysecure.keychain;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.thialfihar.android.apg.pgp.HkpIndexParser;
+import org.thialfihar.android.apg.ui.adapter.ImportKeysListEntry;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class HkpIndexParserTest {
+
+    private static final String INDEX = "info:1:3\r\n"
+            + "pub:0123456789ABCDEF0123456789ABCDEF01234567:1:2048:1388534400::\r\n"
+            + "uid:Alice Example <alice@example.com>:1388534400::\r\n"
+            + "uid:Universit%C3%A4t %3A Alice:1388534400::\r\n"
+            + "\r\n"
+            + "pub:89ABCDEF01234567:17:1024:1388534400:1420070400:r\r\n"
+            + "uid:Bob: unescaped <bob@example.com>:1388534400::e\r\n"
+            + "pub:FEDCBA9876543210:1:4096:1388534400::\r\n";
+
+    @Test
+    public void parseIndex() throws Exception {
+        HkpIndexParser parser = new HkpIndexParser(new StringReader(INDEX), 0);
+        ArrayList<ImportKeysListEntry> entries = parser.readAll();
+
+        // the last key has no user id
+        assertEquals(2, entries.size());
+        assertFalse(parser.isTruncated());
+
+        ImportKeysListEntry alice = entries.get(0);
+        assertEquals("0123456789abcdef0123456789abcdef01234567", alice.getFingerPrintHex());
+        assertEquals("0x89ABCDEF01234567", alice.getKeyIdHex());
+        assertEquals(2048, alice.getBitStrength());
+        assertEquals(1388534400000L, alice.getDate().getTime());
+        assertFalse(alice.isRevoked());
+        assertEquals(2, alice.getUserIds().size());
+        assertEquals("Universität : Alice", alice.getUserIds().get(1));
+
+        ImportKeysListEntry bob = entries.get(1);
+        assertNull(bob.getFingerPrintHex());
+        assertEquals("0x89ABCDEF01234567", bob.getKeyIdHex());
+        assertTrue(bob.isRevoked());
+        assertEquals("Bob: unescaped <bob@example.com>", bob.getUserIds().get(0));
+    }
+
+    @Test
+    public void maxResults() throws Exception {
+        HkpIndexParser parser = new HkpIndexParser(new StringReader(INDEX), 1);
+        assertEquals(1, parser.readAll().size());
+        assertTrue(parser.isTruncated());
+
+        parser = new HkpIndexParser(new StringReader(INDEX), 2);
+        assertEquals(2, parser.readAll().size());
+        assertFalse(parser.isTruncated());
+    }
+}
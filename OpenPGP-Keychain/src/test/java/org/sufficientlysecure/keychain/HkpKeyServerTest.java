@@ -0,0 +1,174 @@
+package org.sufficientlysecure.keychain;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+
+import org.spongycastle.bcpg.ArmoredOutputStream;
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+import org.thialfihar.android.apg.pgp.HkpKeyServer;
+import org.thialfihar.android.apg.pgp.KeyServer;
+import org.thialfihar.android.apg.pgp.PgpImportExport;
+import org.thialfihar.android.apg.pgp.PgpKeyHelper;
+import org.thialfihar.android.apg.ui.adapter.ImportKeysListEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Downloads keys from a local stand-in keyserver the way ACTION_DOWNLOAD_AND_IMPORT_KEYS does.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+public class HkpKeyServerTest {
+
+    private static final int KEYS = 200;
+
+    private HkpTestServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        // talk to the real socket instead of Robolectric's fake http layer
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+        mServer = new HkpTestServer();
+        for (int i = 0; i < KEYS; ++i) {
+            mServer.putKey(keyIdHex(i), armoredKey(i));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    @Test
+    public void downloadReusesConnections() throws Exception {
+        HkpKeyServer keyServer = new HkpKeyServer(mServer.getHostAndPort());
+        for (int i = 0; i < KEYS; ++i) {
+            assertEquals(armoredKey(i), keyServer.get(keyIdHex(i)));
+        }
+
+        assertEquals(KEYS, mServer.getRequestCount());
+        assertTrue("opened " + mServer.getConnectionCount() + " connections",
+                mServer.getConnectionCount() <= 4);
+    }
+
+    @Test
+    public void gzipResponse() throws Exception {
+        mServer.setGzip(true);
+        HkpKeyServer keyServer = new HkpKeyServer(mServer.getHostAndPort());
+        assertEquals(armoredKey(7), keyServer.get(keyIdHex(7)));
+    }
+
+    @Test
+    public void keyNotFound() throws Exception {
+        HkpKeyServer keyServer = new HkpKeyServer(mServer.getHostAndPort());
+        try {
+            keyServer.get("0xdeadbeefdeadbeef");
+        } catch (HkpKeyServer.QueryException e) {
+            // expected, the connection is still released
+        }
+        assertEquals(armoredKey(1), keyServer.get(keyIdHex(1)));
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void searchAndGetFixtureKeyRing() throws Exception {
+        PGPPublicKeyRing keyRing = TestKeyRings.generate("Alice Example <alice@example.com>");
+        mServer.addKeyRing(keyRing);
+        HkpKeyServer keyServer = new HkpKeyServer(mServer.getHostAndPort());
+
+        ArrayList<ImportKeysListEntry> results = keyServer.search("alice example");
+        assertEquals(1, results.size());
+        String fingerprint = PgpKeyHelper.convertFingerprintToHex(
+                keyRing.getPublicKey().getFingerprint());
+        assertEquals(fingerprint, results.get(0).getFingerPrintHex());
+        assertEquals("Alice Example <alice@example.com>", results.get(0).getUserIds().get(0));
+
+        PGPKeyRing downloaded = PgpImportExport.decodeDownloadedKeyRing(
+                keyServer.get("0x" + fingerprint), fingerprint);
+        assertEquals(keyRing.getPublicKey().getKeyID(), downloaded.getPublicKey().getKeyID());
+    }
+
+    @Test
+    public void uploadToFixture() throws Exception {
+        PGPPublicKeyRing keyRing = TestKeyRings.generate("Bob <bob@example.com>");
+        HkpKeyServer keyServer = new HkpKeyServer(mServer.getHostAndPort());
+        keyServer.add(armor(keyRing.getEncoded()));
+        assertEquals(1, mServer.getAddedCount());
+        assertEquals(1, keyServer.search("bob@example.com").size());
+    }
+
+    @Test
+    public void uploadSeveralKeyRingsAtOnce() throws Exception {
+        ArrayList<String> armoredKeys = new ArrayList<String>();
+        for (int i = 0; i < 3; ++i) {
+            armoredKeys.add(armor(TestKeyRings.generate("User " + i + " <user@example.com>")
+                    .getEncoded()));
+        }
+
+        HkpKeyServer keyServer = new HkpKeyServer(mServer.getHostAndPort());
+        boolean[] added = keyServer.add(armoredKeys);
+        assertTrue(added[0] && added[1] && added[2]);
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(3, mServer.getKeyRingCount());
+    }
+
+    @Test
+    public void refusedKeyRingIsReported() throws Exception {
+        ArrayList<String> armoredKeys = new ArrayList<String>();
+        armoredKeys.add(armor(TestKeyRings.generate("Carol <carol@example.com>").getEncoded()));
+        // a user id packet without a key
+        armoredKeys.add(armor(new byte[] {(byte) 0xcd, 0x03, 'b', 'a', 'd'}));
+        armoredKeys.add(armor(TestKeyRings.generate("Dave <dave@example.com>").getEncoded()));
+
+        HkpKeyServer keyServer = new HkpKeyServer(mServer.getHostAndPort());
+        boolean[] added = keyServer.add(armoredKeys);
+        assertTrue(added[0]);
+        assertFalse(added[1]);
+        assertTrue(added[2]);
+        // the key block and then each key ring on its own
+        assertEquals(4, mServer.getRequestCount());
+        assertEquals(2, mServer.getKeyRingCount());
+    }
+
+    @Test
+    public void serverErrorIsNotMissingKey() throws Exception {
+        HkpKeyServer keyServer = new HkpKeyServer(mServer.getHostAndPort());
+        mServer.failNext(1, 503);
+        try {
+            keyServer.get(keyIdHex(1));
+            fail();
+        } catch (KeyServer.KeyNotFoundException e) {
+            fail("503 reported as missing key");
+        } catch (KeyServer.QueryException e) {
+            // expected
+        }
+        assertEquals(armoredKey(1), keyServer.get(keyIdHex(1)));
+    }
+
+    private static String armor(byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArmoredOutputStream armorOut = new ArmoredOutputStream(out);
+        armorOut.write(data);
+        armorOut.close();
+        return out.toString("ascii");
+    }
+
+    private static String keyIdHex(int i) {
+        return "0x" + Long.toHexString(0x1000000000000000L + i);
+    }
+
+    private static String armoredKey(int i) {
+        return "-----BEGIN PGP PUBLIC KEY BLOCK-----\n\nkey " + i
+                + "\n-----END PGP PUBLIC KEY BLOCK-----";
+    }
+}
@@ -0,0 +1,491 @@
+package org.sufficientlysecure.keychain;
+
+import org.spongycastle.bcpg.ArmoredOutputStream;
+import org.spongycastle.openpgp.PGPObjectFactory;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPUtil;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Minimal HTTP/1.1 keyserver on localhost that answers HKP lookups with keep-alive, so tests
+ * can count how many connections a client opens.
+ * <p/>
+ * Answers are either put in by search string with {@link #putKey(String, String)}, or come from
+ * a fixture keyring: op=index (machine readable) and op=get find its keys by key id,
+ * fingerprint or words of their user ids, and /pks/add adds to it. Latency and failures can be
+ * injected.
+ */
+public class HkpTestServer {
+
+    /**
+     * Failure code that closes the connection without an answer.
+     */
+    public static final int FAIL_DROP = 0;
+
+    private final ServerSocket mServerSocket;
+    private final ConcurrentHashMap<String, String> mKeys = new ConcurrentHashMap<String, String>();
+    private final CopyOnWriteArrayList<PGPPublicKeyRing> mKeyRings =
+            new CopyOnWriteArrayList<PGPPublicKeyRing>();
+    private final AtomicInteger mConnections = new AtomicInteger(0);
+    private final AtomicInteger mRequests = new AtomicInteger(0);
+    private final AtomicInteger mNotModified = new AtomicInteger(0);
+    private final AtomicInteger mAdded = new AtomicInteger(0);
+    private final AtomicInteger mFailNext = new AtomicInteger(0);
+    private final Random mRandom = new Random(0);
+    private volatile boolean mGzip = false;
+    private volatile long mDelay = 0;
+    private volatile long mJitter = 0;
+    private volatile double mFailureRate = 0;
+    private volatile int mFailureCode = 503;
+
+    public HkpTestServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        mConnections.incrementAndGet();
+                        Thread connection = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                        connection.setDaemon(true);
+                        connection.start();
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public String getHostAndPort() {
+        return "127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    public void putKey(String search, String armoredKey) {
+        mKeys.put(search.toLowerCase(Locale.US), armoredKey);
+    }
+
+    /**
+     * Adds a key ring to the fixture keyring.
+     */
+    public synchronized void addKeyRing(PGPPublicKeyRing keyRing) {
+        // an uploaded key replaces the one with the same fingerprint
+        byte[] fingerprint = keyRing.getPublicKey().getFingerprint();
+        for (int i = 0; i < mKeyRings.size(); ++i) {
+            if (Arrays.equals(mKeyRings.get(i).getPublicKey().getFingerprint(), fingerprint)) {
+                mKeyRings.set(i, keyRing);
+                return;
+            }
+        }
+        mKeyRings.add(keyRing);
+    }
+
+    /**
+     * Adds all public key rings of a binary or armored keyring to the fixture keyring.
+     *
+     * @return number of key rings added
+     */
+    public int addKeyRings(InputStream in) throws IOException {
+        PGPObjectFactory factory = new PGPObjectFactory(PGPUtil.getDecoderStream(in));
+        int count = 0;
+        Object obj;
+        while ((obj = factory.nextObject()) != null) {
+            if (obj instanceof PGPPublicKeyRing) {
+                addKeyRing((PGPPublicKeyRing) obj);
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    public int getKeyRingCount() {
+        return mKeyRings.size();
+    }
+
+    public void setGzip(boolean gzip) {
+        mGzip = gzip;
+    }
+
+    /**
+     * Makes the server answer slowly, in milliseconds
+     */
+    public void setDelay(long delay) {
+        setDelay(delay, 0);
+    }
+
+    /**
+     * Makes the server answer slowly, in milliseconds, a random part of up to jitter is added
+     */
+    public void setDelay(long delay, long jitter) {
+        mDelay = delay;
+        mJitter = jitter;
+    }
+
+    /**
+     * Makes this share of the requests fail.
+     *
+     * @param code HTTP status of the failed requests, or {@link #FAIL_DROP}
+     */
+    public void setFailureRate(double rate, int code) {
+        mFailureRate = rate;
+        mFailureCode = code;
+    }
+
+    /**
+     * Makes the next count requests fail.
+     *
+     * @param code HTTP status of the failed requests, or {@link #FAIL_DROP}
+     */
+    public void failNext(int count, int code) {
+        mFailureCode = code;
+        mFailNext.set(count);
+    }
+
+    public int getConnectionCount() {
+        return mConnections.get();
+    }
+
+    public int getRequestCount() {
+        return mRequests.get();
+    }
+
+    /**
+     * @return number of requests answered with "304 Not Modified"
+     */
+    public int getNotModifiedCount() {
+        return mNotModified.get();
+    }
+
+    /**
+     * @return number of key rings added by /pks/add
+     */
+    public int getAddedCount() {
+        return mAdded.get();
+    }
+
+    public void close() throws IOException {
+        mServerSocket.close();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.length() == 0) {
+                    break;
+                }
+
+                boolean acceptsGzip = false;
+                boolean close = false;
+                String ifNoneMatch = null;
+                int contentLength = 0;
+                String header;
+                while ((header = readLine(in)) != null && header.length() > 0) {
+                    String lower = header.toLowerCase(Locale.US);
+                    if (lower.startsWith("accept-encoding:") && lower.contains("gzip")) {
+                        acceptsGzip = true;
+                    } else if (lower.startsWith("connection:") && lower.contains("close")) {
+                        close = true;
+                    } else if (lower.startsWith("if-none-match:")) {
+                        ifNoneMatch = header.substring(14).trim();
+                    } else if (lower.startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(header.substring(15).trim());
+                    }
+                }
+                byte[] content = new byte[contentLength];
+                for (int i = 0; i < contentLength; ++i) {
+                    content[i] = (byte) in.read();
+                }
+                mRequests.incrementAndGet();
+
+                long delay = mDelay + (mJitter > 0 ? nextRandom(mJitter) : 0);
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+
+                if (shouldFail()) {
+                    int failureCode = mFailureCode;
+                    if (failureCode == FAIL_DROP) {
+                        break;
+                    }
+                    writeResponse(out, failureCode, "Injected failure".getBytes("utf8"), null,
+                            false);
+                } else {
+                    respond(out, requestLine.split(" ")[1], new String(content, "utf8"),
+                            acceptsGzip && mGzip, ifNoneMatch);
+                }
+                if (close) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private boolean shouldFail() {
+        while (true) {
+            int left = mFailNext.get();
+            if (left <= 0) {
+                break;
+            }
+            if (mFailNext.compareAndSet(left, left - 1)) {
+                return true;
+            }
+        }
+        return mFailureRate > 0 && nextRandom(1000000) < mFailureRate * 1000000;
+    }
+
+    private long nextRandom(long bound) {
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * bound);
+        }
+    }
+
+    private void respond(OutputStream out, String path, String content, boolean gzip,
+                         String ifNoneMatch) throws IOException {
+        int code = 200;
+        String body;
+        if (path.startsWith("/pks/add")) {
+            String keyText = getParameter(content, "keytext");
+            int added;
+            try {
+                added = keyText == null ? 0 : addKeyRings(
+                        new ByteArrayInputStream(keyText.getBytes("utf8")));
+            } catch (Exception e) {
+                // key rings before the broken one are kept, like sks does
+                added = 0;
+            }
+            mAdded.addAndGet(added);
+            if (added == 0) {
+                code = 400;
+                body = "No keys in key block";
+            } else {
+                body = "Key block added";
+            }
+        } else {
+            String search = getParameter(path, "search");
+            if (search != null) {
+                search = search.toLowerCase(Locale.US);
+            }
+            body = search == null ? null : mKeys.get(search);
+            if (body == null && search != null) {
+                ArrayList<PGPPublicKeyRing> found = find(search);
+                if (!found.isEmpty()) {
+                    body = "index".equals(getParameter(path, "op")) ? index(found)
+                            : armor(found);
+                }
+            }
+            if (body == null) {
+                code = 404;
+                body = "No keys found";
+            }
+        }
+
+        String eTag = "\"" + Integer.toHexString(body.hashCode()) + "\"";
+        if (code == 200 && eTag.equals(ifNoneMatch)) {
+            mNotModified.incrementAndGet();
+            out.write(("HTTP/1.1 304 Not Modified\r\nETag: " + eTag
+                    + "\r\nContent-Length: 0\r\n\r\n").getBytes("ascii"));
+            out.flush();
+            return;
+        }
+
+        writeResponse(out, code, body.getBytes("utf8"), code == 200 ? eTag : null, gzip);
+    }
+
+    private static void writeResponse(OutputStream out, int code, byte[] data, String eTag,
+                                      boolean gzip) throws IOException {
+        if (gzip) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream gzipOut = new GZIPOutputStream(compressed);
+            gzipOut.write(data);
+            gzipOut.close();
+            data = compressed.toByteArray();
+        }
+
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(code).append(' ').append(reason(code)).append("\r\n");
+        head.append("Content-Type: text/plain; charset=utf-8\r\n");
+        head.append("Content-Length: ").append(data.length).append("\r\n");
+        if (eTag != null) {
+            head.append("ETag: ").append(eTag).append("\r\n");
+        }
+        if (gzip) {
+            head.append("Content-Encoding: gzip\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes("ascii"));
+        out.write(data);
+        out.flush();
+    }
+
+    private static String reason(int code) {
+        switch (code) {
+            case 200:
+                return "OK";
+            case 400:
+                return "Bad Request";
+            case 404:
+                return "Not Found";
+            case 500:
+                return "Internal Server Error";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "Error";
+        }
+    }
+
+    /**
+     * @param query a query string or a form encoded body
+     */
+    private static String getParameter(String query, String name) throws IOException {
+        int start = query.indexOf('?') + 1;
+        while (start < query.length()) {
+            int end = query.indexOf('&', start);
+            if (end < 0) {
+                end = query.length();
+            }
+            if (query.startsWith(name + "=", start)) {
+                return URLDecoder.decode(query.substring(start + name.length() + 1, end), "utf8");
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
+    /**
+     * @param search lower case key id or fingerprint starting with "0x", or words that all have
+     *               to be in a user id
+     */
+    @SuppressWarnings("unchecked")
+    private ArrayList<PGPPublicKeyRing> find(String search) {
+        ArrayList<PGPPublicKeyRing> found = new ArrayList<PGPPublicKeyRing>();
+        for (PGPPublicKeyRing keyRing : mKeyRings) {
+            if (search.startsWith("0x")) {
+                String hex = search.substring(2);
+                for (Iterator<PGPPublicKey> keys = keyRing.getPublicKeys(); keys.hasNext(); ) {
+                    PGPPublicKey key = keys.next();
+                    if (toHex(key.getFingerprint()).endsWith(hex)) {
+                        found.add(keyRing);
+                        break;
+                    }
+                }
+                continue;
+            }
+
+            for (Iterator<String> userIds = keyRing.getPublicKey().getUserIDs();
+                 userIds.hasNext(); ) {
+                String userId = userIds.next().toLowerCase(Locale.US);
+                boolean matches = true;
+                for (String word : search.split("\\s+")) {
+                    if (!userId.contains(word)) {
+                        matches = false;
+                        break;
+                    }
+                }
+                if (matches) {
+                    found.add(keyRing);
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String index(ArrayList<PGPPublicKeyRing> keyRings) throws IOException {
+        StringBuilder index = new StringBuilder();
+        index.append("info:1:").append(keyRings.size()).append('\n');
+        for (PGPPublicKeyRing keyRing : keyRings) {
+            PGPPublicKey key = keyRing.getPublicKey();
+            long created = key.getCreationTime().getTime() / 1000;
+            index.append("pub:").append(toHex(key.getFingerprint()).toUpperCase(Locale.US))
+                    .append(':').append(key.getAlgorithm())
+                    .append(':').append(key.getBitStrength())
+                    .append(':').append(created)
+                    .append("::").append(key.isRevoked() ? "r" : "").append('\n');
+            for (Iterator<String> userIds = key.getUserIDs(); userIds.hasNext(); ) {
+                index.append("uid:").append(URLEncoder.encode(userIds.next(), "utf8")
+                        .replace("+", "%20")).append(':').append(created).append("::\n");
+            }
+        }
+        return index.toString();
+    }
+
+    private static String armor(ArrayList<PGPPublicKeyRing> keyRings) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArmoredOutputStream armorOut = new ArmoredOutputStream(out);
+        for (PGPPublicKeyRing keyRing : keyRings) {
+            keyRing.encode(armorOut);
+        }
+        armorOut.close();
+        return out.toString("ascii");
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+}
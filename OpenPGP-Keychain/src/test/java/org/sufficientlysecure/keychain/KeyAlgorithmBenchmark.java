@@ -0,0 +1,162 @@
+package org.sufficientlysecure.keychain;
+
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.*;
+import org.spongycastle.openpgp.operator.jcajce.*;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.Id;
+import org.thialfihar.android.apg.pgp.PgpKeyHelper;
+import org.thialfihar.android.apg.pgp.PgpKeyOperation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares key generation, signing and decryption latency of elliptic curve keys against RSA.
+ * Results are printed to stderr, the assertions only check that the operations round-trip.
+ */
+@Ignore("benchmark, run by hand")
+@RunWith(RobolectricGradleTestRunner.class)
+public class KeyAlgorithmBenchmark {
+
+    private static final int GENERATE_ROUNDS = 3;
+    private static final int OPERATION_ROUNDS = 20;
+    private static final byte[] MESSAGE = new byte[1024];
+
+    @BeforeClass
+    public static void setUpProvider() {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        new SecureRandom().nextBytes(MESSAGE);
+    }
+
+    @Test
+    public void benchmarkRsa2048() throws Exception {
+        benchmark("RSA-2048", Id.choice.algorithm.rsa, Id.choice.algorithm.rsa, 2048,
+                PGPPublicKey.RSA_GENERAL, PGPPublicKey.RSA_GENERAL);
+    }
+
+    @Test
+    public void benchmarkRsa4096() throws Exception {
+        benchmark("RSA-4096", Id.choice.algorithm.rsa, Id.choice.algorithm.rsa, 4096,
+                PGPPublicKey.RSA_GENERAL, PGPPublicKey.RSA_GENERAL);
+    }
+
+    @Test
+    public void benchmarkEcP256() throws Exception {
+        benchmark("EC P-256", Id.choice.algorithm.ecdsa, Id.choice.algorithm.ecdh, 256,
+                PGPPublicKey.ECDSA, PGPPublicKey.ECDH);
+    }
+
+    @Test
+    public void benchmarkEcP384() throws Exception {
+        benchmark("EC P-384", Id.choice.algorithm.ecdsa, Id.choice.algorithm.ecdh, 384,
+                PGPPublicKey.ECDSA, PGPPublicKey.ECDH);
+    }
+
+    private void benchmark(String name, int signChoice, int encryptChoice, int keySize,
+                           int signAlgorithm, int encryptAlgorithm) throws Exception {
+        PgpKeyOperation keyOperation = new PgpKeyOperation(null);
+
+        /* key generation */
+        long start = System.nanoTime();
+        KeyPair signKeyPair = null;
+        for (int i = 0; i < GENERATE_ROUNDS; ++i) {
+            signKeyPair = keyOperation.generateKeyPair(signChoice, keySize, true);
+        }
+        long generateNanos = (System.nanoTime() - start) / GENERATE_ROUNDS;
+        KeyPair encryptKeyPair = keyOperation.generateKeyPair(encryptChoice, keySize, false);
+
+        PGPKeyPair signPgpKeyPair = new JcaPGPKeyPair(signAlgorithm, signKeyPair, new Date());
+        PGPKeyPair encryptPgpKeyPair =
+                new JcaPGPKeyPair(encryptAlgorithm, encryptKeyPair, new Date());
+
+        /* signing */
+        int hashAlgorithm = PgpKeyHelper.getSignatureHashAlgorithm(
+                signPgpKeyPair.getPublicKey(), HashAlgorithmTags.SHA256);
+        start = System.nanoTime();
+        PGPSignature signature = null;
+        for (int i = 0; i < OPERATION_ROUNDS; ++i) {
+            PGPSignatureGenerator signatureGenerator = new PGPSignatureGenerator(
+                    new JcaPGPContentSignerBuilder(signAlgorithm, hashAlgorithm)
+                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+            signatureGenerator.init(PGPSignature.BINARY_DOCUMENT,
+                    signPgpKeyPair.getPrivateKey());
+            signatureGenerator.update(MESSAGE);
+            signature = signatureGenerator.generate();
+        }
+        long signNanos = (System.nanoTime() - start) / OPERATION_ROUNDS;
+
+        signature.init(new JcaPGPContentVerifierBuilderProvider()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME),
+                signPgpKeyPair.getPublicKey());
+        signature.update(MESSAGE);
+        assertTrue(signature.verify());
+
+        /* decryption */
+        byte[] encrypted = encrypt(encryptPgpKeyPair.getPublicKey());
+        start = System.nanoTime();
+        byte[] decrypted = null;
+        for (int i = 0; i < OPERATION_ROUNDS; ++i) {
+            decrypted = decrypt(encrypted, encryptPgpKeyPair.getPrivateKey());
+        }
+        long decryptNanos = (System.nanoTime() - start) / OPERATION_ROUNDS;
+        assertArrayEquals(MESSAGE, decrypted);
+
+        System.err.println(name + ": generate " + generateNanos / 1000000 + " ms, sign "
+                + signNanos / 1000 + " us, decrypt " + decryptNanos / 1000 + " us");
+    }
+
+    private static byte[] encrypt(PGPPublicKey key) throws Exception {
+        PGPEncryptedDataGenerator encryptedDataGenerator = new PGPEncryptedDataGenerator(
+                new JcePGPDataEncryptorBuilder(PGPEncryptedData.AES_256)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+        encryptedDataGenerator.addMethod(new JcePublicKeyKeyEncryptionMethodGenerator(key)
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream encryptionOut = encryptedDataGenerator.open(out, new byte[1 << 16]);
+        PGPLiteralDataGenerator literalGenerator = new PGPLiteralDataGenerator();
+        OutputStream literalOut = literalGenerator.open(encryptionOut, PGPLiteralData.BINARY, "",
+                MESSAGE.length, new Date());
+        literalOut.write(MESSAGE);
+        literalGenerator.close();
+        encryptedDataGenerator.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] decrypt(byte[] encrypted, PGPPrivateKey privateKey) throws Exception {
+        PGPObjectFactory factory = new PGPObjectFactory(new ByteArrayInputStream(encrypted));
+        PGPEncryptedDataList encryptedDataList = (PGPEncryptedDataList) factory.nextObject();
+        PGPPublicKeyEncryptedData encryptedData =
+                (PGPPublicKeyEncryptedData) encryptedDataList.get(0);
+        InputStream clear = encryptedData.getDataStream(
+                new JcePublicKeyDataDecryptorFactoryBuilder()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(privateKey));
+
+        PGPLiteralData literalData = (PGPLiteralData) new PGPObjectFactory(clear).nextObject();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = literalData.getInputStream();
+        byte[] buffer = new byte[1 << 12];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,149 @@
+package org.sufficientlysecure.keychain;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import org.thialfihar.android.apg.helper.Preferences;
+import org.thialfihar.android.apg.pgp.HkpKeyServer;
+import org.thialfihar.android.apg.pgp.PgpKeyHelper;
+import org.thialfihar.android.apg.provider.KeychainContract;
+import org.thialfihar.android.apg.provider.KeychainContract.KeyRings;
+import org.thialfihar.android.apg.provider.KeychainContract.Keys;
+import org.thialfihar.android.apg.provider.KeychainContract.UserIds;
+import org.thialfihar.android.apg.provider.KeychainProvider;
+import org.thialfihar.android.apg.service.KeyRefresher;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class KeyRefresherTest {
+
+    private static final int KEY_RINGS = 5;
+
+    private ContentResolver mResolver;
+    private HkpTestServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+        KeychainProvider provider = new KeychainProvider();
+        provider.attachInfo(Robolectric.application, null);
+        ShadowContentResolver.registerProvider(KeychainContract.CONTENT_AUTHORITY, provider);
+        mResolver = Robolectric.application.getContentResolver();
+        Preferences.getPreferences(Robolectric.application).setRefreshKeys(true);
+
+        for (int i = 0; i < KEY_RINGS; ++i) {
+            insertKeyRing(0x1000 + i);
+        }
+        mServer = new HkpTestServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+        Preferences.getPreferences(Robolectric.application).setRefreshKeys(false);
+    }
+
+    @Test
+    public void unknownKeysAreNotAskedForAgain() throws Exception {
+        long now = System.currentTimeMillis();
+        HkpKeyServer server = new HkpKeyServer(mServer.getHostAndPort());
+
+        assertEquals(0, KeyRefresher.refresh(Robolectric.application, server, now, 0));
+        assertEquals(KEY_RINGS, mServer.getRequestCount());
+        assertEquals(KEY_RINGS, countRefreshedSince(now));
+
+        // nothing due anymore
+        assertEquals(0, KeyRefresher.refresh(Robolectric.application, server, now, 0));
+        assertEquals(KEY_RINGS, mServer.getRequestCount());
+    }
+
+    @Test
+    public void answerWithoutKeyIsNotFound() throws Exception {
+        for (int i = 0; i < KEY_RINGS; ++i) {
+            mServer.putKey("0x" + PgpKeyHelper.convertFingerprintToHex(getFingerprint(0x1000 + i)),
+                    "no key here");
+        }
+        long now = System.currentTimeMillis();
+        HkpKeyServer server = new HkpKeyServer(mServer.getHostAndPort());
+
+        assertEquals(0, KeyRefresher.refresh(Robolectric.application, server, now, 0));
+        assertEquals(KEY_RINGS, countRefreshedSince(now));
+    }
+
+    @Test
+    public void unreachableKeyServerKeepsKeysDue() throws Exception {
+        long now = System.currentTimeMillis();
+        String hostAndPort = mServer.getHostAndPort();
+        mServer.close();
+
+        KeyRefresher.refresh(Robolectric.application, new HkpKeyServer(hostAndPort), now, 0);
+        assertEquals(0, countRefreshedSince(now));
+    }
+
+    @Test
+    public void stopsWhenSwitchedOff() throws Exception {
+        Preferences.getPreferences(Robolectric.application).setRefreshKeys(false);
+        KeyRefresher.refresh(Robolectric.application,
+                new HkpKeyServer(mServer.getHostAndPort()), System.currentTimeMillis(), 0);
+        assertEquals(0, mServer.getRequestCount());
+    }
+
+    private int countRefreshedSince(long time) {
+        Cursor cursor = mResolver.query(KeyRings.buildPublicKeyRingsUri(),
+                new String[] {KeyRings._ID}, KeyRings.LAST_REFRESHED + " >= ?",
+                new String[] {Long.toString(time)}, null);
+        assertTrue(cursor != null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private void insertKeyRing(long masterKeyId) throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(KeyRings.MASTER_KEY_ID, masterKeyId);
+        values.put(KeyRings.KEY_RING_DATA, new byte[64]);
+        Uri insertedUri = mResolver.insert(KeyRings.buildPublicKeyRingsUri(), values);
+        assertFalse(insertedUri == null);
+        String keyRingRowId = insertedUri.getLastPathSegment();
+
+        byte[] fingerprint = getFingerprint(masterKeyId);
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(Keys.buildPublicKeysUri(keyRingRowId))
+                .withValue(Keys.KEY_RING_ROW_ID, keyRingRowId)
+                .withValue(Keys.KEY_ID, masterKeyId)
+                .withValue(Keys.IS_MASTER_KEY, true)
+                .withValue(Keys.IS_REVOKED, false)
+                .withValue(Keys.RANK, 0)
+                .withValue(Keys.FINGERPRINT, fingerprint)
+                .withValue(Keys.KEY_DATA, new byte[64])
+                .build());
+        operations.add(ContentProviderOperation.newInsert(
+                UserIds.buildPublicUserIdsUri(keyRingRowId))
+                .withValue(UserIds.KEY_RING_ROW_ID, keyRingRowId)
+                .withValue(UserIds.USER_ID, "Refresh <" + masterKeyId + "@example.com>")
+                .withValue(UserIds.RANK, 0)
+                .build());
+        mResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+    }
+
+    private static byte[] getFingerprint(long masterKeyId) {
+        byte[] fingerprint = new byte[20];
+        fingerprint[19] = (byte) masterKeyId;
+        return fingerprint;
+    }
+}
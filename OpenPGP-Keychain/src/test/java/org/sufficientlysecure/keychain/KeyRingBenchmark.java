@@ -0,0 +1,152 @@
+package org.sufficientlysecure.keychain;
+
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.*;
+import org.spongycastle.openpgp.operator.PGPDigestCalculator;
+import org.spongycastle.openpgp.operator.jcajce.*;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.Id;
+import org.thialfihar.android.apg.pgp.Key;
+import org.thialfihar.android.apg.pgp.KeyRing;
+import org.thialfihar.android.apg.pgp.PgpKeyOperation;
+
+import java.security.Security;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Compares the key ring queries of PgpSignEncrypt and the adapters on a fresh KeyRing, which
+ * has to look at all signatures, against a KeyRing that has already been used.
+ * Results are printed to stderr.
+ */
+@Ignore("benchmark, run by hand")
+@RunWith(RobolectricGradleTestRunner.class)
+public class KeyRingBenchmark {
+
+    private static final int SUBKEYS = 16;
+    private static final int CERTIFICATIONS = 200;
+    private static final int ROUNDS = 200;
+    private static final String USER_ID = "Benchmark <benchmark@example.com>";
+
+    private static PGPSecretKeyRing sSecretKeyRing;
+    private static PGPPublicKeyRing sPublicKeyRing;
+
+    @BeforeClass
+    public static void setUpKeyRing() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        PgpKeyOperation keyOperation = new PgpKeyOperation(null);
+
+        PGPKeyPair master = new JcaPGPKeyPair(PGPPublicKey.ECDSA,
+                keyOperation.generateKeyPair(Id.choice.algorithm.ecdsa, 256, true), new Date());
+
+        PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build().get(
+                HashAlgorithmTags.SHA1);
+        PGPSignatureSubpacketGenerator hashed = new PGPSignatureSubpacketGenerator();
+        hashed.setKeyFlags(true, KeyFlags.CERTIFY_OTHER | KeyFlags.SIGN_DATA);
+        PGPKeyRingGenerator keyGen = new PGPKeyRingGenerator(PGPSignature.POSITIVE_CERTIFICATION,
+                master, USER_ID, sha1Calc, hashed.generate(), null,
+                new JcaPGPContentSignerBuilder(PGPPublicKey.ECDSA, HashAlgorithmTags.SHA256),
+                new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.CAST5, sha1Calc)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                        .build("benchmark".toCharArray()));
+
+        for (int i = 0; i < SUBKEYS; ++i) {
+            boolean sign = i % 2 == 1;
+            PGPKeyPair subKey = new JcaPGPKeyPair(sign ? PGPPublicKey.ECDSA : PGPPublicKey.ECDH,
+                    keyOperation.generateKeyPair(sign ? Id.choice.algorithm.ecdsa
+                            : Id.choice.algorithm.ecdh, 256, false), new Date());
+            hashed = new PGPSignatureSubpacketGenerator();
+            hashed.setKeyFlags(false, sign ? KeyFlags.SIGN_DATA
+                    : KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE);
+            keyGen.addSubKey(subKey, hashed.generate(), null);
+        }
+        sSecretKeyRing = keyGen.generateSecretKeyRing();
+
+        // certifications of others, only on the public key ring as on a real keyring
+        PGPKeyPair certifier = new JcaPGPKeyPair(PGPPublicKey.ECDSA,
+                keyOperation.generateKeyPair(Id.choice.algorithm.ecdsa, 256, true), new Date());
+        PGPPublicKey masterKey = master.getPublicKey();
+        for (int i = 0; i < CERTIFICATIONS; ++i) {
+            PGPSignatureGenerator generator = new PGPSignatureGenerator(
+                    new JcaPGPContentSignerBuilder(PGPPublicKey.ECDSA, HashAlgorithmTags.SHA256)
+                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+            generator.init(PGPSignature.DEFAULT_CERTIFICATION, certifier.getPrivateKey());
+            masterKey = PGPPublicKey.addCertification(masterKey, USER_ID,
+                    generator.generateCertification(USER_ID, masterKey));
+        }
+        sPublicKeyRing = PGPPublicKeyRing.insertPublicKey(keyGen.generatePublicKeyRing(),
+                masterKey);
+    }
+
+    @Test
+    public void benchmarkPublicKeyRing() {
+        Key expected = query(new KeyRing(sPublicKeyRing));
+        assertNotNull(expected);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; ++i) {
+            assertEquals(expected.getKeyId(), query(new KeyRing(sPublicKeyRing)).getKeyId());
+        }
+        long freshNanos = (System.nanoTime() - start) / ROUNDS;
+
+        KeyRing keyRing = new KeyRing(sPublicKeyRing);
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; ++i) {
+            assertEquals(expected.getKeyId(), query(keyRing).getKeyId());
+        }
+        long cachedNanos = (System.nanoTime() - start) / ROUNDS;
+
+        System.err.println("public key ring with " + (SUBKEYS + 1) + " keys and "
+                + CERTIFICATIONS + " certifications: fresh " + freshNanos / 1000 + " us, cached "
+                + cachedNanos / 1000 + " us");
+    }
+
+    @Test
+    public void benchmarkSecretKeyRing() {
+        long expected = new KeyRing(sSecretKeyRing).getSigningKey().getKeyId();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; ++i) {
+            KeyRing keyRing = new KeyRing(sSecretKeyRing);
+            assertEquals(expected, keyRing.getSigningKey().getKeyId());
+            keyRing.getMasterKey().isCertificationKey();
+        }
+        long freshNanos = (System.nanoTime() - start) / ROUNDS;
+
+        KeyRing keyRing = new KeyRing(sSecretKeyRing);
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; ++i) {
+            assertEquals(expected, keyRing.getSigningKey().getKeyId());
+            keyRing.getMasterKey().isCertificationKey();
+        }
+        long cachedNanos = (System.nanoTime() - start) / ROUNDS;
+
+        System.err.println("secret key ring with " + (SUBKEYS + 1) + " keys: fresh "
+                + freshNanos / 1000 + " us, cached " + cachedNanos / 1000 + " us");
+    }
+
+    /**
+     * What PgpSignEncrypt and the key list adapters ask a public key ring.
+     */
+    private static Key query(KeyRing keyRing) {
+        Key masterKey = keyRing.getMasterKey();
+        masterKey.getMainUserId();
+        masterKey.isExpired();
+        for (Key key : keyRing.getPublicKeys()) {
+            key.getKeyUsage();
+            key.getExpiryDate();
+        }
+        keyRing.getUsableEncryptKeys();
+        return keyRing.getEncryptKey();
+    }
+}
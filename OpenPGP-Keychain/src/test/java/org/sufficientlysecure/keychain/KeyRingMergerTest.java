@@ -0,0 +1,168 @@
+package org.sufficientlysecure.keychain;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.spongycastle.openpgp.PGPSignature;
+
+import org.thialfihar.android.apg.pgp.KeyRingMerger;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class KeyRingMergerTest {
+
+    private static final String ALICE = "Alice <alice@example.com>";
+    private static final String ALICE_WORK = "Alice <alice@work.example.com>";
+
+    private PGPSecretKey mAlice;
+    private PGPSecretKey mBob;
+    private PGPSecretKey mCarol;
+    private PGPPublicKeyRing mKeyRing;
+
+    @Before
+    public void setUp() throws Exception {
+        PGPSecretKeyRing alice = TestKeyRings.generateSecret(ALICE);
+        mAlice = alice.getSecretKey();
+        mBob = TestKeyRings.generateSecret("Bob <bob@example.com>").getSecretKey();
+        mCarol = TestKeyRings.generateSecret("Carol <carol@example.com>").getSecretKey();
+        mKeyRing = TestKeyRings.getPublicKeyRing(alice);
+    }
+
+    @Test
+    public void unionOfCertifications() throws Exception {
+        PGPPublicKeyRing stored = TestKeyRings.certify(mKeyRing, ALICE, mBob,
+                PGPSignature.POSITIVE_CERTIFICATION);
+        PGPPublicKeyRing incoming = TestKeyRings.certify(mKeyRing, ALICE, mCarol,
+                PGPSignature.CASUAL_CERTIFICATION);
+
+        PGPPublicKeyRing merged = KeyRingMerger.merge(stored, incoming);
+        // the self-certification once, and both certifications
+        assertEquals(3, count(merged.getPublicKey().getSignaturesForID(ALICE)));
+        assertTrue(isCertifiedBy(merged, ALICE, mBob.getKeyID()));
+        assertTrue(isCertifiedBy(merged, ALICE, mCarol.getKeyID()));
+    }
+
+    @Test
+    public void unionOfUserIds() throws Exception {
+        PGPPublicKeyRing incoming = TestKeyRings.addUserId(mKeyRing, ALICE_WORK, mAlice);
+
+        PGPPublicKeyRing merged = KeyRingMerger.merge(mKeyRing, incoming);
+        assertEquals(2, count(merged.getPublicKey().getUserIDs()));
+        assertTrue(isCertifiedBy(merged, ALICE_WORK, mAlice.getKeyID()));
+
+        // a user id missing in the incoming key ring is kept
+        merged = KeyRingMerger.merge(incoming, mKeyRing);
+        assertSame(incoming, merged);
+    }
+
+    @Test
+    public void unionOfSubkeys() throws Exception {
+        PGPPublicKey subKey = getSubKey(mKeyRing);
+        PGPPublicKeyRing withoutSubKey = PGPPublicKeyRing.removePublicKey(mKeyRing, subKey);
+        assertEquals(1, count(withoutSubKey.getPublicKeys()));
+
+        PGPPublicKeyRing merged = KeyRingMerger.merge(withoutSubKey, mKeyRing);
+        assertEquals(2, count(merged.getPublicKeys()));
+        // with its binding signature
+        assertEquals(1, count(merged.getPublicKey(subKey.getKeyID()).getSignatures()));
+
+        assertSame(mKeyRing, KeyRingMerger.merge(mKeyRing, withoutSubKey));
+    }
+
+    @Test
+    public void unionOfRevocations() throws Exception {
+        PGPPublicKeyRing stored = TestKeyRings.certify(mKeyRing, ALICE, mBob,
+                PGPSignature.POSITIVE_CERTIFICATION);
+        PGPPublicKeyRing incoming = TestKeyRings.certify(stored, ALICE, mBob,
+                PGPSignature.CERTIFICATION_REVOCATION);
+        incoming = TestKeyRings.revoke(incoming, mAlice);
+
+        assertFalse(stored.getPublicKey().isRevoked());
+        PGPPublicKeyRing merged = KeyRingMerger.merge(stored, incoming);
+        assertTrue(merged.getPublicKey().isRevoked());
+        assertEquals(3, count(merged.getPublicKey().getSignaturesForID(ALICE)));
+        assertTrue(hasSignatureOfType(merged, ALICE, PGPSignature.CERTIFICATION_REVOCATION));
+    }
+
+    @Test
+    public void idempotent() throws Exception {
+        PGPPublicKeyRing incoming = TestKeyRings.certify(mKeyRing, ALICE, mBob,
+                PGPSignature.POSITIVE_CERTIFICATION);
+        incoming = TestKeyRings.addUserId(incoming, ALICE_WORK, mAlice);
+
+        // nothing new, the stored key ring itself is returned, so it isn't written again
+        assertSame(mKeyRing, KeyRingMerger.merge(mKeyRing, mKeyRing));
+        assertSame(mKeyRing, KeyRingMerger.merge(mKeyRing,
+                new PGPPublicKeyRing(mKeyRing.getEncoded())));
+
+        PGPPublicKeyRing merged = KeyRingMerger.merge(mKeyRing, incoming);
+        assertSame(merged, KeyRingMerger.merge(merged, incoming));
+        assertSame(merged, KeyRingMerger.merge(merged, mKeyRing));
+        assertSame(incoming, KeyRingMerger.merge(incoming, merged));
+    }
+
+    @Test
+    public void differentMasterKeys() throws Exception {
+        try {
+            KeyRingMerger.merge(mKeyRing, TestKeyRings.generate(ALICE));
+            fail("key rings with different master keys were merged");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean isCertifiedBy(PGPPublicKeyRing keyRing, String userId, long keyId) {
+        for (Iterator<PGPSignature> it = keyRing.getPublicKey().getSignaturesForID(userId);
+             it.hasNext(); ) {
+            if (it.next().getKeyID() == keyId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean hasSignatureOfType(PGPPublicKeyRing keyRing, String userId,
+                                              int type) {
+        for (Iterator<PGPSignature> it = keyRing.getPublicKey().getSignaturesForID(userId);
+             it.hasNext(); ) {
+            if (it.next().getSignatureType() == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static PGPPublicKey getSubKey(PGPPublicKeyRing keyRing) {
+        for (Iterator<PGPPublicKey> it = keyRing.getPublicKeys(); it.hasNext(); ) {
+            PGPPublicKey key = it.next();
+            if (!key.isMasterKey()) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private static int count(Iterator<?> it) {
+        int count = 0;
+        for (; it.hasNext(); it.next()) {
+            ++count;
+        }
+        return count;
+    }
+}
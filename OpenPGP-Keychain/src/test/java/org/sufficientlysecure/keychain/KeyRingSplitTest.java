@@ -0,0 +1,126 @@
+package org.sufficientlysecure.keychain;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPUserAttributeSubpacketVector;
+import org.spongycastle.util.encoders.Hex;
+
+import org.thialfihar.android.apg.pgp.KeyRing;
+import org.thialfihar.android.apg.pgp.KeyRingSplit;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class KeyRingSplitTest {
+
+    private static final String ALICE = "Alice <alice@example.com>";
+
+    @Test
+    public void withoutExtras() throws Exception {
+        PGPPublicKeyRing keyRing = TestKeyRings.generate(ALICE);
+
+        assertNull(KeyRingSplit.getExtras(keyRing));
+        assertSame(keyRing, KeyRingSplit.getCore(keyRing));
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        PGPSecretKeyRing alice = TestKeyRings.generateSecret(ALICE);
+        PGPSecretKey bob = TestKeyRings.generateSecret("Bob <bob@example.com>").getSecretKey();
+        PGPPublicKeyRing keyRing = TestKeyRings.getPublicKeyRing(alice);
+        keyRing = TestKeyRings.certify(keyRing, ALICE, bob, PGPSignature.POSITIVE_CERTIFICATION);
+        keyRing = TestKeyRings.certify(keyRing, ALICE, bob, PGPSignature.CERTIFICATION_REVOCATION);
+        keyRing = TestKeyRings.addPhoto(keyRing, alice.getSecretKey());
+
+        PGPPublicKeyRing core = KeyRingSplit.getCore(keyRing);
+        byte[] extras = KeyRingSplit.getExtras(keyRing);
+        assertNotNull(extras);
+
+        // the core has the self-signature only, and both keys
+        long masterKeyId = keyRing.getPublicKey().getKeyID();
+        for (String signature : getSignatures(core)) {
+            assertTrue(signature.startsWith(Long.toHexString(masterKeyId) + ":"));
+        }
+        assertFalse(core.getPublicKey().getUserAttributes().hasNext());
+        assertEquals(2, count(core.getPublicKeys()));
+
+        PGPPublicKeyRing merged = KeyRingSplit.merge(core, extras);
+        assertEquals(getSignatures(keyRing), getSignatures(merged));
+        assertEquals(4, getSignatures(merged).size());
+        assertEquals(2, count(merged.getPublicKeys()));
+
+        // the same through KeyRing, as the key ring is read from the database
+        KeyRing decoded = KeyRing.decode(core.getEncoded(), extras);
+        assertEquals(getSignatures(keyRing), getSignatures(decoded.getPublicKeyRing()));
+    }
+
+    @Test
+    public void extrasOfAnotherKeyRing() throws Exception {
+        PGPSecretKey bob = TestKeyRings.generateSecret("Bob <bob@example.com>").getSecretKey();
+        PGPPublicKeyRing alice = TestKeyRings.generate(ALICE);
+        String carolUserId = "Carol <carol@example.com>";
+        PGPPublicKeyRing carol = TestKeyRings.certify(TestKeyRings.generate(carolUserId),
+                carolUserId, bob, PGPSignature.CASUAL_CERTIFICATION);
+        byte[] carolExtras = KeyRingSplit.getExtras(carol);
+
+        try {
+            KeyRingSplit.merge(alice, carolExtras);
+            fail("extras of another key ring were merged");
+        } catch (IOException e) {
+            // expected
+        }
+        // not the core alone, which would lose the certifications
+        assertNull(KeyRing.decode(alice.getEncoded(), carolExtras));
+        assertNull(KeyRing.decode(alice.getEncoded(), new byte[] {1, 2, 3}));
+    }
+
+    /**
+     * @return key id of the issuer and encoding of all user id and user attribute signatures
+     */
+    @SuppressWarnings("unchecked")
+    private static HashSet<String> getSignatures(PGPPublicKeyRing keyRing) throws Exception {
+        PGPPublicKey masterKey = keyRing.getPublicKey();
+        HashSet<String> signatures = new HashSet<String>();
+        for (Iterator<String> userIds = masterKey.getUserIDs(); userIds.hasNext(); ) {
+            addSignatures(signatures, masterKey.getSignaturesForID(userIds.next()));
+        }
+        for (Iterator<PGPUserAttributeSubpacketVector> attributes =
+                     masterKey.getUserAttributes(); attributes.hasNext(); ) {
+            addSignatures(signatures, masterKey.getSignaturesForUserAttribute(attributes.next()));
+        }
+        return signatures;
+    }
+
+    private static void addSignatures(HashSet<String> signatures, Iterator<?> it)
+            throws Exception {
+        while (it.hasNext()) {
+            PGPSignature signature = (PGPSignature) it.next();
+            signatures.add(Long.toHexString(signature.getKeyID()) + ":"
+                    + new String(Hex.encode(signature.getEncoded())));
+        }
+    }
+
+    private static int count(Iterator<?> it) {
+        int count = 0;
+        for (; it.hasNext(); it.next()) {
+            ++count;
+        }
+        return count;
+    }
+}
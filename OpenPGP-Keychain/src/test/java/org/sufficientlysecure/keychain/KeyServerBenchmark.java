@@ -0,0 +1,175 @@
+package org.sufficientlysecure.keychain;
+
+import android.os.Bundle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+import org.thialfihar.android.apg.pgp.HkpKeyServer;
+import org.thialfihar.android.apg.pgp.PgpImportExport;
+import org.thialfihar.android.apg.provider.KeychainContract;
+import org.thialfihar.android.apg.provider.KeychainProvider;
+import org.thialfihar.android.apg.service.ApgIntentService;
+import org.thialfihar.android.apg.ui.adapter.AsyncTaskResultWrapper;
+import org.thialfihar.android.apg.ui.adapter.ImportKeysListEntry;
+import org.thialfihar.android.apg.ui.adapter.ImportKeysListServerLoader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Searches, downloads and imports key rings end to end against a stand-in keyserver on the
+ * loopback interface, once answering right away and once with a delay like a distant keyserver.
+ * Results are printed to stderr.
+ */
+@Ignore("benchmark, run by hand")
+@RunWith(RobolectricGradleTestRunner.class)
+public class KeyServerBenchmark {
+
+    private static final int KEYS = 100;
+    private static final int ROUNDS = 50;
+
+    private static ArrayList<PGPPublicKeyRing> sKeyRings = new ArrayList<PGPPublicKeyRing>();
+
+    private HkpTestServer mServer;
+
+    @BeforeClass
+    public static void setUpKeyRings() throws Exception {
+        for (int i = 0; i < KEYS; ++i) {
+            sKeyRings.add(TestKeyRings.generate(
+                    "Benchmark User " + i + " <user" + i + "@example.com>"));
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+        KeychainProvider provider = new KeychainProvider();
+        provider.attachInfo(Robolectric.application, null);
+        ShadowContentResolver.registerProvider(KeychainContract.CONTENT_AUTHORITY, provider);
+
+        mServer = new HkpTestServer();
+        for (PGPPublicKeyRing keyRing : sKeyRings) {
+            mServer.addKeyRing(keyRing);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    @Test
+    public void benchmarkSearch() throws Exception {
+        HkpKeyServer keyServer = new HkpKeyServer(mServer.getHostAndPort());
+        // warm up
+        assertEquals(KEYS, keyServer.search("benchmark user").size());
+
+        long[] times = timeSearch(keyServer);
+        System.err.println("search for " + KEYS + " keys: p50 " + percentile(times, 50)
+                + " us, p90 " + percentile(times, 90) + " us");
+
+        mServer.setDelay(20, 20);
+        times = timeSearch(keyServer);
+        System.err.println("search for " + KEYS + " keys, 20-40 ms delay: p50 "
+                + percentile(times, 50) + " us, p90 " + percentile(times, 90) + " us");
+
+        // the search screen, with a second keyserver that always fails
+        HkpTestServer failing = new HkpTestServer();
+        failing.setFailureRate(1, 503);
+        try {
+            String[] keyServers = new String[] {mServer.getHostAndPort(),
+                    failing.getHostAndPort()};
+            times = new long[ROUNDS / 5];
+            for (int i = 0; i < times.length; ++i) {
+                long start = System.nanoTime();
+                AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> result =
+                        new ImportKeysListServerLoader(Robolectric.application, "benchmark user",
+                                keyServers).loadInBackground();
+                times[i] = System.nanoTime() - start;
+                assertEquals(KEYS, result.getResult().size());
+            }
+            Arrays.sort(times);
+            System.err.println("loader with a failing second keyserver, 20-40 ms delay: p50 "
+                    + percentile(times, 50) + " us, p90 " + percentile(times, 90) + " us");
+        } finally {
+            failing.close();
+        }
+    }
+
+    @Test
+    public void benchmarkDownload() throws Exception {
+        ArrayList<ImportKeysListEntry> entries =
+                new HkpKeyServer(mServer.getHostAndPort()).search("benchmark user");
+        assertEquals(KEYS, entries.size());
+        PgpImportExport importExport = new PgpImportExport(Robolectric.application, null);
+
+        long start = System.nanoTime();
+        Bundle result = importExport.downloadAndImportKeyRings(entries, mServer.getHostAndPort());
+        long nanos = System.nanoTime() - start;
+        assertEquals(KEYS, result.getInt(ApgIntentService.RESULT_IMPORT_ADDED));
+        System.err.println("downloaded and imported " + KEYS + " new keys in " + nanos / 1000000
+                + " ms, " + perSecond(KEYS, nanos) + " keys/s");
+
+        mServer.setDelay(20, 20);
+        start = System.nanoTime();
+        result = importExport.downloadAndImportKeyRings(entries, mServer.getHostAndPort());
+        nanos = System.nanoTime() - start;
+        assertEquals(KEYS, result.getInt(ApgIntentService.RESULT_IMPORT_UNCHANGED));
+        System.err.println("downloaded " + KEYS + " unchanged keys, 20-40 ms delay, in "
+                + nanos / 1000000 + " ms, " + perSecond(KEYS, nanos) + " keys/s");
+    }
+
+    @Test
+    public void benchmarkImport() throws Exception {
+        ArrayList<ImportKeysListEntry> entries = new ArrayList<ImportKeysListEntry>();
+        for (PGPPublicKeyRing keyRing : sKeyRings) {
+            entries.add(new ImportKeysListEntry(keyRing));
+        }
+        PgpImportExport importExport = new PgpImportExport(Robolectric.application, null);
+
+        long start = System.nanoTime();
+        Bundle result = importExport.importKeyRings(entries);
+        long nanos = System.nanoTime() - start;
+        assertEquals(KEYS, result.getInt(ApgIntentService.RESULT_IMPORT_ADDED));
+        System.err.println("imported " + KEYS + " new keys in " + nanos / 1000000 + " ms, "
+                + perSecond(KEYS, nanos) + " keys/s");
+
+        start = System.nanoTime();
+        result = importExport.importKeyRings(entries);
+        nanos = System.nanoTime() - start;
+        assertEquals(KEYS, result.getInt(ApgIntentService.RESULT_IMPORT_UNCHANGED));
+        System.err.println("imported " + KEYS + " unchanged keys in " + nanos / 1000000
+                + " ms, " + perSecond(KEYS, nanos) + " keys/s");
+    }
+
+    private long[] timeSearch(HkpKeyServer keyServer) throws Exception {
+        long[] times = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; ++i) {
+            long start = System.nanoTime();
+            int results = keyServer.search("benchmark user").size();
+            times[i] = System.nanoTime() - start;
+            assertEquals(KEYS, results);
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)] / 1000;
+    }
+
+    private static long perSecond(int count, long nanos) {
+        return count * 1000000000L / Math.max(1, nanos);
+    }
+}
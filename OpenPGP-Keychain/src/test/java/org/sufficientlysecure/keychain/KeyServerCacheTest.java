@@ -0,0 +1,112 @@
+package org.sufficientlysecure.keychain;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+
+import org.thialfihar.android.apg.pgp.HkpKeyServer;
+import org.thialfihar.android.apg.pgp.KeyServerCache;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class KeyServerCacheTest {
+
+    private static final String KEY_SERVER = "keys.example.com:11371";
+    private static final String ARMORED_KEY = "-----BEGIN PGP PUBLIC KEY BLOCK-----\n\nkey\n"
+            + "-----END PGP PUBLIC KEY BLOCK-----";
+
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = new File(Robolectric.application.getCacheDir(), "keyserver-test");
+        deleteDir();
+    }
+
+    @After
+    public void tearDown() {
+        HkpKeyServer.setCache(null);
+        deleteDir();
+    }
+
+    @Test
+    public void normalizedQuery() {
+        KeyServerCache cache = new KeyServerCache(mDir, 1024 * 1024, 60000);
+        cache.put(KEY_SERVER, KeyServerCache.OP_INDEX, "Alice  Example", null, null, "index");
+
+        // same cache files, new process
+        cache = new KeyServerCache(mDir, 1024 * 1024, 60000);
+        KeyServerCache.Response response = cache.get(KEY_SERVER, KeyServerCache.OP_INDEX,
+                " alice example ");
+        assertNotNull(response);
+        assertEquals("index", response.getData());
+        assertTrue(cache.isFresh(response));
+
+        assertNull(cache.get(KEY_SERVER, KeyServerCache.OP_GET, "alice example"));
+        assertNull(cache.get("other.example.com:11371", KeyServerCache.OP_INDEX,
+                "alice example"));
+    }
+
+    @Test
+    public void leastRecentlyUsedRemoved() {
+        String data = new String(new char[400]).replace('\0', 'x');
+        KeyServerCache cache = new KeyServerCache(mDir, 1000, 60000);
+        cache.put(KEY_SERVER, KeyServerCache.OP_GET, "0x1", null, null, data);
+        cache.put(KEY_SERVER, KeyServerCache.OP_GET, "0x2", null, null, data);
+        assertNotNull(cache.get(KEY_SERVER, KeyServerCache.OP_GET, "0x1"));
+        cache.put(KEY_SERVER, KeyServerCache.OP_GET, "0x3", null, null, data);
+
+        assertNotNull(cache.get(KEY_SERVER, KeyServerCache.OP_GET, "0x1"));
+        assertNull(cache.get(KEY_SERVER, KeyServerCache.OP_GET, "0x2"));
+        assertNotNull(cache.get(KEY_SERVER, KeyServerCache.OP_GET, "0x3"));
+    }
+
+    @Test
+    public void revalidateWithETag() throws Exception {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+        HkpTestServer server = new HkpTestServer();
+        try {
+            server.putKey("0x1234567890abcdef", ARMORED_KEY);
+            KeyServerCache cache = new KeyServerCache(mDir, 1024 * 1024, 60000);
+            HkpKeyServer.setCache(cache);
+            HkpKeyServer keyServer = new HkpKeyServer(server.getHostAndPort());
+
+            assertEquals(ARMORED_KEY, keyServer.get("0x1234567890abcdef"));
+            assertEquals(ARMORED_KEY, keyServer.get("0x1234567890ABCDEF"));
+            assertEquals(1, server.getRequestCount());
+            assertEquals(1, cache.getHitCount());
+
+            // expired, the keyserver only confirms it
+            cache.setTtl(0);
+            assertEquals(ARMORED_KEY, keyServer.get("0x1234567890abcdef"));
+            assertEquals(2, server.getRequestCount());
+            assertEquals(1, server.getNotModifiedCount());
+            assertEquals(1, cache.getRevalidationCount());
+            assertEquals(1, cache.getMissCount());
+            assertEquals(2f / 3, cache.getHitRate(), 0.001);
+            assertFalse(cache.isFresh(cache.get(server.getHostAndPort(),
+                    KeyServerCache.OP_GET, "0x1234567890abcdef")));
+        } finally {
+            server.close();
+        }
+    }
+
+    private void deleteDir() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+}
@@ -0,0 +1,154 @@
+package org.sufficientlysecure.keychain;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+
+import org.thialfihar.android.apg.pgp.KeyServerSearch;
+import org.thialfihar.android.apg.ui.adapter.ImportKeysListEntry;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Searches two stand-in keyservers that know some of the same keys.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+public class KeyServerSearchTest {
+
+    private static final String QUERY = "alice";
+    private static final String FINGERPRINT_1 = "0123456789abcdef0123456789abcdef00000001";
+    private static final String FINGERPRINT_2 = "0123456789abcdef0123456789abcdef00000002";
+    private static final String FINGERPRINT_3 = "0123456789abcdef0123456789abcdef00000003";
+
+    private HkpTestServer mFirst;
+    private HkpTestServer mSecond;
+
+    @Before
+    public void setUp() throws Exception {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+        mFirst = new HkpTestServer();
+        mSecond = new HkpTestServer();
+
+        mFirst.putKey(QUERY, "info:1:2\n"
+                + pubLine(FINGERPRINT_1) + uidLine("Alice <alice@example.com>")
+                + pubLine(FINGERPRINT_2) + uidLine("Alice <alice@example.org>"));
+        // older keyservers only return long key ids
+        mSecond.putKey(QUERY, "info:1:2\n"
+                + pubLine(FINGERPRINT_1.substring(24)) + uidLine("Alice <alice@example.net>")
+                + pubLine(FINGERPRINT_3) + uidLine("Alice <alice@example.edu>"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFirst.close();
+        mSecond.close();
+    }
+
+    @Test
+    public void mergeResults() throws Exception {
+        final int[] partialResults = new int[1];
+        ArrayList<ImportKeysListEntry> results = KeyServerSearch.search(QUERY,
+                new String[] {mFirst.getHostAndPort(), mSecond.getHostAndPort()},
+                new KeyServerSearch.Listener() {
+                    @Override
+                    public void onPartialResult(ArrayList<ImportKeysListEntry> results) {
+                        ++partialResults[0];
+                    }
+                });
+
+        assertEquals(2, partialResults[0]);
+        assertEquals(3, results.size());
+
+        HashSet<String> fingerprints = new HashSet<String>();
+        for (ImportKeysListEntry entry : results) {
+            fingerprints.add(entry.getFingerPrintHex());
+            if (FINGERPRINT_1.equals(entry.getFingerPrintHex())) {
+                assertEquals(2, entry.getUserIds().size());
+            }
+        }
+        assertTrue(fingerprints.contains(FINGERPRINT_1));
+        assertTrue(fingerprints.contains(FINGERPRINT_2));
+        assertTrue(fingerprints.contains(FINGERPRINT_3));
+    }
+
+    @Test
+    public void cancelSlowKeyServer() throws Exception {
+        mSecond.setDelay(20000);
+
+        long start = System.currentTimeMillis();
+        ArrayList<ImportKeysListEntry> results = KeyServerSearch.search(QUERY,
+                new String[] {mFirst.getHostAndPort(), mSecond.getHostAndPort()}, null);
+        long millis = System.currentTimeMillis() - start;
+
+        assertEquals(2, results.size());
+        assertEquals(mFirst.getHostAndPort(), results.get(0).getOrigin());
+        assertTrue("took " + millis + " ms", millis < 10000);
+    }
+
+    @Test
+    public void partialResultsWhileReading() throws Exception {
+        StringBuilder index = new StringBuilder("info:1:120\n");
+        for (int i = 0; i < 120; ++i) {
+            index.append(pubLine(String.format("0123456789abcdef0123456789abcdef%08x", i)))
+                    .append(uidLine("Bob " + i + " <bob" + i + "@example.com>"));
+        }
+        mFirst.putKey("bob", index.toString());
+
+        final ArrayList<Integer> partialResults = new ArrayList<Integer>();
+        ArrayList<ImportKeysListEntry> results = KeyServerSearch.search("bob",
+                new String[] {mFirst.getHostAndPort()},
+                new KeyServerSearch.Listener() {
+                    @Override
+                    public void onPartialResult(ArrayList<ImportKeysListEntry> results) {
+                        synchronized (partialResults) {
+                            partialResults.add(results.size());
+                        }
+                    }
+                });
+
+        assertEquals(120, results.size());
+        // parts of the index while it is read, then the whole answer
+        synchronized (partialResults) {
+            assertEquals(3, partialResults.size());
+            assertEquals(50, (int) partialResults.get(0));
+            assertEquals(100, (int) partialResults.get(1));
+            assertEquals(120, (int) partialResults.get(2));
+        }
+    }
+
+    @Test
+    public void partialResultsAreNotChanged() throws Exception {
+        final ArrayList<ArrayList<ImportKeysListEntry>> partialResults =
+                new ArrayList<ArrayList<ImportKeysListEntry>>();
+        KeyServerSearch.search(QUERY,
+                new String[] {mFirst.getHostAndPort(), mSecond.getHostAndPort()},
+                new KeyServerSearch.Listener() {
+                    @Override
+                    public void onPartialResult(ArrayList<ImportKeysListEntry> results) {
+                        partialResults.add(results);
+                    }
+                });
+
+        // the entries of the first answer were shown before the second one was merged in
+        assertEquals(2, partialResults.size());
+        assertEquals(2, partialResults.get(0).size());
+        for (ImportKeysListEntry entry : partialResults.get(0)) {
+            assertEquals(1, entry.getUserIds().size());
+        }
+        assertEquals(3, partialResults.get(1).size());
+    }
+
+    private static String pubLine(String fingerprintOrKeyId) {
+        return "pub:" + fingerprintOrKeyId.toUpperCase() + ":1:2048:1388534400::\n";
+    }
+
+    private static String uidLine(String userId) {
+        return "uid:" + userId + ":1388534400::\n";
+    }
+}
@@ -0,0 +1,276 @@
+package org.sufficientlysecure.keychain;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import org.thialfihar.android.apg.provider.KeychainContract;
+import org.thialfihar.android.apg.provider.KeychainContract.KeyRings;
+import org.thialfihar.android.apg.provider.KeychainContract.Keys;
+import org.thialfihar.android.apg.provider.KeychainContract.UserIds;
+import org.thialfihar.android.apg.provider.KeychainProvider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Imports and then replaces key rings the way ProviderHelper.saveKeyRing stores them while other
+ * threads look up key rings and keys like OpenPgpService and the key list do. Read latency
+ * percentiles are printed to stderr.
+ */
+@Ignore("stress test, run by hand")
+@RunWith(RobolectricGradleTestRunner.class)
+public class KeychainDatabaseStressTest {
+
+    private static final int KEY_RINGS = 10000;
+    private static final int READERS = 2;
+    private static final long MASTER_KEY_ID_BASE = 0x1000000000L;
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        KeychainProvider provider = new KeychainProvider();
+        provider.attachInfo(Robolectric.application, null);
+        ShadowContentResolver.registerProvider(KeychainContract.CONTENT_AUTHORITY, provider);
+        mResolver = Robolectric.application.getContentResolver();
+    }
+
+    @Test
+    public void readLatencyDuringImport() throws Exception {
+        runWithReaders("imported", false, new KeyRingWriter() {
+            @Override
+            public void write(long masterKeyId) throws Exception {
+                importKeyRing(masterKeyId);
+            }
+        });
+    }
+
+    @Test
+    public void readLatencyDuringReplace() throws Exception {
+        final long[] rowIds = new long[KEY_RINGS];
+        for (int i = 0; i < KEY_RINGS; ++i) {
+            rowIds[i] = importKeyRing(MASTER_KEY_ID_BASE + i);
+        }
+
+        runWithReaders("replaced", true, new KeyRingWriter() {
+            @Override
+            public void write(long masterKeyId) throws Exception {
+                replaceKeyRing(rowIds[(int) (masterKeyId - MASTER_KEY_ID_BASE)], masterKeyId);
+            }
+        });
+    }
+
+    private interface KeyRingWriter {
+        void write(long masterKeyId) throws Exception;
+    }
+
+    /**
+     * Writes all key rings in order while the readers look up written ones, or any if they are
+     * replaced. Every lookup has to find the key ring and its encryption key.
+     */
+    private void runWithReaders(String action, final boolean replace,
+                                final KeyRingWriter keyRingWriter) throws Exception {
+        final AtomicInteger written = new AtomicInteger(0);
+        final AtomicInteger missing = new AtomicInteger(0);
+        final Throwable[] failure = new Throwable[1];
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < KEY_RINGS; ++i) {
+                        keyRingWriter.write(MASTER_KEY_ID_BASE + i);
+                        written.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            }
+        });
+
+        final long[][] latencies = new long[READERS][];
+        final int[] counts = new int[READERS];
+        Thread[] readers = new Thread[READERS];
+        for (int r = 0; r < READERS; ++r) {
+            final int reader = r;
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(reader);
+                    long[] nanos = new long[1024];
+                    int count = 0;
+                    while (written.get() < KEY_RINGS && failure[0] == null) {
+                        int available = replace ? KEY_RINGS : written.get();
+                        if (available == 0) {
+                            Thread.yield();
+                            continue;
+                        }
+
+                        long masterKeyId = MASTER_KEY_ID_BASE + random.nextInt(available);
+                        long start = System.nanoTime();
+                        if (!lookUp(masterKeyId)) {
+                            missing.incrementAndGet();
+                        }
+                        if (count == nanos.length) {
+                            nanos = Arrays.copyOf(nanos, count * 2);
+                        }
+                        nanos[count++] = System.nanoTime() - start;
+                    }
+                    latencies[reader] = nanos;
+                    counts[reader] = count;
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.join();
+        long writeMillis = (System.nanoTime() - start) / 1000000;
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+        assertEquals(KEY_RINGS, written.get());
+        assertEquals(0, missing.get());
+
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        long[] all = new long[total];
+        int offset = 0;
+        for (int r = 0; r < READERS; ++r) {
+            System.arraycopy(latencies[r], 0, all, offset, counts[r]);
+            offset += counts[r];
+        }
+        Arrays.sort(all);
+        assertTrue(total > 0);
+
+        System.err.println(action + " " + KEY_RINGS + " key rings in " + writeMillis + " ms, "
+                + total + " concurrent lookups: p50 " + percentile(all, 50) + " us, p90 "
+                + percentile(all, 90) + " us, p99 " + percentile(all, 99) + " us, max "
+                + all[total - 1] / 1000 + " us");
+    }
+
+    /**
+     * Inserts the key ring and its rows in one batch, the rows referencing the key ring row
+     * inserted first.
+     *
+     * @return row id of the key ring
+     */
+    private long importKeyRing(long masterKeyId) throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(KeyRings.MASTER_KEY_ID, masterKeyId);
+        values.put(KeyRings.KEY_RING_DATA, new byte[2048]);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(KeyRings.buildPublicKeyRingsUri())
+                .withValues(values).build());
+        addRowOperations(masterKeyId, "0", true, operations);
+        ContentProviderResult[] results =
+                mResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+        return Long.parseLong(results[0].uri.getLastPathSegment());
+    }
+
+    /**
+     * Replaces the key ring in-place, deleting it with its rows and inserting it again with the
+     * same row id in one batch.
+     */
+    private void replaceKeyRing(long keyRingRowId, long masterKeyId) throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(KeyRings._ID, keyRingRowId);
+        values.put(KeyRings.MASTER_KEY_ID, masterKeyId);
+        values.put(KeyRings.KEY_RING_DATA, new byte[2048]);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newDelete(
+                KeyRings.buildPublicKeyRingsUri(Long.toString(keyRingRowId))).build());
+        operations.add(ContentProviderOperation.newInsert(KeyRings.buildPublicKeyRingsUri())
+                .withValues(values).build());
+        addRowOperations(masterKeyId, Long.toString(keyRingRowId), false, operations);
+        mResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+    }
+
+    private static void addRowOperations(long masterKeyId, String keyRingRowId,
+                                         boolean backReference,
+                                         ArrayList<ContentProviderOperation> operations) {
+        for (int rank = 0; rank < 3; ++rank) {
+            operations.add(withKeyRingRowId(ContentProviderOperation.newInsert(
+                    Keys.buildPublicKeysUri(keyRingRowId)), Keys.KEY_RING_ROW_ID,
+                    keyRingRowId, backReference)
+                    .withValue(Keys.KEY_ID, masterKeyId + rank)
+                    .withValue(Keys.IS_MASTER_KEY, rank == 0)
+                    .withValue(Keys.CAN_SIGN, rank == 1)
+                    .withValue(Keys.CAN_ENCRYPT, rank == 2)
+                    .withValue(Keys.IS_REVOKED, false)
+                    .withValue(Keys.RANK, rank)
+                    .withValue(Keys.KEY_DATA, new byte[512])
+                    .build());
+        }
+        operations.add(withKeyRingRowId(ContentProviderOperation.newInsert(
+                UserIds.buildPublicUserIdsUri(keyRingRowId)), UserIds.KEY_RING_ROW_ID,
+                keyRingRowId, backReference)
+                .withValue(UserIds.USER_ID, "Stress <" + masterKeyId + "@example.com>")
+                .withValue(UserIds.RANK, 0)
+                .build());
+    }
+
+    private static ContentProviderOperation.Builder withKeyRingRowId(
+            ContentProviderOperation.Builder builder, String column, String keyRingRowId,
+            boolean backReference) {
+        if (backReference) {
+            return builder.withValueBackReference(column, 0);
+        }
+        return builder.withValue(column, keyRingRowId);
+    }
+
+    /**
+     * @return true if the key ring and its encryption key are found
+     */
+    private boolean lookUp(long masterKeyId) {
+        boolean found = false;
+        Cursor cursor = mResolver.query(
+                KeyRings.buildPublicKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId)),
+                new String[] {KeyRings._ID, KeyRings.KEY_RING_DATA}, null, null, null);
+        if (cursor != null) {
+            found = cursor.moveToFirst();
+            cursor.close();
+        }
+
+        cursor = mResolver.query(
+                Keys.buildPublicKeysByMasterKeyIdUri(Long.toString(masterKeyId)),
+                new String[] {Keys.KEY_ID}, Keys.CAN_ENCRYPT + " = 1", null, null);
+        if (cursor != null) {
+            found &= cursor.moveToFirst();
+            cursor.close();
+        } else {
+            found = false;
+        }
+        return found;
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)] / 1000;
+    }
+}
@@ -0,0 +1,165 @@
+package org.sufficientlysecure.keychain;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+
+import org.thialfihar.android.apg.pgp.KeyServer;
+import org.thialfihar.android.apg.pgp.LocalKeyServer;
+import org.thialfihar.android.apg.pgp.PgpImportExport;
+import org.thialfihar.android.apg.ui.adapter.ImportKeysListEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class LocalKeyServerTest {
+
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = new File(Robolectric.application.getCacheDir(), "dumps-" + System.nanoTime());
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        deleteDir(mDir);
+    }
+
+    @Test
+    public void searchAndGet() throws Exception {
+        Random random = new Random(1);
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        byte[] alice = writeKeyRing(dump, random, "Alice Example <alice@example.com>");
+        writeKeyRing(dump, random, "Bob Example <bob@example.com>");
+        // still being copied
+        dump.write(new byte[] {(byte) 0x99, 0x01});
+        writeDump("dump-0000.pgp", dump.toByteArray());
+
+        LocalKeyServer server = LocalKeyServer.getInstance(mDir);
+        assertEquals(1, server.updateIndex());
+
+        List<ImportKeysListEntry> results = server.search("ALICE example");
+        assertEquals(1, results.size());
+        String fingerprint = toHex(alice);
+        assertEquals(fingerprint, results.get(0).getFingerPrintHex());
+        assertEquals("Alice Example <alice@example.com>", results.get(0).getUserIds().get(0));
+        assertEquals(2, server.search("example.com").size());
+        assertEquals(0, server.search("alice bob").size());
+        assertEquals(1, server.search("0x" + fingerprint).size());
+
+        // the fingerprint is checked again like for every downloaded key
+        String armoredKey = server.get("0x" + fingerprint.substring(24));
+        assertNotNull(PgpImportExport.decodeDownloadedKeyRing(armoredKey, fingerprint));
+
+        try {
+            server.get("0x0123456789abcdef");
+            fail();
+        } catch (KeyServer.KeyNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void onlyNewDumpsAreIndexed() throws Exception {
+        Random random = new Random(2);
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        writeKeyRing(dump, random, "Carol <carol@example.com>");
+        writeDump("dump-0000.pgp", dump.toByteArray());
+
+        LocalKeyServer server = LocalKeyServer.getInstance(mDir);
+        assertEquals(1, server.updateIndex());
+        assertEquals(0, server.updateIndex());
+
+        dump = new ByteArrayOutputStream();
+        writeKeyRing(dump, random, "Dave <dave@example.com>");
+        writeDump("dump-0001.pgp", dump.toByteArray());
+        assertEquals(1, server.updateIndex());
+        assertEquals(2, server.search("example").size());
+
+        new File(mDir, "dump-0000.pgp").delete();
+        assertEquals(0, server.updateIndex());
+        assertEquals(1, server.search("example").size());
+    }
+
+    /**
+     * Writes a key ring of an RSA master key with random modulus and a user id, without
+     * signatures.
+     *
+     * @return the fingerprint of the master key
+     */
+    static byte[] writeKeyRing(ByteArrayOutputStream out, Random random, String userId)
+            throws Exception {
+        byte[] modulus = new byte[256];
+        random.nextBytes(modulus);
+        modulus[0] |= 0x80;
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(4);
+        body.write(new byte[] {0x52, (byte) 0xc4, 0x00, 0x00});
+        body.write(1);
+        body.write(new byte[] {0x08, 0x00});
+        body.write(modulus);
+        body.write(new byte[] {0x00, 0x11, 0x01, 0x00, 0x01});
+        byte[] key = body.toByteArray();
+
+        writePacket(out, 6, key);
+        writePacket(out, 13, userId.getBytes("UTF-8"));
+
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        sha1.update(new byte[] {(byte) 0x99, (byte) (key.length >> 8), (byte) key.length});
+        return sha1.digest(key);
+    }
+
+    private static void writePacket(ByteArrayOutputStream out, int tag, byte[] body) {
+        out.write(0xc0 | tag);
+        if (body.length < 192) {
+            out.write(body.length);
+        } else {
+            int length = body.length - 192;
+            out.write((length >> 8) + 192);
+            out.write(length & 0xff);
+        }
+        out.write(body, 0, body.length);
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    private void writeDump(String name, byte[] data) throws Exception {
+        FileOutputStream out = new FileOutputStream(new File(mDir, name));
+        out.write(data);
+        out.close();
+    }
+
+    static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDir(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        dir.delete();
+    }
+}
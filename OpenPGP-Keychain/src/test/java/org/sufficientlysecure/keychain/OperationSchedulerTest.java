@@ -0,0 +1,105 @@
+package org.sufficientlysecure.keychain;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.thialfihar.android.apg.service.OperationScheduler;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class OperationSchedulerTest {
+
+    private final AtomicInteger mFinished = new AtomicInteger(0);
+    private OperationScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new OperationScheduler(1,
+                new OperationScheduler.OnOperationFinishedListener() {
+                    @Override
+                    public void onOperationFinished(OperationScheduler.OperationHandle handle) {
+                        mFinished.incrementAndGet();
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdown();
+    }
+
+    @Test
+    public void canceledOperationFinishesWhenItReturns() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch returned = new CountDownLatch(1);
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                // ignores the interrupt, like an operation between two cancel checks
+                while (true) {
+                    try {
+                        release.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        // keep running
+                    }
+                }
+                returned.countDown();
+            }
+        }, OperationScheduler.PRIORITY_NORMAL, "running");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, mScheduler.cancel("running"));
+        Thread.sleep(100);
+        assertEquals(0, mFinished.get());
+
+        release.countDown();
+        assertTrue(returned.await(5, TimeUnit.SECONDS));
+        waitForFinished(1);
+    }
+
+    @Test
+    public void queuedOperationFinishesWhenCanceled() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // canceled
+                }
+            }
+        }, OperationScheduler.PRIORITY_NORMAL, "running");
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, OperationScheduler.PRIORITY_NORMAL, "queued");
+
+        // the only worker is busy, the second operation never starts
+        assertEquals(1, mScheduler.cancel("queued"));
+        waitForFinished(1);
+
+        release.countDown();
+        waitForFinished(2);
+    }
+
+    private void waitForFinished(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mFinished.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mFinished.get());
+    }
+}
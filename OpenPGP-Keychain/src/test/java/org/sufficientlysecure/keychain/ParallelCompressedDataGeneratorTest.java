@@ -0,0 +1,86 @@
+package org.sufficientlysecure.keychain;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.spongycastle.bcpg.CompressionAlgorithmTags;
+import org.spongycastle.openpgp.PGPCompressedData;
+import org.spongycastle.openpgp.PGPObjectFactory;
+
+import org.thialfihar.android.apg.pgp.ParallelCompressedDataGenerator;
+import org.thialfihar.android.apg.util.ParallelDeflaterOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Compresses with the parallel engine and decompresses with the regular PGPCompressedData.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+public class ParallelCompressedDataGeneratorTest {
+
+    private static final int BLOCK = ParallelDeflaterOutputStream.DEFAULT_BLOCK_SIZE;
+
+    @Test
+    public void belowOneBlock() throws Exception {
+        roundTrip(CompressionAlgorithmTags.ZIP, 1000);
+        roundTrip(CompressionAlgorithmTags.ZLIB, 1000);
+    }
+
+    @Test
+    public void exactlyOneBlock() throws Exception {
+        roundTrip(CompressionAlgorithmTags.ZIP, BLOCK);
+        roundTrip(CompressionAlgorithmTags.ZLIB, BLOCK);
+    }
+
+    @Test
+    public void severalBlocks() throws Exception {
+        roundTrip(CompressionAlgorithmTags.ZIP, 3 * BLOCK + 17);
+        roundTrip(CompressionAlgorithmTags.ZLIB, 3 * BLOCK + 17);
+    }
+
+    private static void roundTrip(int algorithm, int size) throws Exception {
+        byte[] data = createData(size);
+
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        ParallelCompressedDataGenerator generator =
+                new ParallelCompressedDataGenerator(algorithm, 4);
+        OutputStream out = generator.open(packet);
+        // odd write sizes, so writes cross block boundaries
+        for (int off = 0; off < size; off += 4099) {
+            out.write(data, off, Math.min(4099, size - off));
+        }
+        out.close();
+
+        PGPObjectFactory factory = new PGPObjectFactory(packet.toByteArray());
+        PGPCompressedData compressedData = (PGPCompressedData) factory.nextObject();
+        InputStream in = compressedData.getDataStream();
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 12];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            decompressed.write(buffer, 0, n);
+        }
+
+        assertArrayEquals(data, decompressed.toByteArray());
+    }
+
+    /**
+     * Text-like data with repetitions across blocks, so back references to the previous block
+     * are used, mixed with random bytes.
+     */
+    private static byte[] createData(int size) {
+        Random random = new Random(size);
+        byte[] data = new byte[size];
+        String text = "The quick brown fox jumps over the lazy dog. ";
+        for (int i = 0; i < size; ++i) {
+            data[i] = i % 1000 < 900 ? (byte) text.charAt(i % text.length())
+                    : (byte) random.nextInt();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,154 @@
+package org.sufficientlysecure.keychain;
+
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.spongycastle.openpgp.PGPKeyPair;
+import org.spongycastle.openpgp.PGPKeyRingGenerator;
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureGenerator;
+import org.spongycastle.openpgp.PGPSignatureSubpacketGenerator;
+import org.spongycastle.openpgp.PGPUserAttributeSubpacketVector;
+import org.spongycastle.openpgp.PGPUserAttributeSubpacketVectorGenerator;
+import org.spongycastle.openpgp.operator.PGPDigestCalculator;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.Id;
+import org.thialfihar.android.apg.pgp.PgpKeyOperation;
+
+import java.io.ByteArrayOutputStream;
+import java.security.Security;
+import java.util.Date;
+import java.util.Iterator;
+
+/**
+ * Generates small but complete key rings, an ECDSA master key with a self-certified user id and
+ * an ECDH subkey, for stand-in keyservers, and adds certifications and photo ids to them. The
+ * passphrase of the secret keys is "test".
+ */
+public class TestKeyRings {
+
+    private TestKeyRings() {
+    }
+
+    public static PGPPublicKeyRing generate(String userId) throws Exception {
+        return createGenerator(userId).generatePublicKeyRing();
+    }
+
+    public static PGPSecretKeyRing generateSecret(String userId) throws Exception {
+        return createGenerator(userId).generateSecretKeyRing();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static PGPPublicKeyRing getPublicKeyRing(PGPSecretKeyRing secretKeyRing)
+            throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Iterator<PGPPublicKey> it = secretKeyRing.getPublicKeys(); it.hasNext(); ) {
+            it.next().encode(out);
+        }
+        return new PGPPublicKeyRing(out.toByteArray());
+    }
+
+    /**
+     * @param type certification or certification revocation type
+     * @return keyRing with a certification of userId by certifier added
+     */
+    public static PGPPublicKeyRing certify(PGPPublicKeyRing keyRing, String userId,
+                                           PGPSecretKey certifier, int type) throws Exception {
+        PGPPublicKey masterKey = keyRing.getPublicKey();
+        PGPSignature cert = createSignatureGenerator(certifier, type)
+                .generateCertification(userId, masterKey);
+        return PGPPublicKeyRing.insertPublicKey(keyRing,
+                PGPPublicKey.addCertification(masterKey, userId, cert));
+    }
+
+    /**
+     * @return keyRing with userId self-certified by owner added
+     */
+    public static PGPPublicKeyRing addUserId(PGPPublicKeyRing keyRing, String userId,
+                                             PGPSecretKey owner) throws Exception {
+        return certify(keyRing, userId, owner, PGPSignature.POSITIVE_CERTIFICATION);
+    }
+
+    /**
+     * @return keyRing with a revocation of its master key by owner added
+     */
+    public static PGPPublicKeyRing revoke(PGPPublicKeyRing keyRing, PGPSecretKey owner)
+            throws Exception {
+        PGPPublicKey masterKey = keyRing.getPublicKey();
+        PGPSignature revocation = createSignatureGenerator(owner, PGPSignature.KEY_REVOCATION)
+                .generateCertification(masterKey);
+        return PGPPublicKeyRing.insertPublicKey(keyRing,
+                PGPPublicKey.addCertification(masterKey, revocation));
+    }
+
+    /**
+     * @return keyRing with a small photo id self-certified by owner added
+     */
+    public static PGPPublicKeyRing addPhoto(PGPPublicKeyRing keyRing, PGPSecretKey owner)
+            throws Exception {
+        PGPUserAttributeSubpacketVectorGenerator attributesGen =
+                new PGPUserAttributeSubpacketVectorGenerator();
+        attributesGen.setImageAttribute(0x01 /* JPEG */, new byte[512]);
+        PGPUserAttributeSubpacketVector attributes = attributesGen.generate();
+
+        PGPPublicKey masterKey = keyRing.getPublicKey();
+        PGPSignature cert = createSignatureGenerator(owner, PGPSignature.POSITIVE_CERTIFICATION)
+                .generateCertification(attributes, masterKey);
+        return PGPPublicKeyRing.insertPublicKey(keyRing,
+                PGPPublicKey.addCertification(masterKey, attributes, cert));
+    }
+
+    private static PGPSignatureGenerator createSignatureGenerator(PGPSecretKey secretKey,
+                                                                  int type) throws Exception {
+        PGPPrivateKey privateKey = secretKey.extractPrivateKey(
+                new JcePBESecretKeyDecryptorBuilder()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                        .build("test".toCharArray()));
+        PGPSignatureGenerator generator = new PGPSignatureGenerator(
+                new JcaPGPContentSignerBuilder(secretKey.getPublicKey().getAlgorithm(),
+                        HashAlgorithmTags.SHA256)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+        generator.init(type, privateKey);
+        return generator;
+    }
+
+    private static PGPKeyRingGenerator createGenerator(String userId) throws Exception {
+        if (Security.getProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME) == null) {
+            Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        }
+        PgpKeyOperation keyOperation = new PgpKeyOperation(null);
+
+        PGPKeyPair master = new JcaPGPKeyPair(PGPPublicKey.ECDSA,
+                keyOperation.generateKeyPair(Id.choice.algorithm.ecdsa, 256, true), new Date());
+        PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build().get(
+                HashAlgorithmTags.SHA1);
+        PGPSignatureSubpacketGenerator hashed = new PGPSignatureSubpacketGenerator();
+        hashed.setKeyFlags(true, KeyFlags.CERTIFY_OTHER | KeyFlags.SIGN_DATA);
+        PGPKeyRingGenerator keyGen = new PGPKeyRingGenerator(PGPSignature.POSITIVE_CERTIFICATION,
+                master, userId, sha1Calc, hashed.generate(), null,
+                new JcaPGPContentSignerBuilder(PGPPublicKey.ECDSA, HashAlgorithmTags.SHA256),
+                new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.CAST5, sha1Calc)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                        .build("test".toCharArray()));
+
+        PGPKeyPair subKey = new JcaPGPKeyPair(PGPPublicKey.ECDH,
+                keyOperation.generateKeyPair(Id.choice.algorithm.ecdh, 256, false), new Date());
+        hashed = new PGPSignatureSubpacketGenerator();
+        hashed.setKeyFlags(false, KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE);
+        keyGen.addSubKey(subKey, hashed.generate(), null);
+
+        return keyGen;
+    }
+}
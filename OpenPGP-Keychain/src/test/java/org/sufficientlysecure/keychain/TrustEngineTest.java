@@ -0,0 +1,190 @@
+package org.sufficientlysecure.keychain;
+
+import android.content.ContentValues;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSignature;
+
+import org.thialfihar.android.apg.provider.KeychainContract;
+import org.thialfihar.android.apg.provider.KeychainContract.Certs;
+import org.thialfihar.android.apg.provider.KeychainContract.KeyRings;
+import org.thialfihar.android.apg.provider.KeychainProvider;
+import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.provider.TrustEngine;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class TrustEngineTest {
+
+    private static final long OWN = 0x1111L;
+    private static final long ALICE = 0x2222L;
+    private static final long BOB = 0x3333L;
+    private static final long CAROL = 0x4444L;
+
+    @Before
+    public void setUp() {
+        KeychainProvider provider = new KeychainProvider();
+        provider.attachInfo(Robolectric.application, null);
+        ShadowContentResolver.registerProvider(KeychainContract.CONTENT_AUTHORITY, provider);
+    }
+
+    @Test
+    public void certifiedByOwnKey() {
+        TrustEngine engine = new TrustEngine(1);
+        engine.setRoot(OWN, true);
+        engine.addCertification(OWN, ALICE);
+        engine.addCertification(ALICE, BOB);
+
+        assertTrue(engine.isCertified(OWN));
+        assertTrue(engine.isCertified(ALICE));
+        assertFalse(engine.isCertified(BOB));
+        assertFalse(engine.isCertified(CAROL));
+    }
+
+    @Test
+    public void certificationsBeforeRoot() {
+        TrustEngine engine = new TrustEngine(2);
+        engine.addCertification(ALICE, BOB);
+        engine.addCertification(OWN, ALICE);
+        assertFalse(engine.isCertified(BOB));
+
+        engine.setRoot(OWN, true);
+        assertTrue(engine.isCertified(ALICE));
+        assertTrue(engine.isCertified(BOB));
+    }
+
+    @Test
+    public void replaceCertifiers() {
+        TrustEngine engine = new TrustEngine(2);
+        engine.setRoot(OWN, true);
+        engine.addCertification(OWN, ALICE);
+        engine.addCertification(ALICE, BOB);
+        engine.addCertification(CAROL, BOB);
+        assertTrue(engine.isCertified(BOB));
+
+        // Alice's certification has been revoked, Carol is not certified
+        engine.setCertifiers(ALICE, new long[0]);
+        assertFalse(engine.isCertified(ALICE));
+        assertFalse(engine.isCertified(BOB));
+
+        engine.setCertifiers(CAROL, new long[] {OWN});
+        assertTrue(engine.isCertified(BOB));
+    }
+
+    @Test
+    public void removeKey() {
+        TrustEngine engine = new TrustEngine(2);
+        engine.setRoot(OWN, true);
+        engine.addCertification(OWN, ALICE);
+        engine.addCertification(ALICE, BOB);
+
+        engine.removeKey(ALICE);
+        assertFalse(engine.isCertified(ALICE));
+        assertFalse(engine.isCertified(BOB));
+
+        engine.removeKey(OWN);
+        assertFalse(engine.isCertified(OWN));
+    }
+
+    @Test
+    public void manyKeys() {
+        TrustEngine engine = new TrustEngine(1);
+        engine.setRoot(OWN, true);
+        for (long keyId = 1; keyId <= 50000; ++keyId) {
+            engine.addCertification(keyId % 2 == 0 ? OWN : keyId - 1, 0x100000000L + keyId);
+        }
+        assertTrue(engine.isCertified(0x100000000L + 2));
+        assertFalse(engine.isCertified(0x100000000L + 3));
+        assertTrue(engine.isCertified(0x100000000L + 50000));
+    }
+
+    @Test
+    public void revokedCertificationIsNotCounted() throws Exception {
+        TrustEngine engine = TrustEngine.getInstance(Robolectric.application);
+        // in the database as well, so a reload after a change keeps it
+        insertKeyRing(KeyRings.buildSecretKeyRingsUri(), OWN);
+        TrustEngine.onSecretKeyRingSaved(OWN);
+        long rowId = insertKeyRing(KeyRings.buildPublicKeyRingsUri(), 0x5555L);
+
+        insertCert(rowId, 0x5555L, PGPSignature.POSITIVE_CERTIFICATION, 1000);
+        TrustEngine.onCertificationsChanged(Robolectric.application, 0x5555L);
+        assertTrue(engine.isCertified(0x5555L));
+
+        insertCert(rowId, 0x5555L, PGPSignature.CERTIFICATION_REVOCATION, 2000);
+        TrustEngine.onCertificationsChanged(Robolectric.application, 0x5555L);
+        assertFalse(engine.isCertified(0x5555L));
+
+        // certified again after the revocation
+        insertCert(rowId, 0x5555L, PGPSignature.CASUAL_CERTIFICATION, 3000);
+        TrustEngine.onCertificationsChanged(Robolectric.application, 0x5555L);
+        assertTrue(engine.isCertified(0x5555L));
+    }
+
+    @Test
+    public void deletedCertificationIsNotCounted() throws Exception {
+        TrustEngine engine = TrustEngine.getInstance(Robolectric.application);
+        // in the database as well, so a reload after a change keeps it
+        insertKeyRing(KeyRings.buildSecretKeyRingsUri(), OWN);
+        TrustEngine.onSecretKeyRingSaved(OWN);
+
+        PGPPublicKeyRing keyRing = TestKeyRings.generate("Alice <alice@example.com>");
+        long masterKeyId = keyRing.getPublicKey().getKeyID();
+        ProviderHelper.saveKeyRing(Robolectric.application, keyRing);
+        long rowId = ProviderHelper.getRowId(Robolectric.application,
+                KeyRings.buildPublicKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId)));
+        insertCert(rowId, masterKeyId, PGPSignature.POSITIVE_CERTIFICATION, 1000);
+        TrustEngine.onCertificationsChanged(Robolectric.application, masterKeyId);
+        assertTrue(engine.isCertified(masterKeyId));
+
+        // the new version doesn't carry the certification, saving it deletes the row
+        Iterator<?> keys = keyRing.getPublicKeys();
+        keys.next();
+        PGPPublicKeyRing changed =
+                PGPPublicKeyRing.removePublicKey(keyRing, (PGPPublicKey) keys.next());
+        ProviderHelper.saveKeyRing(Robolectric.application, changed);
+        assertFalse(engine.isCertified(masterKeyId));
+
+        insertCert(rowId, masterKeyId, PGPSignature.POSITIVE_CERTIFICATION, 1000);
+        TrustEngine.onCertificationsChanged(Robolectric.application, masterKeyId);
+        assertTrue(engine.isCertified(masterKeyId));
+
+        ProviderHelper.deletePublicKeyRing(Robolectric.application, rowId);
+        assertFalse(engine.isCertified(masterKeyId));
+    }
+
+    private static long insertKeyRing(Uri uri, long masterKeyId) {
+        ContentValues values = new ContentValues();
+        values.put(KeyRings.MASTER_KEY_ID, masterKeyId);
+        values.put(KeyRings.KEY_RING_DATA, new byte[64]);
+        Uri insertedUri = Robolectric.application.getContentResolver().insert(uri, values);
+        return Long.parseLong(insertedUri.getLastPathSegment());
+    }
+
+    /**
+     * Inserts a certification of the key by OWN, as if it had been verified.
+     */
+    private static void insertCert(long rowId, long masterKeyId, int type, long creation) {
+        ContentValues values = new ContentValues();
+        values.put(Certs.KEY_RING_ROW_ID, rowId);
+        values.put(Certs.KEY_ID, masterKeyId);
+        values.put(Certs.USER_ID, "Alice <alice@example.com>");
+        values.put(Certs.KEY_ID_CERTIFIER, OWN);
+        values.put(Certs.TYPE, type);
+        values.put(Certs.CREATION, creation);
+        values.put(Certs.VERIFIED, Certs.VERIFIED_OK);
+        Robolectric.application.getContentResolver().insert(
+                Certs.buildPublicCertsUri(Long.toString(rowId)), values);
+    }
+}